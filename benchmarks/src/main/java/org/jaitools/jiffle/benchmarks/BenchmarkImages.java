@@ -0,0 +1,94 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+import java.util.Random;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.imageutils.ImageUtils;
+
+
+/**
+ * Creates synthetic images for benchmarks.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class BenchmarkImages {
+    
+    /**
+     * Creates a square, single-band image filled with pseudo-random 
+     * integral values. Images with the same seed and maximum value contain
+     * the same values whatever their data type.
+     * 
+     * @param size image width and height
+     * @param dataType one of "byte", "short", "int", "float" or "double"
+     * @param maxValue maximum image value (minimum is 0)
+     * @param seed seed for the random number generator
+     * 
+     * @return the new image
+     */
+    public static TiledImage createRandomImage(int size, String dataType, 
+            int maxValue, long seed) {
+        
+        TiledImage img = ImageUtils.createConstantImage(size, size, zero(dataType));
+        Random rr = new Random(seed);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                img.setSample(x, y, 0, rr.nextInt(maxValue + 1));
+            }
+        }
+        return img;
+    }
+    
+    /**
+     * Creates a square, single-band destination image of type double.
+     * 
+     * @param size image width and height
+     * 
+     * @return the new image
+     */
+    public static TiledImage createDestImage(int size) {
+        return ImageUtils.createConstantImage(size, size, 0d);
+    }
+    
+    private static Number zero(String dataType) {
+        String s = dataType.toLowerCase().trim();
+        if ("byte".equals(s)) {
+            return (byte) 0;
+        } else if ("short".equals(s)) {
+            return (short) 0;
+        } else if ("int".equals(s)) {
+            return 0;
+        } else if ("float".equals(s)) {
+            return 0f;
+        } else if ("double".equals(s)) {
+            return 0d;
+        }
+        throw new IllegalArgumentException("Unsupported data type: " + dataType);
+    }
+}
@@ -0,0 +1,143 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+
+/**
+ * Representative scripts used by the runtime benchmarks. Each script 
+ * writes to a single destination image and reads from one or more 
+ * source images.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public enum BenchmarkScript {
+    
+    /** Single-band arithmetic */
+    ARITHMETIC("dest = (src * 2 + 1) / 3 - src % 7;", 
+            null, "dest", 255, "src"),
+    
+    /** Normalized difference vegetation index from two source images */
+    NDVI("dest = con(nir + red > 0, (nir - red) / (nir + red), 0);", 
+            null, "dest", 255, "nir", "red"),
+    
+    /** 3x3 neighbourhood mean using relative pixel positions */
+    MEAN_3X3("options { outside = 0; } "
+            + "n = 0; foreach (dy in -1:1) { foreach (dx in -1:1) { n += src[dx, dy]; } } "
+            + "dest = n / 9;", 
+            null, "dest", 255, "src"),
+    
+    /** Game of Life in a toroidal world (script from the demo module) */
+    LIFE(null, "/org/jaitools/demo/jiffle/life-toroid.jfl", "nextworld", 1, "world"),
+    
+    /** List creation and statistics functions */
+    LIST_STATS("options { outside = 0; } "
+            + "v = [src[-1, 0], src, src[1, 0], src[0, -1], src[0, 1]]; "
+            + "dest = mean(v) + sdev(v) + median(v) + max(v) - min(v);", 
+            null, "dest", 255, "src"),
+    
+    /** Nested con calls */
+    CON_CASCADE("dest = con(src < 16, 1, con(src < 32, 2, con(src < 64, 3, con(src < 128, 4, 5))));", 
+            null, "dest", 255, "src");
+    
+    
+    private final String script;
+    private final String resource;
+    private final String destName;
+    private final int maxValue;
+    private final String[] sourceNames;
+
+    private BenchmarkScript(String script, String resource, String destName, 
+            int maxValue, String... sourceNames) {
+        this.script = script;
+        this.resource = resource;
+        this.destName = destName;
+        this.maxValue = maxValue;
+        this.sourceNames = sourceNames;
+    }
+
+    /**
+     * Gets the script, reading it from the classpath if necessary.
+     * 
+     * @return the script
+     * @throws IOException on error reading a script resource
+     */
+    public String getScript() throws IOException {
+        if (script != null) {
+            return script;
+        }
+        
+        InputStream in = BenchmarkScript.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Script resource not found: " + resource);
+        }
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+            
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Gets the destination image variable name.
+     * 
+     * @return variable name
+     */
+    public String getDestName() {
+        return destName;
+    }
+
+    /**
+     * Gets the maximum value for synthetic source images.
+     * 
+     * @return maximum value
+     */
+    public int getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Gets the source image variable names.
+     * 
+     * @return variable names
+     */
+    public String[] getSourceNames() {
+        return sourceNames.clone();
+    }
+}
@@ -0,0 +1,158 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+
+/**
+ * Measures the time taken by each phase of script compilation, and by 
+ * {@link Jiffle#compile()} as a whole, for scripts from 
+ * {@link GeneratedScripts}. Before each invocation of {@code phase} the
+ * phases preceding the one being timed are run (untimed) with a new 
+ * {@link CompilePipeline}.
+ * <p>
+ * The default script lengths stop at 1000 statements because a longer
+ * generated runtime method exceeds the JVM's 64 KB method size limit and
+ * fails in the Janino phase. The earlier phases can be timed with longer
+ * scripts, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar CompileBenchmark.phase -p statements=5000 
+ *     -p phase=PARSE,TAG_VARS,TRANSFORM_EXPRESSIONS,GENERATE_SOURCE
+ * </pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+    
+    /**
+     * Holds the generated script.
+     */
+    @State(Scope.Thread)
+    public static class ScriptState {
+        
+        /** Number of statements in the generated script */
+        @Param({"1", "10", "100", "1000"})
+        public int statements;
+        
+        String script;
+        Map<String, Jiffle.ImageRole> imageParams;
+        Jiffle jiffle;
+        
+        /**
+         * Generates the script.
+         * 
+         * @throws Exception on errors compiling the script
+         */
+        @Setup
+        public void setup() throws Exception {
+            script = GeneratedScripts.create(statements);
+
+            imageParams = CollectionFactory.map();
+            imageParams.put("src", Jiffle.ImageRole.SOURCE);
+            imageParams.put("dest", Jiffle.ImageRole.DEST);
+
+            jiffle = new Jiffle(script, imageParams);
+        }
+    }
+    
+    /**
+     * Holds a pipeline which is ready to run the phase being timed.
+     */
+    @State(Scope.Thread)
+    public static class PhaseState {
+        
+        /** The phase to time */
+        @Param({"PARSE", "TAG_VARS", "CHECK_ASSIGNMENTS", "TRANSFORM_EXPRESSIONS", 
+                "CHECK_FUNCTION_CALLS", "OPTIMIZE_EXPRESSIONS", "HOIST_INVARIANTS", 
+                "GENERATE_SOURCE", "JANINO_COMPILE"})
+        public CompilePipeline.Phase phase;
+        
+        CompilePipeline pipeline;
+        
+        /**
+         * Runs the phases before the one being timed.
+         * 
+         * @param scriptState the script to compile
+         * @throws Exception on errors compiling the script
+         */
+        @Setup(Level.Invocation)
+        public void setup(ScriptState scriptState) throws Exception {
+            pipeline = new CompilePipeline(scriptState.script, scriptState.imageParams);
+            pipeline.runBefore(phase);
+        }
+    }
+
+    /**
+     * Times a single compilation phase.
+     * 
+     * @param scriptState the script (provides the {@code statements} parameter)
+     * @param phaseState the pipeline and the {@code phase} parameter
+     * @return the result of the phase
+     * @throws Exception on errors compiling the script
+     */
+    @Benchmark
+    public Object phase(ScriptState scriptState, PhaseState phaseState) throws Exception {
+        return phaseState.pipeline.run(phaseState.phase);
+    }
+
+    /**
+     * Times {@link Jiffle#compile()}, which runs the phases before source
+     * generation.
+     * 
+     * @param scriptState the script
+     * @return the compiled {@code Jiffle} object
+     * @throws Exception on errors compiling the script
+     */
+    @Benchmark
+    public Object compile(ScriptState scriptState) throws Exception {
+        scriptState.jiffle.compile();
+        return scriptState.jiffle;
+    }
+}
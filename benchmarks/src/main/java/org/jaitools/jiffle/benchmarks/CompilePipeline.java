@@ -0,0 +1,203 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+import java.io.StringReader;
+import java.util.Map;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.DebuggingInformation;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.parser.CheckAssignments;
+import org.jaitools.jiffle.parser.CheckFunctionCalls;
+import org.jaitools.jiffle.parser.HoistInvariants;
+import org.jaitools.jiffle.parser.JiffleLexer;
+import org.jaitools.jiffle.parser.JiffleParser;
+import org.jaitools.jiffle.parser.MessageTable;
+import org.jaitools.jiffle.parser.OptimizeExpressions;
+import org.jaitools.jiffle.parser.RuntimeSourceGenerator;
+import org.jaitools.jiffle.parser.SourceGenerator;
+import org.jaitools.jiffle.parser.TagVars;
+import org.jaitools.jiffle.parser.TransformExpressions;
+
+
+/**
+ * Runs the steps of {@link Jiffle#compile()} and runtime class creation 
+ * one at a time, so that each can be timed separately. The steps follow 
+ * those in the {@code Jiffle} class for the direct runtime model and the
+ * source backend. Each instance is used for a single pass through the 
+ * steps, since some of them modify the AST in place.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CompilePipeline {
+    
+    /** Compilation steps in the order they are run. */
+    public enum Phase {
+        /** Lexing and parsing to build the primary AST */
+        PARSE,
+        /** Tagging variables with their type (TagVars) */
+        TAG_VARS,
+        /** Checking variable assignments (CheckAssignments) */
+        CHECK_ASSIGNMENTS,
+        /** Rewriting expressions (TransformExpressions) */
+        TRANSFORM_EXPRESSIONS,
+        /** Checking function calls (CheckFunctionCalls) */
+        CHECK_FUNCTION_CALLS,
+        /** Constant folding and common sub-expressions (OptimizeExpressions) */
+        OPTIMIZE_EXPRESSIONS,
+        /** Hoisting loop-invariant expressions (HoistInvariants) */
+        HOIST_INVARIANTS,
+        /** Generating runtime class source (RuntimeSourceGenerator) */
+        GENERATE_SOURCE,
+        /** Compiling the runtime class source with Janino */
+        JANINO_COMPILE;
+    }
+    
+    private final String script;
+    private final Map<String, Jiffle.ImageRole> imageParams;
+    private final MessageTable msgTable;
+    
+    private CommonTokenStream tokens;
+    private CommonTree tree;
+    private String source;
+
+    /**
+     * Creates a new pipeline for a script.
+     * 
+     * @param script the script
+     * @param imageParams image variable names and roles
+     */
+    public CompilePipeline(String script, Map<String, Jiffle.ImageRole> imageParams) {
+        this.script = script;
+        this.imageParams = imageParams;
+        this.msgTable = new MessageTable();
+    }
+
+    /**
+     * Runs all steps which precede the given phase.
+     * 
+     * @param phase the phase
+     * @throws Exception on compilation errors
+     */
+    public void runBefore(Phase phase) throws Exception {
+        for (Phase p : Phase.values()) {
+            if (p == phase) {
+                return;
+            }
+            run(p);
+        }
+    }
+
+    /**
+     * Runs a single step. Steps must be run in order.
+     * 
+     * @param phase the phase
+     * @return the result of the step (an AST, source or class files)
+     * @throws Exception on compilation errors
+     */
+    public Object run(Phase phase) throws Exception {
+        CommonTreeNodeStream nodes;
+        
+        switch (phase) {
+            case PARSE:
+                tokens = new CommonTokenStream(new JiffleLexer(new ANTLRStringStream(script)));
+                tree = (CommonTree) new JiffleParser(tokens).prog().getTree();
+                return tree;
+                
+            case TAG_VARS:
+                tree = (CommonTree) new TagVars(nodes(), imageParams, msgTable).start().getTree();
+                checkMessages(phase);
+                return tree;
+                
+            case CHECK_ASSIGNMENTS:
+                new CheckAssignments(nodes(), msgTable).start();
+                checkMessages(phase);
+                return tree;
+                
+            case TRANSFORM_EXPRESSIONS:
+                tree = (CommonTree) new TransformExpressions(nodes()).start().getTree();
+                return tree;
+                
+            case CHECK_FUNCTION_CALLS:
+                new CheckFunctionCalls(nodes(), msgTable).downup(tree);
+                checkMessages(phase);
+                return tree;
+                
+            case OPTIMIZE_EXPRESSIONS:
+                tree = new OptimizeExpressions(tree).apply();
+                return tree;
+                
+            case HOIST_INVARIANTS:
+                new HoistInvariants(tree).apply();
+                return tree;
+                
+            case GENERATE_SOURCE:
+                SourceGenerator generator = new RuntimeSourceGenerator(nodes());
+                generator.setBaseClassName(JiffleProperties.DEFAULT_DIRECT_BASE_CLASS.getName());
+                generator.setRuntimeModel(Jiffle.RuntimeModel.DIRECT);
+                generator.setClassName(null, null);
+                generator.setImageDataTypes(CollectionFactory.<String, Integer>map());
+                source = generator.getSource(script);
+                return source;
+                
+            case JANINO_COMPILE:
+                Parser parser = new Parser(new Scanner(null, new StringReader(source)));
+                Java.CompilationUnit unit = parser.parseCompilationUnit();
+                ClassLoaderIClassLoader iClassLoader = new ClassLoaderIClassLoader(
+                        JiffleProperties.DEFAULT_DIRECT_BASE_CLASS.getClassLoader());
+                return new UnitCompiler(unit, iClassLoader).compileUnit(
+                        DebuggingInformation.DEFAULT_DEBUGGING_INFORMATION);
+                
+            default:
+                throw new IllegalArgumentException("Unknown phase: " + phase);
+        }
+    }
+    
+    private CommonTreeNodeStream nodes() {
+        CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
+        nodes.setTokenStream(tokens);
+        return nodes;
+    }
+    
+    private void checkMessages(Phase phase) {
+        if (msgTable.hasErrors()) {
+            throw new IllegalStateException("Errors in script at phase " + phase);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+
+/**
+ * Generates scripts of a given length for the compiler benchmarks. Each
+ * statement depends on the one before, so none are removed as dead code,
+ * and statements cycle through arithmetic, function calls, con and 
+ * neighbourhood references.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class GeneratedScripts {
+    
+    /**
+     * Creates a script which reads image {@code src} and writes image
+     * {@code dest}.
+     * 
+     * @param numStatements number of statements (at least 1)
+     * 
+     * @return the script
+     */
+    public static String create(int numStatements) {
+        if (numStatements < 1) {
+            throw new IllegalArgumentException("numStatements must be at least 1");
+        }
+        if (numStatements == 1) {
+            return "dest = src * 2 + 1;\n";
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append("options { outside = 0; }\n");
+        sb.append("a0 = src * 2 + 1;\n");
+        
+        for (int i = 1; i < numStatements - 1; i++) {
+            sb.append('a').append(i).append(" = ");
+            String prev = "a" + (i - 1);
+            
+            switch (i % 4) {
+                case 0:
+                    sb.append(prev).append(" * ").append(i).append(" + src;");
+                    break;
+                    
+                case 1:
+                    sb.append("con(src > ").append(i).append(", ").append(prev).append(", sqrt(src));");
+                    break;
+                    
+                case 2:
+                    sb.append(prev).append(" > ").append(i).append(" ? ")
+                            .append(prev).append(" - 1 : ").append(i).append(';');
+                    break;
+                    
+                default:
+                    sb.append("max(").append(prev).append(", src[1, 0]) + abs(x() - y());");
+            }
+            sb.append('\n');
+        }
+        
+        sb.append("dest = a").append(numStatements - 2).append(";\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+
+
+/**
+ * Measures the throughput of {@code evaluateAll} for the scripts in 
+ * {@link BenchmarkScript}. The runtime class is compiled once per trial,
+ * so only pixel evaluation is timed. Throughput in pixels per second is
+ * reported by the {@code pixels} secondary result.
+ * <p>
+ * Image size, source image data type and number of threads are benchmark
+ * parameters which can be set from the command line, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar RuntimeBenchmark -p size=4096 -p dataType=float
+ * </pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuntimeBenchmark {
+    
+    /** The script to run */
+    @Param({"ARITHMETIC", "NDVI", "MEAN_3X3", "LIFE", "LIST_STATS", "CON_CASCADE"})
+    public BenchmarkScript script;
+    
+    /** Width and height of the images */
+    @Param({"256", "1024"})
+    public int size;
+    
+    /** Data type of the source images */
+    @Param({"byte", "double"})
+    public String dataType;
+    
+    /** Number of threads passed to evaluateAll */
+    @Param({"1"})
+    public int threads;
+    
+    private JiffleDirectRuntime runtime;
+    private long numPixels;
+
+    /**
+     * Compiles the script and creates the images.
+     * 
+     * @throws Exception on errors compiling the script
+     */
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put(script.getDestName(), Jiffle.ImageRole.DEST);
+        for (String name : script.getSourceNames()) {
+            imageParams.put(name, Jiffle.ImageRole.SOURCE);
+        }
+        
+        Jiffle jiffle = new Jiffle(script.getScript(), imageParams);
+        runtime = (JiffleDirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        
+        long seed = 42;
+        for (String name : script.getSourceNames()) {
+            runtime.setSourceImage(name, 
+                    BenchmarkImages.createRandomImage(size, dataType, script.getMaxValue(), seed++));
+        }
+        runtime.setDestinationImage(script.getDestName(), BenchmarkImages.createDestImage(size));
+        
+        numPixels = (long) size * size;
+    }
+
+    /**
+     * Evaluates the script over the whole image.
+     * 
+     * @param counter receives the number of pixels processed
+     */
+    @Benchmark
+    public void evaluateAll(PixelCounter counter) {
+        runtime.evaluateAll(null, threads);
+        counter.pixels += numPixels;
+    }
+}
@@ -49,7 +49,7 @@ import org.jaitools.jiffle.runtime.JiffleExecutorException;
  * be worth using a progress listener, we cheat and use mock Jiffle and
  * JiffleRuntime classes (see bottom of source code). The runtime class
  * pretends process pixels by just having a little sleep each time its
- * {@code evaluate()} method is called.
+ * {@code evaluatePixel()} method is called.
  * 
  * @author Michael Bedward
  * @since 1.1
@@ -210,7 +210,8 @@ public class ProgressListenerDemo {
         /**
          * Pretends to process a pixel (very slowly).
          */
-        public void evaluate(double x, double y) {
+        @Override
+        protected void evaluatePixel(double x, double y) {
             try {
                 Thread.sleep(PIXEL_TIME);
 
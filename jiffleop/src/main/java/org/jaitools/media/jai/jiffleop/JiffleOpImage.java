@@ -96,6 +96,9 @@ public class JiffleOpImage extends OpImage {
             
             runtime.setWorldByResolution(bounds, 1, 1);
             
+            // initialize image-scope variables before tiles are computed
+            runtime.prepare();
+            
         } catch (JiffleException ex) {
             throw new RuntimeException(ex);
         }
@@ -64,6 +64,8 @@ tokens {
     VAR_PROVIDED;
     VAR_LOOP;
     VAR_LIST;
+    RUN_INVARIANT;
+    ROW_INVARIANT;
 }
 
 @header {
@@ -100,7 +102,9 @@ private void checkBlock(Token blockToken) {
 
 private Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
 
-private void setImageVar(String varName, int type) {
+private Map<String, Jiffle.ImageType> imageTypes = CollectionFactory.map();
+
+private void setImageVar(String varName, int type, String typeName) {
     Jiffle.ImageRole role = null;
     switch (type) {
         case READ:
@@ -116,10 +120,20 @@ private void setImageVar(String varName, int type) {
     }
 
     imageParams.put(varName, role);
+
+    if (typeName != null) {
+        Jiffle.ImageType imageType = Jiffle.ImageType.get(typeName);
+        if (imageType == null) {
+            throw new JiffleParserException("Unrecognized image type " + typeName + " for " + varName);
+        }
+        imageTypes.put(varName, imageType);
+    }
 }
 
 public Map<String, Jiffle.ImageRole> getImageParams() { return imageParams; }
 
+public Map<String, Jiffle.ImageType> getImageTypes() { return imageTypes; }
+
 }
 
 
@@ -157,8 +171,8 @@ imagesBlock     : IMAGES LCURLY imageVarDeclaration* RCURLY ->
 
 
 imageVarDeclaration
-                : ID EQ role SEMI
-                { setImageVar($ID.text, $role.start.getType()); }
+                : ID EQ role t=imageType? SEMI
+                { setImageVar($ID.text, $role.start.getType(), $t.text); }
                 ;
 
 
@@ -167,6 +181,13 @@ role            : READ
                 ;
 
 
+imageType       : ID
+                | INT_TYPE
+                | FLOAT_TYPE
+                | DOUBLE_TYPE
+                ;
+
+
 initBlock       : INIT LCURLY varDeclaration* RCURLY -> varDeclaration*
                 ;
 
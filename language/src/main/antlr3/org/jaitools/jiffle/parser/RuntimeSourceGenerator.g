@@ -45,6 +45,10 @@ import org.jaitools.jiffle.runtime.AbstractJiffleRuntime;
 
 private SymbolScopeStack varScope = new SymbolScopeStack();
 
+// set when the script assigns to an image-scope variable in the
+// per-pixel statements
+private boolean imageScopeVarsWritten = false;
+
 private String getConstantString(String name) {
     String s = String.valueOf(ConstantLookup.getValue(name));
     if ("NaN".equals(s)) {
@@ -57,6 +61,45 @@ private String getImageScopeVarExpr(String varName) {
     return AbstractJiffleRuntime.VAR_STRING.replace("_VAR_", varName);
 }
 
+// image variables in the order of their slot indices
+private List<String> imageVars = new ArrayList<String>();
+
+private String getImageSlotExpr(String varName) {
+    int index = imageVars.indexOf(varName);
+    if (index < 0) {
+        imageVars.add(varName);
+        index = imageVars.size() - 1;
+    }
+    return "_img" + index;
+}
+
+// data type names for image variables in slot order
+private List<String> getImageTypeNames() {
+    List<String> types = new ArrayList<String>();
+    for (String varName : imageVars) {
+        types.add(getImageTypeName(varName));
+    }
+    return types;
+}
+
+// expressions hoisted out of per-pixel code, evaluated once per run
+// and once per row respectively
+private List runInvariants = new ArrayList();
+private List rowInvariants = new ArrayList();
+
+// tests if a statement subtree contains a write to a destination image
+private boolean containsImageWrite(Tree node) {
+    if (node.getType() == IMAGE_WRITE) {
+        return true;
+    }
+    for (int i = 0; i < node.getChildCount(); i++) {
+        if (containsImageWrite(node.getChild(i))) {
+            return true;
+        }
+    }
+    return false;
+}
+
 }
 
 
@@ -68,11 +111,15 @@ generate [String script]
         scriptLines = prepareScriptForComments(script);
     }
 }
-                : o+=jiffleOption* v+=varDeclaration* s+=statement+
+                : o+=jiffleOption* v+=varDeclaration* s+=topStatement+
 
                 -> runtime(script={scriptLines}, pkgname={pkgName}, imports={imports},
                            name={className}, base={baseClassName}, 
-                           opts={$o}, fields={$v}, eval={$s})
+                           opts={$o}, fields={$v}, eval={$s},
+                           varwrites={imageScopeVarsWritten}, images={imageVars},
+                           imagetypes={getImageTypeNames()},
+                           runinvs={runInvariants}, rowinvs={rowInvariants},
+                           probes={probeLines}, probebodies={probeLoopBodies})
                 ;
 
 
@@ -112,7 +159,32 @@ block
                 ;
 
 
-statement       : simpleStatement -> delimstmt(stmt={$simpleStatement.st})
+// When profiling, top-level statements are timed in line so that any
+// variables they declare remain in scope. Statements containing image 
+// writes, which return from the indirect runtime's evaluatePixel method,
+// are timed in a block.
+topStatement    : statement
+                -> {profiling && !containsImageWrite($statement.start)}?
+                   probedstmt(n={++varIndex}, probe={addProbe($statement.start, false)}, stmt={$statement.st})
+                -> {profiling}?
+                   probedblock(n={++varIndex}, probe={addProbe($statement.start, false)}, stmt={$statement.st})
+                -> {$statement.st}
+                ;
+
+
+loopBody        : statement
+                -> {profiling}?
+                   probedblock(n={++varIndex}, probe={addProbe($statement.start, true)}, stmt={$statement.st})
+                -> {$statement.st}
+                ;
+
+
+// An if statement is complete without a delimiter. An extra empty 
+// statement after an if-else in which both branches return (indirect
+// runtime) would be unreachable.
+statement       : simpleStatement 
+                -> {$simpleStatement.start.getType() == IF}? {$simpleStatement.st}
+                -> delimstmt(stmt={$simpleStatement.st})
                 | block -> {$block.st}
                 ;
 
@@ -129,7 +201,8 @@ simpleStatement : imageWrite -> {$imageWrite.st}
 
 
 imageWrite      : ^(IMAGE_WRITE VAR_DEST expression)
-                -> setdestvalue(var={$VAR_DEST.text}, expr={$expression.st})
+                -> setdestvalue(var={$VAR_DEST.text}, slot={getImageSlotExpr($VAR_DEST.text)}, 
+                                type={getImageTypeName($VAR_DEST.text)}, expr={$expression.st})
                 ;
 
 
@@ -194,6 +267,7 @@ scalar returns [boolean newVar]
 
     } else if ($start.getType() == VAR_IMAGE_SCOPE) {
         $st = %{getImageScopeVarExpr(varName)};
+        imageScopeVarsWritten = true;
 
     } else {
         $st = %{varName};
@@ -216,8 +290,8 @@ loop            : conditionalLoop -> {$conditionalLoop.st}
 
 
 conditionalLoop
-                : ^(WHILE e=expression s=statement) -> while(cond={$e.st}, stmt={$s.st})
-                | ^(UNTIL e=expression s=statement) -> until(cond={$e.st}, stmt={$s.st})
+                : ^(WHILE e=expression s=loopBody) -> while(cond={$e.st}, stmt={$s.st})
+                | ^(UNTIL e=expression s=loopBody) -> until(cond={$e.st}, stmt={$s.st})
                 ;
 
 foreachLoop
@@ -229,20 +303,20 @@ foreachLoop
 }
                 : ^(FOREACH ID
                     {varScope.addSymbol($ID.text, SymbolType.LOOP_VAR, ScopeType.PIXEL);}
-                     ^(DECLARED_LIST e=expressionList) s=statement)
+                     ^(DECLARED_LIST e=expressionList) s=loopBody)
 
                 -> foreachlist(n={++varIndex}, var={$ID.text}, list={$e.templates}, stmt={$s.st})
 
                 | ^(FOREACH ID
                     {varScope.addSymbol($ID.text, SymbolType.LOOP_VAR, ScopeType.PIXEL);}
-                     VAR_LIST s=statement)
+                     VAR_LIST s=loopBody)
                 { addImport("java.util.Iterator"); }
 
                 -> foreachlistvar(n={++varIndex}, var={$ID.text}, listvar={%{$VAR_LIST.text}}, stmt={$s.st})
                 
                 | ^(FOREACH ID
                     {varScope.addSymbol($ID.text, SymbolType.LOOP_VAR, ScopeType.PIXEL);}
-                     ^(SEQUENCE lo=expression hi=expression) s=statement)
+                     ^(SEQUENCE lo=expression hi=expression) s=loopBody)
 
                 -> foreachseq(n={++varIndex}, var={$ID.text}, lo={$lo.st}, hi={$hi.st}, stmt={$s.st})
                 ;
@@ -266,19 +340,40 @@ expression      : ^(FUNC_CALL ID el=expressionList)
                 | ^(PREFIX NOT e=expression) 
                 -> call(name={getRuntimeExpr("NOT", "D")}, args={$e.st})
 
-                | ^(PREFIX prefixOp e=expression) -> preop(op={$prefixOp.st}, expr={$e.st})
+                | ^(PREFIX prefixOp e=expression) 
+                {
+                    if ($e.start.getType() == VAR_IMAGE_SCOPE && 
+                        ($prefixOp.start.getType() == INCR || $prefixOp.start.getType() == DECR)) {
+                        imageScopeVarsWritten = true;
+                    }
+                }
+                -> preop(op={$prefixOp.st}, expr={$e.st})
 
-                | ^(POSTFIX postfixOp e=expression) -> postop(op={$postfixOp.st}, expr={$e.st})
+                | ^(POSTFIX postfixOp e=expression) 
+                {
+                    if ($e.start.getType() == VAR_IMAGE_SCOPE) {
+                        imageScopeVarsWritten = true;
+                    }
+                }
+                -> postop(op={$postfixOp.st}, expr={$e.st})
 
                 | ^(PAR e=expression) -> par(expr={$e.st})
 
+                | ^(RUN_INVARIANT e=expression) { runInvariants.add($e.st); }
+                -> {%{"_run" + (runInvariants.size() - 1)}}
+
+                | ^(ROW_INVARIANT e=expression) { rowInvariants.add($e.st); }
+                -> {%{"_row" + (rowInvariants.size() - 1)}}
+
                 | listOperation -> {$listOperation.st}
 
                 | listLiteral -> {$listLiteral.st}
 
                 | var -> {$var.st}
 
-                | VAR_SOURCE -> getsourcevalue(var={$VAR_SOURCE.text})
+                | VAR_SOURCE 
+                -> getsourcevalue(var={$VAR_SOURCE.text}, slot={getImageSlotExpr($VAR_SOURCE.text)},
+                                  type={getImageTypeName($VAR_SOURCE.text)})
 
                 | CONSTANT -> {%{getConstantString($CONSTANT.text)}}
 
@@ -356,7 +451,8 @@ literal         : INT_LITERAL -> {%{$INT_LITERAL.text + ".0"}}
 
 
 imagePos        : ^(IMAGE_POS VAR_SOURCE b=bandSpecifier? p=pixelSpecifier?)
-                -> getsourcevalue(var={$VAR_SOURCE.text}, pixel={$p.st}, band={$b.st})
+                -> getsourcevalue(var={$VAR_SOURCE.text}, slot={getImageSlotExpr($VAR_SOURCE.text)},
+                                  type={getImageTypeName($VAR_SOURCE.text)}, pixel={$p.st}, band={$b.st})
                 ;
 
 
@@ -218,7 +218,10 @@ assignmentExpression
                     if (!ok) throw new JiffleParserException("Cancelling script compilation");
                 }
 
-                  -> {isDestImage($identifier.text)}? ^(IMAGE_WRITE identifier expression)
+                  // the image write node takes the assignment token's position
+                  // so that later stages can map the statement to a script line
+                  -> {isDestImage($identifier.text)}? 
+                     ^(IMAGE_WRITE[$assignmentOp.start.getToken(), "IMAGE_WRITE"] identifier expression)
 
                   -> {$expression.rtnType.equals("List")}? 
                      ^(EQ VAR_LIST[$identifier.start.getText()] expression)
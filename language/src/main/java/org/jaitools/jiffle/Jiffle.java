@@ -25,13 +25,21 @@
 
 package org.jaitools.jiffle;
 
+import java.awt.image.DataBuffer;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.antlr.runtime.ANTLRStringStream;
@@ -39,26 +47,42 @@ import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.antlr.runtime.tree.Tree;
 
-import org.codehaus.janino.SimpleCompiler;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.DebuggingInformation;
+import org.codehaus.janino.IClassLoader;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
 
 import org.jaitools.CollectionFactory;
+import org.jaitools.DaemonThreadFactory;
 import org.jaitools.jiffle.parser.CheckAssignments;
 import org.jaitools.jiffle.parser.CheckFunctionCalls;
+import org.jaitools.jiffle.parser.HoistInvariants;
 import org.jaitools.jiffle.parser.JiffleLexer;
 import org.jaitools.jiffle.parser.JiffleParser;
 import org.jaitools.jiffle.parser.JiffleParserException;
 import org.jaitools.jiffle.parser.Message;
 import org.jaitools.jiffle.parser.MessageTable;
+import org.jaitools.jiffle.parser.OptimizeExpressions;
 import org.jaitools.jiffle.parser.OptionsBlockReader;
+import org.jaitools.jiffle.parser.RuntimeBytecodeGenerator;
 import org.jaitools.jiffle.parser.ParsingErrorReporter;
 import org.jaitools.jiffle.parser.RuntimeSourceGenerator;
 import org.jaitools.jiffle.parser.SourceGenerator;
 import org.jaitools.jiffle.parser.TagVars;
 import org.jaitools.jiffle.parser.TransformExpressions;
+import org.jaitools.jiffle.parser.ValueRange;
+import org.jaitools.jiffle.parser.ValueRangeAnalyzer;
+import org.jaitools.jiffle.runtime.InterpretedRuntime;
 import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
 import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
 import org.jaitools.jiffle.runtime.JiffleRuntime;
+import org.jaitools.jiffle.runtime.TieredRuntime;
 
 /**
  * Compiles scripts and generates Java sources and executable bytecode for
@@ -93,7 +117,12 @@ import org.jaitools.jiffle.runtime.JiffleRuntime;
  * The Jiffle compiler is actually a Jiffle to Java translator.
  * When a client requests a runtime object, the script is translated into 
  * Java source for a runtime class. This source code is then passed to an 
- * embedded Janino compiler which produces the runtime object.
+ * embedded Janino compiler which produces the runtime object. Alternatively,
+ * the {@link CompilerBackend#BYTECODE} backend generates the class file 
+ * directly from the script, which is much faster for large scripts. Compiled 
+ * runtime classes are held in a {@link RuntimeClassCache} so that further
+ * runtime objects for the same script and image parameters can be created
+ * without compiling again.
  *
  * @see JiffleBuilder
  * @see org.jaitools.jiffle.runtime.JiffleExecutor
@@ -123,13 +152,36 @@ public class Jiffle {
      * The indirect model is designed for use in an image operator or similar
      * context where further processing of destination values might be required
      * before writing to an image.
+     * <p>
+     * In addition, the <b>interpreted</b> model provides a direct runtime 
+     * object which evaluates the script's AST without creating a runtime 
+     * class. It is much quicker to create, but slower to evaluate pixels,
+     * and is intended for small processing areas.
+     * <p>
+     * The <b>tiered</b> model also provides a direct runtime object, which
+     * interprets the script while the runtime class is compiled on a 
+     * background thread, and then switches to the compiled class at a row
+     * boundary. The {@code Jiffle} object should not be recompiled until
+     * the runtime has switched.
      */
     public static enum RuntimeModel {
         /** The runtime class implements {@link JiffleDirectRuntime} */
         DIRECT(JiffleDirectRuntime.class),
         
         /** The runtime class implements {@link JiffleIndirectRuntime} */
-        INDIRECT(JiffleIndirectRuntime.class);
+        INDIRECT(JiffleIndirectRuntime.class),
+        
+        /** 
+         * The runtime object is an {@link InterpretedRuntime}, which 
+         * implements {@link JiffleDirectRuntime}
+         */
+        INTERPRETED(JiffleDirectRuntime.class),
+        
+        /** 
+         * The runtime object is a {@link TieredRuntime}, which 
+         * implements {@link JiffleDirectRuntime}
+         */
+        TIERED(JiffleDirectRuntime.class);
         
         private Class<? extends JiffleRuntime> runtimeClass;
         
@@ -166,9 +218,51 @@ public class Jiffle {
     }
 
     
+    /**
+     * Constants for the backend used to create runtime classes.
+     * The default is set by the {@code runtime.compiler.backend} Jiffle
+     * property and can be changed for a {@code Jiffle} object with 
+     * {@link Jiffle#setCompilerBackend(CompilerBackend)}.
+     */
+    public static enum CompilerBackend {
+        /** 
+         * Generates Java source for the runtime class and compiles it
+         * with Janino.
+         */
+        SOURCE,
+        
+        /** 
+         * Generates the runtime class file directly from the compiled script. 
+         * Scripts which use constructs not supported by this backend are
+         * compiled with the {@link #SOURCE} backend instead.
+         */
+        BYTECODE;
+        
+        /**
+         * Gets the default backend as set in the Jiffle properties.
+         * 
+         * @return the default backend
+         */
+        public static CompilerBackend getDefault() {
+            String value = JiffleProperties.get(JiffleProperties.COMPILER_BACKEND_KEY);
+            if (value != null) {
+                for (CompilerBackend b : CompilerBackend.values()) {
+                    if (b.name().equalsIgnoreCase(value.trim())) {
+                        return b;
+                    }
+                }
+            }
+            return SOURCE;
+        }
+    }
+
+    
     /** Number of Jiffle instances */
     private static int refCount = 0;
     
+    /** Compiles runtime classes for tiered runtime objects */
+    private static ExecutorService compileService;
+    
 
     /**
      * Used to specify the roles of images referenced in
@@ -183,6 +277,115 @@ public class Jiffle {
         /** Indicates an image is used for output (write-only) */
         DEST;
     }
+    
+    /**
+     * Image types which can be declared in the images block of a script,
+     * e.g. {@code images { mask = write bit; }}, or requested when creating
+     * destination images with {@link JiffleBuilder}. Each type corresponds
+     * to a {@code DataBuffer} data type. {@code BIT} images have byte data
+     * with one bit per pixel.
+     */
+    public static enum ImageType {
+        /** Single bit pixels (values 0 or 1) */
+        BIT("bit", DataBuffer.TYPE_BYTE),
+        
+        /** Unsigned 8 bit integer */
+        BYTE("byte", DataBuffer.TYPE_BYTE),
+        
+        /** Unsigned 16 bit integer */
+        USHORT("ushort", DataBuffer.TYPE_USHORT),
+        
+        /** Signed 16 bit integer */
+        SHORT("short", DataBuffer.TYPE_SHORT),
+        
+        /** Signed 32 bit integer */
+        INT("int", DataBuffer.TYPE_INT),
+        
+        /** 32 bit floating point */
+        FLOAT("float", DataBuffer.TYPE_FLOAT),
+        
+        /** 64 bit floating point */
+        DOUBLE("double", DataBuffer.TYPE_DOUBLE);
+        
+        private final String name;
+        private final int dataType;
+        
+        private ImageType(String name, int dataType) {
+            this.name = name;
+            this.dataType = dataType;
+        }
+
+        /**
+         * Gets the data type.
+         * 
+         * @return the {@code DataBuffer} data type constant
+         */
+        public int getDataType() {
+            return dataType;
+        }
+        
+        /**
+         * Gets the type name as used in scripts.
+         * 
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Gets the narrowest type that can hold all values in a range. 
+         * Integral ranges without NaN get the smallest of the integer types
+         * that contains them. Integral ranges with NaN, or which are too
+         * large for the integer types, get {@code FLOAT} as long as their 
+         * values can be represented exactly. Anything else gets 
+         * {@code DOUBLE}.
+         * <p>
+         * {@code BIT} is never returned since single bit images are 
+         * usually wanted for reasons other than storage size; it must be 
+         * requested explicitly.
+         * 
+         * @param range the range of values
+         * 
+         * @return the image type
+         */
+        public static ImageType forRange(ValueRange range) {
+            if (range.isIntegral() && !range.isNaNPossible()) {
+                ImageType[] types = {BYTE, USHORT, SHORT, INT};
+                for (ImageType t : types) {
+                    ValueRange typeRange = ValueRange.forDataType(t.dataType);
+                    if (range.within(typeRange.getMin(), typeRange.getMax())) {
+                        return t;
+                    }
+                }
+            }
+            
+            // largest magnitude at which float holds all integers exactly
+            final double floatIntLimit = 1 << 24;
+            if (range.isIntegral() && range.within(-floatIntLimit, floatIntLimit)) {
+                return FLOAT;
+            }
+            
+            return DOUBLE;
+        }
+        
+        /**
+         * Gets the constant for a type name as used in scripts.
+         * 
+         * @param name type name
+         * 
+         * @return the constant or {@code null} if the name is not recognized
+         */
+        public static ImageType get(String name) {
+            for (ImageType t : ImageType.values()) {
+                if (t.name.equals(name)) {
+                    return t;
+                }
+            }
+            
+            return null;
+        }
+    }
 
     /** A name: either a default or one set by the client */
     private String name;
@@ -195,7 +398,48 @@ public class Jiffle {
     private ParsingErrorReporter errorReporter;
     
     private Map<String, ImageRole> imageParams;
+    private Map<String, Integer> imageDataTypes;
+    private Map<String, ImageType> scriptImageTypes;
     private MessageTable msgTable;
+    private CompilerBackend backend;
+    private boolean profiling;
+    
+    private final List<JiffleCompileListener> compileListeners = 
+            new CopyOnWriteArrayList<JiffleCompileListener>();
+    
+    /**
+     * The compiled script and settings from which a runtime class is
+     * created. A snapshot is taken on the calling thread so that a class
+     * compiled in the background is not affected by later changes to 
+     * this object, such as setting and compiling a new script.
+     */
+    private static class CompiledState {
+        final String script;
+        final CommonTree ast;
+        final CommonTokenStream tokens;
+        final Map<String, ImageRole> imageParams;
+        final Map<String, Integer> imageDataTypes;
+        final CompilerBackend backend;
+        final boolean profiling;
+        
+        CompiledState(String script, CommonTree ast, CommonTokenStream tokens,
+                Map<String, ImageRole> imageParams, Map<String, Integer> imageDataTypes,
+                CompilerBackend backend, boolean profiling) {
+            this.script = script;
+            this.ast = ast;
+            this.tokens = tokens;
+            this.imageParams = CollectionFactory.map();
+            this.imageParams.putAll(imageParams);
+            this.imageDataTypes = imageDataTypes;
+            this.backend = backend;
+            this.profiling = profiling;
+        }
+        
+        RuntimeClassCache.Key getKey(RuntimeModel model, Class<? extends JiffleRuntime> baseClass) {
+            return new RuntimeClassCache.Key(script, imageParams, imageDataTypes, 
+                    model, baseClass, backend, profiling);
+        }
+    }
     
     /**
      * Creates a new instance.
@@ -347,6 +591,90 @@ public class Jiffle {
         return Collections.unmodifiableMap(imageParams);
     }
 
+    /**
+     * Sets the data types of images to be used with the runtime object.
+     * Data types are specified using the {@code java.awt.image.DataBuffer}
+     * constants (e.g. {@code DataBuffer.TYPE_BYTE}). When the data type
+     * of an image is known, the direct runtime class will read and write its
+     * samples with methods specialized for that type. It is then an error to
+     * set an image of a different data type for that variable in the
+     * runtime object. Images which are not included in {@code dataTypes}
+     * can have any data type.
+     * <p>
+     * This may be called before or after compiling the script. It affects
+     * runtime objects and source created afterwards.
+     * 
+     * @param dataTypes a {@code Map} of image variable name to data type;
+     *        may be {@code null} or empty
+     */
+    public void setImageDataTypes(Map<String, Integer> dataTypes) {
+        imageDataTypes.clear();
+        if (dataTypes != null) {
+            imageDataTypes.putAll(dataTypes);
+        }
+    }
+    
+    /**
+     * Gets the image data types set with {@link #setImageDataTypes(Map)}.
+     * The data types are returned as an unmodifiable map.
+     * 
+     * @return image data types or an empty {@code Map} if none are set
+     */
+    public Map<String, Integer> getImageDataTypes() {
+        return Collections.unmodifiableMap(imageDataTypes);
+    }
+
+    /**
+     * Gets the image types declared in the script's images block. 
+     * Declared types take precedence over those set with 
+     * {@link #setImageDataTypes(Map)}. The script must have been compiled
+     * before calling this method. The types are returned as an 
+     * unmodifiable map.
+     * 
+     * @return declared image types or an empty {@code Map} if none
+     */
+    public Map<String, ImageType> getImageTypes() {
+        return Collections.unmodifiableMap(scriptImageTypes);
+    }
+    
+    /**
+     * Gets the range of values that the script can write to each destination
+     * image. Ranges are inferred from the compiled script by 
+     * {@link ValueRangeAnalyzer} taking into account the data types of 
+     * source images, as declared in the script or set with 
+     * {@link #setImageDataTypes(Map)}. Sources with no known data type 
+     * are treated as having unknown values.
+     * <p>
+     * The range for a destination image can be passed to 
+     * {@link ImageType#forRange(ValueRange)} to get the narrowest image
+     * type that can hold its values.
+     * 
+     * @return a {@code Map} of destination image variable name to range
+     * 
+     * @throws JiffleException if the script has not been compiled
+     */
+    public Map<String, ValueRange> getDestinationRanges() throws JiffleException {
+        if (!isCompiled()) {
+            throw new JiffleException("This instance has not been compiled");
+        }
+        
+        Map<String, Integer> dataTypes = getAllImageDataTypes();
+        Map<String, ValueRange> sourceRanges = CollectionFactory.map();
+        for (String varName : imageParams.keySet()) {
+            if (imageParams.get(varName) == ImageRole.SOURCE) {
+                if (scriptImageTypes.get(varName) == ImageType.BIT) {
+                    sourceRanges.put(varName, ValueRange.LOGICAL);
+                    
+                } else if (dataTypes.containsKey(varName)) {
+                    sourceRanges.put(varName, ValueRange.forDataType(dataTypes.get(varName)));
+                }
+            }
+        }
+        
+        ValueRangeAnalyzer analyzer = new ValueRangeAnalyzer(finalAST, sourceRanges);
+        return analyzer.getDestinationRanges();
+    }
+
     /**
      * Replaces the default name set for this object with a user-supplied name.
      * The name is solely for use by client code. No checks are made for 
@@ -368,6 +696,76 @@ public class Jiffle {
         return name;
     }
     
+    /**
+     * Sets the backend used to create runtime classes.
+     * 
+     * @param backend the backend
+     */
+    public void setCompilerBackend(CompilerBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        this.backend = backend;
+    }
+    
+    /**
+     * Gets the backend used to create runtime classes.
+     * 
+     * @return the backend
+     */
+    public CompilerBackend getCompilerBackend() {
+        return backend;
+    }
+    
+    /**
+     * Sets whether runtime classes are instrumented for profiling. When set,
+     * each top-level statement and loop body in the generated class records
+     * the number of times it runs and the time spent in it, keyed by script
+     * line number. The results are retrieved with
+     * {@link org.jaitools.jiffle.runtime.AbstractJiffleRuntime#getProfile()}.
+     * Profiled classes are always created with the 
+     * {@link CompilerBackend#SOURCE} backend. Interpreted runtimes are not
+     * profiled. The default is {@code false}, which produces uninstrumented
+     * classes.
+     * 
+     * @param profiling {@code true} to instrument runtime classes
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+    
+    /**
+     * Tests whether runtime classes are instrumented for profiling.
+     * 
+     * @return {@code true} if profiling is enabled
+     */
+    public boolean isProfiling() {
+        return profiling;
+    }
+    
+    /**
+     * Adds a listener to receive the wall time and result size of each
+     * phase of compiling the script and creating runtime classes. Since
+     * the constructors which take a script compile it immediately, use the
+     * no-argument constructor to observe the first compilation.
+     * 
+     * @param listener the listener
+     */
+    public void addCompileListener(JiffleCompileListener listener) {
+        compileListeners.add(listener);
+    }
+    
+    /**
+     * Removes a compile listener.
+     * 
+     * @param listener the listener
+     * @return {@code true} if the listener was removed; {@code false} if it
+     *         was not registered
+     */
+    public boolean removeCompileListener(JiffleCompileListener listener) {
+        return compileListeners.remove(listener);
+    }
+    
     /**
      * Compiles the script into Java source for the runtime class.
      * 
@@ -379,13 +777,18 @@ public class Jiffle {
         }
         
         clearCompiledObjects();
+        
+        long start = System.nanoTime();
         buildPrimaryAST();
+        firePhase(JiffleCompileEvent.Phase.PARSE, start, primaryAST, null, null);
         
         if (imageParams.isEmpty()) {
             throw new JiffleException("No image parameters set");
         }
         
+        start = System.nanoTime();
         checkOptions();
+        firePhase(JiffleCompileEvent.Phase.CHECK_OPTIONS, start, primaryAST, null, null);
         reportMessages();
         
         if (!transformAndCheckVars()) {
@@ -446,6 +849,12 @@ public class Jiffle {
                 return createRuntimeInstance(model, 
                         JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
                 
+            case INTERPRETED:
+                return createInterpretedRuntime();
+                
+            case TIERED:
+                return createTieredRuntime();
+                
             default:
                 throw new IllegalArgumentException("Invalid runtime class type: " + model);
         }
@@ -461,7 +870,11 @@ public class Jiffle {
      * {@link org.jaitools.jiffle.runtime.AbstractIndirectRuntime}
      * when using the indirect model. This method allows you to
      * specify a custom base class. The custom class must implement either 
-     * {@link JiffleDirectRuntime} or {@link JiffleIndirectRuntime}.
+     * {@link JiffleDirectRuntime} or {@link JiffleIndirectRuntime}. The
+     * generated runtime class provides the script body as a protected 
+     * {@code evaluatePixel(double, double)} method (returning {@code void} 
+     * for the direct model and {@code double} for the indirect model) which 
+     * the base class's {@code evaluate} method should call.
      * 
      * @param <T> the runtime base class type
      * @param baseClass the runtime base class
@@ -522,10 +935,51 @@ public class Jiffle {
             case INDIRECT:
                 baseClass = JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
                 break;
+                
+            default:
+                throw new JiffleException("No runtime source for model " + model);
         }
         return createRuntimeSource(model, baseClass.getName(), scriptInDocs);
     }
     
+    /**
+     * Gets a copy of the Java source for a runtime class with the given
+     * package and class names, extending the default base class for the
+     * runtime model. This is intended for compiling scripts ahead of time
+     * into classes which are packaged with an application and later 
+     * instantiated with {@link PrecompiledScripts}. The script must have 
+     * been compiled before calling this method.
+     * 
+     * @param model the {@link Jiffle.RuntimeModel}
+     * @param packageName package for the runtime class
+     * @param className simple name of the runtime class
+     * @param scriptInDocs whether to include the original Jiffle script
+     *        in the class javadocs
+     * 
+     * @return source for the runtime class
+     * @throws JiffleException   if the script has not been compiled or if errors
+     *         occur in creating the runtime source code
+     */
+    public String getRuntimeSource(RuntimeModel model, String packageName, 
+            String className, boolean scriptInDocs) throws JiffleException {
+        
+        Class<? extends JiffleRuntime> baseClass = null;
+        switch (model) {
+            case DIRECT:
+                baseClass = JiffleProperties.DEFAULT_DIRECT_BASE_CLASS;
+                break;
+                
+            case INDIRECT:
+                baseClass = JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
+                break;
+                
+            default:
+                throw new JiffleException("No runtime source for model " + model);
+        }
+        return createRuntimeSource(model, baseClass.getName(), 
+                packageName, className, scriptInDocs);
+    }
+    
     /**
      * Initializes this object's name and runtime base class.
      */
@@ -533,6 +987,9 @@ public class Jiffle {
         Jiffle.refCount++ ;
         name = JiffleProperties.get( JiffleProperties.NAME_KEY ) + refCount;
         imageParams = CollectionFactory.map();
+        imageDataTypes = CollectionFactory.map();
+        scriptImageTypes = CollectionFactory.map();
+        backend = CompilerBackend.getDefault();
     }
     
     /**
@@ -544,6 +1001,7 @@ public class Jiffle {
         tokens = null;
         errorReporter = null;
         msgTable = new MessageTable();
+        scriptImageTypes = CollectionFactory.map();
     }
     
     private void reportMessages() throws JiffleException {
@@ -592,6 +1050,7 @@ public class Jiffle {
             primaryAST = (CommonTree) parser.prog().getTree();
             
             loadScriptImageParameters(parser.getImageParams());
+            scriptImageTypes = parser.getImageTypes();
 
         } catch (RecognitionException ex) {
             throw new JiffleException(
@@ -635,30 +1094,46 @@ public class Jiffle {
         try {
             CommonTree tree = primaryAST;
 
+            long start = System.nanoTime();
             CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
             TagVars tag = new TagVars(nodes, imageParams, msgTable);
             tree = (CommonTree) tag.start().getTree();
+            firePhase(JiffleCompileEvent.Phase.TAG_VARS, start, tree, null, null);
             if (msgTable.hasErrors()) return false;
 
+            start = System.nanoTime();
             nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
 
             CheckAssignments assignments = new CheckAssignments(nodes, msgTable);
             assignments.start();
+            firePhase(JiffleCompileEvent.Phase.CHECK_ASSIGNMENTS, start, tree, null, null);
             if (msgTable.hasErrors()) return false;
 
+            start = System.nanoTime();
             nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
             TransformExpressions trexpr = new TransformExpressions(nodes);
             tree = (CommonTree) trexpr.start().getTree();
+            firePhase(JiffleCompileEvent.Phase.TRANSFORM_EXPRESSIONS, start, tree, null, null);
             
+            start = System.nanoTime();
             nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
             CheckFunctionCalls calls = new CheckFunctionCalls(nodes, msgTable);
             calls.downup(tree);
+            firePhase(JiffleCompileEvent.Phase.CHECK_FUNCTION_CALLS, start, tree, null, null);
             if (msgTable.hasErrors()) return false;
             
+            start = System.nanoTime();
+            tree = new OptimizeExpressions(tree).apply();
+            firePhase(JiffleCompileEvent.Phase.OPTIMIZE_EXPRESSIONS, start, tree, null, null);
+            
+            start = System.nanoTime();
+            new HoistInvariants(tree).apply();
+            firePhase(JiffleCompileEvent.Phase.HOIST_INVARIANTS, start, tree, null, null);
+            
             finalAST = tree;
             return true;
 
@@ -673,50 +1148,206 @@ public class Jiffle {
     }
 
     /**
-     * Creates an instance of the runtime class. The Java source for the
-     * class is created if not already cached and then compiled using
-     * Janino's {@link SimpleCompiler}.
+     * Creates an instance of the runtime class. A matching class is looked
+     * up in the {@link RuntimeClassCache} and then the {@link RuntimeClassStore}.
+     * If none is found, or a stored class cannot be loaded, the Java source
+     * for the class is created and compiled using Janino, and the class is
+     * added to the cache and the store.
      * 
      * @throws Exception 
      */
     private JiffleRuntime createRuntimeInstance(RuntimeModel model,
             Class<? extends JiffleRuntime> baseClass) throws JiffleException {
-        if (!isCompiled()) {
-            throw new JiffleException("The script has not been compiled");
-        }
+        return createRuntimeInstance(getCompiledState(), model, baseClass);
+    }
+    
+    /**
+     * Creates an instance of the runtime class for a snapshot of the 
+     * compiled script.
+     * 
+     * @param state the compiled state
+     * @throws JiffleException on errors creating the runtime instance
+     */
+    private JiffleRuntime createRuntimeInstance(CompiledState state, RuntimeModel model,
+            Class<? extends JiffleRuntime> baseClass) throws JiffleException {
+        
+        RuntimeClassCache.Key key = state.getKey(model, baseClass);
         
-        String runtimeSource = createRuntimeSource(model, baseClass.getName(), false);
-
         try {
-            SimpleCompiler compiler = new SimpleCompiler();
-            compiler.cook(runtimeSource);
-            
-            StringBuilder sb = new StringBuilder();
-            sb.append(JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY)).append(".");
-            
-            switch (model) {
-                case DIRECT:
-                    sb.append(JiffleProperties.get(JiffleProperties.DIRECT_CLASS_KEY));
-                    break;
-                    
-                case INDIRECT:
-                    sb.append(JiffleProperties.get(JiffleProperties.INDIRECT_CLASS_KEY));
-                    break;
-                    
-                default:
-                    throw new IllegalArgumentException("Internal compiler error");
+            JiffleRuntime runtime = null;
+            Class<? extends JiffleRuntime> clazz = RuntimeClassCache.get(key);
+            if (clazz == null) {
+                Map<String, byte[]> classFiles = RuntimeClassStore.load(key);
+                if (classFiles != null) {
+                    try {
+                        clazz = loadRuntimeClass(classFiles, model, baseClass);
+                        runtime = clazz.newInstance();
+                        
+                    } catch (Throwable ex) {
+                        // stored class is stale or damaged: discard it
+                        // and compile again
+                        LOGGER.log(Level.WARNING, 
+                                "Unable to use stored runtime class, recompiling", ex);
+                        RuntimeClassStore.remove(key);
+                        clazz = null;
+                        runtime = null;
+                    }
+                }
+                
+                if (clazz == null) {
+                    classFiles = compileRuntimeClass(state, model, baseClass);
+                    clazz = loadRuntimeClass(classFiles, model, baseClass);
+                    runtime = clazz.newInstance();
+                    RuntimeClassStore.save(key, classFiles);
+                }
+                
+                RuntimeClassCache.put(key, clazz);
             }
             
-            Class<?> clazz = compiler.getClassLoader().loadClass(sb.toString());
-            JiffleRuntime runtime = (JiffleRuntime) clazz.newInstance();
-            runtime.setImageParams(imageParams);
+            if (runtime == null) {
+                runtime = clazz.newInstance();
+            }
+            runtime.setImageParams(state.imageParams);
             return runtime;
 
+        } catch (JiffleException ex) {
+            throw ex;
+            
         } catch (Exception ex) {
             throw new JiffleException("Runtime source error", ex);
         }
     }
     
+    /**
+     * Creates a runtime object which interprets the final AST.
+     * 
+     * @return the runtime object
+     * @throws JiffleException if the script has not been compiled or the
+     *         AST contains constructs not supported by the interpreter
+     */
+    private JiffleRuntime createInterpretedRuntime() throws JiffleException {
+        if (!isCompiled()) {
+            throw new JiffleException("The script has not been compiled");
+        }
+        
+        JiffleRuntime runtime = new InterpretedRuntime(finalAST);
+        runtime.setImageParams(imageParams);
+        return runtime;
+    }
+    
+    /**
+     * Creates a runtime object which interprets the final AST until the
+     * direct runtime class, compiled on a background thread, is available.
+     * 
+     * @return the runtime object
+     * @throws JiffleException if the script has not been compiled or the
+     *         AST contains constructs not supported by the interpreter
+     */
+    private JiffleRuntime createTieredRuntime() throws JiffleException {
+        final CompiledState state = getCompiledState();
+        
+        Future<JiffleRuntime> compiled = getCompileService().submit(
+                new Callable<JiffleRuntime>() {
+                    public JiffleRuntime call() throws Exception {
+                        return createRuntimeInstance(state, RuntimeModel.DIRECT, 
+                                JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+                    }
+                });
+        
+        JiffleRuntime runtime = new TieredRuntime(state.ast, compiled);
+        runtime.setImageParams(state.imageParams);
+        return runtime;
+    }
+    
+    /**
+     * Gets the executor used to compile runtime classes in the background,
+     * creating it if necessary.
+     * 
+     * @return the executor
+     */
+    private static synchronized ExecutorService getCompileService() {
+        if (compileService == null) {
+            compileService = Executors.newCachedThreadPool(
+                    new DaemonThreadFactory(Thread.NORM_PRIORITY, "jiffle-compile"));
+        }
+        return compileService;
+    }
+    
+    /**
+     * Creates the runtime class with the selected backend. If the bytecode
+     * backend does not support the script, or profiling is enabled, the Java 
+     * source for the class is generated and compiled with Janino.
+     * 
+     * @return class file contents keyed by class name
+     * @throws Exception on errors compiling the class
+     */
+    private Map<String, byte[]> compileRuntimeClass(CompiledState state, RuntimeModel model,
+            Class<? extends JiffleRuntime> baseClass) throws Exception {
+        
+        if (state.backend == CompilerBackend.BYTECODE && !state.profiling) {
+            try {
+                long start = System.nanoTime();
+                RuntimeBytecodeGenerator generator = new RuntimeBytecodeGenerator(state.ast);
+                generator.setRuntimeModel(model);
+                generator.setBaseClass(baseClass);
+                generator.setImageDataTypes(state.imageDataTypes);
+                Map<String, byte[]> classFiles = generator.getClassFiles();
+                firePhase(JiffleCompileEvent.Phase.RUNTIME_BYTECODE, start, null, null, classFiles);
+                return classFiles;
+                
+            } catch (JiffleException ex) {
+                LOGGER.log(Level.FINE, "Using source backend: " + ex.getMessage());
+            }
+        }
+        
+        String runtimeSource = createRuntimeSource(state, model, baseClass.getName(), 
+                null, null, false);
+
+        long start = System.nanoTime();
+        Parser parser = new Parser(new Scanner(null, new StringReader(runtimeSource)));
+        Java.CompilationUnit unit = parser.parseCompilationUnit();
+        
+        IClassLoader iClassLoader = new ClassLoaderIClassLoader(baseClass.getClassLoader());
+        ClassFile[] files = new UnitCompiler(unit, iClassLoader).compileUnit(
+                DebuggingInformation.DEFAULT_DEBUGGING_INFORMATION);
+        
+        Map<String, byte[]> classFiles = CollectionFactory.map();
+        for (ClassFile file : files) {
+            classFiles.put(file.getThisClassName(), file.toByteArray());
+        }
+        firePhase(JiffleCompileEvent.Phase.JANINO_COMPILE, start, null, null, classFiles);
+        return classFiles;
+    }
+    
+    /**
+     * Loads a runtime class from class file contents.
+     * 
+     * @return the runtime class
+     * @throws Exception on errors loading the class
+     */
+    private Class<? extends JiffleRuntime> loadRuntimeClass(Map<String, byte[]> classFiles,
+            RuntimeModel model, Class<? extends JiffleRuntime> baseClass) throws Exception {
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY)).append(".");
+
+        switch (model) {
+            case DIRECT:
+                sb.append(JiffleProperties.get(JiffleProperties.DIRECT_CLASS_KEY));
+                break;
+
+            case INDIRECT:
+                sb.append(JiffleProperties.get(JiffleProperties.INDIRECT_CLASS_KEY));
+                break;
+
+            default:
+                throw new IllegalArgumentException("Internal compiler error");
+        }
+
+        ClassLoader loader = new RuntimeClassLoader(baseClass.getClassLoader(), classFiles);
+        return (Class<? extends JiffleRuntime>) loader.loadClass(sb.toString());
+    }
+    
     /**
      * Creates the Java source code for the runtime class.
      * 
@@ -727,18 +1358,139 @@ public class Jiffle {
      */
     private String createRuntimeSource(RuntimeModel model,
             String baseClassName, boolean scriptInDocs) throws JiffleException {
-        
-        if (!isCompiled()) {
-            throw new JiffleException("This instance has not been compiled");
-        }
+        return createRuntimeSource(model, baseClassName, null, null, scriptInDocs);
+    }
+    
+    /**
+     * Creates the Java source code for the runtime class with the given
+     * package and class names.
+     * 
+     * @param packageName package name or {@code null} for the default
+     * @param className simple class name or {@code null} for the default
+     * @param scriptInDocs whether to include the Jiffle script in the class
+     *        javadocs
+     * 
+     * @throws JiffleException if an error occurs generating the source 
+     */
+    private String createRuntimeSource(RuntimeModel model, String baseClassName, 
+            String packageName, String className, boolean scriptInDocs) 
+            throws JiffleException {
+        return createRuntimeSource(getCompiledState(), model, baseClassName, 
+                packageName, className, scriptInDocs);
+    }
+    
+    /**
+     * Creates the Java source code for the runtime class from a snapshot
+     * of the compiled script.
+     * 
+     * @param state the compiled state
+     * @param packageName package name or {@code null} for the default
+     * @param className simple class name or {@code null} for the default
+     * @param scriptInDocs whether to include the Jiffle script in the class
+     *        javadocs
+     * 
+     * @throws JiffleException if an error occurs generating the source 
+     */
+    private String createRuntimeSource(CompiledState state, RuntimeModel model, 
+            String baseClassName, String packageName, String className, 
+            boolean scriptInDocs) throws JiffleException {
 
-        CommonTreeNodeStream nodes = new CommonTreeNodeStream(finalAST);
-        nodes.setTokenStream(tokens);
+        long start = System.nanoTime();
+        CommonTreeNodeStream nodes = new CommonTreeNodeStream(state.ast);
+        nodes.setTokenStream(state.tokens);
         
         SourceGenerator generator = new RuntimeSourceGenerator(nodes);
         generator.setBaseClassName(baseClassName);
         generator.setRuntimeModel(model);
-        String s = scriptInDocs ? null : theScript;
-        return generator.getSource(s);
+        generator.setClassName(packageName, className);
+        generator.setProfiling(state.profiling);
+        
+        generator.setImageDataTypes(state.imageDataTypes);
+        String s = scriptInDocs ? state.script : null;
+        String source = generator.getSource(s);
+        firePhase(JiffleCompileEvent.Phase.RUNTIME_SOURCE, start, null, source, null);
+        return source;
+    }
+    
+    /**
+     * Sends an event for a completed compilation phase to compile listeners.
+     * The sizes of the phase's results are only worked out when there are 
+     * listeners.
+     * 
+     * @param phase the phase
+     * @param startTime value of {@code System.nanoTime()} at the start of the phase
+     * @param tree the AST at the end of the phase, or {@code null}
+     * @param source generated source, or {@code null}
+     * @param classFiles generated class files, or {@code null}
+     */
+    private void firePhase(JiffleCompileEvent.Phase phase, long startTime, CommonTree tree,
+            String source, Map<String, byte[]> classFiles) {
+        
+        if (compileListeners.isEmpty()) {
+            return;
+        }
+        
+        long elapsed = System.nanoTime() - startTime;
+        
+        int classFileSize = -1;
+        if (classFiles != null) {
+            classFileSize = 0;
+            for (byte[] bytes : classFiles.values()) {
+                classFileSize += bytes.length;
+            }
+        }
+        
+        JiffleCompileEvent ev = new JiffleCompileEvent(this, phase, elapsed, 
+                tree == null ? -1 : countNodes(tree),
+                source == null ? -1 : source.length(),
+                classFileSize);
+        
+        for (JiffleCompileListener listener : compileListeners) {
+            listener.onCompilePhase(ev);
+        }
+    }
+    
+    /**
+     * Counts the nodes in an AST, not including a nil root node.
+     * 
+     * @param tree the AST
+     * @return number of nodes
+     */
+    private static int countNodes(Tree tree) {
+        int n = tree.isNil() ? 0 : 1;
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            n += countNodes(tree.getChild(i));
+        }
+        return n;
+    }
+
+    /**
+     * Takes a snapshot of the compiled script and the settings used to 
+     * create runtime classes.
+     * 
+     * @return the compiled state
+     * @throws JiffleException if the script has not been compiled
+     */
+    private CompiledState getCompiledState() throws JiffleException {
+        if (!isCompiled()) {
+            throw new JiffleException("The script has not been compiled");
+        }
+        return new CompiledState(theScript, finalAST, tokens, imageParams, 
+                getAllImageDataTypes(), backend, profiling);
+    }
+    
+    /**
+     * Merges image data types set by the client with those declared in 
+     * the script. Declared types take precedence.
+     * 
+     * @return a new {@code Map} of image variable name to data type
+     */
+    private Map<String, Integer> getAllImageDataTypes() {
+        Map<String, Integer> dataTypes = CollectionFactory.map();
+        dataTypes.putAll(imageDataTypes);
+        for (String varName : scriptImageTypes.keySet()) {
+            dataTypes.put(varName, scriptImageTypes.get(varName).getDataType());
+        }
+        return dataTypes;
     }
 }
@@ -25,9 +25,14 @@
 
 package org.jaitools.jiffle;
 
+import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRenderedImage;
 import java.io.BufferedReader;
 import java.io.File;
@@ -35,9 +40,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.logging.Level;
+
+import javax.media.jai.JAI;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.TiledImage;
 
 import org.jaitools.CollectionFactory;
 import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.parser.ValueRange;
 import org.jaitools.jiffle.runtime.CoordinateTransform;
 import org.jaitools.jiffle.runtime.IdentityCoordinateTransform;
 import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
@@ -75,8 +86,35 @@ import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
  * JiffleBuilder jb = new JiffleBuilder();
  * RenderedImage wavesImg = jb.script(script).dest("waves", 500, 200).run().getImage("waves");
  * </code></pre>
+ * The type of a destination image created by the builder can be requested 
+ * with one of the {@code dest} methods which take a {@link Jiffle.ImageType}
+ * argument or by declaring the type in the script's images block:
+ * <pre><code>
+ * // A mask image with one bit per pixel
+ * String script = "images { src = read; mask = write bit; } mask = src > 0;" ;
+ * JiffleBuilder jb = new JiffleBuilder();
+ * jb.script(script).source("src", srcImg).dest("mask", srcImg.getBounds()).run();
+ * </code></pre>
+ * Otherwise, the builder uses the range of values that the script can
+ * write to the image (see {@link Jiffle#getDestinationRanges()}) to choose
+ * the narrowest sufficient type. For example, the destination image for a
+ * reclassification script such as {@code dest = con(src > 10, 1, 2);} 
+ * will hold byte data. When the range cannot be determined, e.g. for a
+ * script which uses image-scope variables or coordinate functions, the 
+ * image will hold double data.
+ * <p>
+ * Values written to integral destination images are saturated to the range 
+ * of the data type.
+ * <p>
  * {@code JiffleBuilder} also provides support for setting world units and 
  * coordinate transforms.
+ * <p>
+ * When the processing area has no more pixels than the value of the 
+ * {@code runtime.interpreter.max.pixels} Jiffle property, the builder 
+ * creates an interpreted runtime object 
+ * (see {@link Jiffle.RuntimeModel#INTERPRETED}). This avoids the cost of
+ * compiling a runtime class, which would exceed the time taken to evaluate 
+ * the script for a small area such as a preview.
  *
  * @author Michael Bedward
  * @since 0.1
@@ -103,6 +141,11 @@ public class JiffleBuilder {
         Object ref;
         boolean weak;
         
+        // set for destination images created by the builder
+        Rectangle bounds;
+        Jiffle.ImageType requestedType;
+        Jiffle.ImageType type;
+        
         ImageRef(RenderedImage image, boolean weak) {
             if (weak) {
                 ref = new WeakReference<RenderedImage>(image);
@@ -418,10 +461,109 @@ public class JiffleBuilder {
     public JiffleBuilder dest(String varName, int minx, int miny, 
             int width, int height, CoordinateTransform transform) {
         
-        WritableRenderedImage image = ImageUtils.createConstantImage(minx, miny, width, height, 0d);
+        return dest(varName, minx, miny, width, height, null, transform);
+    }
+
+    /**
+     * Creates a new destination image of the given type and associates it 
+     * with a variable name in the script.
+     * <p>
+     * See {@link #dest(String, int, int, int, int, Jiffle.ImageType, CoordinateTransform)}
+     * for more details about this method.
+     *
+     * @param varName variable name
+     * @param destBounds the bounds of the new destination image
+     * @param type image type
+     *
+     * @return the instance of this class to allow method chaining
+     */
+    public JiffleBuilder dest(String varName, Rectangle destBounds, Jiffle.ImageType type) {
+        return dest(varName, destBounds, type, null);
+    }
+
+    /**
+     * Creates a new destination image of the given type and associates it 
+     * with a variable name in the script.
+     * <p>
+     * See {@link #dest(String, int, int, int, int, Jiffle.ImageType, CoordinateTransform)}
+     * for more details about this method.
+     *
+     * @param varName variable name
+     * @param destBounds the bounds of the new destination image
+     * @param type image type
+     * @param transform the transform to convert world coordinates to this image's
+     *        pixel coordinates
+     *
+     * @return the instance of this class to allow method chaining
+     */
+    public JiffleBuilder dest(String varName, Rectangle destBounds, 
+            Jiffle.ImageType type, CoordinateTransform transform) {
+        
+        if (destBounds == null || destBounds.isEmpty()) {
+            throw new IllegalArgumentException("destBounds argument cannot be null or empty");
+        }
+
+        return dest(varName, destBounds.x, destBounds.y, 
+                destBounds.width, destBounds.height, type, transform);
+    }
+
+    /**
+     * Creates a new destination image of the given type and associates it 
+     * with a variable name in the script. The minimum pixel X and Y ordinates 
+     * of the destination image will be 0.
+     * <p>
+     * See {@link #dest(String, int, int, int, int, Jiffle.ImageType, CoordinateTransform)}
+     * for more details about this method.
+     *
+     * @param varName variable name
+     * @param width image width (pixels)
+     * @param height image height (pixels)
+     * @param type image type
+     *
+     * @return the instance of this class to allow method chaining
+     */
+    public JiffleBuilder dest(String varName, int width, int height, Jiffle.ImageType type) {
+        return dest(varName, 0, 0, width, height, type, null);
+    }
+
+    /**
+     * Creates a new destination image of the given type and associates it 
+     * with a variable name in the script. If {@code type} is {@code null} 
+     * the image will have the type declared for the variable in the script or,
+     * if none is declared, the narrowest type that can hold the values written
+     * to it by the script. When a type is given it must agree with any declared
+     * in the script.
+     * <p>
+     * Note: a {@code JiffleBuilder} maintains only {@code WeakReferences}
+     * to all source images and any destination images passed to it via
+     * the {@link #dest(String, WritableRenderedImage)} method. However,
+     * a strong reference is stored to any destination images created with this
+     * method. This can be freed later by calling {@link #clear()} or
+     * {@link #removeImage(String varName)}.
+     *
+     * @param varName variable name
+     * @param minx minimum pixel X ordinate
+     * @param miny minimum pixel Y ordinate
+     * @param width image width (pixels)
+     * @param height image height (pixels)
+     * @param type image type or {@code null} for the default
+     * @param transform the transform to convert world coordinates to this image's
+     *        pixel coordinates
+     *
+     * @return the instance of this class to allow method chaining
+     */
+    public JiffleBuilder dest(String varName, int minx, int miny, int width, int height, 
+            Jiffle.ImageType type, CoordinateTransform transform) {
+        
+        Rectangle bounds = new Rectangle(minx, miny, width, height);
+        WritableRenderedImage image = createDestImage(bounds, type);
         imageParams.put(varName, Jiffle.ImageRole.DEST);
         // store as strong reference
-        images.put(varName, new ImageRef(image, false));
+        ImageRef ref = new ImageRef(image, false);
+        ref.bounds = bounds;
+        ref.requestedType = type;
+        ref.type = type == null ? Jiffle.ImageType.DOUBLE : type;
+        images.put(varName, ref);
         transforms.put(varName, transform);
         return this;
     }
@@ -530,7 +672,8 @@ public class JiffleBuilder {
         }
 
         Jiffle jiffle = new Jiffle(script, imageParams);
-        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        applyImageTypes(jiffle);
+        JiffleDirectRuntime runtime = createRuntime(jiffle);
         
         runtime.setDefaultTransform(_defaultTransform);
         if (worldInfo != null) {
@@ -573,6 +716,7 @@ public class JiffleBuilder {
         }
         
         Jiffle jiffle = new Jiffle(script, imageParams);
+        applyImageTypes(jiffle);
 
         return jiffle.getRuntimeSource(Jiffle.RuntimeModel.DIRECT, true);
     }
@@ -623,6 +767,161 @@ public class JiffleBuilder {
         return null;
     }
 
+    /**
+     * Creates a destination image with the given bounds and type.
+     */
+    private WritableRenderedImage createDestImage(Rectangle bounds, Jiffle.ImageType type) {
+        if (type == null || type == Jiffle.ImageType.DOUBLE) {
+            return ImageUtils.createConstantImage(
+                    bounds.x, bounds.y, bounds.width, bounds.height, 0d);
+        }
+        
+        Dimension tileSize = JAI.getDefaultTileSize();
+        int tileWidth = tileSize == null ? bounds.width : Math.min(tileSize.width, bounds.width);
+        int tileHeight = tileSize == null ? bounds.height : Math.min(tileSize.height, bounds.height);
+        
+        SampleModel sm;
+        if (type == Jiffle.ImageType.BIT) {
+            sm = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, tileWidth, tileHeight, 1);
+        } else {
+            sm = new PixelInterleavedSampleModel(type.getDataType(), 
+                    tileWidth, tileHeight, 1, tileWidth, new int[] {0});
+        }
+        
+        // new tiles are zero-filled
+        return new TiledImage(bounds.x, bounds.y, bounds.width, bounds.height, 
+                bounds.x, bounds.y, sm, PlanarImage.createColorModel(sm));
+    }
+    
+    /**
+     * Creates the runtime object: an interpreted runtime if the processing
+     * area is small, otherwise an instance of a compiled runtime class.
+     * The compiled runtime is also used if the interpreter does not support
+     * the script.
+     */
+    private JiffleDirectRuntime createRuntime(Jiffle jiffle) throws JiffleException {
+        long numPixels = getProcessingAreaSize();
+        if (numPixels >= 0 && numPixels <= getInterpreterMaxPixels()) {
+            try {
+                return (JiffleDirectRuntime) jiffle.getRuntimeInstance(
+                        Jiffle.RuntimeModel.INTERPRETED);
+                
+            } catch (JiffleException ex) {
+                Jiffle.LOGGER.log(Level.FINE, "Using compiled runtime: " + ex.getMessage());
+            }
+        }
+        
+        return jiffle.getRuntimeInstance();
+    }
+    
+    /**
+     * Gets the number of pixels in the processing area. This is the area
+     * set with one of the {@code world} methods or, if not set, the area
+     * of the first destination image (or first source image if there are
+     * no destination images).
+     * 
+     * @return number of pixels or -1 if the area is not known
+     */
+    private long getProcessingAreaSize() {
+        if (worldInfo != null) {
+            return Math.round(worldInfo.bounds.getWidth() / worldInfo.xres) *
+                    Math.round(worldInfo.bounds.getHeight() / worldInfo.yres);
+        }
+        
+        RenderedImage refImage = null;
+        for (String var : images.keySet()) {
+            RenderedImage img = images.get(var).get();
+            if (img != null && (refImage == null || imageParams.get(var) == Jiffle.ImageRole.DEST)) {
+                refImage = img;
+                if (imageParams.get(var) == Jiffle.ImageRole.DEST) {
+                    break;
+                }
+            }
+        }
+        
+        if (refImage == null) {
+            return -1;
+        }
+        return (long) refImage.getWidth() * refImage.getHeight();
+    }
+    
+    private static long getInterpreterMaxPixels() {
+        String value = JiffleProperties.get(JiffleProperties.INTERPRETER_MAX_PIXELS_KEY);
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Sets the type of each destination image made by the builder. An image
+     * created without an explicit type is given the type declared for it in
+     * the script or, failing that, the narrowest type that can hold the range
+     * of values the script can write to it. Images are re-created as required.
+     * The data types of all images are then passed to the {@code Jiffle} object.
+     * 
+     * @throws JiffleException if a type requested for an image conflicts with
+     *         that declared in the script
+     */
+    private void applyImageTypes(Jiffle jiffle) throws JiffleException {
+        // source data types are needed for the range analysis
+        jiffle.setImageDataTypes(getImageDataTypes());
+        
+        Map<String, Jiffle.ImageType> declaredTypes = jiffle.getImageTypes();
+        Map<String, ValueRange> destRanges = null;
+        
+        for (String var : images.keySet()) {
+            ImageRef ref = images.get(var);
+            if (ref.bounds == null) {
+                continue;
+            }
+            
+            Jiffle.ImageType declared = declaredTypes.get(var);
+            Jiffle.ImageType type;
+            if (ref.requestedType != null) {
+                if (declared != null && ref.requestedType != declared) {
+                    throw new JiffleException(String.format(
+                            "Image type %s requested for %s but %s declared in script",
+                            ref.requestedType.getName(), var, declared.getName()));
+                }
+                continue;
+                
+            } else if (declared != null) {
+                type = declared;
+                
+            } else {
+                if (destRanges == null) {
+                    destRanges = jiffle.getDestinationRanges();
+                }
+                ValueRange range = destRanges.get(var);
+                type = range == null ? Jiffle.ImageType.DOUBLE : Jiffle.ImageType.forRange(range);
+            }
+            
+            if (ref.type != type) {
+                ref.ref = createDestImage(ref.bounds, type);
+                ref.type = type;
+            }
+        }
+        
+        jiffle.setImageDataTypes(getImageDataTypes());
+    }
+    
+    /**
+     * Gets the data types of the images currently held so that the 
+     * runtime class can be specialized for them.
+     */
+    private Map<String, Integer> getImageDataTypes() {
+        Map<String, Integer> dataTypes = CollectionFactory.map();
+        for (String var : images.keySet()) {
+            RenderedImage img = images.get(var).get();
+            if (img != null) {
+                dataTypes.put(var, img.getSampleModel().getDataType());
+            }
+        }
+        return dataTypes;
+    }
+
     private String readScriptFile(File scriptFile) throws JiffleException {
         BufferedReader reader = null;
         try {
@@ -0,0 +1,165 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+/**
+ * Sent to {@link JiffleCompileListener}s at the end of each phase of 
+ * compiling a script or creating a runtime class. It holds the phase's
+ * wall time and, where relevant, the size of its result.
+ * 
+ * @see Jiffle#addCompileListener(JiffleCompileListener)
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleCompileEvent {
+    
+    /** Compilation phases, in the order they are run. */
+    public enum Phase {
+        /** Lexing and parsing the script to build the primary AST */
+        PARSE,
+        /** Reading the options block */
+        CHECK_OPTIONS,
+        /** Tagging variables with their type */
+        TAG_VARS,
+        /** Checking variable assignments */
+        CHECK_ASSIGNMENTS,
+        /** Rewriting expressions */
+        TRANSFORM_EXPRESSIONS,
+        /** Checking function calls */
+        CHECK_FUNCTION_CALLS,
+        /** Constant folding and common sub-expression elimination */
+        OPTIMIZE_EXPRESSIONS,
+        /** Hoisting invariant expressions */
+        HOIST_INVARIANTS,
+        /** Generating Java source for the runtime class from templates */
+        RUNTIME_SOURCE,
+        /** Compiling runtime class source with Janino */
+        JANINO_COMPILE,
+        /** Generating runtime class bytecode directly from the AST */
+        RUNTIME_BYTECODE;
+    }
+    
+    private final Jiffle jiffle;
+    private final Phase phase;
+    private final long elapsedNanos;
+    private final int nodeCount;
+    private final int sourceLength;
+    private final int classFileSize;
+
+    /**
+     * Creates a new event.
+     * 
+     * @param jiffle the object being compiled
+     * @param phase the phase which has completed
+     * @param elapsedNanos wall time taken by the phase in nanoseconds
+     * @param nodeCount number of nodes in the AST after the phase, or -1
+     * @param sourceLength length of generated source, or -1
+     * @param classFileSize total size of generated class files, or -1
+     */
+    public JiffleCompileEvent(Jiffle jiffle, Phase phase, long elapsedNanos, 
+            int nodeCount, int sourceLength, int classFileSize) {
+        this.jiffle = jiffle;
+        this.phase = phase;
+        this.elapsedNanos = elapsedNanos;
+        this.nodeCount = nodeCount;
+        this.sourceLength = sourceLength;
+        this.classFileSize = classFileSize;
+    }
+
+    /**
+     * Gets the {@code Jiffle} object being compiled.
+     * 
+     * @return the {@code Jiffle} object
+     */
+    public Jiffle getJiffle() {
+        return jiffle;
+    }
+
+    /**
+     * Gets the phase which has completed.
+     * 
+     * @return the phase
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Gets the wall time taken by the phase.
+     * 
+     * @return elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the number of nodes in the AST at the end of the phase. 
+     * 
+     * @return node count, or -1 for phases which do not work with the AST
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Gets the number of characters of Java source generated for the 
+     * runtime class.
+     * 
+     * @return source length, or -1 for phases other than 
+     *         {@link Phase#RUNTIME_SOURCE}
+     */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * Gets the total size of the class files created for the runtime class.
+     * 
+     * @return size in bytes, or -1 for phases other than 
+     *         {@link Phase#JANINO_COMPILE} and {@link Phase#RUNTIME_BYTECODE}
+     */
+    public int getClassFileSize() {
+        return classFileSize;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(phase).append(": ").append(String.format("%.3f ms", elapsedNanos / 1.0e6));
+        if (nodeCount >= 0) {
+            sb.append(", nodes=").append(nodeCount);
+        }
+        if (sourceLength >= 0) {
+            sb.append(", source=").append(sourceLength);
+        }
+        if (classFileSize >= 0) {
+            sb.append(", class files=").append(classFileSize);
+        }
+        return sb.toString();
+    }
+}
@@ -49,6 +49,9 @@ public class JiffleProperties {
     /** Key: default toot name for a Jiffle instance. */
     public static final String NAME_KEY = "root.name";
     
+    /** Key: Jiffle version. */
+    public static final String VERSION_KEY = "version";
+    
     /** Key: runtime class package */
     public static final String RUNTIME_PACKAGE_KEY = "runtime.package";
     
@@ -79,6 +82,18 @@ public class JiffleProperties {
     /** Key: indirect runtime source generation templates. */
     public static final String INDIRECT_SOURCE_TEMPLATES_KEY = "indirect.source.templates";
 
+    /** Key: maximum number of compiled runtime classes to cache. */
+    public static final String CLASS_CACHE_SIZE_KEY = "runtime.class.cache.size";
+    
+    /** Key: directory for persisted runtime classes. */
+    public static final String CLASS_STORE_DIR_KEY = "runtime.class.store.dir";
+    
+    /** Key: default backend used to create runtime classes. */
+    public static final String COMPILER_BACKEND_KEY = "runtime.compiler.backend";
+    
+    /** Key: largest processing area, in pixels, for which JiffleBuilder uses the interpreter. */
+    public static final String INTERPRETER_MAX_PIXELS_KEY = "runtime.interpreter.max.pixels";
+    
     /** Default base class for direct runtime classes. */
     public static final Class<? extends JiffleRuntime> DEFAULT_DIRECT_BASE_CLASS;
 
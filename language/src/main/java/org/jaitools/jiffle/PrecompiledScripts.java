@@ -0,0 +1,250 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * Provides runtime objects for scripts which were compiled ahead of time,
+ * e.g. by the Jiffle Maven plugin, and packaged with an application. 
+ * Runtime objects are created directly from the packaged classes, so 
+ * neither the Jiffle compiler nor Janino are used.
+ * <p>
+ * Precompiled scripts are listed in index files named
+ * {@value #INDEX_FILE} on the class path. Each script has two entries:
+ * <pre>
+ * ndvi.class = org.example.NdviRuntime
+ * ndvi.images = nir:SOURCE,red:SOURCE,result:DEST
+ * </pre>
+ * Index files from all jars are merged. They are read when first needed
+ * and can be re-read with {@link #refresh()}.
+ * <p>
+ * Example:
+ * <pre><code>
+ * JiffleDirectRuntime runtime = 
+ *         PrecompiledScripts.getRuntimeInstance("ndvi", JiffleDirectRuntime.class);
+ * runtime.setSourceImage("nir", nirImage);
+ * ...
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class PrecompiledScripts {
+    
+    /** Class path location of index files. */
+    public static final String INDEX_FILE = "META-INF/org/jaitools/jiffle/precompiled-scripts.properties";
+    
+    /** Suffix of index keys for runtime class names. */
+    public static final String CLASS_SUFFIX = ".class";
+    
+    /** Suffix of index keys for image parameters. */
+    public static final String IMAGES_SUFFIX = ".images";
+    
+    private static final Object lock = new Object();
+    private static Properties index;
+    
+    
+    /**
+     * Gets the names of available precompiled scripts.
+     * 
+     * @return script names
+     */
+    public static Set<String> getScriptNames() {
+        Properties props = getIndex();
+        Set<String> names = CollectionFactory.sortedSet();
+        Enumeration<?> keys = props.propertyNames();
+        while (keys.hasMoreElements()) {
+            String key = (String) keys.nextElement();
+            if (key.endsWith(CLASS_SUFFIX)) {
+                names.add(key.substring(0, key.length() - CLASS_SUFFIX.length()));
+            }
+        }
+        return Collections.unmodifiableSet(names);
+    }
+    
+    /**
+     * Tests if a precompiled script is available.
+     * 
+     * @param scriptName the script name
+     * @return {@code true} if available
+     */
+    public static boolean isAvailable(String scriptName) {
+        return getIndex().getProperty(scriptName + CLASS_SUFFIX) != null;
+    }
+    
+    /**
+     * Creates a runtime object for a precompiled script.
+     * 
+     * @param scriptName the script name
+     * @return a new runtime object with image parameters set
+     * @throws JiffleException if the script is not available or the runtime
+     *         object cannot be created
+     */
+    public static JiffleRuntime getRuntimeInstance(String scriptName) throws JiffleException {
+        return getRuntimeInstance(scriptName, JiffleRuntime.class);
+    }
+    
+    /**
+     * Creates a runtime object of the given type for a precompiled script.
+     * 
+     * @param <T> the runtime type
+     * @param scriptName the script name
+     * @param type the runtime type, e.g. {@code JiffleDirectRuntime.class}
+     * @return a new runtime object with image parameters set
+     * @throws JiffleException if the script is not available, the runtime
+     *         object cannot be created or is not of the requested type
+     */
+    public static <T extends JiffleRuntime> T getRuntimeInstance(String scriptName, Class<T> type) 
+            throws JiffleException {
+        
+        Properties props = getIndex();
+        String className = props.getProperty(scriptName + CLASS_SUFFIX);
+        if (className == null) {
+            throw new JiffleException("No precompiled script named " + scriptName);
+        }
+        
+        Map<String, Jiffle.ImageRole> imageParams = 
+                parseImageParams(props.getProperty(scriptName + IMAGES_SUFFIX, ""));
+        
+        Object obj;
+        try {
+            Class<?> clazz = Class.forName(className.trim(), true, getClassLoader());
+            obj = clazz.newInstance();
+        } catch (Exception ex) {
+            throw new JiffleException("Unable to create runtime for script " + scriptName, ex);
+        }
+        
+        if (!type.isInstance(obj)) {
+            throw new JiffleException("Runtime class " + className + 
+                    " for script " + scriptName + " is not a " + type.getName());
+        }
+        
+        T runtime = type.cast(obj);
+        runtime.setImageParams(imageParams);
+        return runtime;
+    }
+    
+    /**
+     * Adds entries for a script to an index. This is used by build tools 
+     * which precompile scripts.
+     * 
+     * @param index the index to add to
+     * @param scriptName the script name
+     * @param className fully qualified name of the runtime class
+     * @param imageParams the script's image parameters
+     */
+    public static void addIndexEntry(Properties index, String scriptName, 
+            String className, Map<String, Jiffle.ImageRole> imageParams) {
+        
+        StringBuilder sb = new StringBuilder();
+        for (String varName : imageParams.keySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(varName).append(':').append(imageParams.get(varName).name());
+        }
+        
+        index.setProperty(scriptName + CLASS_SUFFIX, className);
+        index.setProperty(scriptName + IMAGES_SUFFIX, sb.toString());
+    }
+    
+    /**
+     * Discards the current index so that index files will be read again
+     * when next required.
+     */
+    public static void refresh() {
+        synchronized (lock) {
+            index = null;
+        }
+    }
+    
+    private static Properties getIndex() {
+        synchronized (lock) {
+            if (index == null) {
+                index = readIndex();
+            }
+            return index;
+        }
+    }
+    
+    private static Properties readIndex() {
+        Properties props = new Properties();
+        try {
+            Enumeration<URL> urls = getClassLoader().getResources(INDEX_FILE);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                InputStream in = null;
+                try {
+                    in = url.openStream();
+                    props.load(in);
+                } catch (Exception ex) {
+                    Jiffle.LOGGER.log(Level.WARNING, "Unable to read precompiled script index " + url, ex);
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            Jiffle.LOGGER.log(Level.WARNING, "Unable to read precompiled script indexes", ex);
+        }
+        return props;
+    }
+    
+    private static Map<String, Jiffle.ImageRole> parseImageParams(String value) 
+            throws JiffleException {
+        
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.orderedMap();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.length() > 0) {
+                String[] parts = item.split(":");
+                try {
+                    params.put(parts[0].trim(), Jiffle.ImageRole.valueOf(parts[1].trim()));
+                } catch (Exception ex) {
+                    throw new JiffleException("Invalid image parameter in precompiled script index: " + item);
+                }
+            }
+        }
+        return params;
+    }
+    
+    private static ClassLoader getClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : PrecompiledScripts.class.getClassLoader();
+    }
+}
@@ -0,0 +1,357 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.Token;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.parser.JiffleLexer;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * A process-wide cache of compiled runtime classes. Compiling the Java 
+ * source for a runtime class is the most expensive step in creating a 
+ * runtime object, so {@link Jiffle} looks here first and only compiles
+ * when no matching class is cached. A class is matched on:
+ * <ul>
+ * <li> the script's tokens, ignoring comments and differences in white space
+ * <li> image parameters (variable names and roles)
+ * <li> image data types
+ * <li> runtime model
+ * <li> runtime base class
+ * <li> compiler backend
+ * </ul>
+ * When the cache is full the least recently used class is evicted. Each
+ * runtime class is compiled with its own class loader, so once a class 
+ * has been evicted and no runtime objects of that class remain, the 
+ * class and its loader can be garbage collected.
+ * <p>
+ * The maximum number of cached classes defaults to the value of the
+ * {@code runtime.class.cache.size} Jiffle property. It can be changed 
+ * with {@link #setMaxSize(int)}; a size of zero disables caching.
+ * All methods are thread-safe.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassCache {
+    
+    private static final Object lock = new Object();
+    
+    private static int maxSize = Integer.parseInt(
+            JiffleProperties.get(JiffleProperties.CLASS_CACHE_SIZE_KEY).trim());
+    
+    private static final LinkedHashMap<Key, Class<? extends JiffleRuntime>> classes =
+            new LinkedHashMap<Key, Class<? extends JiffleRuntime>>(16, 0.75f, true) {
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Class<? extends JiffleRuntime>> eldest) {
+            if (size() > maxSize) {
+                evictions++ ;
+                if (Jiffle.LOGGER.isLoggable(Level.FINE)) {
+                    Jiffle.LOGGER.log(Level.FINE, "Evicting cached runtime class for script: {0}", 
+                            eldest.getKey().script);
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+    
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+    
+    
+    /**
+     * Gets the maximum number of classes held in the cache.
+     * 
+     * @return maximum size
+     */
+    public static int getMaxSize() {
+        synchronized (lock) {
+            return maxSize;
+        }
+    }
+    
+    /**
+     * Sets the maximum number of classes held in the cache. If the cache
+     * currently holds more than this number, the least recently used 
+     * classes are evicted.
+     * 
+     * @param size maximum size; zero to disable caching
+     * @throws IllegalArgumentException if {@code size} is negative
+     */
+    public static void setMaxSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        
+        synchronized (lock) {
+            maxSize = size;
+            while (classes.size() > maxSize) {
+                Key eldest = classes.keySet().iterator().next();
+                classes.remove(eldest);
+                evictions++ ;
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of classes currently held in the cache.
+     * 
+     * @return number of classes
+     */
+    public static int size() {
+        synchronized (lock) {
+            return classes.size();
+        }
+    }
+    
+    /**
+     * Removes all classes from the cache. Statistics are not reset.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            classes.clear();
+        }
+    }
+    
+    /**
+     * Gets the number of requests that were satisfied by a cached class.
+     * 
+     * @return number of hits
+     */
+    public static long getHitCount() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+    
+    /**
+     * Gets the number of requests for which no cached class was available.
+     * 
+     * @return number of misses
+     */
+    public static long getMissCount() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+    
+    /**
+     * Gets the number of classes which have been evicted to keep the 
+     * cache within its maximum size.
+     * 
+     * @return number of evictions
+     */
+    public static long getEvictionCount() {
+        synchronized (lock) {
+            return evictions;
+        }
+    }
+    
+    /**
+     * Resets the hit, miss and eviction counts to zero.
+     */
+    public static void resetStats() {
+        synchronized (lock) {
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+    }
+    
+    /**
+     * Looks up a cached class.
+     * 
+     * @param key the key
+     * @return the class or {@code null} if not cached
+     */
+    static Class<? extends JiffleRuntime> get(Key key) {
+        synchronized (lock) {
+            Class<? extends JiffleRuntime> clazz = classes.get(key);
+            if (clazz == null) {
+                misses++ ;
+            } else {
+                hits++ ;
+            }
+            return clazz;
+        }
+    }
+    
+    /**
+     * Adds a class to the cache.
+     * 
+     * @param key the key
+     * @param clazz the compiled runtime class
+     */
+    static void put(Key key, Class<? extends JiffleRuntime> clazz) {
+        synchronized (lock) {
+            if (maxSize > 0) {
+                classes.put(key, clazz);
+            }
+        }
+    }
+    
+    /**
+     * Reduces a script to its sequence of tokens, separated by single
+     * spaces, so that versions of a script which differ only in comments 
+     * or layout share a cached class.
+     * 
+     * @param script the script
+     * @return normalized script text
+     */
+    static String normalizeScript(String script) {
+        JiffleLexer lexer = new JiffleLexer(new ANTLRStringStream(script));
+        StringBuilder sb = new StringBuilder();
+        
+        Token token = lexer.nextToken();
+        while (token.getType() != Token.EOF) {
+            if (token.getChannel() != Token.HIDDEN_CHANNEL) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(token.getText());
+            }
+            token = lexer.nextToken();
+        }
+        return sb.toString();
+    }
+    
+    
+    /**
+     * Cache key. Instances are created by {@link Jiffle} for each request
+     * for a runtime object.
+     */
+    static class Key {
+        private final String script;
+        private final Map<String, Jiffle.ImageRole> imageParams;
+        private final Map<String, Integer> imageDataTypes;
+        private final Jiffle.RuntimeModel model;
+        private final Class<? extends JiffleRuntime> baseClass;
+        private final Jiffle.CompilerBackend backend;
+        private final boolean profiling;
+
+        /**
+         * Creates a new key.
+         * 
+         * @param script the script
+         * @param imageParams image parameters
+         * @param imageDataTypes image data types
+         * @param model runtime model
+         * @param baseClass runtime base class
+         * @param backend compiler backend
+         * @param profiling whether the class is instrumented for profiling;
+         *        if so the script text is used as is rather than normalized
+         */
+        Key(String script, 
+                Map<String, Jiffle.ImageRole> imageParams, 
+                Map<String, Integer> imageDataTypes,
+                Jiffle.RuntimeModel model,
+                Class<? extends JiffleRuntime> baseClass,
+                Jiffle.CompilerBackend backend,
+                boolean profiling) {
+            
+            // profiled classes have script line numbers compiled into them
+            this.script = profiling ? script : normalizeScript(script);
+            this.imageParams = CollectionFactory.map();
+            this.imageParams.putAll(imageParams);
+            this.imageDataTypes = CollectionFactory.map();
+            this.imageDataTypes.putAll(imageDataTypes);
+            this.model = model;
+            this.baseClass = baseClass;
+            this.backend = backend;
+            this.profiling = profiling;
+        }
+
+        /**
+         * Gets a digest of this key's values, the Jiffle version and the
+         * build fingerprint of the base class, as a hexadecimal string. This is used by {@link RuntimeClassStore} 
+         * to name class files.
+         * 
+         * @return the digest
+         */
+        String getDigest() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(JiffleProperties.get(JiffleProperties.VERSION_KEY)).append('\n');
+            sb.append(script).append('\n');
+            sb.append(new TreeMap<String, Jiffle.ImageRole>(imageParams)).append('\n');
+            sb.append(new TreeMap<String, Integer>(imageDataTypes)).append('\n');
+            sb.append(model).append('\n');
+            sb.append(baseClass.getName()).append('\n');
+            sb.append(RuntimeClassStore.getBuildFingerprint(baseClass)).append('\n');
+            sb.append(backend).append('\n');
+            sb.append(profiling);
+            
+            try {
+                return RuntimeClassStore.sha1Hex(sb.toString().getBytes("UTF-8"));
+                
+            } catch (Exception ex) {
+                // UTF-8 is always available
+                throw new IllegalStateException(ex);
+            }
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) obj;
+            return script.equals(other.script) &&
+                    imageParams.equals(other.imageParams) &&
+                    imageDataTypes.equals(other.imageDataTypes) &&
+                    model == other.model &&
+                    baseClass == other.baseClass &&
+                    backend == other.backend &&
+                    profiling == other.profiling;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 41 * hash + script.hashCode();
+            hash = 41 * hash + imageParams.hashCode();
+            hash = 41 * hash + imageDataTypes.hashCode();
+            hash = 41 * hash + model.hashCode();
+            hash = 41 * hash + baseClass.hashCode();
+            hash = 41 * hash + backend.hashCode();
+            hash = 41 * hash + (profiling ? 1 : 0);
+            return hash;
+        }
+    }
+}
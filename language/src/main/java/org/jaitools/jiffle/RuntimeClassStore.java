@@ -0,0 +1,441 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Persists compiled runtime classes in a local directory so that they can
+ * be reused by later JVM sessions without compiling again. {@link Jiffle}
+ * looks here when a class is not found in the in-memory 
+ * {@link RuntimeClassCache}.
+ * <p>
+ * Each entry is stored in a file named from a SHA-1 digest of the script
+ * tokens, image parameters, image data types, runtime model, base class 
+ * and Jiffle version. The digest also includes a fingerprint of the build:
+ * the class files of the runtime base class and its superclasses, and of
+ * the compiler stages, templates and function table which generate runtime
+ * code. Classes compiled by other Jiffle versions or builds are
+ * therefore never loaded. If a stored class still fails to load or link,
+ * {@link Jiffle} deletes the entry and compiles the class again.
+ * <p>
+ * The store is disabled by default. It is enabled by setting a directory
+ * with {@link #setDirectory(File)}, the system property 
+ * {@code org.jaitools.jiffle.class.store.dir} or the Jiffle property
+ * {@code runtime.class.store.dir}. Problems reading or writing files are 
+ * logged and otherwise ignored, in which case the class is simply 
+ * compiled again.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassStore {
+    
+    /** System property which can be used to set the store directory. */
+    public static final String DIR_PROPERTY = "org.jaitools.jiffle.class.store.dir";
+    
+    /** Extension for files in the store. */
+    public static final String FILE_EXTENSION = ".jrc";
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    /** 
+     * Compiler classes and resources, relative to the Jiffle class, which
+     * determine the code of runtime classes and are therefore included in
+     * the build fingerprint.
+     */
+    private static final String[] COMPILER_RESOURCES = {
+        "Jiffle.class",
+        "parser/TagVars.class",
+        "parser/TransformExpressions.class",
+        "parser/OptimizeExpressions.class",
+        "parser/HoistInvariants.class",
+        "parser/ValueRangeAnalyzer.class",
+        "parser/AbstractSourceGenerator.class",
+        "parser/RuntimeSourceGenerator.class",
+        "parser/RuntimeBytecodeGenerator.class",
+        "parser/CodeBuilder.class",
+        "parser/FunctionLookup.class",
+        "parser/FunctionInfo.class",
+        "parser/ConstantLookup.class",
+        "parser/Runtime.stg",
+        "parser/DirectRuntime.stg",
+        "parser/IndirectRuntime.stg",
+        "/META-INF/org/jaitools/jiffle/FunctionLookup.properties"
+    };
+    
+    private static final Object lock = new Object();
+    
+    private static File directory = initialDirectory();
+    
+    private static long hits;
+    private static long misses;
+    
+    private static final Map<Class<?>, String> fingerprints = CollectionFactory.map();
+    
+    
+    /**
+     * Gets the store directory.
+     * 
+     * @return the directory or {@code null} if the store is disabled
+     */
+    public static File getDirectory() {
+        synchronized (lock) {
+            return directory;
+        }
+    }
+    
+    /**
+     * Sets the store directory. It will be created if it does not exist.
+     * 
+     * @param dir the directory or {@code null} to disable the store
+     * @throws IllegalArgumentException if {@code dir} exists but is not a
+     *         directory, or cannot be created
+     */
+    public static void setDirectory(File dir) {
+        if (dir != null) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IllegalArgumentException("Unable to create directory " + dir);
+            }
+            if (!dir.isDirectory()) {
+                throw new IllegalArgumentException(dir + " is not a directory");
+            }
+        }
+        
+        synchronized (lock) {
+            directory = dir;
+        }
+    }
+    
+    /**
+     * Deletes all class files from the store directory.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            if (directory != null) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (f.getName().endsWith(FILE_EXTENSION)) {
+                            f.delete();
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of runtime classes which were loaded from the store.
+     * 
+     * @return number of hits
+     */
+    public static long getHitCount() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+    
+    /**
+     * Gets the number of requests for which no stored class was found
+     * while the store was enabled.
+     * 
+     * @return number of misses
+     */
+    public static long getMissCount() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+    
+    /**
+     * Resets the hit and miss counts to zero.
+     */
+    public static void resetStats() {
+        synchronized (lock) {
+            hits = 0;
+            misses = 0;
+        }
+    }
+    
+    /**
+     * Loads stored class files.
+     * 
+     * @param key the key for the runtime class
+     * @return class file contents keyed by class name, or {@code null} if
+     *         the store is disabled or does not contain the class
+     */
+    static Map<String, byte[]> load(RuntimeClassCache.Key key) {
+        File file = getFile(key);
+        if (file == null) {
+            return null;
+        }
+        
+        Map<String, byte[]> classFiles = null;
+        if (file.exists()) {
+            try {
+                classFiles = read(file);
+            } catch (IOException ex) {
+                Jiffle.LOGGER.log(Level.WARNING, "Unable to read stored runtime class " + file, ex);
+                file.delete();
+            }
+        }
+        
+        synchronized (lock) {
+            if (classFiles == null) {
+                misses++ ;
+            } else {
+                hits++ ;
+            }
+        }
+        return classFiles;
+    }
+    
+    /**
+     * Saves class files. Does nothing if the store is disabled.
+     * 
+     * @param key the key for the runtime class
+     * @param classFiles class file contents keyed by class name
+     */
+    static void save(RuntimeClassCache.Key key, Map<String, byte[]> classFiles) {
+        File file = getFile(key);
+        if (file == null) {
+            return;
+        }
+
+        // write to a temporary file first so that other processes never
+        // see a partly written entry
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("jiffle", ".tmp", file.getParentFile());
+            write(tmp, classFiles);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+            
+        } catch (IOException ex) {
+            Jiffle.LOGGER.log(Level.WARNING, "Unable to store runtime class " + file, ex);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+    
+    /**
+     * Deletes the stored class files for a key. Does nothing if the store
+     * is disabled or does not contain the class.
+     * 
+     * @param key the key for the runtime class
+     */
+    static void remove(RuntimeClassCache.Key key) {
+        File file = getFile(key);
+        if (file != null && file.exists() && !file.delete()) {
+            Jiffle.LOGGER.log(Level.WARNING, "Unable to delete stored runtime class {0}", file);
+        }
+    }
+    
+    /**
+     * Gets a fingerprint of the build for a runtime base class. This is a
+     * digest of the class files of the base class and its superclasses, 
+     * together with the compiler classes and templates which generate the
+     * runtime code, so that it changes whenever Jiffle or the base class
+     * is rebuilt with different code.
+     * 
+     * @param baseClass the runtime base class
+     * @return the fingerprint as a hexadecimal string
+     */
+    static String getBuildFingerprint(Class<?> baseClass) {
+        synchronized (lock) {
+            String fp = fingerprints.get(baseClass);
+            if (fp == null) {
+                fp = createFingerprint(baseClass);
+                fingerprints.put(baseClass, fp);
+            }
+            return fp;
+        }
+    }
+    
+    /**
+     * Gets the SHA-1 digest of the given bytes as a hexadecimal string.
+     * 
+     * @param bytes input bytes
+     * @return the digest
+     */
+    static String sha1Hex(byte[] bytes) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return toHex(md.digest(bytes));
+            
+        } catch (Exception ex) {
+            // SHA-1 is always available
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static String createFingerprint(Class<?> baseClass) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            
+            for (Class<?> c = baseClass; c != null && c != Object.class; c = c.getSuperclass()) {
+                String name = c.getName();
+                String resource = name.substring(name.lastIndexOf('.') + 1) + ".class";
+                updateDigest(md, c.getResourceAsStream(resource), c.getName());
+            }
+            
+            for (String resource : COMPILER_RESOURCES) {
+                InputStream in = Jiffle.class.getResourceAsStream(resource);
+                if (in == null) {
+                    throw new IllegalStateException("Missing compiler resource " + resource);
+                }
+                updateDigest(md, in, resource);
+            }
+            
+            return toHex(md.digest());
+            
+        } catch (IllegalStateException ex) {
+            throw ex;
+            
+        } catch (Exception ex) {
+            // SHA-1 is always available
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static void updateDigest(MessageDigest md, InputStream in, String name) 
+            throws IOException {
+        
+        md.update(name.getBytes("UTF-8"));
+        
+        if (in == null) {
+            // not available as a resource (e.g. a generated class); the 
+            // name alone has to do
+            return;
+        }
+        
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    private static File getFile(RuntimeClassCache.Key key) {
+        File dir = getDirectory();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, key.getDigest() + FILE_EXTENSION);
+    }
+    
+    private static Map<String, byte[]> read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported format");
+            }
+            
+            Map<String, byte[]> classFiles = CollectionFactory.map();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classFiles.put(name, bytes);
+            }
+            return classFiles;
+            
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+    
+    private static void write(File file, Map<String, byte[]> classFiles) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(classFiles.size());
+            for (String name : classFiles.keySet()) {
+                byte[] bytes = classFiles.get(name);
+                out.writeUTF(name);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+    
+    private static File initialDirectory() {
+        String path = System.getProperty(DIR_PROPERTY);
+        if (path == null || path.trim().length() == 0) {
+            path = JiffleProperties.get(JiffleProperties.CLASS_STORE_DIR_KEY);
+        }
+        
+        if (path != null && path.trim().length() > 0) {
+            File dir = new File(path.trim());
+            if (dir.isDirectory() || dir.mkdirs()) {
+                return dir;
+            }
+            Jiffle.LOGGER.log(Level.WARNING, "Unable to use {0} for runtime class store", path);
+        }
+        return null;
+    }
+}
@@ -25,16 +25,19 @@
 
 package org.jaitools.jiffle.parser;
 
+import java.awt.image.DataBuffer;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.RecognizerSharedState;
 import org.antlr.runtime.RuleReturnScope;
 import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.Tree;
 import org.antlr.runtime.tree.TreeNodeStream;
 import org.antlr.stringtemplate.StringTemplateGroup;
 
@@ -72,9 +75,21 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
     /** The name of the base class for the runtime class. */
     protected String baseClassName;
     
+    /** Image data types ({@link DataBuffer} constants) by variable name. */
+    protected Map<String, Integer> imageDataTypes;
+    
     /** A counter used in naming variables inserted into the runtime source. */
     protected int varIndex = 0;
     
+    /** Whether to instrument the runtime source for profiling. */
+    protected boolean profiling = false;
+    
+    /** Script line numbers of profiling probes, in probe index order. */
+    protected List<Integer> probeLines;
+    
+    /** Whether each profiling probe is for a loop body. */
+    protected List<Boolean> probeLoopBodies;
+    
 
     /**
      * Constructor called by ANTLR.
@@ -96,6 +111,10 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
 
         this.pkgName = JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY);
         
+        this.imageDataTypes = CollectionFactory.map();
+        this.probeLines = CollectionFactory.list();
+        this.probeLoopBodies = CollectionFactory.list();
+        
         this.imports = CollectionFactory.list();
         String value = JiffleProperties.get(JiffleProperties.IMPORTS_KEY);
         if (value != null && !(value.trim().length() == 0)) {
@@ -123,6 +142,18 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void setClassName(String packageName, String className) {
+        if (packageName != null) {
+            this.pkgName = packageName;
+        }
+        if (className != null) {
+            this.className = className;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -130,6 +161,81 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
         this.baseClassName = baseClassName;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void setImageDataTypes(Map<String, Integer> dataTypes) {
+        imageDataTypes.clear();
+        if (dataTypes != null) {
+            imageDataTypes.putAll(dataTypes);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+    
+    /**
+     * Adds a profiling probe for a statement. The probe records its
+     * statement's script line, taken from the first node in the statement
+     * subtree which has one. Nodes created by tree rewrites do not have 
+     * script lines.
+     * 
+     * @param node AST node of the statement
+     * @param loopBody {@code true} if the statement is a loop body
+     * 
+     * @return index of the new probe
+     */
+    protected int addProbe(Tree node, boolean loopBody) {
+        probeLines.add(findLine(node));
+        probeLoopBodies.add(loopBody);
+        return probeLines.size() - 1;
+    }
+    
+    private int findLine(Tree node) {
+        if (node.getLine() > 0) {
+            return node.getLine();
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            int line = findLine(node.getChild(i));
+            if (line > 0) {
+                return line;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Gets the name of the data type for an image variable, for use in 
+     * selecting type-specialized source templates. The name is that of the
+     * {@link DataBuffer} constant without the {@code TYPE_} prefix 
+     * (e.g. "BYTE").
+     * 
+     * @param varName image variable name
+     * 
+     * @return the data type name or {@code null} if the data type 
+     *         of the image is not known
+     */
+    protected String getImageTypeName(String varName) {
+        Integer dataType = imageDataTypes.get(varName);
+        if (dataType == null) {
+            return null;
+        }
+        
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE: return "BYTE";
+            case DataBuffer.TYPE_USHORT: return "USHORT";
+            case DataBuffer.TYPE_SHORT: return "SHORT";
+            case DataBuffer.TYPE_INT: return "INT";
+            case DataBuffer.TYPE_FLOAT: return "FLOAT";
+            case DataBuffer.TYPE_DOUBLE: return "DOUBLE";
+            default: return null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,507 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.janino.util.ClassFile;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Assembles the bytecode for a single method of a class being built with
+ * Janino's {@link ClassFile}. It keeps track of operand stack depth and 
+ * local variable slots so that the method's {@code Code} attribute can be
+ * written without further analysis. Used by {@link RuntimeBytecodeGenerator}.
+ * <p>
+ * Class files are written with the Janino default version (45.3) so that
+ * no stack map frames are required.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+class CodeBuilder {
+    
+    static final int ACONST_NULL = 1;
+    static final int ICONST_0 = 3;
+    static final int DCONST_0 = 14;
+    static final int DCONST_1 = 15;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC = 18;
+    static final int LDC_W = 19;
+    static final int LDC2_W = 20;
+    static final int ILOAD = 21;
+    static final int DLOAD = 24;
+    static final int ALOAD = 25;
+    static final int DALOAD = 49;
+    static final int ISTORE = 54;
+    static final int DSTORE = 57;
+    static final int ASTORE = 58;
+    static final int DASTORE = 82;
+    static final int AASTORE = 83;
+    static final int POP = 87;
+    static final int POP2 = 88;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int DUP2_X2 = 94;
+    static final int DADD = 99;
+    static final int DSUB = 103;
+    static final int DMUL = 107;
+    static final int DDIV = 111;
+    static final int DREM = 115;
+    static final int DNEG = 119;
+    static final int IINC = 132;
+    static final int I2D = 135;
+    static final int L2D = 138;
+    static final int D2I = 142;
+    static final int DCMPL = 151;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IF_ICMPEQ = 159;
+    static final int IF_ICMPNE = 160;
+    static final int IF_ICMPGE = 162;
+    static final int IF_ICMPGT = 163;
+    static final int IF_ICMPLE = 164;
+    static final int GOTO = 167;
+    static final int IRETURN = 172;
+    static final int DRETURN = 175;
+    static final int ARETURN = 176;
+    static final int RETURN = 177;
+    static final int GETFIELD = 180;
+    static final int PUTFIELD = 181;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int INVOKESTATIC = 184;
+    static final int INVOKEINTERFACE = 185;
+    static final int NEW = 187;
+    static final int NEWARRAY = 188;
+    static final int ANEWARRAY = 189;
+    static final int ARRAYLENGTH = 190;
+    static final int CHECKCAST = 192;
+    static final int WIDE = 196;
+    
+    /** Array type code for {@code NEWARRAY}. */
+    static final int T_DOUBLE = 7;
+    
+    /** Access flags. */
+    static final short ACC_PUBLIC = 0x0001;
+    static final short ACC_PRIVATE = 0x0002;
+    static final short ACC_PROTECTED = 0x0004;
+    static final short ACC_SUPER = 0x0020;
+    
+    /** Kinds of local variables and operand values. */
+    enum Kind {
+        INT(ILOAD, ISTORE, 1),
+        DOUBLE(DLOAD, DSTORE, 2),
+        OBJECT(ALOAD, ASTORE, 1);
+        
+        private final int loadOp;
+        private final int storeOp;
+        private final int size;
+        
+        private Kind(int loadOp, int storeOp, int size) {
+            this.loadOp = loadOp;
+            this.storeOp = storeOp;
+            this.size = size;
+        }
+        
+        int size() {
+            return size;
+        }
+    }
+    
+    /**
+     * A branch target. Branches to a label may be emitted before
+     * the label's position is known.
+     */
+    static class Label {
+        private int pos = -1;
+        private final List<Integer> branches = CollectionFactory.list();
+    }
+    
+    private final ClassFile classFile;
+    private byte[] code = new byte[256];
+    private int length;
+    
+    private int stackDepth;
+    private int maxStack;
+    private int numLocals;
+    
+    private final List<Integer> localSlots = CollectionFactory.list();
+    private final List<Kind> localKinds = CollectionFactory.list();
+    
+    /**
+     * Creates a new builder.
+     * 
+     * @param classFile the class file that the method will be added to
+     * @param numParamSlots number of local variable slots used by 
+     *        {@code this} and the method parameters
+     */
+    CodeBuilder(ClassFile classFile, int numParamSlots) {
+        this.classFile = classFile;
+        this.numLocals = numParamSlots;
+    }
+
+    /**
+     * Allocates a new local variable. Each variable is given its own slot 
+     * and is initialized to zero (or {@code null}) on entry to the method 
+     * so that it is definitely assigned on all paths.
+     * 
+     * @param kind variable kind
+     * @return the slot index
+     */
+    int newLocal(Kind kind) {
+        int slot = numLocals;
+        numLocals += kind.size();
+        localSlots.add(slot);
+        localKinds.add(kind);
+        return slot;
+    }
+    
+    /**
+     * Gets the current operand stack depth.
+     * 
+     * @return stack depth in slots
+     */
+    int getStackDepth() {
+        return stackDepth;
+    }
+    
+    /**
+     * Sets the operand stack depth. This is used at the start of code
+     * which is only reached by branching.
+     * 
+     * @param depth stack depth in slots
+     */
+    void setStackDepth(int depth) {
+        stackDepth = depth;
+    }
+    
+    /**
+     * Emits an instruction without operands.
+     * 
+     * @param opcode the opcode
+     * @param stackDelta change in stack depth
+     */
+    void insn(int opcode, int stackDelta) {
+        put1(opcode);
+        adjustStack(stackDelta);
+    }
+    
+    void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            put1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            put1(BIPUSH);
+            put1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            put1(SIPUSH);
+            put2(value);
+        } else {
+            ldc(classFile.addConstantIntegerInfo(value));
+            adjustStack(-1);
+        }
+        adjustStack(1);
+    }
+    
+    void pushDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        if (bits == Double.doubleToLongBits(0.0)) {
+            put1(DCONST_0);
+        } else if (bits == Double.doubleToLongBits(1.0)) {
+            put1(DCONST_1);
+        } else {
+            put1(LDC2_W);
+            put2(classFile.addConstantDoubleInfo(value));
+        }
+        adjustStack(2);
+    }
+    
+    void pushString(String value) {
+        ldc(classFile.addConstantStringInfo(value));
+    }
+    
+    private void ldc(short index) {
+        if ((index & 0xffff) <= 0xff) {
+            put1(LDC);
+            put1(index);
+        } else {
+            put1(LDC_W);
+            put2(index);
+        }
+        adjustStack(1);
+    }
+    
+    void load(Kind kind, int slot) {
+        varInsn(kind.loadOp, slot);
+        adjustStack(kind.size());
+    }
+    
+    void store(Kind kind, int slot) {
+        varInsn(kind.storeOp, slot);
+        adjustStack(-kind.size());
+    }
+    
+    void loadThis() {
+        load(Kind.OBJECT, 0);
+    }
+    
+    private void varInsn(int opcode, int slot) {
+        if (slot > 0xff) {
+            put1(WIDE);
+            put1(opcode);
+            put2(slot);
+        } else {
+            put1(opcode);
+            put1(slot);
+        }
+    }
+    
+    void iinc(int slot, int increment) {
+        if (slot > 0xff) {
+            put1(WIDE);
+            put1(IINC);
+            put2(slot);
+            put2(increment);
+        } else {
+            put1(IINC);
+            put1(slot);
+            put1(increment);
+        }
+    }
+    
+    /**
+     * Emits a field access instruction.
+     * 
+     * @param opcode {@code GETFIELD} or {@code PUTFIELD}
+     * @param ownerFD owner class descriptor
+     * @param name field name
+     * @param fieldFD field type descriptor
+     */
+    void field(int opcode, String ownerFD, String name, String fieldFD) {
+        put1(opcode);
+        put2(classFile.addConstantFieldrefInfo(ownerFD, name, fieldFD));
+        int size = slotSize(fieldFD);
+        adjustStack(opcode == GETFIELD ? size - 1 : -size - 1);
+    }
+    
+    /**
+     * Emits a method invocation.
+     * 
+     * @param opcode one of the invoke opcodes
+     * @param ownerFD owner class descriptor
+     * @param name method name
+     * @param methodMD method descriptor
+     */
+    void invoke(int opcode, String ownerFD, String name, String methodMD) {
+        int argSlots = 0;
+        int i = 1;
+        while (methodMD.charAt(i) != ')') {
+            char c = methodMD.charAt(i);
+            if (c == 'D' || c == 'J') {
+                argSlots += 2;
+                i++;
+            } else {
+                argSlots++;
+                while (methodMD.charAt(i) == '[') {
+                    i++;
+                }
+                if (methodMD.charAt(i) == 'L') {
+                    i = methodMD.indexOf(';', i);
+                }
+                i++;
+            }
+        }
+        
+        put1(opcode);
+        if (opcode == INVOKEINTERFACE) {
+            put2(classFile.addConstantInterfaceMethodrefInfo(ownerFD, name, methodMD));
+            put1(argSlots + 1);
+            put1(0);
+        } else {
+            put2(classFile.addConstantMethodrefInfo(ownerFD, name, methodMD));
+        }
+        
+        int receiver = opcode == INVOKESTATIC ? 0 : 1;
+        adjustStack(slotSize(methodMD.substring(i + 1)) - argSlots - receiver);
+    }
+    
+    /**
+     * Emits an instruction which takes a class operand: 
+     * {@code NEW}, {@code ANEWARRAY} or {@code CHECKCAST}.
+     * 
+     * @param opcode the opcode
+     * @param classFD class descriptor
+     */
+    void typeInsn(int opcode, String classFD) {
+        put1(opcode);
+        put2(classFile.addConstantClassInfo(classFD));
+        if (opcode == NEW) {
+            adjustStack(1);
+        }
+    }
+    
+    void newDoubleArray() {
+        put1(NEWARRAY);
+        put1(T_DOUBLE);
+    }
+    
+    Label newLabel() {
+        return new Label();
+    }
+    
+    /**
+     * Emits a branch instruction.
+     * 
+     * @param opcode a conditional branch opcode or {@code GOTO}
+     * @param target the target label
+     */
+    void jump(int opcode, Label target) {
+        if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+            adjustStack(-2);
+        } else if (opcode != GOTO) {
+            adjustStack(-1);
+        }
+        
+        int pos = length;
+        put1(opcode);
+        if (target.pos >= 0) {
+            checkOffset(target.pos - pos);
+            put2(target.pos - pos);
+        } else {
+            target.branches.add(pos);
+            put2(0);
+        }
+    }
+    
+    /**
+     * Sets the position of a label to the current end of the code.
+     * 
+     * @param label the label
+     */
+    void mark(Label label) {
+        label.pos = length;
+        for (int pos : label.branches) {
+            int offset = length - pos;
+            checkOffset(offset);
+            code[pos + 1] = (byte) (offset >> 8);
+            code[pos + 2] = (byte) offset;
+        }
+        label.branches.clear();
+    }
+    
+    /**
+     * Adds the method to the class file.
+     * 
+     * @param access access flags
+     * @param name method name
+     * @param methodMD method descriptor
+     */
+    void addMethod(short access, String name, String methodMD) {
+        /*
+         * Prefix code to initialize local variables. Branch offsets
+         * are relative so are not affected.
+         */
+        CodeBuilder prefix = new CodeBuilder(classFile, 0);
+        for (int i = 0; i < localSlots.size(); i++) {
+            Kind kind = localKinds.get(i);
+            int slot = localSlots.get(i);
+            switch (kind) {
+                case INT: prefix.pushInt(0); break;
+                case DOUBLE: prefix.pushDouble(0); break;
+                case OBJECT: prefix.insn(ACONST_NULL, 1); break;
+            }
+            prefix.store(kind, slot);
+        }
+        
+        final byte[] bytes = new byte[prefix.length + length];
+        System.arraycopy(prefix.code, 0, bytes, 0, prefix.length);
+        System.arraycopy(code, 0, bytes, prefix.length, length);
+        if (bytes.length > 0xffff) {
+            throw new IllegalStateException("Method " + name + " is too large");
+        }
+
+        final short stack = (short) Math.max(maxStack, prefix.maxStack);
+        final short locals = (short) numLocals;
+        
+        ClassFile.MethodInfo info = classFile.addMethodInfo(access, name, methodMD);
+        info.addAttribute(new ClassFile.AttributeInfo(classFile.addConstantUtf8Info("Code")) {
+            @Override
+            protected void storeBody(DataOutputStream dos) throws IOException {
+                dos.writeShort(stack);
+                dos.writeShort(locals);
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+                dos.writeShort(0);  // exception table
+                dos.writeShort(0);  // attributes
+            }
+        });
+    }
+    
+    private void adjustStack(int delta) {
+        stackDepth += delta;
+        if (stackDepth > maxStack) {
+            maxStack = stackDepth;
+        }
+    }
+    
+    private void checkOffset(int offset) {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new IllegalStateException("Branch offset too large");
+        }
+    }
+    
+    private static int slotSize(String fd) {
+        switch (fd.charAt(0)) {
+            case 'V': return 0;
+            case 'D':
+            case 'J': return 2;
+            default: return 1;
+        }
+    }
+    
+    private void put1(int b) {
+        ensureCapacity(1);
+        code[length++] = (byte) b;
+    }
+    
+    private void put2(int s) {
+        ensureCapacity(2);
+        code[length++] = (byte) (s >> 8);
+        code[length++] = (byte) s;
+    }
+    
+    private void ensureCapacity(int n) {
+        if (length + n > code.length) {
+            byte[] larger = new byte[Math.max(code.length * 2, length + n)];
+            System.arraycopy(code, 0, larger, 0, length);
+            code = larger;
+        }
+    }
+}
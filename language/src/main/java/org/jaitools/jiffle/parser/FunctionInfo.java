@@ -143,6 +143,25 @@ public class FunctionInfo {
         }
     }
 
+    /**
+     * Gets the function provider.
+     *
+     * @return the provider
+     */
+    public Provider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Gets the name of the method which implements the function in the
+     * runtime class. For proxy functions this is the runtime expression.
+     *
+     * @return runtime method name
+     */
+    public String getRuntimeName() {
+        return runtimeName;
+    }
+
     /**
      * Tests if this function is volatile, ie. returns a different value
      * on each invocation regardless of image position.
@@ -187,4 +187,25 @@ public class FunctionLookup {
         throw new UndefinedFunctionException(jiffleName);
     }
     
+    /**
+     * Searches for a proxy function with the given runtime expression and
+     * gets its script name. This is used by compiler stages which work with 
+     * the AST after proxy function calls have been replaced by their 
+     * runtime expressions.
+     * 
+     * @param runtimeExpr the runtime expression to match
+     * @return the name of the function used in a Jiffle script
+     * 
+     * @throws UndefinedFunctionException if no proxy function matches
+     */
+    public static String getProxyName(String runtimeExpr) throws UndefinedFunctionException {
+        for (FunctionInfo info : lookup) {
+            if (info.isProxy() && info.getRuntimeExpr().equals(runtimeExpr)) {
+                return info.getJiffleName();
+            }
+        }
+        
+        throw new UndefinedFunctionException("Unrecognized proxy expression: " + runtimeExpr);
+    }
+    
 }
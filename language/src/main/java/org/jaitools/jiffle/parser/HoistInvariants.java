@@ -0,0 +1,423 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Moves invariant expressions out of per-pixel evaluation. Each expression 
+ * in the script's statements is classified as constant, per-run (depending
+ * only on constants, image-scope variables and values such as {@code xres()}
+ * which are fixed for a run), per-row (also depending on {@code y()}) or 
+ * per-pixel. Maximal per-run and per-row subexpressions of per-pixel 
+ * expressions are wrapped in {@code RUN_INVARIANT} and {@code ROW_INVARIANT}
+ * nodes, which the source generator turns into fields of the runtime class 
+ * that are evaluated once per run and once per row respectively.
+ * <p>
+ * Image-scope variables that the script assigns to are treated as per-pixel
+ * values, as are calls to volatile functions such as {@code rand()}. This
+ * pass works on the AST produced by {@link TransformExpressions} and 
+ * modifies it in place.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class HoistInvariants {
+    
+    private static final int CONSTANT = 0;
+    private static final int PER_RUN = 1;
+    private static final int PER_ROW = 2;
+    private static final int PER_PIXEL = 3;
+    
+    private final CommonTree ast;
+    private final Set<String> writtenVars;
+    private final Map<Tree, Integer> levels;
+    
+    /**
+     * Creates a new instance to work with the given AST.
+     * 
+     * @param ast the AST produced by {@link TransformExpressions}
+     */
+    public HoistInvariants(CommonTree ast) {
+        this.ast = ast;
+        this.writtenVars = CollectionFactory.set();
+        this.levels = new IdentityHashMap<Tree, Integer>();
+    }
+    
+    /**
+     * Classifies expressions and wraps invariant expressions in the AST.
+     */
+    public void apply() {
+        findWrittenVars(ast);
+        
+        if (ast.isNil()) {
+            for (int i = 0; i < ast.getChildCount(); i++) {
+                statement(ast.getChild(i));
+            }
+        } else {
+            statement(ast);
+        }
+    }
+    
+    /*
+     * Records image-scope variables which are assigned to in the
+     * script's statements.
+     */
+    private void findWrittenVars(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.DECL:
+            case JiffleParser.JIFFLE_OPTION:
+                return;
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                addIfImageScopeVar(node.getChild(0));
+                break;
+                
+            case JiffleParser.PREFIX:
+            case JiffleParser.POSTFIX:
+                int op = node.getChild(0).getType();
+                if (op == JiffleParser.INCR || op == JiffleParser.DECR) {
+                    addIfImageScopeVar(node.getChild(1));
+                }
+                break;
+        }
+        
+        for (int i = 0; i < node.getChildCount(); i++) {
+            findWrittenVars(node.getChild(i));
+        }
+    }
+    
+    private void addIfImageScopeVar(Tree node) {
+        if (node.getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+            writtenVars.add(node.getText());
+        }
+    }
+    
+    private void statement(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.DECL:
+            case JiffleParser.JIFFLE_OPTION:
+            case JiffleParser.BREAK:
+                return;
+                
+            case JiffleParser.BLOCK:
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    statement(node.getChild(i));
+                }
+                return;
+                
+            case JiffleParser.IF:
+                hoist(node, 0);
+                for (int i = 1; i < node.getChildCount(); i++) {
+                    statement(node.getChild(i));
+                }
+                return;
+                
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+                hoist(node, 0);
+                statement(node.getChild(1));
+                return;
+                
+            case JiffleParser.FOREACH:
+                Tree set = node.getChild(1);
+                if (set.getType() == JiffleParser.SEQUENCE) {
+                    hoist(set, 0);
+                    hoist(set, 1);
+                } else {
+                    classify(set);
+                }
+                statement(node.getChild(2));
+                return;
+                
+            case JiffleParser.BREAKIF:
+                hoist(node, 0);
+                return;
+                
+            case JiffleParser.IMAGE_WRITE:
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                hoist(node, 1);
+                return;
+                
+            default:
+                // expression statement: only look for invariant parts
+                classify(node);
+        }
+    }
+    
+    /*
+     * Classifies the expression at the given child position and wraps
+     * it if it is invariant.
+     */
+    private void hoist(Tree parent, int index) {
+        Tree node = parent.getChild(index);
+        int level = classify(node);
+        if (level < PER_PIXEL && isWorthHoisting(node)) {
+            wrap(parent, index, level);
+        }
+    }
+    
+    /*
+     * Classifies an expression. Invariant subexpressions of per-pixel 
+     * expressions are wrapped as a side-effect.
+     */
+    private int classify(Tree node) {
+        int level;
+        
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+            case JiffleParser.CONSTANT:
+                level = CONSTANT;
+                break;
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                level = writtenVars.contains(node.getText()) ? PER_PIXEL : PER_RUN;
+                break;
+                
+            case JiffleParser.VAR_PROVIDED:
+                level = providedLevel(node.getText());
+                break;
+                
+            case JiffleParser.FUNC_CALL: {
+                Tree args = node.getChild(1);
+                level = classifyChildren(args, 0);
+                if (isVolatile(node)) {
+                    level = PER_PIXEL;
+                }
+                hoistChildren(args, 0, level);
+                break;
+            }
+                
+            case JiffleParser.CON_CALL: {
+                Tree args = node.getChild(0);
+                level = classifyChildren(args, 0);
+                hoistChildren(args, 0, level);
+                break;
+            }
+                
+            case JiffleParser.PREFIX: {
+                int op = node.getChild(0).getType();
+                level = classifyChildren(node, 1);
+                if (op == JiffleParser.INCR || op == JiffleParser.DECR) {
+                    level = PER_PIXEL;
+                }
+                hoistChildren(node, 1, level);
+                break;
+            }
+                
+            case JiffleParser.PAR:
+            case JiffleParser.POW:
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                level = classifyChildren(node, 0);
+                hoistChildren(node, 0, level);
+                break;
+                
+            case JiffleParser.IMAGE_POS:
+                for (int i = 1; i < node.getChildCount(); i++) {
+                    Tree spec = node.getChild(i);
+                    if (spec.getType() == JiffleParser.BAND_REF) {
+                        pixelChildren(spec, 0);
+                    } else {
+                        // PIXEL_REF with ABS_POS / REL_POS children
+                        for (int k = 0; k < spec.getChildCount(); k++) {
+                            pixelChildren(spec.getChild(k), 0);
+                        }
+                    }
+                }
+                level = PER_PIXEL;
+                break;
+                
+            case JiffleParser.DECLARED_LIST:
+                pixelChildren(node.getChild(0), 0);
+                level = PER_PIXEL;
+                break;
+                
+            case JiffleParser.APPEND:
+                pixelChildren(node, 1);
+                level = PER_PIXEL;
+                break;
+                
+            default:
+                // pixel-scope, loop and list variables, source images, 
+                // postfix operations
+                level = PER_PIXEL;
+        }
+        
+        levels.put(node, level);
+        return level;
+    }
+    
+    /*
+     * Classifies the children of a node from the given index and returns
+     * the highest level.
+     */
+    private int classifyChildren(Tree node, int start) {
+        int level = CONSTANT;
+        for (int i = start; i < node.getChildCount(); i++) {
+            level = Math.max(level, classify(node.getChild(i)));
+        }
+        return level;
+    }
+    
+    /*
+     * Wraps invariant children of a node whose level is per-pixel.
+     */
+    private void hoistChildren(Tree node, int start, int level) {
+        if (level == PER_PIXEL) {
+            for (int i = start; i < node.getChildCount(); i++) {
+                Tree child = node.getChild(i);
+                int childLevel = levels.get(child);
+                if (childLevel < PER_PIXEL && isWorthHoisting(child)) {
+                    wrap(node, i, childLevel);
+                }
+            }
+        }
+    }
+    
+    /*
+     * Handles the expression children of a node in a per-pixel context.
+     */
+    private void pixelChildren(Tree node, int start) {
+        classifyChildren(node, start);
+        hoistChildren(node, start, PER_PIXEL);
+    }
+    
+    /*
+     * Classifies a proxy function value by the function's script name:
+     * x() varies per pixel, y() per row, and the others, such as width()
+     * and xres(), are fixed for a run. An unrecognized expression is 
+     * treated as per-pixel so that it is never hoisted.
+     */
+    private int providedLevel(String runtimeExpr) {
+        String name;
+        try {
+            name = FunctionLookup.getProxyName(runtimeExpr);
+        } catch (UndefinedFunctionException ex) {
+            return PER_PIXEL;
+        }
+        
+        if ("x".equals(name)) {
+            return PER_PIXEL;
+        } else if ("y".equals(name)) {
+            return PER_ROW;
+        }
+        return PER_RUN;
+    }
+    
+    private boolean isVolatile(Tree funcCall) {
+        String name = funcCall.getChild(0).getText();
+        Tree args = funcCall.getChild(1);
+        
+        List<String> argTypes = CollectionFactory.list();
+        for (int i = 0; i < args.getChildCount(); i++) {
+            int type = args.getChild(i).getType();
+            argTypes.add(type == JiffleParser.VAR_LIST || type == JiffleParser.DECLARED_LIST ?
+                    "List" : "D");
+        }
+        
+        try {
+            return FunctionLookup.getInfo(name, argTypes).isVolatile();
+        } catch (UndefinedFunctionException ex) {
+            return true;
+        }
+    }
+    
+    /*
+     * Tests if an invariant expression involves enough work to be worth
+     * replacing with a field. Literals and variables are left alone.
+     */
+    private boolean isWorthHoisting(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.FUNC_CALL:
+            case JiffleParser.CON_CALL:
+            case JiffleParser.PREFIX:
+            case JiffleParser.POW:
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                return true;
+                
+            case JiffleParser.PAR:
+                return isWorthHoisting(node.getChild(0));
+                
+            default:
+                return false;
+        }
+    }
+    
+    private void wrap(Tree parent, int index, int level) {
+        Tree node = parent.getChild(index);
+        int type = level == PER_ROW ? JiffleParser.ROW_INVARIANT : JiffleParser.RUN_INVARIANT;
+        CommonTree wrapper = new CommonTree(new CommonToken(type, 
+                JiffleParser.tokenNames[type]));
+        wrapper.addChild(node);
+        parent.setChild(index, wrapper);
+    }
+}
@@ -0,0 +1,702 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Simplifies the AST produced by {@link TransformExpressions} before runtime
+ * source is generated. Three optimizations are applied, in this order:
+ * <ol>
+ * <li> Constant folding: arithmetic on literals and named constants is
+ *      replaced by the result.
+ * <li> Dead assignment removal: assignments to pixel-scope variables whose
+ *      values are not read afterwards are removed, provided the assigned 
+ *      expression has no side-effects. This is done in a single backward
+ *      pass over each block.
+ * <li> Common subexpression elimination: within a statement, repeated 
+ *      side-effect free subexpressions, including reads of source image 
+ *      values, are evaluated once into a temporary pixel-scope variable. 
+ *      Calls to volatile functions such as {@code rand()} are never merged.
+ * </ol>
+ * The AST is modified in place. Since a new root node is required if 
+ * temporary variables are added for a script consisting of a single 
+ * statement, the root of the optimized tree is returned by {@link #apply()}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class OptimizeExpressions {
+    
+    /** Prefix for names of the temporary variables created by this class. */
+    public static final String TEMP_VAR_PREFIX = "_cse";
+    
+    private CommonTree ast;
+    private int tempCount;
+    
+    /**
+     * Creates a new instance to work with the given AST.
+     * 
+     * @param ast the AST produced by {@link TransformExpressions}
+     */
+    public OptimizeExpressions(CommonTree ast) {
+        this.ast = ast;
+    }
+
+    /**
+     * Applies the optimizations.
+     * 
+     * @return root of the optimized AST
+     */
+    public CommonTree apply() {
+        fold(ast);
+        removeDeadAssignments();
+        
+        if (!ast.isNil()) {
+            CommonTree root = new CommonTree();
+            root.addChild(ast);
+            ast = root;
+        }
+        eliminateCommonSubexpressions(ast);
+        
+        if (ast.getChildCount() == 1) {
+            CommonTree child = (CommonTree) ast.getChild(0);
+            child.setParent(null);
+            return child;
+        }
+        return ast;
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////////
+    // Constant folding
+    
+    /*
+     * Folds constant expressions at or below the given node, which is
+     * replaced in its parent if necessary.
+     */
+    private void fold(Tree node) {
+        for (int i = 0; i < node.getChildCount(); i++) {
+            fold(node.getChild(i));
+        }
+        
+        Double value = null;
+        switch (node.getType()) {
+            case JiffleParser.POW:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                if (node.getChildCount() != 2) {
+                    // operator token of a prefix expression
+                    break;
+                }
+                Double x = literalValue(node.getChild(0));
+                Double y = literalValue(node.getChild(1));
+                if (x != null && y != null) {
+                    value = evaluate(node.getType(), x, y);
+                }
+                break;
+                
+            case JiffleParser.PREFIX:
+                int op = node.getChild(0).getType();
+                Double z = literalValue(node.getChild(1));
+                if (z != null) {
+                    if (op == JiffleParser.MINUS) {
+                        value = -z;
+                    } else if (op == JiffleParser.PLUS) {
+                        value = z;
+                    }
+                }
+                break;
+                
+            case JiffleParser.PAR:
+                if (isNumericLiteral(node.getChild(0))) {
+                    value = literalValue(node.getChild(0));
+                }
+                break;
+        }
+        
+        // Results which cannot be written as a literal are left alone
+        Tree parent = node.getParent();
+        if (parent != null && value != null && !value.isNaN() && !value.isInfinite()) {
+            CommonTree literal = new CommonTree(new CommonToken(
+                    JiffleParser.FLOAT_LITERAL, String.valueOf(value)));
+            parent.setChild(node.getChildIndex(), literal);
+        }
+    }
+    
+    private boolean isNumericLiteral(Tree node) {
+        int type = node.getType();
+        return type == JiffleParser.INT_LITERAL || type == JiffleParser.FLOAT_LITERAL;
+    }
+    
+    /*
+     * Gets the value of a literal or constant node, or null for
+     * any other node.
+     */
+    private Double literalValue(Tree node) {
+        if (isNumericLiteral(node)) {
+            return Double.parseDouble(node.getText());
+        } else if (node.getType() == JiffleParser.CONSTANT) {
+            return ConstantLookup.getValue(node.getText());
+        }
+        return null;
+    }
+    
+    private double evaluate(int op, double x, double y) {
+        switch (op) {
+            case JiffleParser.POW: return Math.pow(x, y);
+            case JiffleParser.TIMES: return x * y;
+            case JiffleParser.DIV: return x / y;
+            case JiffleParser.MOD: return x % y;
+            case JiffleParser.PLUS: return x + y;
+            case JiffleParser.MINUS: return x - y;
+            default:
+                throw new IllegalArgumentException("Unsupported operator: " + op);
+        }
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////////
+    // Dead assignment removal
+    
+    private void removeDeadAssignments() {
+        Set<String> liveVars = CollectionFactory.set();
+        if (ast.isNil()) {
+            removeDeadStatements(ast, liveVars, true);
+        } else {
+            // a script with a single statement: the statement itself is kept
+            isDeadStatement(ast, liveVars, true);
+        }
+    }
+    
+    /*
+     * Removes dead assignments from the statements of a root or block node
+     * in a single backward pass. On entry, liveVars holds the pixel-scope 
+     * variables which may be read after the statements; on return it also
+     * holds the variables read by the statements which were kept. 
+     * Variables are never removed from the set, since an assignment does 
+     * not end the scope of an earlier declaration. If remove is false, 
+     * the live variables are found without modifying the tree.
+     */
+    private void removeDeadStatements(Tree parent, Set<String> liveVars, boolean remove) {
+        List<Tree> kept = CollectionFactory.list();
+        boolean removed = false;
+        
+        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
+            Tree stmt = parent.getChild(i);
+            if (isDeadStatement(stmt, liveVars, remove)) {
+                removed = true;
+            } else {
+                kept.add(stmt);
+            }
+        }
+        
+        if (removed && remove) {
+            Collections.reverse(kept);
+            if (parent.isNil() && countStatements(kept) == 0) {
+                // the root must contain a statement
+                kept.add(createEmptyBlock());
+            }
+            setChildren(parent, kept);
+        }
+    }
+    
+    /*
+     * Tests if a statement is an assignment to a pixel-scope variable which
+     * is not read afterwards. Otherwise, dead assignments are removed from
+     * any statements nested within it (if remove is true), and the variables
+     * which it reads are added to liveVars.
+     */
+    private boolean isDeadStatement(Tree stmt, Set<String> liveVars, boolean remove) {
+        switch (stmt.getType()) {
+            case JiffleParser.BLOCK:
+                removeDeadStatements(stmt, liveVars, remove);
+                return false;
+                
+            case JiffleParser.IF:
+                // live variables after either case are live before the 
+                // condition
+                for (int k = 1; k < stmt.getChildCount(); k++) {
+                    removeDeadSubstatement(stmt, k, liveVars, remove);
+                }
+                findReadPixelVars(stmt.getChild(0), liveVars);
+                return false;
+                
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+            case JiffleParser.FOREACH: {
+                int bodyIndex = stmt.getChildCount() - 1;
+                for (int k = 0; k < bodyIndex; k++) {
+                    findReadPixelVars(stmt.getChild(k), liveVars);
+                }
+                
+                // variables read in the body may be read after an assignment
+                // in a later iteration, so the body's live variables are
+                // found first, adding to the set until it no longer grows
+                int n;
+                do {
+                    n = liveVars.size();
+                    isDeadStatement(stmt.getChild(bodyIndex), liveVars, false);
+                } while (liveVars.size() > n);
+                
+                removeDeadSubstatement(stmt, bodyIndex, liveVars, remove);
+                return false;
+            }
+        }
+        
+        if (isAssignment(stmt) && stmt.getChild(0).getType() == JiffleParser.VAR_PIXEL_SCOPE) {
+            String varName = stmt.getChild(0).getText();
+            if (!liveVars.contains(varName) && !hasSideEffects(stmt.getChild(1))) {
+                return true;
+            }
+            if (stmt.getType() != JiffleParser.EQ) {
+                // compound assignments read the variable
+                liveVars.add(varName);
+            }
+        }
+        
+        findReadPixelVars(stmt, liveVars);
+        return false;
+    }
+    
+    /*
+     * Handles a statement which is a child of a node such as IF or WHILE
+     * rather than a block. A dead statement is replaced by an empty block.
+     */
+    private void removeDeadSubstatement(Tree parent, int index, Set<String> liveVars, 
+            boolean remove) {
+        
+        if (isDeadStatement(parent.getChild(index), liveVars, remove) && remove) {
+            parent.setChild(index, createEmptyBlock());
+        }
+    }
+    
+    /*
+     * Finds pixel-scope variables whose values are read. The target of
+     * an assignment is not counted as a read.
+     */
+    private void findReadPixelVars(Tree node, Set<String> readVars) {
+        if (node.getType() == JiffleParser.VAR_PIXEL_SCOPE) {
+            Tree parent = node.getParent();
+            boolean isTarget = parent != null && isAssignment(parent) 
+                    && node.getChildIndex() == 0;
+            if (!isTarget) {
+                readVars.add(node.getText());
+            }
+        }
+        
+        for (int i = 0; i < node.getChildCount(); i++) {
+            findReadPixelVars(node.getChild(i), readVars);
+        }
+    }
+    
+    private Tree createEmptyBlock() {
+        return new CommonTree(new CommonToken(JiffleParser.BLOCK, "BLOCK"));
+    }
+    
+    private int countStatements(List<Tree> stmts) {
+        int n = 0;
+        for (Tree stmt : stmts) {
+            int type = stmt.getType();
+            if (type != JiffleParser.DECL && type != JiffleParser.JIFFLE_OPTION) {
+                n++;
+            }
+        }
+        return n;
+    }
+    
+    private boolean isAssignment(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                return true;
+                
+            default:
+                return false;
+        }
+    }
+    
+    /*
+     * Tests if evaluating an expression changes the value of any variable.
+     */
+    private boolean hasSideEffects(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.POSTFIX:
+            case JiffleParser.APPEND:
+                return true;
+                
+            case JiffleParser.PREFIX:
+                int op = node.getChild(0).getType();
+                if (op == JiffleParser.INCR || op == JiffleParser.DECR) {
+                    return true;
+                }
+                break;
+        }
+        
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (hasSideEffects(node.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////////
+    // Common subexpression elimination
+    
+    /*
+     * Looks for statements within a root or block node which can have 
+     * common subexpressions moved into temporary variables.
+     */
+    private void eliminateCommonSubexpressions(Tree parent) {
+        List<Tree> children = CollectionFactory.list();
+        boolean inserted = false;
+        
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            Tree stmt = parent.getChild(i);
+            List<Tree> temps = null;
+            
+            switch (stmt.getType()) {
+                case JiffleParser.DECL:
+                case JiffleParser.JIFFLE_OPTION:
+                    break;
+                    
+                case JiffleParser.BLOCK:
+                    eliminateCommonSubexpressions(stmt);
+                    break;
+                    
+                case JiffleParser.IF:
+                    // the condition is evaluated once, before either case
+                    for (int k = 1; k < stmt.getChildCount(); k++) {
+                        statementInPlace(stmt, k);
+                    }
+                    temps = createTemps(stmt, 0);
+                    break;
+                    
+                case JiffleParser.WHILE:
+                case JiffleParser.UNTIL:
+                    statementInPlace(stmt, 1);
+                    break;
+                    
+                case JiffleParser.FOREACH:
+                    statementInPlace(stmt, 2);
+                    break;
+                    
+                case JiffleParser.IMAGE_WRITE:
+                    temps = createTemps(stmt, 1);
+                    break;
+                    
+                default:
+                    if (isAssignment(stmt)) {
+                        temps = createTemps(stmt, 1);
+                    }
+            }
+            
+            if (temps != null && !temps.isEmpty()) {
+                children.addAll(temps);
+                inserted = true;
+            }
+            children.add(stmt);
+        }
+        
+        // the parent's children are rebuilt once rather than inserting 
+        // each temporary variable assignment in place
+        if (inserted) {
+            setChildren(parent, children);
+        }
+    }
+    
+    /*
+     * Handles a statement which is a child of a node such as IF or WHILE
+     * rather than a block. If temporary variables are required the 
+     * statement is replaced by a new block.
+     */
+    private void statementInPlace(Tree parent, int index) {
+        Tree stmt = parent.getChild(index);
+        if (stmt.getType() == JiffleParser.BLOCK) {
+            eliminateCommonSubexpressions(stmt);
+            
+        } else {
+            Tree block = createEmptyBlock();
+            block.addChild(stmt);
+            eliminateCommonSubexpressions(block);
+            
+            if (block.getChildCount() > 1) {
+                parent.setChild(index, block);
+            } else {
+                parent.setChild(index, block.getChild(0));
+            }
+        }
+    }
+
+    /*
+     * Finds common subexpressions in the expression at position exprIndex 
+     * of the statement and replaces them with temporary variables. Returns
+     * the assignments to the temporary variables, in the order in which 
+     * they should be inserted before the statement.
+     */
+    private List<Tree> createTemps(Tree stmt, int exprIndex) {
+        List<Tree> assignments = CollectionFactory.list();
+        if (hasSideEffects(stmt.getChild(exprIndex))) {
+            return assignments;
+        }
+        
+        Tree holder = stmt;
+        
+        while (true) {
+            Map<String, Candidate> candidates = CollectionFactory.orderedMap();
+            findCandidates(holder.getChild(exprIndex), true, candidates);
+            for (Tree assignment : assignments) {
+                findCandidates(assignment.getChild(1), true, candidates);
+            }
+            
+            Candidate best = null;
+            for (Candidate c : candidates.values()) {
+                if (c.count > 1 && c.unconditional && (best == null || c.size > best.size)) {
+                    best = c;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            
+            String varName = TEMP_VAR_PREFIX + tempCount++;
+            Tree expr = best.node.dupNode();
+            copyChildren(best.node, expr);
+            
+            replace(holder, exprIndex, best.key, varName);
+            for (Tree assignment : assignments) {
+                replace(assignment, 1, best.key, varName);
+            }
+            
+            CommonTree assignment = new CommonTree(new CommonToken(JiffleParser.EQ, "="));
+            assignment.addChild(createVar(varName));
+            assignment.addChild(expr);
+            
+            // The new expression is part of those found earlier so it
+            // must be evaluated first
+            assignments.add(0, assignment);
+        }
+        
+        return assignments;
+    }
+    
+    /*
+     * Records subexpressions which could be moved into temporary variables.
+     */
+    private void findCandidates(Tree node, boolean unconditional, Map<String, Candidate> candidates) {
+        if (isCandidateType(node) && !hasVolatileCall(node)) {
+            String key = key(node);
+            Candidate c = candidates.get(key);
+            if (c == null) {
+                c = new Candidate(key, node);
+                candidates.put(key, c);
+            }
+            c.count++ ;
+            c.unconditional |= unconditional;
+        }
+        
+        if (node.getType() == JiffleParser.CON_CALL) {
+            // only the first argument of con is always evaluated
+            Tree args = node.getChild(0);
+            for (int i = 0; i < args.getChildCount(); i++) {
+                findCandidates(args.getChild(i), unconditional && i == 0, candidates);
+            }
+        } else {
+            for (int i = firstExprChild(node); i < node.getChildCount(); i++) {
+                findCandidates(node.getChild(i), unconditional, candidates);
+            }
+        }
+    }
+    
+    /*
+     * Gets the index of the first child which is an expression. This 
+     * skips the image name of an IMAGE_POS node.
+     */
+    private int firstExprChild(Tree node) {
+        return node.getType() == JiffleParser.IMAGE_POS ? 1 : 0;
+    }
+    
+    private boolean isCandidateType(Tree node) {
+        if (node.getChildCount() == 0) {
+            // operator token of a prefix expression
+            return node.getType() == JiffleParser.VAR_SOURCE;
+        }
+        
+        switch (node.getType()) {
+            case JiffleParser.FUNC_CALL:
+            case JiffleParser.CON_CALL:
+            case JiffleParser.IMAGE_POS:
+            case JiffleParser.VAR_SOURCE:
+            case JiffleParser.PREFIX:
+            case JiffleParser.POW:
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                return true;
+                
+            default:
+                return false;
+        }
+    }
+    
+    private boolean hasVolatileCall(Tree node) {
+        if (node.getType() == JiffleParser.FUNC_CALL && isVolatile(node)) {
+            return true;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (hasVolatileCall(node.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean isVolatile(Tree funcCall) {
+        String name = funcCall.getChild(0).getText();
+        Tree args = funcCall.getChild(1);
+        
+        List<String> argTypes = CollectionFactory.list();
+        for (int i = 0; i < args.getChildCount(); i++) {
+            int type = args.getChild(i).getType();
+            argTypes.add(type == JiffleParser.VAR_LIST || type == JiffleParser.DECLARED_LIST ?
+                    "List" : "D");
+        }
+        
+        try {
+            return FunctionLookup.getInfo(name, argTypes).isVolatile();
+        } catch (UndefinedFunctionException ex) {
+            return true;
+        }
+    }
+    
+    /*
+     * Replaces each occurrence of the expression with the given key at or 
+     * below position index of parent with a reference to a variable.
+     */
+    private void replace(Tree parent, int index, String key, String varName) {
+        Tree node = parent.getChild(index);
+        if (key.equals(key(node))) {
+            parent.setChild(index, createVar(varName));
+        } else {
+            for (int i = firstExprChild(node); i < node.getChildCount(); i++) {
+                replace(node, i, key, varName);
+            }
+        }
+    }
+    
+    private Tree createVar(String varName) {
+        return new CommonTree(new CommonToken(JiffleParser.VAR_PIXEL_SCOPE, varName));
+    }
+    
+    private void copyChildren(Tree from, Tree to) {
+        for (int i = 0; i < from.getChildCount(); i++) {
+            Tree child = from.getChild(i);
+            Tree copy = child.dupNode();
+            copyChildren(child, copy);
+            to.addChild(copy);
+        }
+    }
+    
+    /*
+     * Replaces the children of a node. Children are deleted from the end 
+     * so that each deletion takes constant time.
+     */
+    private void setChildren(Tree parent, List<Tree> children) {
+        while (parent.getChildCount() > 0) {
+            parent.deleteChild(parent.getChildCount() - 1);
+        }
+        for (Tree child : children) {
+            parent.addChild(child);
+        }
+    }
+
+    /*
+     * Creates a key which is equal for structurally identical expressions.
+     */
+    private String key(Tree node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('(').append(node.getType()).append(':').append(node.getText());
+        for (int i = 0; i < node.getChildCount(); i++) {
+            sb.append(' ').append(key(node.getChild(i)));
+        }
+        return sb.append(')').toString();
+    }
+    
+    private int size(Tree node) {
+        int n = 1;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            n += size(node.getChild(i));
+        }
+        return n;
+    }
+    
+    /*
+     * Records occurrences of a subexpression.
+     */
+    private class Candidate {
+        final String key;
+        final Tree node;
+        final int size;
+        int count;
+        boolean unconditional;
+
+        Candidate(String key, Tree node) {
+            this.key = key;
+            this.node = node;
+            this.size = size(node);
+        }
+    }
+    
+}
@@ -0,0 +1,1516 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.awt.image.DataBuffer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+import org.codehaus.janino.util.ClassFile;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleException;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.parser.CodeBuilder.Kind;
+import org.jaitools.jiffle.parser.CodeBuilder.Label;
+import org.jaitools.jiffle.runtime.AbstractJiffleRuntime;
+import org.jaitools.jiffle.runtime.JiffleFunctions;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * Generates the runtime class as JVM bytecode directly from the final AST.
+ * This is an alternative to generating Java source with 
+ * {@link RuntimeSourceGenerator} and compiling it with Janino. It avoids 
+ * the cost of rendering and parsing the source, which dominates compile 
+ * time for large scripts.
+ * <p>
+ * The generated class has the same name, base class and members as the 
+ * class produced from Java source. Script constructs are translated
+ * following the source templates (e.g. {@code con} calls are evaluated
+ * lazily and compound assignments are applied directly). If the AST 
+ * contains a construct that this generator does not handle, or the base
+ * class lacks a method that the generated code requires, a 
+ * {@link JiffleException} is thrown and the caller can fall back to 
+ * source generation.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeBytecodeGenerator {
+    
+    private static final String DOUBLE_FD = "D";
+    private static final String OBJECT_FD = "Ljava/lang/Object;";
+    private static final String LIST_FD = "Ljava/util/List;";
+    private static final String ITERATOR_FD = "Ljava/util/Iterator;";
+    private static final String ARRAYLIST_FD = "Ljava/util/ArrayList;";
+    private static final String BOXED_DOUBLE_FD = "Ljava/lang/Double;";
+    private static final String NUMBER_FD = "Ljava/lang/Number;";
+    private static final String MATH_FD = "Ljava/lang/Math;";
+    private static final String FUNCTIONS_FD = fd(JiffleFunctions.class);
+    
+    private static final String BOX_MD = "(D)" + BOXED_DOUBLE_FD;
+    
+    /** A local variable in the method being generated. */
+    private static class Local {
+        final int slot;
+        final Kind kind;
+
+        Local(int slot, Kind kind) {
+            this.slot = slot;
+            this.kind = kind;
+        }
+    }
+    
+    private final CommonTree ast;
+    private Jiffle.RuntimeModel model;
+    private Class<? extends JiffleRuntime> baseClass;
+    private final Map<String, Integer> imageDataTypes;
+    
+    private ClassFile classFile;
+    private String className;
+    private String thisFD;
+    
+    private final List<CommonTree> options = CollectionFactory.list();
+    private final List<CommonTree> imageScopeVars = CollectionFactory.list();
+    private final List<CommonTree> statements = CollectionFactory.list();
+    private final List<String> imageVars = CollectionFactory.list();
+    private final List<CommonTree> runInvariants = CollectionFactory.list();
+    private final List<CommonTree> rowInvariants = CollectionFactory.list();
+    private boolean imageScopeVarsWritten;
+    
+    /* 
+     * State for the method being generated 
+     */
+    private CodeBuilder code;
+    private int xSlot;
+    private int ySlot;
+    private final List<Map<String, Local>> scopes = CollectionFactory.list();
+    private final List<Label> breakLabels = CollectionFactory.list();
+    
+
+    /**
+     * Creates a new generator.
+     * 
+     * @param ast the final AST produced by the Jiffle compiler
+     */
+    public RuntimeBytecodeGenerator(CommonTree ast) {
+        this.ast = ast;
+        this.imageDataTypes = CollectionFactory.map();
+    }
+    
+    /**
+     * Sets the runtime model.
+     * 
+     * @param model the runtime model
+     */
+    public void setRuntimeModel(Jiffle.RuntimeModel model) {
+        this.model = model;
+    }
+    
+    /**
+     * Sets the base class for the runtime class.
+     * 
+     * @param baseClass the base class
+     */
+    public void setBaseClass(Class<? extends JiffleRuntime> baseClass) {
+        this.baseClass = baseClass;
+    }
+    
+    /**
+     * Sets image data types. If the data type of an image is known, 
+     * the generated code calls methods specialized for that type to read 
+     * and write values.
+     * 
+     * @param dataTypes {@link DataBuffer} constants by image variable name;
+     *        may be {@code null}
+     */
+    public void setImageDataTypes(Map<String, Integer> dataTypes) {
+        imageDataTypes.clear();
+        if (dataTypes != null) {
+            imageDataTypes.putAll(dataTypes);
+        }
+    }
+    
+    /**
+     * Generates the runtime class.
+     * 
+     * @return class file contents keyed by fully qualified class name
+     * 
+     * @throws JiffleException if the AST contains constructs which are not
+     *         supported by this generator or the base class is not suitable
+     */
+    public Map<String, byte[]> getClassFiles() throws JiffleException {
+        if (model == null) {
+            throw new IllegalStateException("Runtime model has not been set");
+        }
+        if (baseClass == null) {
+            throw new IllegalStateException("Base class has not been set");
+        }
+        if (!AbstractJiffleRuntime.class.isAssignableFrom(baseClass)) {
+            throw new JiffleException(
+                    "Bytecode generation requires a base class derived from AbstractJiffleRuntime");
+        }
+        
+        readTree();
+        
+        String pkgName = JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY);
+        String simpleName = JiffleProperties.get(model == Jiffle.RuntimeModel.DIRECT ?
+                JiffleProperties.DIRECT_CLASS_KEY : JiffleProperties.INDIRECT_CLASS_KEY);
+        
+        className = pkgName + "." + simpleName;
+        thisFD = "L" + className.replace('.', '/') + ";";
+        classFile = new ClassFile((short) (CodeBuilder.ACC_PUBLIC | CodeBuilder.ACC_SUPER), 
+                thisFD, fd(baseClass), new String[0]);
+        
+        try {
+            generateEvaluatePixel();
+            generateInvariantMethods();
+            generateOptionVarsMethod();
+            generateDefaultValueGetter();
+            if (model == Jiffle.RuntimeModel.DIRECT && imageScopeVarsWritten) {
+                generateWritesImageScopeVars();
+            }
+            
+            // Generated last because image slots are allocated in the 
+            // other methods
+            generateConstructor();
+            
+        } catch (IllegalStateException ex) {
+            throw new JiffleException(ex.getMessage());
+        }
+        
+        Map<String, byte[]> classFiles = CollectionFactory.map();
+        classFiles.put(className, classFile.toByteArray());
+        return classFiles;
+    }
+    
+    /**
+     * Sorts the top level nodes of the AST into options, image-scope
+     * variable declarations and statements.
+     */
+    private void readTree() {
+        options.clear();
+        imageScopeVars.clear();
+        statements.clear();
+        imageVars.clear();
+        runInvariants.clear();
+        rowInvariants.clear();
+        imageScopeVarsWritten = false;
+        
+        if (ast.isNil()) {
+            for (int i = 0; i < ast.getChildCount(); i++) {
+                readTopNode((CommonTree) ast.getChild(i));
+            }
+        } else {
+            readTopNode(ast);
+        }
+    }
+    
+    private void readTopNode(CommonTree node) {
+        switch (node.getType()) {
+            case JiffleParser.JIFFLE_OPTION:
+                options.add(node);
+                break;
+                
+            case JiffleParser.DECL:
+                if (node.getChild(0).getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+                    imageScopeVars.add(node);
+                }
+                break;
+                
+            default:
+                statements.add(node);
+        }
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Methods of the runtime class
+    
+    private void generateEvaluatePixel() throws JiffleException {
+        startMethod(5, 1, 3);
+        
+        for (CommonTree stmt : statements) {
+            statement(stmt);
+        }
+        
+        if (model == Jiffle.RuntimeModel.DIRECT) {
+            code.insn(CodeBuilder.RETURN, 0);
+            endMethod(CodeBuilder.ACC_PROTECTED, "evaluatePixel", "(DD)V");
+        } else {
+            // only reached if the script does not write a value
+            code.pushDouble(Double.NaN);
+            code.insn(CodeBuilder.DRETURN, -2);
+            endMethod(CodeBuilder.ACC_PROTECTED, "evaluatePixel", "(DD)D");
+        }
+    }
+    
+    private void generateInvariantMethods() throws JiffleException {
+        /*
+         * Expressions are compiled by index since the lists could grow
+         * if invariants were nested
+         */
+        if (!runInvariants.isEmpty()) {
+            startMethod(1, -1, -1);
+            for (int i = 0; i < runInvariants.size(); i++) {
+                code.loadThis();
+                doubleExpression(child(runInvariants.get(i), 0));
+                code.field(CodeBuilder.PUTFIELD, thisFD, "_run" + i, DOUBLE_FD);
+            }
+            code.insn(CodeBuilder.RETURN, 0);
+            endMethod(CodeBuilder.ACC_PROTECTED, "initRunInvariants", "()V");
+            
+            for (int i = 0; i < runInvariants.size(); i++) {
+                classFile.addFieldInfo(CodeBuilder.ACC_PRIVATE, "_run" + i, DOUBLE_FD, null);
+            }
+        }
+        
+        if (!rowInvariants.isEmpty()) {
+            startMethod(3, -1, 1);
+            for (int i = 0; i < rowInvariants.size(); i++) {
+                code.loadThis();
+                doubleExpression(child(rowInvariants.get(i), 0));
+                code.field(CodeBuilder.PUTFIELD, thisFD, "_row" + i, DOUBLE_FD);
+            }
+            code.insn(CodeBuilder.RETURN, 0);
+            endMethod(CodeBuilder.ACC_PROTECTED, "initRowInvariants", "(D)V");
+            
+            for (int i = 0; i < rowInvariants.size(); i++) {
+                classFile.addFieldInfo(CodeBuilder.ACC_PRIVATE, "_row" + i, DOUBLE_FD, null);
+            }
+        }
+    }
+    
+    private void generateOptionVarsMethod() throws JiffleException {
+        startMethod(1, -1, -1);
+        
+        for (CommonTree opt : options) {
+            String name = child(opt, 0).getText();
+            CommonTree valueNode = child(opt, 1);
+            
+            // "outside" is presently the only option (see OptionLookup)
+            if (!"outside".equalsIgnoreCase(name)) {
+                throw unsupported(opt);
+            }
+            
+            double value;
+            switch (valueNode.getType()) {
+                case JiffleParser.INT_LITERAL:
+                case JiffleParser.FLOAT_LITERAL:
+                    value = Double.parseDouble(valueNode.getText());
+                    break;
+                    
+                case JiffleParser.CONSTANT:
+                    value = ConstantLookup.getValue(valueNode.getText());
+                    break;
+                    
+                default:
+                    throw unsupported(valueNode);
+            }
+            
+            code.loadThis();
+            code.pushInt(1);
+            code.field(CodeBuilder.PUTFIELD, thisFD, "_outsideValueSet", "Z");
+            code.loadThis();
+            code.pushDouble(value);
+            code.field(CodeBuilder.PUTFIELD, thisFD, "_outsideValue", DOUBLE_FD);
+        }
+        
+        code.insn(CodeBuilder.RETURN, 0);
+        endMethod(CodeBuilder.ACC_PROTECTED, "initOptionVars", "()V");
+    }
+    
+    private void generateDefaultValueGetter() throws JiffleException {
+        startMethod(2, -1, -1);
+        
+        for (int i = 0; i < imageScopeVars.size(); i++) {
+            CommonTree decl = imageScopeVars.get(i);
+            if (decl.getChildCount() > 1) {
+                Label next = code.newLabel();
+                code.load(Kind.INT, 1);
+                code.pushInt(i);
+                code.jump(CodeBuilder.IF_ICMPNE, next);
+                doubleExpression(child(decl, 1));
+                code.invoke(CodeBuilder.INVOKESTATIC, BOXED_DOUBLE_FD, "valueOf", BOX_MD);
+                code.insn(CodeBuilder.ARETURN, -1);
+                code.mark(next);
+            }
+        }
+        
+        code.insn(CodeBuilder.ACONST_NULL, 1);
+        code.insn(CodeBuilder.ARETURN, -1);
+        endMethod(CodeBuilder.ACC_PROTECTED, "getDefaultValue", "(I)" + BOXED_DOUBLE_FD);
+    }
+    
+    private void generateWritesImageScopeVars() throws JiffleException {
+        startMethod(1, -1, -1);
+        code.pushInt(1);
+        code.insn(CodeBuilder.IRETURN, -1);
+        endMethod(CodeBuilder.ACC_PROTECTED, "writesImageScopeVars", "()Z");
+    }
+    
+    private void generateConstructor() throws JiffleException {
+        try {
+            Constructor<?> ctor = baseClass.getDeclaredConstructor();
+            if (Modifier.isPrivate(ctor.getModifiers())) {
+                throw new JiffleException("Base class constructor is not accessible");
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new JiffleException("Base class has no default constructor");
+        }
+        
+        startMethod(1, -1, -1);
+        code.loadThis();
+        code.invoke(CodeBuilder.INVOKESPECIAL, fd(baseClass), "<init>", "()V");
+        
+        for (CommonTree decl : imageScopeVars) {
+            code.loadThis();
+            code.pushString(child(decl, 0).getText());
+            code.pushInt(decl.getChildCount() > 1 ? 1 : 0);
+            invokeThis("registerVar", String.class, boolean.class);
+        }
+        
+        if (model == Jiffle.RuntimeModel.DIRECT) {
+            for (String varName : imageVars) {
+                code.loadThis();
+                code.pushString(varName);
+                Class<?> returnType;
+                if (getImageTypeName(varName).length() > 0) {
+                    code.pushInt(imageDataTypes.get(varName));
+                    returnType = invokeThis("registerImageVar", String.class, int.class);
+                } else {
+                    returnType = invokeThis("registerImageVar", String.class);
+                }
+                discard(returnType);
+            }
+        }
+        
+        code.insn(CodeBuilder.RETURN, 0);
+        endMethod(CodeBuilder.ACC_PUBLIC, "<init>", "()V");
+    }
+    
+    /**
+     * Starts a new method.
+     * 
+     * @param numParamSlots slots used by {@code this} and parameters
+     * @param xSlot slot of the X ordinate parameter or -1 if none
+     * @param ySlot slot of the Y ordinate parameter or -1 if none
+     */
+    private void startMethod(int numParamSlots, int xSlot, int ySlot) {
+        code = new CodeBuilder(classFile, numParamSlots);
+        this.xSlot = xSlot;
+        this.ySlot = ySlot;
+        scopes.clear();
+        breakLabels.clear();
+        pushScope();
+    }
+    
+    private void endMethod(short access, String name, String methodMD) {
+        code.addMethod(access, name, methodMD);
+        code = null;
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Statements
+    
+    private void statement(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.BLOCK:
+                pushScope();
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    statement(child(node, i));
+                }
+                popScope();
+                break;
+                
+            case JiffleParser.IMAGE_WRITE:
+                imageWrite(node);
+                break;
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                assignment(node);
+                break;
+                
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+                conditionalLoop(node);
+                break;
+                
+            case JiffleParser.FOREACH:
+                foreachLoop(node);
+                break;
+                
+            case JiffleParser.BREAKIF:
+                // if (_FN.sign(cond) == 1) break;
+                sign(child(node, 0));
+                code.pushDouble(1);
+                code.insn(CodeBuilder.DCMPL, -3);
+                code.jump(CodeBuilder.IFEQ, getBreakLabel(node));
+                break;
+                
+            case JiffleParser.BREAK:
+                code.jump(CodeBuilder.GOTO, getBreakLabel(node));
+                break;
+                
+            case JiffleParser.IF:
+                ifStatement(node);
+                break;
+                
+            case JiffleParser.APPEND:
+                // list.add(value)
+                loadLocal(child(node, 0), Kind.OBJECT);
+                boxedExpression(child(node, 1));
+                code.invoke(CodeBuilder.INVOKEINTERFACE, LIST_FD, "add", "(" + OBJECT_FD + ")Z");
+                code.insn(CodeBuilder.POP, -1);
+                break;
+                
+            default:
+                Kind kind = expression(node);
+                code.insn(kind == Kind.DOUBLE ? CodeBuilder.POP2 : CodeBuilder.POP, -kind.size());
+        }
+    }
+    
+    private void imageWrite(CommonTree node) throws JiffleException {
+        String varName = child(node, 0).getText();
+        
+        if (model == Jiffle.RuntimeModel.DIRECT) {
+            code.loadThis();
+            code.pushInt(getImageSlot(varName));
+            loadX(node);
+            loadY(node);
+            code.pushInt(0);
+            doubleExpression(child(node, 1));
+            invokeThis("write" + getImageTypeName(varName) + "ToImage", 
+                    int.class, double.class, double.class, int.class, double.class);
+            
+        } else {
+            // the indirect runtime returns the destination value
+            doubleExpression(child(node, 1));
+            code.insn(CodeBuilder.DRETURN, -2);
+        }
+    }
+    
+    private void assignment(CommonTree node) throws JiffleException {
+        CommonTree target = child(node, 0);
+        CommonTree expr = child(node, 1);
+        int arithOp = node.getType() == JiffleParser.EQ ? 0 : compoundOpcode(node);
+        String varName = target.getText();
+        
+        switch (target.getType()) {
+            case JiffleParser.VAR_LIST: {
+                if (arithOp != 0) {
+                    throw unsupported(node);
+                }
+                Local local = findLocal(varName);
+                if (local == null || local.kind != Kind.OBJECT) {
+                    local = declareLocal(varName, Kind.OBJECT);
+                }
+                listExpression(expr);
+                code.store(Kind.OBJECT, local.slot);
+                break;
+            }
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                imageScopeVarsWritten = true;
+                loadImageScopeVarArray(target);
+                if (arithOp != 0) {
+                    code.insn(CodeBuilder.DUP2, 2);
+                    code.insn(CodeBuilder.DALOAD, 0);
+                    doubleExpression(expr);
+                    code.insn(arithOp, -2);
+                } else {
+                    doubleExpression(expr);
+                }
+                code.insn(CodeBuilder.DASTORE, -4);
+                break;
+                
+            case JiffleParser.VAR_PIXEL_SCOPE: {
+                Local local = findLocal(varName);
+                if (local == null) {
+                    if (arithOp != 0) {
+                        throw unsupported(node);
+                    }
+                    local = declareLocal(varName, Kind.DOUBLE);
+                } else if (local.kind != Kind.DOUBLE) {
+                    throw unsupported(node);
+                }
+                
+                if (arithOp != 0) {
+                    code.load(Kind.DOUBLE, local.slot);
+                    doubleExpression(expr);
+                    code.insn(arithOp, -2);
+                } else {
+                    doubleExpression(expr);
+                }
+                code.store(Kind.DOUBLE, local.slot);
+                break;
+            }
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private int compoundOpcode(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.TIMESEQ: return CodeBuilder.DMUL;
+            case JiffleParser.DIVEQ: return CodeBuilder.DDIV;
+            case JiffleParser.MODEQ: return CodeBuilder.DREM;
+            case JiffleParser.PLUSEQ: return CodeBuilder.DADD;
+            case JiffleParser.MINUSEQ: return CodeBuilder.DSUB;
+            default: throw unsupported(node);
+        }
+    }
+    
+    private void conditionalLoop(CommonTree node) throws JiffleException {
+        // while: exit unless sign(cond) == 1; until: exit if sign(cond) == 1
+        Label top = code.newLabel();
+        Label exit = code.newLabel();
+        
+        code.mark(top);
+        sign(child(node, 0));
+        code.pushDouble(1);
+        code.insn(CodeBuilder.DCMPL, -3);
+        code.jump(node.getType() == JiffleParser.WHILE ? 
+                CodeBuilder.IFNE : CodeBuilder.IFEQ, exit);
+        
+        breakLabels.add(exit);
+        statement(child(node, 1));
+        breakLabels.remove(breakLabels.size() - 1);
+        
+        code.jump(CodeBuilder.GOTO, top);
+        code.mark(exit);
+    }
+    
+    private void foreachLoop(CommonTree node) throws JiffleException {
+        pushScope();
+        
+        String varName = child(node, 0).getText();
+        CommonTree set = child(node, 1);
+        CommonTree stmt = child(node, 2);
+        
+        Label top = code.newLabel();
+        Label exit = code.newLabel();
+        
+        switch (set.getType()) {
+            case JiffleParser.SEQUENCE: {
+                // for (int var = (int) lo; var <= (int) hi; var++)
+                int hi = code.newLocal(Kind.INT);
+                Local var = declareLocal(varName, Kind.INT);
+                
+                doubleExpression(child(set, 0));
+                code.insn(CodeBuilder.D2I, -1);
+                code.store(Kind.INT, var.slot);
+                doubleExpression(child(set, 1));
+                code.insn(CodeBuilder.D2I, -1);
+                code.store(Kind.INT, hi);
+                
+                code.mark(top);
+                code.load(Kind.INT, var.slot);
+                code.load(Kind.INT, hi);
+                code.jump(CodeBuilder.IF_ICMPGT, exit);
+                loopBody(stmt, exit);
+                code.iinc(var.slot, 1);
+                break;
+            }
+                
+            case JiffleParser.DECLARED_LIST: {
+                // values are evaluated into an array before the loop
+                CommonTree exprList = child(set, 0);
+                int n = exprList.getChildCount();
+                int array = code.newLocal(Kind.OBJECT);
+                int index = code.newLocal(Kind.INT);
+                
+                code.pushInt(n);
+                code.newDoubleArray();
+                code.store(Kind.OBJECT, array);
+                for (int i = 0; i < n; i++) {
+                    code.load(Kind.OBJECT, array);
+                    code.pushInt(i);
+                    doubleExpression(child(exprList, i));
+                    code.insn(CodeBuilder.DASTORE, -4);
+                }
+                
+                Local var = declareLocal(varName, Kind.DOUBLE);
+                code.mark(top);
+                code.load(Kind.INT, index);
+                code.load(Kind.OBJECT, array);
+                code.insn(CodeBuilder.ARRAYLENGTH, 0);
+                code.jump(CodeBuilder.IF_ICMPGE, exit);
+                code.load(Kind.OBJECT, array);
+                code.load(Kind.INT, index);
+                code.insn(CodeBuilder.DALOAD, 0);
+                code.store(Kind.DOUBLE, var.slot);
+                loopBody(stmt, exit);
+                code.iinc(index, 1);
+                break;
+            }
+                
+            case JiffleParser.VAR_LIST: {
+                int iter = code.newLocal(Kind.OBJECT);
+                loadLocal(set, Kind.OBJECT);
+                code.invoke(CodeBuilder.INVOKEINTERFACE, LIST_FD, "iterator", "()" + ITERATOR_FD);
+                code.store(Kind.OBJECT, iter);
+                
+                Local var = declareLocal(varName, Kind.DOUBLE);
+                code.mark(top);
+                code.load(Kind.OBJECT, iter);
+                code.invoke(CodeBuilder.INVOKEINTERFACE, ITERATOR_FD, "hasNext", "()Z");
+                code.jump(CodeBuilder.IFEQ, exit);
+                code.load(Kind.OBJECT, iter);
+                code.invoke(CodeBuilder.INVOKEINTERFACE, ITERATOR_FD, "next", "()" + OBJECT_FD);
+                code.typeInsn(CodeBuilder.CHECKCAST, NUMBER_FD);
+                code.invoke(CodeBuilder.INVOKEVIRTUAL, NUMBER_FD, "doubleValue", "()D");
+                code.store(Kind.DOUBLE, var.slot);
+                loopBody(stmt, exit);
+                break;
+            }
+                
+            default:
+                throw unsupported(set);
+        }
+        
+        code.jump(CodeBuilder.GOTO, top);
+        code.mark(exit);
+        popScope();
+    }
+    
+    private void loopBody(CommonTree stmt, Label exit) throws JiffleException {
+        breakLabels.add(exit);
+        statement(stmt);
+        breakLabels.remove(breakLabels.size() - 1);
+    }
+    
+    private Label getBreakLabel(CommonTree node) throws JiffleException {
+        if (breakLabels.isEmpty()) {
+            throw unsupported(node);
+        }
+        return breakLabels.get(breakLabels.size() - 1);
+    }
+    
+    private void ifStatement(CommonTree node) throws JiffleException {
+        // if (!Double.isNaN(_sign = _FN.sign(cond)) && _sign != 0) s1 else s2
+        Label nan = code.newLabel();
+        Label alt = code.newLabel();
+        Label end = code.newLabel();
+        
+        sign(child(node, 0));
+        jumpIfNaN(nan);
+        code.pushDouble(0);
+        code.insn(CodeBuilder.DCMPL, -3);
+        code.jump(CodeBuilder.IFEQ, alt);
+        
+        statement(child(node, 1));
+        code.jump(CodeBuilder.GOTO, end);
+        
+        code.mark(nan);
+        code.setStackDepth(2);
+        code.insn(CodeBuilder.POP2, -2);
+        
+        code.mark(alt);
+        if (node.getChildCount() > 2) {
+            statement(child(node, 2));
+        }
+        code.mark(end);
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Expressions
+    
+    /**
+     * Generates code for an expression which leaves its value on the
+     * operand stack.
+     * 
+     * @param node expression node
+     * @return the kind of value: {@code DOUBLE} or {@code OBJECT} (a list)
+     * 
+     * @throws JiffleException if the expression is not supported
+     */
+    private Kind expression(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.FUNC_CALL:
+                return functionCall(node);
+                
+            case JiffleParser.CON_CALL:
+                conCall(node);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.IMAGE_POS:
+                imagePos(node);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.VAR_SOURCE:
+                readImage(node, null, null);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.POW:
+                doubleExpression(child(node, 0));
+                doubleExpression(child(node, 1));
+                code.invoke(CodeBuilder.INVOKESTATIC, MATH_FD, "pow", "(DD)D");
+                return Kind.DOUBLE;
+                
+            case JiffleParser.OR:
+                return callFunction(node, "OR", node.getChildren());
+            case JiffleParser.XOR:
+                return callFunction(node, "XOR", node.getChildren());
+            case JiffleParser.AND:
+                return callFunction(node, "AND", node.getChildren());
+            case JiffleParser.LOGICALEQ:
+                return callFunction(node, "EQ", node.getChildren());
+            case JiffleParser.NE:
+                return callFunction(node, "NE", node.getChildren());
+            case JiffleParser.GT:
+                return callFunction(node, "GT", node.getChildren());
+            case JiffleParser.GE:
+                return callFunction(node, "GE", node.getChildren());
+            case JiffleParser.LT:
+                return callFunction(node, "LT", node.getChildren());
+            case JiffleParser.LE:
+                return callFunction(node, "LE", node.getChildren());
+                
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                if (node.getChildCount() != 2) {
+                    throw unsupported(node);
+                }
+                doubleExpression(child(node, 0));
+                doubleExpression(child(node, 1));
+                code.insn(arithmeticOpcode(node), -2);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.PREFIX:
+                prefix(node);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.POSTFIX:
+                increment(child(node, 1), child(node, 0), false);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.PAR:
+                return expression(child(node, 0));
+                
+            case JiffleParser.RUN_INVARIANT:
+                runInvariants.add(node);
+                code.loadThis();
+                code.field(CodeBuilder.GETFIELD, thisFD, "_run" + (runInvariants.size() - 1), DOUBLE_FD);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.ROW_INVARIANT:
+                rowInvariants.add(node);
+                code.loadThis();
+                code.field(CodeBuilder.GETFIELD, thisFD, "_row" + (rowInvariants.size() - 1), DOUBLE_FD);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.DECLARED_LIST:
+                listLiteral(node);
+                return Kind.OBJECT;
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                loadImageScopeVarArray(node);
+                code.insn(CodeBuilder.DALOAD, 0);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+                loadLocal(node, Kind.DOUBLE);
+                return Kind.DOUBLE;
+                
+            case JiffleParser.VAR_LOOP: {
+                Local local = getLocal(node);
+                code.load(local.kind, local.slot);
+                if (local.kind == Kind.INT) {
+                    code.insn(CodeBuilder.I2D, 1);
+                }
+                return Kind.DOUBLE;
+            }
+                
+            case JiffleParser.VAR_LIST:
+                loadLocal(node, Kind.OBJECT);
+                return Kind.OBJECT;
+                
+            case JiffleParser.VAR_PROVIDED:
+                return proxy(node, node.getText());
+                
+            case JiffleParser.CONSTANT:
+                code.pushDouble(ConstantLookup.getValue(node.getText()));
+                return Kind.DOUBLE;
+                
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                code.pushDouble(Double.parseDouble(node.getText()));
+                return Kind.DOUBLE;
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private void doubleExpression(CommonTree node) throws JiffleException {
+        if (expression(node) != Kind.DOUBLE) {
+            throw unsupported(node);
+        }
+    }
+    
+    private void listExpression(CommonTree node) throws JiffleException {
+        if (expression(node) != Kind.OBJECT) {
+            throw unsupported(node);
+        }
+    }
+    
+    private void boxedExpression(CommonTree node) throws JiffleException {
+        if (expression(node) == Kind.DOUBLE) {
+            code.invoke(CodeBuilder.INVOKESTATIC, BOXED_DOUBLE_FD, "valueOf", BOX_MD);
+        }
+    }
+    
+    private int arithmeticOpcode(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.TIMES: return CodeBuilder.DMUL;
+            case JiffleParser.DIV: return CodeBuilder.DDIV;
+            case JiffleParser.MOD: return CodeBuilder.DREM;
+            case JiffleParser.PLUS: return CodeBuilder.DADD;
+            case JiffleParser.MINUS: return CodeBuilder.DSUB;
+            default: throw unsupported(node);
+        }
+    }
+    
+    private void prefix(CommonTree node) throws JiffleException {
+        CommonTree op = child(node, 0);
+        CommonTree expr = child(node, 1);
+        
+        switch (op.getType()) {
+            case JiffleParser.NOT:
+                callFunction(node, "NOT", node.getChildren().subList(1, 2));
+                break;
+                
+            case JiffleParser.PLUS:
+                doubleExpression(expr);
+                break;
+                
+            case JiffleParser.MINUS:
+                doubleExpression(expr);
+                code.insn(CodeBuilder.DNEG, 0);
+                break;
+                
+            case JiffleParser.INCR:
+            case JiffleParser.DECR:
+                increment(expr, op, true);
+                break;
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    /**
+     * Generates code for a prefix or postfix increment or decrement 
+     * which leaves the value of the expression on the stack.
+     */
+    private void increment(CommonTree target, CommonTree op, boolean isPrefix) 
+            throws JiffleException {
+        
+        int arithOp;
+        switch (op.getType()) {
+            case JiffleParser.INCR: arithOp = CodeBuilder.DADD; break;
+            case JiffleParser.DECR: arithOp = CodeBuilder.DSUB; break;
+            default: throw unsupported(op);
+        }
+        
+        switch (target.getType()) {
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                imageScopeVarsWritten = true;
+                loadImageScopeVarArray(target);
+                code.insn(CodeBuilder.DUP2, 2);
+                code.insn(CodeBuilder.DALOAD, 0);
+                if (isPrefix) {
+                    code.pushDouble(1);
+                    code.insn(arithOp, -2);
+                    code.insn(CodeBuilder.DUP2_X2, 2);
+                } else {
+                    code.insn(CodeBuilder.DUP2_X2, 2);
+                    code.pushDouble(1);
+                    code.insn(arithOp, -2);
+                }
+                code.insn(CodeBuilder.DASTORE, -4);
+                break;
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+            case JiffleParser.VAR_LOOP: {
+                Local local = getLocal(target);
+                if (local.kind == Kind.INT) {
+                    int inc = arithOp == CodeBuilder.DADD ? 1 : -1;
+                    if (isPrefix) {
+                        code.iinc(local.slot, inc);
+                        code.load(Kind.INT, local.slot);
+                    } else {
+                        code.load(Kind.INT, local.slot);
+                        code.iinc(local.slot, inc);
+                    }
+                    code.insn(CodeBuilder.I2D, 1);
+                    
+                } else if (local.kind == Kind.DOUBLE) {
+                    code.load(Kind.DOUBLE, local.slot);
+                    if (isPrefix) {
+                        code.pushDouble(1);
+                        code.insn(arithOp, -2);
+                        code.insn(CodeBuilder.DUP2, 2);
+                    } else {
+                        code.insn(CodeBuilder.DUP2, 2);
+                        code.pushDouble(1);
+                        code.insn(arithOp, -2);
+                    }
+                    code.store(Kind.DOUBLE, local.slot);
+                    
+                } else {
+                    throw unsupported(target);
+                }
+                break;
+            }
+                
+            default:
+                throw unsupported(target);
+        }
+    }
+    
+    /**
+     * Generates code for a con function call. The condition is evaluated
+     * once and only the selected alternative is evaluated.
+     */
+    private void conCall(CommonTree node) throws JiffleException {
+        CommonTree args = child(node, 0);
+        int n = args.getChildCount();
+        if (n < 1 || n > 4) {
+            throw unsupported(node);
+        }
+        
+        Label nan = code.newLabel();
+        Label end = code.newLabel();
+        
+        sign(child(args, 0));
+        int depth = code.getStackDepth();
+        jumpIfNaN(nan);
+        
+        if (n < 4) {
+            // sign != 0 ? (n == 1 ? 1 : arg1) : (n < 3 ? 0 : arg2)
+            Label isZero = code.newLabel();
+            code.pushDouble(0);
+            code.insn(CodeBuilder.DCMPL, -3);
+            code.jump(CodeBuilder.IFEQ, isZero);
+            
+            if (n == 1) {
+                code.pushDouble(1);
+            } else {
+                doubleExpression(child(args, 1));
+            }
+            code.jump(CodeBuilder.GOTO, end);
+            
+            code.mark(isZero);
+            code.setStackDepth(depth - 2);
+            if (n < 3) {
+                code.pushDouble(0);
+            } else {
+                doubleExpression(child(args, 2));
+            }
+            code.jump(CodeBuilder.GOTO, end);
+            
+        } else {
+            // sign == 1 ? arg1 : (sign == 0 ? arg2 : arg3)
+            Label notOne = code.newLabel();
+            Label negative = code.newLabel();
+            
+            code.insn(CodeBuilder.DUP2, 2);
+            code.pushDouble(1);
+            code.insn(CodeBuilder.DCMPL, -3);
+            code.jump(CodeBuilder.IFNE, notOne);
+            code.insn(CodeBuilder.POP2, -2);
+            doubleExpression(child(args, 1));
+            code.jump(CodeBuilder.GOTO, end);
+            
+            code.mark(notOne);
+            code.setStackDepth(depth);
+            code.pushDouble(0);
+            code.insn(CodeBuilder.DCMPL, -3);
+            code.jump(CodeBuilder.IFNE, negative);
+            doubleExpression(child(args, 2));
+            code.jump(CodeBuilder.GOTO, end);
+            
+            code.mark(negative);
+            code.setStackDepth(depth - 2);
+            doubleExpression(child(args, 3));
+            code.jump(CodeBuilder.GOTO, end);
+        }
+        
+        code.mark(nan);
+        code.setStackDepth(depth);
+        code.insn(CodeBuilder.POP2, -2);
+        code.pushDouble(Double.NaN);
+        
+        code.mark(end);
+        code.setStackDepth(depth);
+    }
+    
+    /**
+     * Generates a call to {@code _FN.sign(expr)}.
+     */
+    private void sign(CommonTree expr) throws JiffleException {
+        code.loadThis();
+        code.field(CodeBuilder.GETFIELD, thisFD, "_FN", FUNCTIONS_FD);
+        doubleExpression(expr);
+        code.invoke(CodeBuilder.INVOKEVIRTUAL, FUNCTIONS_FD, "sign", "(D)D");
+    }
+    
+    /**
+     * Branches if the double value on top of the stack is NaN, leaving
+     * the value on the stack.
+     */
+    private void jumpIfNaN(Label target) {
+        code.insn(CodeBuilder.DUP2, 2);
+        code.insn(CodeBuilder.DUP2, 2);
+        code.insn(CodeBuilder.DCMPL, -3);
+        code.jump(CodeBuilder.IFNE, target);
+    }
+    
+    private Kind functionCall(CommonTree node) throws JiffleException {
+        String name = child(node, 0).getText();
+        List<?> args = child(node, 1).getChildren();
+        if (args == null) {
+            args = CollectionFactory.list();
+        }
+        return callFunction(node, name, args);
+    }
+    
+    /**
+     * Generates a call to a function defined in {@link FunctionLookup}.
+     */
+    private Kind callFunction(CommonTree node, String name, List<?> args) 
+            throws JiffleException {
+        
+        List<String> argTypes = CollectionFactory.list();
+        Class<?>[] paramTypes = new Class<?>[args.size()];
+        for (int i = 0; i < args.size(); i++) {
+            int type = ((Tree) args.get(i)).getType();
+            if (type == JiffleParser.VAR_LIST || type == JiffleParser.DECLARED_LIST) {
+                argTypes.add("List");
+                paramTypes[i] = List.class;
+            } else {
+                argTypes.add("D");
+                paramTypes[i] = double.class;
+            }
+        }
+        
+        FunctionInfo info;
+        try {
+            info = FunctionLookup.getInfo(name, argTypes);
+        } catch (UndefinedFunctionException ex) {
+            throw new JiffleException(ex);
+        }
+        
+        Method method;
+        String ownerFD;
+        int opcode;
+        try {
+            switch (info.getProvider()) {
+                case MATH:
+                    method = Math.class.getMethod(info.getRuntimeName(), paramTypes);
+                    ownerFD = MATH_FD;
+                    opcode = CodeBuilder.INVOKESTATIC;
+                    break;
+                    
+                case JIFFLE:
+                    method = JiffleFunctions.class.getMethod(info.getRuntimeName(), paramTypes);
+                    ownerFD = FUNCTIONS_FD;
+                    opcode = CodeBuilder.INVOKEVIRTUAL;
+                    code.loadThis();
+                    code.field(CodeBuilder.GETFIELD, thisFD, "_FN", FUNCTIONS_FD);
+                    break;
+                    
+                case PROXY:
+                    return proxy(node, info.getRuntimeName());
+                    
+                default:
+                    throw unsupported(node);
+            }
+        } catch (NoSuchMethodException ex) {
+            throw unsupported(node);
+        }
+        
+        for (int i = 0; i < args.size(); i++) {
+            CommonTree arg = (CommonTree) args.get(i);
+            if (paramTypes[i] == List.class) {
+                listExpression(arg);
+            } else {
+                doubleExpression(arg);
+            }
+        }
+        
+        code.invoke(opcode, ownerFD, method.getName(), md(method));
+        return toStackValue(node, method.getReturnType());
+    }
+    
+    /**
+     * Generates code for a proxy function such as {@code x()} or 
+     * {@code width()}. The runtime expression is the one used in 
+     * generated source: e.g. {@code (double)_x} or {@code getXRes()}.
+     */
+    private Kind proxy(CommonTree node, String runtimeExpr) throws JiffleException {
+        String s = runtimeExpr.trim();
+        if (s.startsWith("(double)")) {
+            s = s.substring("(double)".length()).trim();
+        }
+        
+        if ("_x".equals(s)) {
+            loadX(node);
+            return Kind.DOUBLE;
+            
+        } else if ("_y".equals(s)) {
+            loadY(node);
+            return Kind.DOUBLE;
+            
+        } else if (s.endsWith("()")) {
+            code.loadThis();
+            Class<?> returnType = invokeThis(s.substring(0, s.length() - 2));
+            return toStackValue(node, returnType);
+        }
+        
+        throw unsupported(node);
+    }
+    
+    /**
+     * Converts the value returned by a method call to a double, or leaves
+     * it as is if it is a list.
+     */
+    private Kind toStackValue(CommonTree node, Class<?> type) throws JiffleException {
+        if (type == double.class) {
+            return Kind.DOUBLE;
+        } else if (type == long.class) {
+            code.insn(CodeBuilder.L2D, 0);
+            return Kind.DOUBLE;
+        } else if (type == int.class) {
+            code.insn(CodeBuilder.I2D, 1);
+            return Kind.DOUBLE;
+        } else if (List.class.isAssignableFrom(type)) {
+            return Kind.OBJECT;
+        }
+        throw unsupported(node);
+    }
+    
+    private void imagePos(CommonTree node) throws JiffleException {
+        CommonTree band = null;
+        CommonTree pixel = null;
+        for (int i = 1; i < node.getChildCount(); i++) {
+            CommonTree spec = child(node, i);
+            if (spec.getType() == JiffleParser.BAND_REF) {
+                band = child(spec, 0);
+            } else if (spec.getType() == JiffleParser.PIXEL_REF) {
+                pixel = spec;
+            } else {
+                throw unsupported(spec);
+            }
+        }
+        readImage(child(node, 0), pixel, band);
+    }
+    
+    private void readImage(CommonTree varNode, CommonTree pixel, CommonTree band) 
+            throws JiffleException {
+        
+        String varName = varNode.getText();
+        code.loadThis();
+        if (model == Jiffle.RuntimeModel.DIRECT) {
+            code.pushInt(getImageSlot(varName));
+        } else {
+            code.pushString(varName);
+        }
+        
+        if (pixel != null) {
+            pixelPos(child(pixel, 0), true);
+            pixelPos(child(pixel, 1), false);
+        } else {
+            loadX(varNode);
+            loadY(varNode);
+        }
+        
+        if (band != null) {
+            doubleExpression(band);
+            code.insn(CodeBuilder.D2I, -1);
+        } else {
+            code.pushInt(0);
+        }
+        
+        if (model == Jiffle.RuntimeModel.DIRECT) {
+            invokeThis("read" + getImageTypeName(varName) + "FromImage", 
+                    int.class, double.class, double.class, int.class);
+        } else {
+            invokeThis("readFromImage", 
+                    String.class, double.class, double.class, int.class);
+        }
+    }
+    
+    private void pixelPos(CommonTree node, boolean isX) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.ABS_POS:
+                doubleExpression(child(node, 0));
+                break;
+                
+            case JiffleParser.REL_POS:
+                if (isX) {
+                    loadX(node);
+                } else {
+                    loadY(node);
+                }
+                doubleExpression(child(node, 0));
+                code.insn(CodeBuilder.DADD, -2);
+                break;
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private void listLiteral(CommonTree node) throws JiffleException {
+        // new ArrayList(Arrays.asList(new Object[]{...})) or new ArrayList()
+        CommonTree exprList = child(node, 0);
+        int n = exprList.getChildCount();
+        
+        code.typeInsn(CodeBuilder.NEW, ARRAYLIST_FD);
+        code.insn(CodeBuilder.DUP, 1);
+        
+        if (n == 0) {
+            code.invoke(CodeBuilder.INVOKESPECIAL, ARRAYLIST_FD, "<init>", "()V");
+            
+        } else {
+            code.pushInt(n);
+            code.typeInsn(CodeBuilder.ANEWARRAY, OBJECT_FD);
+            for (int i = 0; i < n; i++) {
+                code.insn(CodeBuilder.DUP, 1);
+                code.pushInt(i);
+                boxedExpression(child(exprList, i));
+                code.insn(CodeBuilder.AASTORE, -3);
+            }
+            code.invoke(CodeBuilder.INVOKESTATIC, "Ljava/util/Arrays;", "asList", 
+                    "([" + OBJECT_FD + ")" + LIST_FD);
+            code.invoke(CodeBuilder.INVOKESPECIAL, ARRAYLIST_FD, "<init>", 
+                    "(Ljava/util/Collection;)V");
+        }
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Variables
+    
+    private void loadX(CommonTree node) throws JiffleException {
+        if (xSlot < 0) {
+            throw unsupported(node);
+        }
+        code.load(Kind.DOUBLE, xSlot);
+    }
+    
+    private void loadY(CommonTree node) throws JiffleException {
+        if (ySlot < 0) {
+            throw unsupported(node);
+        }
+        code.load(Kind.DOUBLE, ySlot);
+    }
+    
+    /**
+     * Pushes the {@code _vals} array and the index of an image-scope 
+     * variable.
+     */
+    private void loadImageScopeVarArray(CommonTree node) throws JiffleException {
+        int index = -1;
+        for (int i = 0; i < imageScopeVars.size() && index < 0; i++) {
+            if (child(imageScopeVars.get(i), 0).getText().equals(node.getText())) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            throw unsupported(node);
+        }
+        
+        code.loadThis();
+        code.field(CodeBuilder.GETFIELD, thisFD, "_vals", "[D");
+        code.pushInt(index);
+    }
+    
+    private void pushScope() {
+        Map<String, Local> scope = CollectionFactory.map();
+        scopes.add(scope);
+    }
+    
+    private void popScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+    
+    private Local declareLocal(String name, Kind kind) {
+        Local local = new Local(code.newLocal(kind), kind);
+        scopes.get(scopes.size() - 1).put(name, local);
+        return local;
+    }
+    
+    private Local findLocal(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+    
+    private Local getLocal(CommonTree node) throws JiffleException {
+        Local local = findLocal(node.getText());
+        if (local == null) {
+            throw unsupported(node);
+        }
+        return local;
+    }
+    
+    private void loadLocal(CommonTree node, Kind kind) throws JiffleException {
+        Local local = getLocal(node);
+        if (local.kind != kind) {
+            throw unsupported(node);
+        }
+        code.load(kind, local.slot);
+    }
+    
+    /**
+     * Gets the slot for an image variable, allocating a new one if this
+     * is the first reference to the image.
+     */
+    private int getImageSlot(String varName) {
+        int index = imageVars.indexOf(varName);
+        if (index < 0) {
+            imageVars.add(varName);
+            index = imageVars.size() - 1;
+        }
+        return index;
+    }
+    
+    /**
+     * Gets the name of the data type of an image, as used in the names
+     * of type-specialized read and write methods (e.g. "Byte"), or an
+     * empty string if the type is not known.
+     */
+    private String getImageTypeName(String varName) {
+        Integer dataType = imageDataTypes.get(varName);
+        if (dataType != null) {
+            switch (dataType) {
+                case DataBuffer.TYPE_BYTE: return "Byte";
+                case DataBuffer.TYPE_USHORT: return "UShort";
+                case DataBuffer.TYPE_SHORT: return "Short";
+                case DataBuffer.TYPE_INT: return "Int";
+                case DataBuffer.TYPE_FLOAT: return "Float";
+                case DataBuffer.TYPE_DOUBLE: return "Double";
+            }
+        }
+        return "";
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Helpers
+    
+    /**
+     * Invokes a method of the runtime class on {@code this}, which must
+     * already have been pushed with any arguments. The method is looked
+     * up in the base class to check that it exists.
+     * 
+     * @return the method's return type
+     */
+    private Class<?> invokeThis(String name, Class<?> ...paramTypes) throws JiffleException {
+        for (Class<?> c = baseClass; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(name, paramTypes);
+                if (Modifier.isPrivate(method.getModifiers())) {
+                    break;
+                }
+                code.invoke(CodeBuilder.INVOKEVIRTUAL, thisFD, name, md(method));
+                return method.getReturnType();
+                
+            } catch (NoSuchMethodException ex) {
+                // try the superclass
+            }
+        }
+        
+        throw new JiffleException("Base class " + baseClass.getName() + 
+                " has no accessible method " + name);
+    }
+    
+    private void discard(Class<?> type) {
+        if (type == double.class || type == long.class) {
+            code.insn(CodeBuilder.POP2, -2);
+        } else if (type != void.class) {
+            code.insn(CodeBuilder.POP, -1);
+        }
+    }
+    
+    private static CommonTree child(CommonTree node, int index) {
+        return (CommonTree) node.getChild(index);
+    }
+    
+    private JiffleException unsupported(CommonTree node) {
+        return new JiffleException("Bytecode generation does not support " + 
+                JiffleParser.tokenNames[node.getType()] + " (" + node.getText() + 
+                ") at line " + node.getLine());
+    }
+    
+    private static String md(Method method) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> c : method.getParameterTypes()) {
+            sb.append(fd(c));
+        }
+        sb.append(')').append(fd(method.getReturnType()));
+        return sb.toString();
+    }
+    
+    private static String fd(Class<?> c) {
+        if (c.isArray()) return "[" + fd(c.getComponentType());
+        if (c == double.class) return "D";
+        if (c == int.class) return "I";
+        if (c == long.class) return "J";
+        if (c == boolean.class) return "Z";
+        if (c == void.class) return "V";
+        if (c == float.class) return "F";
+        if (c == short.class) return "S";
+        if (c == byte.class) return "B";
+        if (c == char.class) return "C";
+        return "L" + c.getName().replace('.', '/') + ";";
+    }
+}
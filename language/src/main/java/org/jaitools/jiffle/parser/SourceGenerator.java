@@ -25,6 +25,8 @@
 
 package org.jaitools.jiffle.parser;
 
+import java.util.Map;
+
 import org.jaitools.jiffle.Jiffle;
 import org.jaitools.jiffle.JiffleException;
 
@@ -45,12 +47,43 @@ public interface SourceGenerator {
      */
     void setRuntimeModel(Jiffle.RuntimeModel model);
     
+    /**
+     * Sets the package and simple name of the runtime class. If not set,
+     * or if {@code null} values are passed, the default names for the
+     * runtime model are used. This method should be called after
+     * {@link #setRuntimeModel(Jiffle.RuntimeModel)}.
+     * 
+     * @param packageName package name
+     * @param className simple class name
+     */
+    void setClassName(String packageName, String className);
+    
     /**
      * Sets the runtime base class name.
      * 
      * @param baseClassName base class name
      */
     void setBaseClassName(String baseClassName);
+    
+    /**
+     * Sets the data types of images. When the data type of an image 
+     * is known, the generator can produce code specialized for it. Data types
+     * are specified with the {@code java.awt.image.DataBuffer} constants.
+     * Images not included in {@code dataTypes} are treated generically.
+     * 
+     * @param dataTypes a {@code Map} of image variable name to data type;
+     *        may be {@code null} or empty
+     */
+    void setImageDataTypes(Map<String, Integer> dataTypes);
+    
+    /**
+     * Sets whether the generated source is instrumented for profiling, 
+     * with a timed probe around each top-level statement and loop body.
+     * The default is {@code false}.
+     * 
+     * @param profiling {@code true} to instrument the source
+     */
+    void setProfiling(boolean profiling);
 
     /**
      * Returns the source for the runtime class. The runtime model and base class
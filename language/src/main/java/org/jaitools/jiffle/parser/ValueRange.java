@@ -0,0 +1,257 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * Describes the values that an expression in a Jiffle script can take: 
+ * the interval in which finite values lie, whether they are all integers
+ * and whether the expression can be NaN (null). Used by 
+ * {@link ValueRangeAnalyzer}. Instances are immutable.
+ * <p>
+ * The bounds may be infinite. A range with {@code min > max} is empty
+ * (e.g. the range of a NaN constant).
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ValueRange {
+    
+    /** A range about which nothing is known. */
+    public static final ValueRange UNKNOWN = new ValueRange(
+            Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false, true);
+    
+    /** The range of logical values: 0 or 1 (NaN is not included). */
+    public static final ValueRange LOGICAL = new ValueRange(0, 1, true, false);
+    
+    /** A range with no values. */
+    public static final ValueRange EMPTY = new ValueRange(
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true, false);
+    
+    private final double min;
+    private final double max;
+    private final boolean integral;
+    private final boolean nan;
+
+    /**
+     * Creates a new range.
+     * 
+     * @param min minimum value
+     * @param max maximum value
+     * @param integral whether all finite values are integers
+     * @param nan whether NaN is included
+     */
+    public ValueRange(double min, double max, boolean integral, boolean nan) {
+        this.min = min;
+        this.max = max;
+        this.integral = integral;
+        this.nan = nan;
+    }
+    
+    /**
+     * Creates a range holding a single value.
+     * 
+     * @param value the value
+     * 
+     * @return the new range
+     */
+    public static ValueRange constant(double value) {
+        if (Double.isNaN(value)) {
+            return new ValueRange(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true, true);
+        }
+        return new ValueRange(value, value, value == Math.rint(value), false);
+    }
+    
+    /**
+     * Gets the range of values that can be held by an image data type.
+     * 
+     * @param dataType a {@code DataBuffer} data type constant
+     * 
+     * @return the range
+     */
+    public static ValueRange forDataType(int dataType) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return new ValueRange(0, 255, true, false);
+                
+            case DataBuffer.TYPE_USHORT:
+                return new ValueRange(0, 65535, true, false);
+                
+            case DataBuffer.TYPE_SHORT:
+                return new ValueRange(Short.MIN_VALUE, Short.MAX_VALUE, true, false);
+                
+            case DataBuffer.TYPE_INT:
+                return new ValueRange(Integer.MIN_VALUE, Integer.MAX_VALUE, true, false);
+                
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Gets the minimum value.
+     * 
+     * @return minimum value
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the maximum value.
+     * 
+     * @return maximum value
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Tests whether all finite values in this range are integers.
+     * 
+     * @return {@code true} if values are integral
+     */
+    public boolean isIntegral() {
+        return integral;
+    }
+
+    /**
+     * Tests whether NaN is included in this range.
+     * 
+     * @return {@code true} if NaN is possible
+     */
+    public boolean isNaNPossible() {
+        return nan;
+    }
+    
+    /**
+     * Tests whether this range has no numeric values. It may still
+     * include NaN.
+     * 
+     * @return {@code true} if empty
+     */
+    public boolean isEmpty() {
+        return min > max;
+    }
+    
+    /**
+     * Tests whether all values in this range lie within the given bounds.
+     * 
+     * @param lo lower bound
+     * @param hi upper bound
+     * 
+     * @return {@code true} if contained
+     */
+    public boolean within(double lo, double hi) {
+        return isEmpty() || (min >= lo && max <= hi);
+    }
+    
+    /**
+     * Tests whether the value zero lies within this range.
+     * 
+     * @return {@code true} if zero is included
+     */
+    public boolean containsZero() {
+        return min <= 0 && max >= 0;
+    }
+    
+    /**
+     * Creates a range that includes all values of this range and another.
+     * 
+     * @param other the other range
+     * 
+     * @return the union of the two ranges
+     */
+    public ValueRange union(ValueRange other) {
+        if (isEmpty()) {
+            return new ValueRange(other.min, other.max, other.integral, nan || other.nan);
+        }
+        if (other.isEmpty()) {
+            return new ValueRange(min, max, integral, nan || other.nan);
+        }
+        
+        return new ValueRange(Math.min(min, other.min), Math.max(max, other.max),
+                integral && other.integral, nan || other.nan);
+    }
+    
+    /**
+     * Creates a copy of this range with NaN optionally added.
+     * 
+     * @param withNaN whether to add NaN
+     * 
+     * @return the new range
+     */
+    public ValueRange withNaN(boolean withNaN) {
+        if (!withNaN || nan) {
+            return this;
+        }
+        return new ValueRange(min, max, integral, true);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ValueRange)) {
+            return false;
+        }
+        
+        ValueRange other = (ValueRange) obj;
+        if (isEmpty() && other.isEmpty()) {
+            return integral == other.integral && nan == other.nan;
+        }
+        return Double.compare(min, other.min) == 0 && Double.compare(max, other.max) == 0
+                && integral == other.integral && nan == other.nan;
+    }
+
+    @Override
+    public int hashCode() {
+        if (isEmpty()) {
+            return (integral ? 1 : 0) + (nan ? 2 : 0);
+        }
+        long bits = Double.doubleToLongBits(min) * 31 + Double.doubleToLongBits(max);
+        return (int) (bits ^ (bits >>> 32)) * 4 + (integral ? 1 : 0) + (nan ? 2 : 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (isEmpty()) {
+            sb.append("[]");
+        } else {
+            sb.append('[').append(min).append(", ").append(max).append(']');
+        }
+        if (integral) {
+            sb.append(" integral");
+        }
+        if (nan) {
+            sb.append(" NaN");
+        }
+        return sb.toString();
+    }
+}
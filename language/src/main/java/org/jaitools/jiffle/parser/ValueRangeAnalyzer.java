@@ -0,0 +1,664 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.util.Map;
+
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Infers the range of values written to each destination image by a
+ * compiled script. This is a simple interval analysis over the final
+ * AST produced by the compiler. Ranges are derived from literals and 
+ * constants, the data types of source images, conditional expressions,
+ * comparison and logical operators, arithmetic and a number of functions
+ * (e.g. rounding functions). Anything that cannot be analysed, such as
+ * image-scope variables (which can be set by the client) or list functions,
+ * is treated as {@link ValueRange#UNKNOWN}. Coordinate functions are 
+ * treated as having unknown, but never NaN, values.
+ * <p>
+ * Pixel-scope variables are handled without regard to flow: each variable
+ * is given the union of the ranges of all values assigned to it. Since 
+ * assignments can depend on each other this is done iteratively; variables
+ * whose ranges are still changing after a few passes are set to 
+ * {@code UNKNOWN}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ValueRangeAnalyzer {
+    
+    /* Number of passes after which changing variable ranges are widened */
+    private static final int WIDEN_AFTER_PASSES = 3;
+    
+    /* Passes after widening will always converge; this is a safety limit */
+    private static final int MAX_PASSES = 20;
+    
+    private static final ValueRange PROVIDED_RANGE = new ValueRange(
+            Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false, false);
+    
+    private final CommonTree ast;
+    private final Map<String, ValueRange> sourceRanges;
+    
+    private ValueRange outsideRange;
+    private Map<String, ValueRange> varRanges;
+    private Map<String, ValueRange> newVarRanges;
+    private Map<String, ValueRange> destRanges;
+    
+    /**
+     * Creates a new analyzer.
+     * 
+     * @param ast the final AST from the compiler
+     * @param sourceRanges value ranges of source images by variable name; 
+     *        sources not included are treated as {@code UNKNOWN}
+     */
+    public ValueRangeAnalyzer(CommonTree ast, Map<String, ValueRange> sourceRanges) {
+        this.ast = ast;
+        this.sourceRanges = CollectionFactory.map();
+        if (sourceRanges != null) {
+            this.sourceRanges.putAll(sourceRanges);
+        }
+    }
+    
+    /**
+     * Gets the inferred range of values written to each destination image.
+     * 
+     * @return a {@code Map} of destination image variable name to range
+     */
+    public Map<String, ValueRange> getDestinationRanges() {
+        if (destRanges == null) {
+            analyse();
+        }
+        
+        Map<String, ValueRange> copy = CollectionFactory.map();
+        copy.putAll(destRanges);
+        return copy;
+    }
+    
+    private void analyse() {
+        outsideRange = ValueRange.EMPTY;
+        varRanges = CollectionFactory.map();
+        
+        int pass = 0;
+        boolean changed;
+        do {
+            newVarRanges = CollectionFactory.map();
+            destRanges = CollectionFactory.map();
+            
+            walk(ast);
+            
+            changed = false;
+            for (String name : newVarRanges.keySet()) {
+                ValueRange oldRange = varRanges.get(name);
+                ValueRange newRange = newVarRanges.get(name);
+                if (oldRange != null) {
+                    newRange = newRange.union(oldRange);
+                }
+                
+                if (!newRange.equals(oldRange)) {
+                    changed = true;
+                    varRanges.put(name, 
+                            pass >= WIDEN_AFTER_PASSES ? ValueRange.UNKNOWN : newRange);
+                }
+            }
+            
+            pass++ ;
+        } while (changed && pass < MAX_PASSES);
+        
+        if (changed) {
+            // should not happen, but be safe
+            for (String name : destRanges.keySet()) {
+                destRanges.put(name, ValueRange.UNKNOWN);
+            }
+        }
+    }
+    
+    /**
+     * Walks a statement-level node (or the root node), recording 
+     * variable assignments and destination image writes.
+     */
+    private void walk(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.JIFFLE_OPTION:
+                readOption(node);
+                return;
+                
+            case JiffleParser.IMAGE_WRITE:
+                recordDest(node.getChild(0).getText(), range(node.getChild(1)));
+                return;
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                assignment(node);
+                return;
+                
+            case JiffleParser.FOREACH:
+                foreach(node);
+                return;
+                
+            case JiffleParser.DECL:
+                // image-scope variables are UNKNOWN so nothing to do
+                return;
+                
+            case JiffleParser.BLOCK:
+            case JiffleParser.IF:
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+            case JiffleParser.BREAKIF:
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    Tree child = node.getChild(i);
+                    if (isStatementNode(child)) {
+                        walk(child);
+                    } else {
+                        range(child);
+                    }
+                }
+                return;
+                
+            default:
+                if (node.isNil()) {
+                    for (int i = 0; i < node.getChildCount(); i++) {
+                        walk(node.getChild(i));
+                    }
+                } else {
+                    // expression statement
+                    range(node);
+                }
+        }
+    }
+    
+    /*
+     * Tests if a child of a compound statement node is itself a statement
+     * rather than a condition expression.
+     */
+    private boolean isStatementNode(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.IMAGE_WRITE:
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+            case JiffleParser.FOREACH:
+            case JiffleParser.BLOCK:
+            case JiffleParser.IF:
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+            case JiffleParser.BREAKIF:
+            case JiffleParser.BREAK:
+                return true;
+                
+            default:
+                return false;
+        }
+    }
+    
+    private void readOption(Tree node) {
+        if ("outside".equals(node.getChild(0).getText())) {
+            Tree value = node.getChild(1);
+            switch (value.getType()) {
+                case JiffleParser.INT_LITERAL:
+                case JiffleParser.FLOAT_LITERAL:
+                case JiffleParser.CONSTANT:
+                    outsideRange = range(value);
+                    break;
+                    
+                default:
+                    outsideRange = ValueRange.UNKNOWN;
+            }
+        }
+    }
+    
+    private void assignment(Tree node) {
+        Tree lhs = node.getChild(0);
+        if (lhs.getType() != JiffleParser.VAR_PIXEL_SCOPE) {
+            // image-scope and list vars are not tracked
+            range(node.getChild(1));
+            return;
+        }
+        
+        String name = lhs.getText();
+        ValueRange value = range(node.getChild(1));
+        
+        switch (node.getType()) {
+            case JiffleParser.TIMESEQ:
+                value = times(varRange(name), value);
+                break;
+                
+            case JiffleParser.DIVEQ:
+                value = div(varRange(name), value);
+                break;
+                
+            case JiffleParser.MODEQ:
+                value = mod(varRange(name), value);
+                break;
+                
+            case JiffleParser.PLUSEQ:
+                value = plus(varRange(name), value);
+                break;
+                
+            case JiffleParser.MINUSEQ:
+                value = plus(varRange(name), negate(value));
+                break;
+        }
+        
+        recordVar(name, value);
+    }
+    
+    private void foreach(Tree node) {
+        String name = node.getChild(0).getText();
+        Tree set = node.getChild(1);
+        
+        ValueRange value;
+        switch (set.getType()) {
+            case JiffleParser.SEQUENCE:
+                ValueRange lo = range(set.getChild(0));
+                ValueRange hi = range(set.getChild(1));
+                if (lo.isEmpty() || hi.isEmpty()) {
+                    // loop is not executed if either bound is NaN
+                    value = ValueRange.EMPTY;
+                } else {
+                    value = new ValueRange(lo.getMin(), hi.getMax(), lo.isIntegral(), false);
+                }
+                break;
+                
+            case JiffleParser.DECLARED_LIST:
+                value = ValueRange.EMPTY;
+                Tree list = set.getChild(0);
+                for (int i = 0; i < list.getChildCount(); i++) {
+                    value = value.union(range(list.getChild(i)));
+                }
+                break;
+                
+            default:
+                value = ValueRange.UNKNOWN;
+        }
+        
+        recordVar(name, value);
+        walk(node.getChild(2));
+    }
+    
+    private void recordVar(String name, ValueRange value) {
+        ValueRange prev = newVarRanges.get(name);
+        newVarRanges.put(name, prev == null ? value : prev.union(value));
+    }
+    
+    private void recordDest(String name, ValueRange value) {
+        ValueRange prev = destRanges.get(name);
+        destRanges.put(name, prev == null ? value : prev.union(value));
+    }
+    
+    private ValueRange varRange(String name) {
+        ValueRange r = varRanges.get(name);
+        return r == null ? ValueRange.EMPTY : r;
+    }
+    
+    /**
+     * Gets the range of an expression node, recording the effect of 
+     * any increment or decrement operations within it.
+     */
+    private ValueRange range(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                return ValueRange.constant(Double.parseDouble(node.getText()));
+                
+            case JiffleParser.CONSTANT:
+                return ValueRange.constant(ConstantLookup.getValue(node.getText()));
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+            case JiffleParser.VAR_LOOP:
+                return varRange(node.getText());
+                
+            case JiffleParser.VAR_SOURCE:
+                return sourceRange(node.getText());
+                
+            case JiffleParser.VAR_PROVIDED:
+                // coordinate and bounds values are never NaN
+                return PROVIDED_RANGE;
+                
+            case JiffleParser.IMAGE_POS:
+                for (int i = 1; i < node.getChildCount(); i++) {
+                    rangeOfChildren(node.getChild(i));
+                }
+                return sourceRange(node.getChild(0).getText());
+                
+            case JiffleParser.PAR:
+            case JiffleParser.RUN_INVARIANT:
+            case JiffleParser.ROW_INVARIANT:
+                return range(node.getChild(0));
+                
+            case JiffleParser.CON_CALL:
+                return con(node.getChild(0));
+                
+            case JiffleParser.FUNC_CALL:
+                return function(node.getChild(0).getText(), node.getChild(1));
+                
+            case JiffleParser.PREFIX:
+                return prefix(node);
+                
+            case JiffleParser.POSTFIX:
+                return postfix(node);
+                
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE: {
+                ValueRange x = range(node.getChild(0));
+                ValueRange y = range(node.getChild(1));
+                return ValueRange.LOGICAL.withNaN(x.isNaNPossible() || y.isNaNPossible());
+            }
+                
+            case JiffleParser.PLUS:
+                return plus(range(node.getChild(0)), range(node.getChild(1)));
+                
+            case JiffleParser.MINUS:
+                return plus(range(node.getChild(0)), negate(range(node.getChild(1))));
+                
+            case JiffleParser.TIMES:
+                return times(range(node.getChild(0)), range(node.getChild(1)));
+                
+            case JiffleParser.DIV:
+                return div(range(node.getChild(0)), range(node.getChild(1)));
+                
+            case JiffleParser.MOD:
+                return mod(range(node.getChild(0)), range(node.getChild(1)));
+                
+            case JiffleParser.POW:
+                return pow(range(node.getChild(0)), range(node.getChild(1)));
+                
+            default:
+                // image-scope, provided and list variables, list 
+                // operations and literals
+                rangeOfChildren(node);
+                return ValueRange.UNKNOWN;
+        }
+    }
+    
+    /*
+     * Visits child expressions for their side effects only.
+     */
+    private void rangeOfChildren(Tree node) {
+        for (int i = 0; i < node.getChildCount(); i++) {
+            range(node.getChild(i));
+        }
+    }
+    
+    private ValueRange sourceRange(String name) {
+        ValueRange r = sourceRanges.get(name);
+        if (r == null) {
+            r = ValueRange.UNKNOWN;
+        }
+        return r.union(outsideRange);
+    }
+    
+    private ValueRange con(Tree exprList) {
+        int n = exprList.getChildCount();
+        ValueRange cond = range(exprList.getChild(0));
+        
+        ValueRange r;
+        switch (n) {
+            case 1:
+                r = ValueRange.LOGICAL;
+                break;
+                
+            case 2:
+                r = range(exprList.getChild(1)).union(ValueRange.constant(0));
+                break;
+                
+            default:
+                r = ValueRange.EMPTY;
+                for (int i = 1; i < n; i++) {
+                    r = r.union(range(exprList.getChild(i)));
+                }
+        }
+        
+        return r.withNaN(cond.isNaNPossible());
+    }
+    
+    private ValueRange prefix(Tree node) {
+        Tree op = node.getChild(0);
+        Tree arg = node.getChild(1);
+        ValueRange x = range(arg);
+        
+        switch (op.getType()) {
+            case JiffleParser.NOT:
+                return ValueRange.LOGICAL.withNaN(x.isNaNPossible());
+                
+            case JiffleParser.MINUS:
+                return negate(x);
+                
+            case JiffleParser.INCR:
+            case JiffleParser.DECR: {
+                ValueRange value = plus(x, ValueRange.constant(
+                        op.getType() == JiffleParser.INCR ? 1 : -1));
+                if (arg.getType() == JiffleParser.VAR_PIXEL_SCOPE) {
+                    recordVar(arg.getText(), value);
+                }
+                return value;
+            }
+                
+            default:
+                return x;
+        }
+    }
+    
+    private ValueRange postfix(Tree node) {
+        Tree op = node.getChild(0);
+        Tree arg = node.getChild(1);
+        ValueRange x = range(arg);
+        
+        if (arg.getType() == JiffleParser.VAR_PIXEL_SCOPE) {
+            recordVar(arg.getText(), plus(x, ValueRange.constant(
+                    op.getType() == JiffleParser.INCR ? 1 : -1)));
+        }
+        return x;
+    }
+    
+    private ValueRange function(String name, Tree args) {
+        int n = args.getChildCount();
+        ValueRange[] x = new ValueRange[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = range(args.getChild(i));
+        }
+        
+        if (n == 1) {
+            ValueRange a = x[0];
+            if ("abs".equals(name)) {
+                return abs(a);
+                
+            } else if ("floor".equals(name)) {
+                return new ValueRange(Math.floor(a.getMin()), Math.floor(a.getMax()), 
+                        true, a.isNaNPossible());
+                
+            } else if ("round".equals(name)) {
+                // Math.round returns 0 for NaN
+                ValueRange r = new ValueRange(Math.round(a.getMin()), Math.round(a.getMax()), 
+                        true, false);
+                return a.isNaNPossible() ? r.union(ValueRange.constant(0)) : r;
+                
+            } else if ("sign".equals(name)) {
+                return new ValueRange(-1, 1, true, a.isNaNPossible());
+                
+            } else if ("isnan".equals(name) || "isnull".equals(name)) {
+                return ValueRange.LOGICAL;
+                
+            } else if ("isinf".equals(name)) {
+                return ValueRange.LOGICAL.withNaN(a.isNaNPossible());
+            }
+            
+        } else if (n == 2 && !isList(args.getChild(0)) && !isList(args.getChild(1))) {
+            if ("max".equals(name) || "min".equals(name)) {
+                ValueRange a = x[0];
+                ValueRange b = x[1];
+                boolean nan = a.isNaNPossible() || b.isNaNPossible();
+                if (a.isEmpty() || b.isEmpty()) {
+                    return ValueRange.EMPTY.withNaN(nan);
+                }
+                
+                boolean integral = a.isIntegral() && b.isIntegral();
+                if ("max".equals(name)) {
+                    return new ValueRange(Math.max(a.getMin(), b.getMin()), 
+                            Math.max(a.getMax(), b.getMax()), integral, nan);
+                } else {
+                    return new ValueRange(Math.min(a.getMin(), b.getMin()), 
+                            Math.min(a.getMax(), b.getMax()), integral, nan);
+                }
+            }
+        }
+        
+        return ValueRange.UNKNOWN;
+    }
+    
+    private boolean isList(Tree node) {
+        return node.getType() == JiffleParser.VAR_LIST 
+                || node.getType() == JiffleParser.DECLARED_LIST;
+    }
+    
+    private static ValueRange negate(ValueRange x) {
+        if (x.isEmpty()) {
+            return x;
+        }
+        return new ValueRange(-x.getMax(), -x.getMin(), x.isIntegral(), x.isNaNPossible());
+    }
+    
+    private static ValueRange abs(ValueRange x) {
+        if (x.isEmpty() || x.getMin() >= 0) {
+            return x;
+        }
+        if (x.getMax() <= 0) {
+            return negate(x);
+        }
+        return new ValueRange(0, Math.max(-x.getMin(), x.getMax()), 
+                x.isIntegral(), x.isNaNPossible());
+    }
+    
+    private static ValueRange plus(ValueRange x, ValueRange y) {
+        boolean nan = x.isNaNPossible() || y.isNaNPossible();
+        if (x.isEmpty() || y.isEmpty()) {
+            return ValueRange.EMPTY.withNaN(nan);
+        }
+        
+        // adding infinities of opposite sign gives NaN
+        nan |= isInfinite(x) && isInfinite(y);
+        return new ValueRange(x.getMin() + y.getMin(), x.getMax() + y.getMax(), 
+                x.isIntegral() && y.isIntegral(), nan);
+    }
+    
+    private static ValueRange times(ValueRange x, ValueRange y) {
+        boolean nan = x.isNaNPossible() || y.isNaNPossible();
+        if (x.isEmpty() || y.isEmpty()) {
+            return ValueRange.EMPTY.withNaN(nan);
+        }
+        
+        // zero times infinity gives NaN
+        if ((isInfinite(x) && y.containsZero()) || (isInfinite(y) && x.containsZero())) {
+            return ValueRange.UNKNOWN;
+        }
+        
+        double[] p = {
+            x.getMin() * y.getMin(), x.getMin() * y.getMax(),
+            x.getMax() * y.getMin(), x.getMax() * y.getMax()
+        };
+        return new ValueRange(min(p), max(p), x.isIntegral() && y.isIntegral(), nan);
+    }
+    
+    private static ValueRange div(ValueRange x, ValueRange y) {
+        boolean nan = x.isNaNPossible() || y.isNaNPossible();
+        if (x.isEmpty() || y.isEmpty()) {
+            return ValueRange.EMPTY.withNaN(nan);
+        }
+        
+        if (y.containsZero() || isInfinite(x) || isInfinite(y)) {
+            return ValueRange.UNKNOWN;
+        }
+        
+        double[] p = {
+            x.getMin() / y.getMin(), x.getMin() / y.getMax(),
+            x.getMax() / y.getMin(), x.getMax() / y.getMax()
+        };
+        
+        // integral only when dividing a constant by one
+        boolean integral = x.isIntegral() && y.getMin() == 1 && y.getMax() == 1;
+        return new ValueRange(min(p), max(p), integral, nan);
+    }
+    
+    private static ValueRange mod(ValueRange x, ValueRange y) {
+        boolean nan = x.isNaNPossible() || y.isNaNPossible();
+        if (x.isEmpty() || y.isEmpty()) {
+            return ValueRange.EMPTY.withNaN(nan);
+        }
+        
+        // x % 0 and inf % y give NaN
+        nan |= y.containsZero() || isInfinite(x);
+        
+        // the result has the sign of x and magnitude less than |y|
+        double ymag = Math.max(Math.abs(y.getMin()), Math.abs(y.getMax()));
+        double lo = x.getMin() >= 0 ? 0 : Math.max(x.getMin(), -ymag);
+        double hi = x.getMax() <= 0 ? 0 : Math.min(x.getMax(), ymag);
+        return new ValueRange(lo, hi, x.isIntegral() && y.isIntegral(), nan);
+    }
+    
+    private static ValueRange pow(ValueRange x, ValueRange y) {
+        if (x.getMin() == x.getMax() && y.getMin() == y.getMax()) {
+            return ValueRange.constant(Math.pow(x.getMin(), y.getMin()));
+        }
+        return ValueRange.UNKNOWN;
+    }
+    
+    private static boolean isInfinite(ValueRange x) {
+        return Double.isInfinite(x.getMin()) || Double.isInfinite(x.getMax());
+    }
+    
+    private static double min(double[] values) {
+        double m = values[0];
+        for (int i = 1; i < values.length; i++) {
+            m = Math.min(m, values[i]);
+        }
+        return m;
+    }
+    
+    private static double max(double[] values) {
+        double m = values[0];
+        for (int i = 1; i < values.length; i++) {
+            m = Math.max(m, values[i]);
+        }
+        return m;
+    }
+}
@@ -27,16 +27,34 @@ package org.jaitools.jiffle.runtime;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRenderedImage;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
-import javax.media.jai.iterator.WritableRandomIter;
-
+import org.jaitools.DaemonThreadFactory;
 import org.jaitools.jiffle.JiffleException;
 
 
@@ -50,7 +68,16 @@ import org.jaitools.jiffle.JiffleException;
  */
 public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implements JiffleDirectRuntime {
 
-    private static final double EPS = 1.0e-10d;
+    private static final Logger LOGGER = Logger.getLogger(AbstractDirectRuntime.class.getName());
+    
+    /* 
+     * Interval (milliseconds) at which the calling thread checks
+     * worker progress during multi-threaded evaluation.
+     */
+    private static final long PROGRESS_POLL_INTERVAL = 20L;
+    
+    /* Tile size used when tiles cannot be aligned with a destination image. */
+    private static final int DEFAULT_TILE_SIZE = 256;
     
     /* 
      * Note: not using generics here because they are not
@@ -66,15 +93,62 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
     
     /** 
      * Maps source image variable names ({@link String}) to image
-     * iterators ({@link RandomIter}).
+     * accessors ({@link ImageAccessor}).
      */
     protected Map readers = new LinkedHashMap();
     
     /**
      * Maps destination image variable names ({@link String} to
-     * image iterators ({@link WritableRandomIter}).
+     * image accessors ({@link ImageAccessor}).
      */
     protected Map writers = new LinkedHashMap();
+    
+    /**
+     * Holds an image and associated objects for fast access by slot index.
+     * The {@code pos} point receives transformed coordinates, so that no 
+     * objects are created when reading or writing pixels. During 
+     * {@link #evaluateAll} the {@code stepper} tracks the image position
+     * of the current pixel in {@code stepPos}, and {@code stepX, stepY} 
+     * record the corresponding world position. If the runtime class was
+     * generated for a specific image data type this is recorded in 
+     * {@code dataType}. When metrics are enabled, {@code outsideReads}
+     * counts reads outside the image bounds.
+     */
+    private static class ImageSlot {
+        final String name;
+        final int dataType;
+        RenderedImage image;
+        ImageAccessor reader;
+        ImageAccessor writer;
+        CoordinateTransform transform;
+        boolean identity;
+        int minX, minY, maxX, maxY;
+        final Point pos = new Point();
+        
+        CoordinateStepper stepper;
+        final Point stepPos = new Point();
+        double stepX = Double.NaN;
+        double stepY = Double.NaN;
+        
+        long outsideReads;
+
+        ImageSlot(String name, int dataType) {
+            this.name = name;
+            this.dataType = dataType;
+        }
+    }
+    
+    // Used to size / resize the _slots array as required
+    private static final int SLOT_ARRAY_CHUNK = 10;
+    
+    /** Image slots. Indices are referred to directly by generated code. */
+    private ImageSlot[] _slots = new ImageSlot[SLOT_ARRAY_CHUNK];
+    
+    /** The number of image slots defined. */
+    private int _numSlots;
+    
+    /** Receives runtime metrics; {@code null} when metrics are disabled. */
+    private RuntimeMetrics _metrics;
 
     /**
      * Creates a new instance and initializes script-option variables.
@@ -113,9 +187,8 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
     private void doSetDestinationImage(String varName, WritableRenderedImage image, 
             CoordinateTransform tr) throws WorldNotSetException {
         
-        images.put(varName, image);
-        writers.put(varName, RandomIterFactory.createWritable(image, null));
         setTransform(varName, tr);
+        putImage(varName, image, null, createWriter(image));
     }
     
     /**
@@ -147,20 +220,214 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
     private void doSetSourceImage(String varName, RenderedImage image, CoordinateTransform tr)
             throws WorldNotSetException {
         
-        images.put(varName, image);
-        readers.put(varName, RandomIterFactory.create(image, null));
         setTransform(varName, tr);
+        putImage(varName, image, createReader(image), null);
+    }
+    
+    /**
+     * Records an image and its accessor in the lookup maps and the image's slot.
+     * A slot is registered for the variable if the runtime class does not 
+     * already have one. The coordinate transform for the variable must be
+     * set before calling this method.
+     * 
+     * @param varName image variable name
+     * @param image the image
+     * @param reader accessor for a source image or {@code null}
+     * @param writer accessor for a destination image or {@code null}
+     */
+    private void putImage(String varName, RenderedImage image, 
+            ImageAccessor reader, ImageAccessor writer) {
+        
+        images.put(varName, image);
+        if (reader != null) {
+            readers.put(varName, reader);
+        }
+        if (writer != null) {
+            writers.put(varName, writer);
+        }
+        
+        int index = getImageSlot(varName);
+        if (index < 0) {
+            index = registerImageVar(varName);
+        }
+        
+        ImageSlot slot = _slots[index];
+        int dataType = image.getSampleModel().getDataType();
+        if (slot.dataType != DataBuffer.TYPE_UNDEFINED && slot.dataType != dataType) {
+            throw new JiffleRuntimeException(String.format(
+                    "Image for variable %s has data type %d but the runtime class "
+                    + "was generated for data type %d", varName, dataType, slot.dataType));
+        }
+        
+        if (slot.writer != null) {
+            slot.writer.done();
+        }
+        slot.image = image;
+        slot.reader = reader;
+        slot.writer = writer;
+        slot.outsideReads = 0;
+        setSlotTransform(slot, getTransform(varName));
+        slot.minX = image.getMinX();
+        slot.minY = image.getMinY();
+        slot.maxX = image.getMinX() + image.getWidth() - 1;
+        slot.maxY = image.getMinY() + image.getHeight() - 1;
+    }
+    
+    /**
+     * Registers an image variable and returns the index of the slot that
+     * will hold its image. Generated runtime classes call this method from
+     * their constructor for each image variable in the script and then 
+     * refer to images by slot index.
+     * 
+     * @param varName image variable name
+     * @return slot index
+     */
+    protected int registerImageVar(String varName) {
+        return registerImageVar(varName, DataBuffer.TYPE_UNDEFINED);
+    }
+    
+    /**
+     * Registers an image variable for which the runtime class was generated
+     * with type-specialized read or write methods. Any image later set for
+     * the variable must have the given data type.
+     * 
+     * @param varName image variable name
+     * @param dataType image data type ({@link DataBuffer} constant) or
+     *        {@code DataBuffer.TYPE_UNDEFINED} for any type
+     * @return slot index
+     */
+    protected int registerImageVar(String varName, int dataType) {
+        if (getImageSlot(varName) >= 0) {
+            throw new JiffleRuntimeException("Image variable already defined: " + varName);
+        }
+        
+        if (_numSlots == _slots.length) {
+            ImageSlot[] temp = _slots;
+            _slots = new ImageSlot[_slots.length + SLOT_ARRAY_CHUNK];
+            System.arraycopy(temp, 0, _slots, 0, temp.length);
+        }
+        _slots[_numSlots] = new ImageSlot(varName, dataType);
+        return _numSlots++ ;
+    }
+    
+    /**
+     * Gets the slot index for an image variable.
+     * 
+     * @param varName image variable name
+     * @return slot index or -1 if the variable is not registered
+     */
+    protected int getImageSlot(String varName) {
+        for (int i = 0; i < _numSlots; i++) {
+            if (_slots[i].name.equals(varName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Image slots are updated to use the new default transform where
+     * appropriate.
+     */
+    @Override
+    public void setDefaultTransform(CoordinateTransform tr) throws JiffleException {
+        super.setDefaultTransform(tr);
+        
+        for (int i = 0; i < _numSlots; i++) {
+            if (_slots[i].image != null) {
+                setSlotTransform(_slots[i], getTransform(_slots[i].name));
+            }
+        }
+    }
+    
+    private void setSlotTransform(ImageSlot slot, CoordinateTransform tr) {
+        slot.transform = tr;
+        slot.identity = tr.isIdentity();
+        slot.stepper = tr.createStepper();
+        slot.stepX = Double.NaN;
+    }
+    
+    /**
+     * Starts stepping along a row of pixels for all images.
+     * 
+     * @param x0 world X ordinate of the first pixel
+     * @param y world Y ordinate of the row
+     * @param dx pixel width in world units
+     */
+    private void startRow(double x0, double y, double dx) {
+        for (int i = 0; i < _numSlots; i++) {
+            ImageSlot s = _slots[i];
+            if (s.stepper != null) {
+                s.stepper.startRow(x0, y, dx, s.stepPos);
+                s.stepX = x0;
+                s.stepY = y;
+            }
+        }
+    }
+    
+    /**
+     * Steps to the next pixel along the current row for all images.
+     * 
+     * @param x world X ordinate of the pixel
+     */
+    private void nextStep(double x) {
+        for (int i = 0; i < _numSlots; i++) {
+            ImageSlot s = _slots[i];
+            if (s.stepper != null) {
+                s.stepper.next(s.stepPos);
+                s.stepX = x;
+            }
+        }
+    }
+    
+    /**
+     * Clears stepped positions and releases destination tiles once 
+     * evaluation is finished.
+     */
+    private void endRows() {
+        for (int i = 0; i < _numSlots; i++) {
+            _slots[i].stepX = Double.NaN;
+            if (_slots[i].writer != null) {
+                _slots[i].writer.done();
+            }
+        }
+        
+        if (_metrics != null) {
+            flushMetrics();
+        }
+        
+        AbstractDirectRuntime runtime = getRowRuntime();
+        if (runtime != this) {
+            runtime.endRows();
+        }
+    }
+    
+    /**
+     * Converts world to image coordinates for the image in the given slot.
+     * The result is stored in the slot's {@code pos} point.
+     */
+    private Point toImagePos(ImageSlot s, double x, double y) {
+        if (s.identity) {
+            s.pos.x = (int) Math.round(x);
+            s.pos.y = (int) Math.round(y);
+            return s.pos;
+        }
+        return s.transform.worldToImage(x, y, s.pos);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * Pixels are evaluated a whole row at a time, so the listener is 
+     * updated at the end of the first row by which the update interval
+     * has been reached.
      */
     public void evaluateAll(JiffleProgressListener pl) {
         JiffleProgressListener listener = pl == null ? new NullProgressListener() : pl;
         
-        if (!isWorldSet()) {
-            setDefaultBounds();
-        }
+        prepare();
 
         final long numPixels = getNumPixels();
         listener.setTaskSize(numPixels);
@@ -169,73 +436,856 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
         long sinceLastUpdate = 0;
         final long updateInterval = listener.getUpdateInterval();
         
-        final double minX = getMinX();
-        final double maxX = getMaxX();
-        final double resX = getXRes();
+        final int numCols = getNumCols();
+        final int numRows = getNumRows();
+        final boolean pixelGrid = isPixelGrid();
         
-        final double minY = getMinY();
-        final double maxY = getMaxY();
-        final double resY = getYRes();
+        final long startTime = _metrics == null ? 0L : System.nanoTime();
+        
+        listener.start();
+        for (int row = 0; row < numRows; row++) {
+            // rows are evaluated whole so that per-row setup is done once
+            // and image steppers are used; progress is reported at row 
+            // granularity
+            evaluateRow(row, 0, numCols, pixelGrid);
+            
+            count += numCols;
+            sinceLastUpdate += numCols;
+            if (sinceLastUpdate >= updateInterval) {
+                listener.update( count );
+                sinceLastUpdate = 0;
+            }
+        }
+        endRows();
+        
+        if (_metrics != null) {
+            // a single-threaded run is not a tile of the evaluation grid
+            long elapsed = System.nanoTime() - startTime;
+            _metrics.addEvaluation(elapsed);
+            _metrics.addRun(numPixels, elapsed);
+        }
+        listener.finish();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The processing area is divided into tiles which line up with the tile
+     * grids of all destination images, so that no image tile is written by
+     * more than one thread. This is possible when each destination's 
+     * coordinate transform maps rows and columns independently (no rotation
+     * or shear). Otherwise fixed-size tiles are used, unless a destination
+     * has bit-packed pixels which neighbouring threads could corrupt, in 
+     * which case evaluation falls back to a single thread. Each thread works with
+     * its own instance of the runtime class, created with the class's no-argument
+     * constructor, so the script's per-pixel state is never shared. For the same
+     * reason, evaluation falls back to a single thread if the script assigns
+     * to image-scope variables, or if the runtime class cannot be instantiated.
+     * <p>
+     * The progress listener is only called from the calling thread, with the
+     * pixel counts of all threads aggregated. Likewise, the execution 
+     * profiles of the workers are added to that of this object when 
+     * profiling is enabled.
+     */
+    public void evaluateAll(JiffleProgressListener pl, int numThreads) {
+        if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        
+        if (numThreads == 1 || writesImageScopeVars()) {
+            evaluateAll(pl);
+            return;
+        }
+        
+        JiffleProgressListener listener = pl == null ? new NullProgressListener() : pl;
+        
+        prepare();
+        
+        List<Rectangle> tileList = getEvaluationTiles();
+        if (tileList == null) {
+            evaluateAll(pl);
+            return;
+        }
+        
+        final Queue<Rectangle> tiles = new ConcurrentLinkedQueue<Rectangle>(tileList);
+        numThreads = Math.min(numThreads, tiles.size());
+        
+        List<AbstractDirectRuntime> workers = new ArrayList<AbstractDirectRuntime>();
+        for (int i = 0; i < numThreads; i++) {
+            AbstractDirectRuntime worker = createWorker();
+            if (worker == null) {
+                evaluateAll(pl);
+                return;
+            }
+            workers.add(worker);
+        }
+        
+        final AtomicLong count = new AtomicLong(0);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        
+        ExecutorService service = Executors.newFixedThreadPool(numThreads, 
+                new DaemonThreadFactory(Thread.NORM_PRIORITY, "jiffle-tile"));
+        
+        CompletionService<Object> completion = new ExecutorCompletionService<Object>(service);
+        
+        listener.setTaskSize(getNumPixels());
+        final long updateInterval = listener.getUpdateInterval();
+        long lastUpdate = 0;
+        
+        final long startTime = _metrics == null ? 0L : System.nanoTime();
         
         listener.start();
-        for (double y = minY; y < maxY - EPS; y += resY) {
-            for (double x = minX; x < maxX - EPS; x += resX) {
-                evaluate(x, y);
+        try {
+            for (final AbstractDirectRuntime worker : workers) {
+                completion.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        Rectangle tile;
+                        while (!cancelled.get() && (tile = tiles.poll()) != null) {
+                            worker.evaluateTile(tile, count);
+                        }
+                        return null;
+                    }
+                });
+            }
+            
+            int numRunning = workers.size();
+            while (numRunning > 0) {
+                Future<Object> done = completion.poll(PROGRESS_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    done.get();
+                    numRunning-- ;
+                }
                 
-                count++ ;
-                sinceLastUpdate++;
-                if (sinceLastUpdate >= updateInterval) {
-                    listener.update( count );
-                    sinceLastUpdate = 0;
+                long n = count.get();
+                if (n - lastUpdate >= updateInterval) {
+                    listener.update(n);
+                    lastUpdate = n;
                 }
             }
+            
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JiffleRuntimeException("Interrupted during multi-threaded evaluation");
+            
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JiffleRuntimeException(cause.getMessage());
+            
+        } finally {
+            cancelled.set(true);
+            service.shutdownNow();
+        }
+        
+        for (AbstractDirectRuntime worker : workers) {
+            addProfile(worker);
+        }
+        
+        if (_metrics != null) {
+            _metrics.addRun(getNumPixels(), System.nanoTime() - startTime);
         }
         listener.finish();
     }
     
     /**
-     * {@inheritDoc}
+     * Tests whether the script assigns values to image-scope variables
+     * during pixel evaluation. This method is overridden by generated 
+     * runtime classes for scripts that do so. Such scripts are always
+     * evaluated on a single thread.
+     * 
+     * @return {@code true} if image-scope variables are written per pixel
      */
-    public double readFromImage(String srcImageName, double x, double y, int band) {
-        boolean inside = true;
-        RenderedImage img = (RenderedImage) images.get(srcImageName);
-        CoordinateTransform tr = getTransform(srcImageName);
+    protected boolean writesImageScopeVars() {
+        return false;
+    }
+    
+    /**
+     * Evaluates the script for a rectangle of pixels, defined by column
+     * and row indices within the processing area.
+     * 
+     * @param tile pixel columns and rows to process
+     * @param count receives the number of pixels processed
+     */
+    private void evaluateTile(Rectangle tile, AtomicLong count) {
+        final boolean pixelGrid = isPixelGrid();
+        final int maxRow = tile.y + tile.height;
+        final long startTime = _metrics == null ? 0L : System.nanoTime();
+        
+        for (int row = tile.y; row < maxRow; row++) {
+            evaluateRow(row, tile.x, tile.width, pixelGrid);
+            count.addAndGet(tile.width);
+        }
+        endRows();
+        
+        if (_metrics != null) {
+            _metrics.addTile(System.nanoTime() - startTime);
+        }
+    }
+    
+    /**
+     * Evaluates the script for a run of pixels within a row of the 
+     * processing area. World coordinates are calculated from pixel indices
+     * rather than by accumulating pixel widths, so that there is no drift
+     * across wide areas.
+     * 
+     * @param row row index
+     * @param col0 index of the first column
+     * @param numCols number of columns to evaluate
+     * @param pixelGrid whether world coordinates are image coordinates
+     *        (as returned by {@link #isPixelGrid()})
+     */
+    private void evaluateRow(int row, int col0, int numCols, boolean pixelGrid) {
+        AbstractDirectRuntime runtime = getRowRuntime();
+        if (runtime != this) {
+            runtime.evaluateRow(row, col0, numCols, pixelGrid);
+            return;
+        }
         
-        Point imgPos = tr.worldToImage(x, y, null);
+        final int maxCol = col0 + numCols;
         
-        int xx = imgPos.x - img.getMinX();
-        if (xx < 0 || xx >= img.getWidth()) {
-            inside = false;
+        if (pixelGrid) {
+            final double y = getMinY() + row;
+            final double minX = getMinX();
+            prepareRow(y);
+            for (int col = col0; col < maxCol; col++) {
+                evaluatePixel(minX + col, y);
+            }
+            
         } else {
-            int yy = imgPos.y - img.getMinY();
-            if (yy < 0 || yy >= img.getHeight()) {
-                inside = false;
+            final double minX = getMinX();
+            final double resX = getXRes();
+            final double y = getMinY() + row * getYRes();
+            prepareRow(y);
+            
+            startRow(minX + col0 * resX, y, resX);
+            for (int col = col0; col < maxCol; col++) {
+                final double x = minX + col * resX;
+                if (col > col0) {
+                    nextStep(x);
+                }
+                evaluatePixel(x, y);
+            }
+        }
+    }
+    
+    /**
+     * Tests whether world coordinates coincide with image coordinates for 
+     * all images, ie. the processing area has integral bounds, unit pixel 
+     * dimensions, and all images use identity transforms. In this case no
+     * coordinate stepping is required during evaluation.
+     * 
+     * @return {@code true} if world and image coordinates coincide
+     */
+    private boolean isPixelGrid() {
+        if (getXRes() != 1.0 || getYRes() != 1.0 
+                || getMinX() != Math.floor(getMinX())
+                || getMinY() != Math.floor(getMinY())) {
+            return false;
+        }
+        
+        for (int i = 0; i < _numSlots; i++) {
+            if (_slots[i].image != null && !_slots[i].identity) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Divides the processing area into tiles for multi-threaded evaluation.
+     * Tiles are expressed as column and row indices. Where possible, a new
+     * tile starts at every column and row where the pixel being written in
+     * any destination image moves into a different image tile, so that no
+     * image tile is written by more than one thread.
+     * 
+     * @return tiles in row-major order, or {@code null} if evaluation must 
+     *         be single-threaded
+     */
+    List<Rectangle> getEvaluationTiles() {
+        final int numCols = getNumCols();
+        final int numRows = getNumRows();
+        
+        SortedSet<Integer> colStarts = new TreeSet<Integer>();
+        SortedSet<Integer> rowStarts = new TreeSet<Integer>();
+        boolean aligned = true;
+        boolean packed = false;
+        
+        for (Object key : writers.keySet()) {
+            String name = (String) key;
+            RenderedImage img = (RenderedImage) images.get(name);
+            packed |= img.getSampleModel() instanceof MultiPixelPackedSampleModel;
+            if (aligned) {
+                aligned = addTileStarts(name, img, colStarts, rowStarts);
             }
         }
         
+        if (!aligned) {
+            if (packed) {
+                // pixels sharing a byte could be written by two threads
+                return null;
+            }
+            colStarts.clear();
+            rowStarts.clear();
+        }
+        
+        if (writers.isEmpty() || !aligned) {
+            for (int col = DEFAULT_TILE_SIZE; col < numCols; col += DEFAULT_TILE_SIZE) {
+                colStarts.add(col);
+            }
+            for (int row = DEFAULT_TILE_SIZE; row < numRows; row += DEFAULT_TILE_SIZE) {
+                rowStarts.add(row);
+            }
+        }
+        colStarts.add(numCols);
+        rowStarts.add(numRows);
+        
+        List<Rectangle> tiles = new ArrayList<Rectangle>();
+        int row = 0;
+        for (int nextRow : rowStarts) {
+            int col = 0;
+            for (int nextCol : colStarts) {
+                tiles.add(new Rectangle(col, row, nextCol - col, nextRow - row));
+                col = nextCol;
+            }
+            row = nextRow;
+        }
+        
+        return tiles;
+    }
+    
+    /**
+     * Adds the column and row indices at which the pixel written in a 
+     * destination image moves into a new image tile. World coordinates are
+     * calculated in the same way as in {@link #evaluateRow}.
+     * 
+     * @return {@code true} if successful; {@code false} if the image's
+     *         transform does not map rows and columns independently
+     */
+    private boolean addTileStarts(String name, RenderedImage img, 
+            SortedSet<Integer> colStarts, SortedSet<Integer> rowStarts) {
+        
+        CoordinateTransform tr = getTransform(name);
+        if (!tr.isIdentity() && !(tr instanceof AffineCoordinateTransform && 
+                ((AffineCoordinateTransform) tr).isAxisAligned())) {
+            return false;
+        }
+        
+        final double minX = getMinX();
+        final double minY = getMinY();
+        Point p = new Point();
+        
+        int prevTile = 0;
+        for (int col = 0; col < getNumCols(); col++) {
+            tr.worldToImage(minX + col * getXRes(), minY, p);
+            int tile = floorDiv(p.x - img.getTileGridXOffset(), img.getTileWidth());
+            if (col > 0 && tile != prevTile) {
+                colStarts.add(col);
+            }
+            prevTile = tile;
+        }
+        
+        for (int row = 0; row < getNumRows(); row++) {
+            tr.worldToImage(minX, minY + row * getYRes(), p);
+            int tile = floorDiv(p.y - img.getTileGridYOffset(), img.getTileHeight());
+            if (row > 0 && tile != prevTile) {
+                rowStarts.add(row);
+            }
+            prevTile = tile;
+        }
+        
+        return true;
+    }
+    
+    private static int floorDiv(int a, int b) {
+        return (a - mod(a, b)) / b;
+    }
+    
+    private static int mod(int a, int b) {
+        int m = a % b;
+        return m < 0 ? m + b : m;
+    }
+    
+    /**
+     * Creates a new, unprepared instance of this runtime class for use as
+     * a worker in multi-threaded evaluation. The default implementation
+     * uses the class's no-argument constructor. Runtime classes without
+     * such a constructor can override this method.
+     * 
+     * @return the new instance
+     * @throws Exception if the instance cannot be created
+     */
+    protected AbstractDirectRuntime newWorkerInstance() throws Exception {
+        return getClass().newInstance();
+    }
+    
+    /**
+     * Sets the object to receive runtime metrics, or disables metrics if
+     * {@code null}. The same metrics object can be shared by several 
+     * runtime objects, and is passed on to the worker instances used for
+     * multi-threaded evaluation. While metrics are enabled, image 
+     * accesses are counted and sampled for timing.
+     * 
+     * @param metrics the metrics object or {@code null}
+     */
+    public void setMetrics(RuntimeMetrics metrics) {
+        _metrics = metrics;
+        
+        // replace accessors so that they are metered, or not, as required
+        Iterator iter = readers.keySet().iterator();
+        while (iter.hasNext()) {
+            String name = (String) iter.next();
+            RenderedImage img = (RenderedImage) images.get(name);
+            putImage(name, img, createReader(img), null);
+        }
+        
+        iter = writers.keySet().iterator();
+        while (iter.hasNext()) {
+            String name = (String) iter.next();
+            WritableRenderedImage img = (WritableRenderedImage) images.get(name);
+            putImage(name, img, null, createWriter(img));
+        }
+    }
+    
+    /**
+     * Gets the object receiving runtime metrics.
+     * 
+     * @return the metrics object or {@code null} if metrics are disabled
+     */
+    public RuntimeMetrics getMetrics() {
+        return _metrics;
+    }
+    
+    /**
+     * Creates an accessor for a source image, which is metered if metrics
+     * are enabled.
+     */
+    private ImageAccessor createReader(RenderedImage image) {
+        return _metrics == null ? new ImageAccessor(image) : new MeteredImageAccessor(image);
+    }
+    
+    /**
+     * Creates an accessor for a destination image, which is metered if 
+     * metrics are enabled.
+     */
+    private ImageAccessor createWriter(WritableRenderedImage image) {
+        return _metrics == null ? new ImageAccessor(image) : new MeteredImageAccessor(image);
+    }
+    
+    /**
+     * Adds image access counts and times recorded since the last call
+     * to the metrics object and resets them.
+     */
+    private void flushMetrics() {
+        for (int i = 0; i < _numSlots; i++) {
+            ImageSlot s = _slots[i];
+            long reads = s.outsideReads;
+            long writes = 0;
+            long nanos = 0;
+            
+            if (s.reader instanceof MeteredImageAccessor) {
+                MeteredImageAccessor m = (MeteredImageAccessor) s.reader;
+                reads += m.getAccessCount();
+                nanos += m.getEstimatedNanos();
+                m.reset();
+            }
+            if (s.writer instanceof MeteredImageAccessor) {
+                MeteredImageAccessor m = (MeteredImageAccessor) s.writer;
+                writes = m.getAccessCount();
+                nanos += m.getEstimatedNanos();
+                m.reset();
+            }
+            
+            if (reads > 0 || writes > 0) {
+                _metrics.addImageAccess(s.name, reads, s.outsideReads, writes, nanos);
+            }
+            s.outsideReads = 0;
+        }
+    }
+    
+    /**
+     * Creates a new instance of this runtime class with the same images,
+     * processing area, transforms and image-scope variable values. Each
+     * worker has its own image iterators.
+     * 
+     * @return the new instance or {@code null} if the runtime class 
+     *         could not be instantiated
+     */
+    private AbstractDirectRuntime createWorker() {
+        AbstractDirectRuntime worker;
+        try {
+            worker = newWorkerInstance();
+        } catch (Exception ex) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, 
+                        "Unable to create worker instance of {0}; using a single thread", 
+                        getClass().getName());
+            }
+            return null;
+        }
+        
+        copyTo(worker);
+        return worker;
+    }
+    
+    /**
+     * Copies the images, processing area, transforms and image-scope 
+     * variable values of this object to another runtime object for the
+     * same script, which is then prepared for evaluation. The other object
+     * has its own image iterators.
+     * 
+     * @param other the object to receive the copied state
+     */
+    protected void copyTo(AbstractDirectRuntime other) {
+        copyStateTo(other);
+        other._metrics = _metrics;
+        
+        Iterator iter = readers.keySet().iterator();
+        while (iter.hasNext()) {
+            String name = (String) iter.next();
+            RenderedImage img = (RenderedImage) images.get(name);
+            other.putImage(name, img, other.createReader(img), null);
+        }
+        
+        iter = writers.keySet().iterator();
+        while (iter.hasNext()) {
+            String name = (String) iter.next();
+            WritableRenderedImage img = (WritableRenderedImage) images.get(name);
+            other.putImage(name, img, null, other.createWriter(img));
+        }
+        
+        other.prepare();
+    }
+    
+    /**
+     * Gets the runtime object which evaluates the next row of the processing
+     * area. This is called at the start of each row (or run of pixels within 
+     * a row). The default implementation returns this object. A sub-class 
+     * can return another runtime object for the same script, set up with
+     * {@link #copyTo(AbstractDirectRuntime)}, to hand over evaluation part
+     * way through a run.
+     * 
+     * @return the runtime object to evaluate the row
+     */
+    protected AbstractDirectRuntime getRowRuntime() {
+        return this;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public double readFromImage(String srcImageName, double x, double y, int band) {
+        int index = getImageSlot(srcImageName);
+        if (index < 0) {
+            throw new JiffleRuntimeException("No image set for variable: " + srcImageName);
+        }
+        return readFromImage(index, x, y, band);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public double readFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_BYTE} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readByteFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getByteSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_USHORT} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readUShortFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getUShortSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_SHORT} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readShortFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getShortSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_INT} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readIntFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getIntSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_FLOAT} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readFloatFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getFloatSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * Reads a value from a {@code TYPE_DOUBLE} source image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @return the image value or the outside value
+     */
+    protected double readDoubleFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getSourcePos(s, x, y);
+        return imgPos == null ? _outsideValue : s.reader.getDoubleSample(imgPos.x, imgPos.y, band);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void writeToImage(String destImageName, double x, double y, int band, double value) {
+        int index = getImageSlot(destImageName);
+        if (index < 0) {
+            throw new JiffleRuntimeException("No image set for variable: " + destImageName);
+        }
+        writeToImage(index, x, y, band, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void writeToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_BYTE} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeByteToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setByteSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_USHORT} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeUShortToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setUShortSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_SHORT} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeShortToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setShortSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_INT} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeIntToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setIntSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_FLOAT} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeFloatToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setFloatSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Writes a value to a {@code TYPE_DOUBLE} destination image. Called by runtime
+     * classes generated for that data type.
+     * 
+     * @param slot image slot index
+     * @param x world X ordinate
+     * @param y world Y ordinate
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeDoubleToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _slots[slot];
+        Point imgPos = getDestPos(s, x, y);
+        s.writer.setDoubleSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    /**
+     * Gets the image position to read for the given world position.
+     * 
+     * @return the image position or {@code null} if it is outside the 
+     *         image bounds and an outside value has been set
+     * @throws JiffleRuntimeException if there is no source image or the
+     *         position is outside the image bounds and no outside value
+     *         has been set
+     */
+    private Point getSourcePos(ImageSlot s, double x, double y) {
+        if (s.reader == null) {
+            throw new JiffleRuntimeException("No source image set for variable: " + s.name);
+        }
+        
+        Point imgPos = (x == s.stepX && y == s.stepY) ? s.stepPos : toImagePos(s, x, y);
+        
+        boolean inside = imgPos.x >= s.minX && imgPos.x <= s.maxX 
+                && imgPos.y >= s.minY && imgPos.y <= s.maxY;
+        
         if (!inside) {
             if (_outsideValueSet) {
-                return _outsideValue;
+                s.outsideReads++ ;
+                return null;
             } else {
                 throw new JiffleRuntimeException( String.format(
                         "Position %.4f %.4f is outside bounds of image: %s", 
-                        x, y, srcImageName));
+                        x, y, s.name));
             }
         }
         
-        RandomIter iter = (RandomIter) readers.get(srcImageName);
-        return iter.getSampleDouble(imgPos.x, imgPos.y, band);
+        return imgPos;
     }
     
+    /**
+     * Gets the image position to write for the given world position.
+     * 
+     * @throws JiffleRuntimeException if there is no destination image
+     */
+    private Point getDestPos(ImageSlot s, double x, double y) {
+        if (s.writer == null) {
+            throw new JiffleRuntimeException("No destination image set for variable: " + s.name);
+        }
+        return (x == s.stepX && y == s.stepY) ? s.stepPos : toImagePos(s, x, y);
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * This sets the default processing area, if the world bounds have not 
+     * been set, before initializing image-scope variables.
      */
-    public void writeToImage(String destImageName, double x, double y, int band, double value) {
-        WritableRandomIter iter = (WritableRandomIter) writers.get(destImageName);
-        CoordinateTransform tr = getTransform(destImageName);
-        Point imgPos = tr.worldToImage(x, y, null);
-        iter.setSample(imgPos.x, imgPos.y, band, value);
+    @Override
+    public void prepare() {
+        if (!isWorldSet()) {
+            setDefaultBounds();
+        }
+        super.prepare();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This method prepares the object for evaluation, if that has not been
+     * done previously, sets any row-invariant values for {@code y}, and then 
+     * calls {@link #evaluatePixel(double, double)}.
+     */
+    public void evaluate(double x, double y) {
+        prepare();
+        prepareRow(y);
+        evaluatePixel(x, y);
     }
+    
+    /**
+     * Evaluates the script for the given world position. This method is
+     * implemented by generated runtime classes and contains only the code
+     * for the script body. It is called by {@link #evaluateAll} methods 
+     * once the object has been prepared for evaluation.
+     * 
+     * @param x world position X ordinate
+     * @param y world position Y ordinate
+     */
+    protected abstract void evaluatePixel(double x, double y);
 
     /**
      * {@inheritDoc}
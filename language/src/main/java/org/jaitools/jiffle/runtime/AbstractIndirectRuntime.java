@@ -108,4 +108,29 @@ public abstract class AbstractIndirectRuntime extends AbstractJiffleRuntime impl
         setTransform(varName, tr);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This method prepares the object for evaluation, if that has not been
+     * done previously, sets any row-invariant values for {@code y}, and then 
+     * calls {@link #evaluatePixel(double, double)}.
+     */
+    public double evaluate(double x, double y) {
+        prepare();
+        prepareRow(y);
+        return evaluatePixel(x, y);
+    }
+    
+    /**
+     * Evaluates the script for the given world position. This method is
+     * implemented by generated runtime classes and contains only the code
+     * for the script body.
+     * 
+     * @param x world position X ordinate
+     * @param y world position Y ordinate
+     * 
+     * @return the result
+     */
+    protected abstract double evaluatePixel(double x, double y);
+
 }
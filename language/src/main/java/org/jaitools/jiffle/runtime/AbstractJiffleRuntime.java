@@ -37,8 +37,7 @@ import org.jaitools.jiffle.JiffleException;
 /**
  * Provides default implementations of {@link JiffleRuntime} methods plus 
  * some common fields. The fields include those involved in handling image-scope
- * variables and script options; an instance of {@link JiffleFunctions}; and an
- * integer stack used in evaluating {@code con} statements.
+ * variables and script options; and an instance of {@link JiffleFunctions}.
  *
  * @author Michael Bedward
  * @since 0.1
@@ -66,6 +65,12 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
     /** Number of pixels calculated from bounds and pixel dimensions. */
     private long _numPixels;
     
+    /** Number of pixel columns in the processing area. */
+    private int _numCols;
+    
+    /** Number of pixel rows in the processing area. */
+    private int _numRows;
+    
     private class TransformInfo {
         CoordinateTransform transform;
         boolean isDefault;
@@ -80,51 +85,41 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
     /** World to image coordinate transforms with image name as key. */
     private Map<String, TransformInfo> _transformLookup;
 
+    // Used to size / resize the image-scope variable arrays as required
+    private static final int VAR_ARRAY_CHUNK = 100;
+    
     /** 
-     * Holds information about an image-scope variable. 
-     * This class is only public to work around a problem in the 
-     * Janino compiler involving private nested classes. It is
-     * not intended for client use.
+     * Image-scope variable values. Generated code accesses these directly
+     * using the variable index constants declared in the runtime class.
      */
-    public class ImageScopeVar {
-        
-        /** Variable name. */
-        public String name;
-        
-        /** Whether a default value was provided in the script init block. */
-        public boolean hasDefaultValue;
-
-        /** Whether a run-time value has been set. */
-        public boolean isSet;
-
-        /** The current value. */
-        public double value;
-
-        /**
-         * Constructor.
-         * @param name variable name
-         * @param hasDefaultValue whether a default value is defined in the script
-         */
-        public ImageScopeVar(String name, boolean hasDefaultValue) {
-            this.name = name;
-            this.hasDefaultValue = hasDefaultValue;
-        }
-    }
-
-    // Used to size / resize the _vars array as required
-    private static final int VAR_ARRAY_CHUNK = 100;
+    protected double[] _vals = new double[VAR_ARRAY_CHUNK];
+    
+    /** Image-scope variable names. */
+    private String[] _varNames = new String[VAR_ARRAY_CHUNK];
+    
+    /** Whether each image-scope variable has a default value in the script. */
+    private boolean[] _varHasDefault = new boolean[VAR_ARRAY_CHUNK];
     
-    /** Image-scope variables. */
-    protected ImageScopeVar[] _vars = new ImageScopeVar[VAR_ARRAY_CHUNK];
+    /** Whether a run-time value has been set for each image-scope variable. */
+    private boolean[] _varIsSet = new boolean[VAR_ARRAY_CHUNK];
+    
+    /** Image-scope variable indices with variable name as key. */
+    private Map<String, Integer> _varIndexLookup = new HashMap<String, Integer>();
     
     /** Whether the image-scope variables have been initialized. */
     protected boolean _imageScopeVarsInitialized;
+    
+    /** Whether the run-invariant values are up to date. */
+    private boolean _runInvariantsValid;
+    
+    /** The row (y ordinate) for which row-invariant values were last set. */
+    private double _invariantRowY = Double.NaN;
 
     /** The number of image-scope variables defined. */
     protected int _numVars;
     
     /** Advertizes the image-scope variable getter syntax to source generators. */
-    public static final String VAR_STRING = "_vars[_VAR_].value";
+    public static final String VAR_STRING = "_vals[_VAR_]";
     
     /** Whether the <i>outside</i> option is set. */
     protected boolean _outsideValueSet;
@@ -135,23 +130,32 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      */
     protected double _outsideValue;
 
-    /** 
-     * A stack of integer values used in the evaluation of if statements.
-     */
-    protected IntegerStack _stk;
-    
     /** 
      * Provides runtime function support.
      */
     protected final JiffleFunctions _FN;
 
+    /** The number of profiling probes registered by a profiled runtime class. */
+    private int _numProbes;
+    
+    /** Script line numbers of profiling probes. */
+    private int[] _probeLines = new int[0];
+    
+    /** Whether each profiling probe is for a loop body. */
+    private boolean[] _probeLoopBodies = new boolean[0];
+    
+    /** Execution counts recorded by profiling probes. */
+    private long[] _probeCounts = new long[0];
+    
+    /** Execution times in nanoseconds recorded by profiling probes. */
+    private long[] _probeNanos = new long[0];
+
     /**
      * Creates a new instance of this class and initializes its 
-     * {@link JiffleFunctions} and {@link IntegerStack} objects.
+     * {@link JiffleFunctions} object.
      */
     public AbstractJiffleRuntime() {
         _FN = new JiffleFunctions();
-        _stk = new IntegerStack();
         
         _transformLookup = new HashMap<String, TransformInfo>();
         _xres = Double.NaN;
@@ -239,7 +243,32 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
             return null;
         }
         
-        return _vars[index].isSet ? _vars[index].value : null; 
+        return _varIsSet[index] ? _vals[index] : null; 
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int getVarHandle(String varName) {
+        return getVarIndex(varName);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public double getVar(int handle) {
+        checkVarHandle(handle);
+        return _varIsSet[handle] ? _vals[handle] : Double.NaN;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setVar(int handle, double value) throws JiffleRuntimeException {
+        checkVarHandle(handle);
+        _vals[handle] = value;
+        _varIsSet[handle] = true;
+        _runInvariantsValid = false;
     }
 
     /**
@@ -258,9 +287,7 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      */
     public String[] getVarNames() {
         String[] names = new String[_numVars];
-        for (int i = 0; i < _numVars; i++) {
-            names[i] = _vars[i].name;
-        }
+        System.arraycopy(_varNames, 0, names, 0, _numVars);
         return names;
     }
 
@@ -327,6 +354,32 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
         return _numPixels;
     }
     
+    /**
+     * Gets the number of pixel columns in the processing area.
+     * 
+     * @return number of columns
+     * @throws IllegalStateException if the processing area has not been set
+     */
+    protected int getNumCols() {
+        if (!_worldSet) {
+            throw new IllegalStateException("Processing area has not been set");
+        }
+        return _numCols;
+    }
+    
+    /**
+     * Gets the number of pixel rows in the processing area.
+     * 
+     * @return number of rows
+     * @throws IllegalStateException if the processing area has not been set
+     */
+    protected int getNumRows() {
+        if (!_worldSet) {
+            throw new IllegalStateException("Processing area has not been set");
+        }
+        return _numRows;
+    }
+    
     /**
      * Sets a coordinate transform to use with the image represented by
      * {@code imageVarName}.
@@ -408,18 +461,19 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      */
     protected void setVarValue(int index, Double value) throws JiffleRuntimeException {
         if (value == null) {
-            if (!_vars[index].hasDefaultValue) {
+            if (!_varHasDefault[index]) {
                 throw new JiffleRuntimeException(
-                        "Value cannot be null for variable with no default: " + _vars[index].name);
+                        "Value cannot be null for variable with no default: " + _varNames[index]);
             }
             
             _imageScopeVarsInitialized = false;
-            _vars[index].isSet = false;
+            _varIsSet[index] = false;
             
         } else {
-            _vars[index].value = value;
-            _vars[index].isSet = true;
+            _vals[index] = value;
+            _varIsSet[index] = true;
         }
+        _runInvariantsValid = false;
     }
 
     /**
@@ -429,12 +483,68 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      * @return the index or -1 if the name is not found
      */
     protected int getVarIndex(String varName) {
-        for (int i = 0; i < _numVars; i++) {
-            if (_vars[i].name.equals(varName)) {
-                return i;
-            }
+        Integer index = _varIndexLookup.get(varName);
+        return index == null ? -1 : index;
+    }
+    
+    /**
+     * Checks that a variable handle is valid.
+     * 
+     * @param handle the handle
+     * @throws JiffleRuntimeException if the handle is invalid
+     */
+    private void checkVarHandle(int handle) {
+        if (handle < 0 || handle >= _numVars) {
+            throw new JiffleRuntimeException("Invalid variable handle: " + handle);
         }
-        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void prepare() {
+        if (!_imageScopeVarsInitialized) {
+            initImageScopeVars();
+        }
+        if (!_runInvariantsValid) {
+            initRunInvariants();
+            _runInvariantsValid = true;
+            _invariantRowY = Double.NaN;
+        }
+    }
+    
+    /**
+     * Ensures that row-invariant values are set for the given row. This is
+     * called before evaluating pixels and only does work when the row
+     * changes. It should be called after {@link #prepare()}.
+     * 
+     * @param y world Y ordinate of the row
+     */
+    protected final void prepareRow(double y) {
+        if (y != _invariantRowY) {
+            initRowInvariants(y);
+            _invariantRowY = y;
+        }
+    }
+    
+    /**
+     * Evaluates expressions which do not change during a run, such as those
+     * depending only on image-scope variables and the processing area. 
+     * This method is overridden as part of the generated run-time class 
+     * code when the script has such expressions.
+     */
+    protected void initRunInvariants() {
+    }
+    
+    /**
+     * Evaluates expressions which only change from row to row, such as those
+     * involving Jiffle's {@code y()} function. This method is overridden as 
+     * part of the generated run-time class code when the script has such 
+     * expressions.
+     * 
+     * @param y world Y ordinate of the row
+     */
+    protected void initRowInvariants(double y) {
     }
 
     /**
@@ -448,17 +558,18 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      */
     protected void initImageScopeVars() {
         for (int i = 0; i < _numVars; i++) {
-            if (!_vars[i].isSet) {
+            if (!_varIsSet[i]) {
                 Double value = getDefaultValue(i);
                 if (value == null) {
                     throw new JiffleRuntimeException(
-                            "No default value set for " + _vars[i].name);
+                            "No default value set for " + _varNames[i]);
                 }
-                _vars[i].value = value;
-                _vars[i].isSet = true;
+                _vals[i] = value;
+                _varIsSet[i] = true;
             }
         }
         _imageScopeVarsInitialized = true;
+        _runInvariantsValid = false;
     }
     
     /**
@@ -487,18 +598,170 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
             throw new JiffleRuntimeException("Variable already defined: " + name);
         }
         
+        if (_numVars == _vals.length) {
+            growVarsArrays();
+        }
+        _varNames[_numVars] = name;
+        _varHasDefault[_numVars] = hasDefault;
+        _varIndexLookup.put(name, _numVars);
         _numVars++ ;
-        ImageScopeVar var = new ImageScopeVar(name, hasDefault);
-        if (_numVars > _vars.length) {
-            growVarsArray();
+    }
+    
+    /**
+     * Registers a profiling probe. This is called from the constructor
+     * of runtime classes created with profiling enabled.
+     * 
+     * @param line script line number of the profiled statement
+     * @param loopBody whether the statement is a loop body
+     */
+    protected void registerProbe(int line, boolean loopBody) {
+        if (_numProbes == _probeLines.length) {
+            growProbeArrays();
+        }
+        _probeLines[_numProbes] = line;
+        _probeLoopBodies[_numProbes] = loopBody;
+        _numProbes++ ;
+    }
+    
+    /**
+     * Records one execution of a profiled statement. This is called from
+     * the evaluation code of runtime classes created with profiling enabled.
+     * 
+     * @param probe probe index
+     * @param startTime value of {@code System.nanoTime()} when the
+     *        statement started
+     */
+    protected final void endProbe(int probe, long startTime) {
+        _probeNanos[probe] += System.nanoTime() - startTime;
+        _probeCounts[probe]++ ;
+    }
+    
+    /**
+     * Gets the execution profile recorded since this object was created 
+     * or last reset. Profiles are only recorded by runtime classes created
+     * with profiling enabled (see 
+     * {@link org.jaitools.jiffle.Jiffle#setProfiling(boolean)}).
+     * 
+     * @return the profile or {@code null} if this object does not record one
+     */
+    public JiffleProfile getProfile() {
+        if (_numProbes == 0) {
+            return null;
         }
-        _vars[_numVars - 1] = var;
+        
+        List<JiffleProfile.Entry> entries = new ArrayList<JiffleProfile.Entry>();
+        for (int i = 0; i < _numProbes; i++) {
+            entries.add(new JiffleProfile.Entry(
+                    _probeLines[i], _probeLoopBodies[i], _probeCounts[i], _probeNanos[i]));
+        }
+        return new JiffleProfile(entries);
     }
     
-    private void growVarsArray() {
-        ImageScopeVar[] temp = _vars;
-        _vars = new ImageScopeVar[_vars.length + VAR_ARRAY_CHUNK];
-        System.arraycopy(temp, 0, _vars, 0, temp.length);
+    /**
+     * Clears the execution profile. This has no effect if the runtime
+     * class was not created with profiling enabled.
+     */
+    public void resetProfile() {
+        for (int i = 0; i < _numProbes; i++) {
+            _probeCounts[i] = 0;
+            _probeNanos[i] = 0;
+        }
+    }
+    
+    /**
+     * Adds the execution profile recorded by another instance of the same
+     * runtime class to that of this object. This is used to gather the
+     * profiles of worker objects after multi-threaded evaluation.
+     * 
+     * @param other the object to take profile counts from
+     */
+    protected void addProfile(AbstractJiffleRuntime other) {
+        int n = Math.min(_numProbes, other._numProbes);
+        for (int i = 0; i < n; i++) {
+            _probeCounts[i] += other._probeCounts[i];
+            _probeNanos[i] += other._probeNanos[i];
+        }
+    }
+    
+    /**
+     * Copies the processing area, coordinate transforms and image-scope 
+     * variable values of this object to another instance of the same
+     * runtime class. This is used to set up worker objects for
+     * multi-threaded evaluation. Image-scope variables are initialized
+     * in this object, if not done previously, before being copied.
+     * 
+     * @param other the object to receive the copied state
+     */
+    protected void copyStateTo(AbstractJiffleRuntime other) {
+        if (_imageParams != null) {
+            other._imageParams = new HashMap<String, Jiffle.ImageRole>(_imageParams);
+        }
+        
+        if (_worldSet) {
+            other.doSetWorld(_worldBounds, _xres, _yres);
+        }
+        
+        other._defaultTransform = _defaultTransform;
+        other._transformLookup.clear();
+        for (String name : _transformLookup.keySet()) {
+            TransformInfo info = _transformLookup.get(name);
+            TransformInfo copy = other.new TransformInfo();
+            copy.transform = info.transform;
+            copy.isDefault = info.isDefault;
+            other._transformLookup.put(name, copy);
+        }
+        
+        if (!_imageScopeVarsInitialized) {
+            initImageScopeVars();
+        }
+        for (int i = 0; i < _numVars; i++) {
+            int index = other.getVarIndex(_varNames[i]);
+            if (index >= 0) {
+                other._vals[index] = _vals[i];
+                other._varIsSet[index] = true;
+            }
+        }
+        other._imageScopeVarsInitialized = true;
+    }
+    
+    private void growVarsArrays() {
+        int n = _vals.length + VAR_ARRAY_CHUNK;
+        
+        double[] vals = new double[n];
+        System.arraycopy(_vals, 0, vals, 0, _numVars);
+        _vals = vals;
+        
+        String[] names = new String[n];
+        System.arraycopy(_varNames, 0, names, 0, _numVars);
+        _varNames = names;
+        
+        boolean[] hasDefault = new boolean[n];
+        System.arraycopy(_varHasDefault, 0, hasDefault, 0, _numVars);
+        _varHasDefault = hasDefault;
+        
+        boolean[] isSet = new boolean[n];
+        System.arraycopy(_varIsSet, 0, isSet, 0, _numVars);
+        _varIsSet = isSet;
+    }
+
+    private void growProbeArrays() {
+        int n = Math.max(2 * _probeLines.length, 8);
+        
+        int[] lines = new int[n];
+        System.arraycopy(_probeLines, 0, lines, 0, _numProbes);
+        _probeLines = lines;
+        
+        boolean[] loopBodies = new boolean[n];
+        System.arraycopy(_probeLoopBodies, 0, loopBodies, 0, _numProbes);
+        _probeLoopBodies = loopBodies;
+        
+        long[] counts = new long[n];
+        System.arraycopy(_probeCounts, 0, counts, 0, _numProbes);
+        _probeCounts = counts;
+        
+        long[] nanos = new long[n];
+        System.arraycopy(_probeNanos, 0, nanos, 0, _numProbes);
+        _probeNanos = nanos;
     }
 
     /**
@@ -520,7 +783,12 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
         _xres = xres;
         _yres = yres;
         
+        _numCols = (int) Math.ceil(bounds.getWidth() / xres - EPS);
+        _numRows = (int) Math.ceil(bounds.getHeight() / yres - EPS);
+        _numPixels = (long) _numCols * _numRows;
+        
         _worldSet = true;
+        _runInvariantsValid = false;
     }
     
     /**
@@ -27,10 +27,10 @@ package org.jaitools.jiffle.runtime;
 
 import java.awt.Point;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Point2D;
 
 /**
  * Wraps an AffineTransform object for use as a Jiffle {@link CoordinateTransform}.
+ * Instances hold no mutable state and can be shared between threads.
  *
  * @author Michael Bedward
  * @since 0.1
@@ -38,7 +38,9 @@ import java.awt.geom.Point2D;
  */
 public class AffineCoordinateTransform implements CoordinateTransform {
     private final AffineTransform affine;
-    private Point2D p2D;
+    
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
 
     /**
      * Creates a new instance to wrap the given {@code AffineTransform}. If
@@ -49,24 +51,82 @@ public class AffineCoordinateTransform implements CoordinateTransform {
      */
     public AffineCoordinateTransform(AffineTransform affine) {
         this.affine = affine == null ? new AffineTransform() : new AffineTransform(affine);
-        p2D = new Point2D.Double();
+        
+        m00 = this.affine.getScaleX();
+        m01 = this.affine.getShearX();
+        m02 = this.affine.getTranslateX();
+        m10 = this.affine.getShearY();
+        m11 = this.affine.getScaleY();
+        m12 = this.affine.getTranslateY();
     }
 
     /**
      * {@inheritDoc}
      */
     public Point worldToImage(double x, double y, Point p) {
-        p2D.setLocation(x, y);
-        affine.transform(p2D, p2D);
+        final double xt = m00 * x + m01 * y + m02;
+        final double yt = m10 * x + m11 * y + m12;
         
         if (p != null) {
-            p.x = (int) Math.round(p2D.getX());
-            p.y = (int) Math.round(p2D.getY());
+            p.x = (int) Math.round(xt);
+            p.y = (int) Math.round(yt);
         } else {
-            p = new Point((int) Math.round(p2D.getX()), (int) Math.round(p2D.getY()));
+            p = new Point((int) Math.round(xt), (int) Math.round(yt));
         }
         
         return p;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isIdentity() {
+        return affine.isIdentity();
+    }
+
+    /**
+     * Tests whether this transform maps world X to image X and world Y to
+     * image Y independently, ie. it has no rotation or shear terms.
+     * 
+     * @return {@code true} if axis-aligned
+     */
+    boolean isAxisAligned() {
+        return m01 == 0 && m10 == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CoordinateStepper createStepper() {
+        return new Stepper();
+    }
+    
+    /**
+     * Steps along a row by adding a constant image-space delta to the
+     * transformed position of the first point.
+     */
+    private class Stepper implements CoordinateStepper {
+        private double xt0, yt0;
+        private double dxt, dyt;
+        private int index;
+        
+        public void startRow(double x0, double y, double dx, Point p) {
+            xt0 = m00 * x0 + m01 * y + m02;
+            yt0 = m10 * x0 + m11 * y + m12;
+            dxt = m00 * dx;
+            dyt = m10 * dx;
+            index = 0;
+            p.x = (int) Math.round(xt0);
+            p.y = (int) Math.round(yt0);
+        }
+
+        public void next(Point p) {
+            index++ ;
+            p.x = (int) Math.round(xt0 + index * dxt);
+            if (dyt != 0) {
+                p.y = (int) Math.round(yt0 + index * dyt);
+            }
+        }
+    }
     
 }
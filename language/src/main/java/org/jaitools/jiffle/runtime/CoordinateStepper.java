@@ -0,0 +1,74 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Point;
+
+/**
+ * Converts a sequence of world positions, evenly spaced along a row, to image
+ * coordinates. For most transforms this is cheaper than calling 
+ * {@link CoordinateTransform#worldToImage(double, double, Point)} for each 
+ * position. Steppers are obtained from {@link CoordinateTransform#createStepper()}.
+ * Unlike transforms, they hold state and should only be used by a single thread.
+ * <p>
+ * Example:
+ * <pre><code>
+ * CoordinateStepper stepper = transform.createStepper();
+ * Point p = new Point();
+ * 
+ * stepper.startRow(minX, y, xres, p);
+ * for (int i = 0; i &lt; numCols; i++) {
+ *     if (i &gt; 0) stepper.next(p);
+ *     // p now holds image coordinates for world position (minX + i * xres, y)
+ * }
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public interface CoordinateStepper {
+
+    /**
+     * Starts a new row. The image coordinates of the world position 
+     * {@code (x0, y)} are written to {@code p}.
+     * 
+     * @param x0 world X ordinate of the first position
+     * @param y world Y ordinate of the row
+     * @param dx world distance between positions
+     * @param p object to receive image coordinates
+     */
+    void startRow(double x0, double y, double dx, Point p);
+    
+    /**
+     * Moves to the next position along the row. If this is the {@code ith}
+     * call since the row was started, the image coordinates of the world 
+     * position {@code (x0 + i * dx, y)} are written to {@code p}.
+     * 
+     * @param p object to receive image coordinates
+     */
+    void next(Point p);
+}
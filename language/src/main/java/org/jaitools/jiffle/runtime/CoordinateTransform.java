@@ -30,6 +30,11 @@ import java.awt.Point;
 /**
  * A transform used by Jiffle to convert from world (processing area) coordinates
  * to image (pixel) coordinates.
+ * <p>
+ * Transforms are called for every image read and write, so implementations
+ * should not allocate objects when a destination point is supplied. They should
+ * also hold no mutable state, so that a single instance can be shared between
+ * threads.
  *
  * @author Michael Bedward
  * @since 0.1
@@ -49,4 +54,23 @@ public interface CoordinateTransform {
      * @return image coordinates
      */
     Point worldToImage(double x, double y, Point p);
+    
+    /**
+     * Tests whether this is an identity transform, ie. one for which image
+     * coordinates are simply world coordinates rounded to integers. Jiffle's
+     * runtime classes skip calling the transform in this case.
+     * 
+     * @return {@code true} if this is an identity transform
+     */
+    boolean isIdentity();
+    
+    /**
+     * Creates a new object to convert world positions along a row to image
+     * coordinates by stepping incrementally. Results should match those of 
+     * {@link #worldToImage(double, double, Point)} apart from floating-point
+     * rounding differences.
+     * 
+     * @return a new stepper
+     */
+    CoordinateStepper createStepper();
 }
@@ -52,4 +52,39 @@ public class IdentityCoordinateTransform implements CoordinateTransform {
         }
         return p;
     }
+
+    /**
+     * Always returns {@code true}.
+     */
+    public boolean isIdentity() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CoordinateStepper createStepper() {
+        return new Stepper();
+    }
+    
+    /**
+     * Steps along a row, rounding world X ordinates.
+     */
+    private static class Stepper implements CoordinateStepper {
+        private double x0;
+        private double dx;
+        private int index;
+        
+        public void startRow(double x0, double y, double dx, Point p) {
+            this.x0 = x0;
+            this.dx = dx;
+            index = 0;
+            p.x = (int) Math.round(x0);
+            p.y = (int) Math.round(y);
+        }
+
+        public void next(Point p) {
+            p.x = (int) Math.round(x0 + ++index * dx);
+        }
+    }
 }
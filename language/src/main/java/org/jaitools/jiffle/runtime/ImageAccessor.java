@@ -0,0 +1,595 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.awt.image.WritableRenderedImage;
+
+/**
+ * Provides fast access to image samples by working directly with the
+ * tiles of an image. The {@code Raster} of the current tile is cached, and
+ * a new tile is only retrieved when a requested position lies outside it. 
+ * For images with a {@code ComponentSampleModel} (which includes the 
+ * pixel-interleaved and banded sample models used by {@code TiledImage}),
+ * samples are read from and written to the tile's data arrays directly; 
+ * for other sample models the {@code Raster} methods are used.
+ * <p>
+ * Values written to integral images are saturated: they are truncated and 
+ * then clamped to the range of the data type (or, for packed sample models,
+ * the range of the sample bits). NaN is written as 0.
+ * <p>
+ * Accessors hold state and should only be used by a single thread. When
+ * writing, {@link #done()} should be called when finished so that the
+ * current tile can be released.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ImageAccessor {
+    
+    private final RenderedImage image;
+    private final WritableRenderedImage writableImage;
+    
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int tileGridXOffset;
+    private final int tileGridYOffset;
+    
+    private final int dataType;
+    private final boolean direct;
+    private final int pixelStride;
+    private final int scanlineStride;
+    private final int[] bandOffsets;
+    private final int[] bankIndices;
+    
+    /* Maximum sample values for packed sample models, by band */
+    private final double[] packedMax;
+    
+    /* Current tile */
+    private boolean haveTile;
+    private int tileX, tileY;
+    private int tileMinX, tileMinY, tileMaxX, tileMaxY;
+    private Raster raster;
+    private WritableRaster writableRaster;
+    
+    /* Index of each band's sample for pixel 0,0 in the current tile's data arrays */
+    private final int[] bandBase;
+    
+    /* Data arrays for the current tile, by band (only one is used) */
+    private byte[][] byteData;
+    private short[][] shortData;
+    private int[][] intData;
+    private float[][] floatData;
+    private double[][] doubleData;
+
+    /**
+     * Creates a new accessor for reading from an image.
+     * 
+     * @param image the image
+     */
+    public ImageAccessor(RenderedImage image) {
+        this(image, null);
+    }
+    
+    /**
+     * Creates a new accessor for reading from and writing to an image.
+     * 
+     * @param image the image
+     */
+    public ImageAccessor(WritableRenderedImage image) {
+        this(image, image);
+    }
+    
+    private ImageAccessor(RenderedImage image, WritableRenderedImage writableImage) {
+        this.image = image;
+        this.writableImage = writableImage;
+        
+        tileWidth = image.getTileWidth();
+        tileHeight = image.getTileHeight();
+        tileGridXOffset = image.getTileGridXOffset();
+        tileGridYOffset = image.getTileGridYOffset();
+        
+        SampleModel sm = image.getSampleModel();
+        dataType = sm.getDataType();
+        
+        if (sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            direct = true;
+            pixelStride = csm.getPixelStride();
+            scanlineStride = csm.getScanlineStride();
+            bandOffsets = csm.getBandOffsets();
+            bankIndices = csm.getBankIndices();
+            
+        } else {
+            direct = false;
+            pixelStride = 0;
+            scanlineStride = 0;
+            bandOffsets = null;
+            bankIndices = null;
+        }
+        
+        if (!direct && dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE) {
+            packedMax = new double[sm.getNumBands()];
+            for (int b = 0; b < packedMax.length; b++) {
+                packedMax[b] = (double) ((1L << sm.getSampleSize(b)) - 1);
+            }
+        } else {
+            packedMax = null;
+        }
+        
+        bandBase = new int[sm.getNumBands()];
+        haveTile = false;
+    }
+
+    /**
+     * Gets the image that this accessor works with.
+     * 
+     * @return the image
+     */
+    public RenderedImage getImage() {
+        return image;
+    }
+    
+    /**
+     * Gets the data type of the image.
+     * 
+     * @return data type as a {@code DataBuffer} constant
+     */
+    public int getDataType() {
+        return dataType;
+    }
+    
+    /**
+     * Gets a sample value. The position must be within the image bounds.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getSample(int x, int y, int band) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return getByteSample(x, y, band);
+                
+            case DataBuffer.TYPE_USHORT:
+                return getUShortSample(x, y, band);
+                
+            case DataBuffer.TYPE_SHORT:
+                return getShortSample(x, y, band);
+                
+            case DataBuffer.TYPE_INT:
+                return getIntSample(x, y, band);
+                
+            case DataBuffer.TYPE_FLOAT:
+                return getFloatSample(x, y, band);
+                
+            case DataBuffer.TYPE_DOUBLE:
+                return getDoubleSample(x, y, band);
+                
+            default:
+                readIndex(x, y, band);
+                return raster.getSampleDouble(x, y, band);
+        }
+    }
+    
+    /**
+     * Sets a sample value. The position must be within the image bounds.
+     * Values are saturated to the range of the image data type.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     * 
+     * @throws UnsupportedOperationException if the accessor was created
+     *         for reading only
+     */
+    public void setSample(int x, int y, int band, double value) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                setByteSample(x, y, band, value);
+                break;
+                
+            case DataBuffer.TYPE_USHORT:
+                setUShortSample(x, y, band, value);
+                break;
+                
+            case DataBuffer.TYPE_SHORT:
+                setShortSample(x, y, band, value);
+                break;
+                
+            case DataBuffer.TYPE_INT:
+                setIntSample(x, y, band, value);
+                break;
+                
+            case DataBuffer.TYPE_FLOAT:
+                setFloatSample(x, y, band, value);
+                break;
+                
+            case DataBuffer.TYPE_DOUBLE:
+                setDoubleSample(x, y, band, value);
+                break;
+                
+            default:
+                writeIndex(x, y, band);
+                writeRasterSample(x, y, band, value);
+        }
+    }
+    
+    /*
+     * The following methods read and write samples for a specific image
+     * data type without further checking. They must only be used with images
+     * of that type.
+     */
+
+    /**
+     * Gets a sample value from a {@code TYPE_BYTE} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getByteSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? byteData[band][i] & 0xff : raster.getSample(x, y, band);
+    }
+
+    /**
+     * Gets a sample value from a {@code TYPE_USHORT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getUShortSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? shortData[band][i] & 0xffff : raster.getSample(x, y, band);
+    }
+
+    /**
+     * Gets a sample value from a {@code TYPE_SHORT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getShortSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? shortData[band][i] : raster.getSample(x, y, band);
+    }
+
+    /**
+     * Gets a sample value from a {@code TYPE_INT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getIntSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? intData[band][i] : raster.getSample(x, y, band);
+    }
+
+    /**
+     * Gets a sample value from a {@code TYPE_FLOAT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getFloatSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? floatData[band][i] : raster.getSampleFloat(x, y, band);
+    }
+
+    /**
+     * Gets a sample value from a {@code TYPE_DOUBLE} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * 
+     * @return the sample value
+     */
+    public double getDoubleSample(int x, int y, int band) {
+        int i = readIndex(x, y, band);
+        return direct ? doubleData[band][i] : raster.getSampleDouble(x, y, band);
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_BYTE} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setByteSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            byteData[band][i] = (byte) (value > 0 ? (value < 255 ? (int) value : 255) : 0);
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_USHORT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setUShortSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            shortData[band][i] = (short) (value > 0 ? (value < 65535 ? (int) value : 65535) : 0);
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_SHORT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setShortSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            shortData[band][i] = (short) (value > Short.MIN_VALUE 
+                    ? (value < Short.MAX_VALUE ? (int) value : Short.MAX_VALUE) 
+                    : (value == value ? Short.MIN_VALUE : 0));
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_INT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setIntSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            // the cast saturates and converts NaN to 0
+            intData[band][i] = (int) value;
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_FLOAT} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setFloatSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            floatData[band][i] = (float) value;
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+
+    /**
+     * Sets a sample value in a {@code TYPE_DOUBLE} image.
+     * 
+     * @param x image X ordinate
+     * @param y image Y ordinate
+     * @param band image band
+     * @param value the value
+     */
+    public void setDoubleSample(int x, int y, int band, double value) {
+        int i = writeIndex(x, y, band);
+        if (direct) {
+            doubleData[band][i] = value;
+        } else {
+            writeRasterSample(x, y, band, value);
+        }
+    }
+    
+    /**
+     * Releases the current tile. This should be called after writing to 
+     * the image. It is safe to call this method at any time; the accessor
+     * will retrieve a tile again as required.
+     */
+    public void done() {
+        if (haveTile && writableImage != null) {
+            writableImage.releaseWritableTile(tileX, tileY);
+        }
+        haveTile = false;
+        raster = null;
+        writableRaster = null;
+    }
+
+    /**
+     * Retrieves the tile containing the given image position and 
+     * prepares it for sample access.
+     */
+    private void setTile(int x, int y) {
+        done();
+        
+        tileX = floorDiv(x - tileGridXOffset, tileWidth);
+        tileY = floorDiv(y - tileGridYOffset, tileHeight);
+        
+        if (writableImage != null) {
+            writableRaster = writableImage.getWritableTile(tileX, tileY);
+            raster = writableRaster;
+        } else {
+            raster = image.getTile(tileX, tileY);
+        }
+        
+        tileMinX = raster.getMinX();
+        tileMinY = raster.getMinY();
+        tileMaxX = tileMinX + raster.getWidth();
+        tileMaxY = tileMinY + raster.getHeight();
+        haveTile = true;
+        
+        if (direct) {
+            setData(raster);
+        }
+    }
+    
+    /**
+     * Gets references to the data arrays of a tile and calculates the 
+     * offset of each band's first sample.
+     */
+    private void setData(Raster r) {
+        DataBuffer db = r.getDataBuffer();
+        final int numBands = bandBase.length;
+        final int origin = r.getSampleModelTranslateY() * scanlineStride
+                + r.getSampleModelTranslateX() * pixelStride;
+        
+        for (int b = 0; b < numBands; b++) {
+            bandBase[b] = db.getOffsets()[bankIndices[b]] + bandOffsets[b] - origin;
+        }
+        
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                byteData = new byte[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    byteData[b] = ((DataBufferByte) db).getData(bankIndices[b]);
+                }
+                break;
+                
+            case DataBuffer.TYPE_USHORT:
+                shortData = new short[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    shortData[b] = ((DataBufferUShort) db).getData(bankIndices[b]);
+                }
+                break;
+                
+            case DataBuffer.TYPE_SHORT:
+                shortData = new short[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    shortData[b] = ((DataBufferShort) db).getData(bankIndices[b]);
+                }
+                break;
+                
+            case DataBuffer.TYPE_INT:
+                intData = new int[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    intData[b] = ((DataBufferInt) db).getData(bankIndices[b]);
+                }
+                break;
+                
+            case DataBuffer.TYPE_FLOAT:
+                floatData = new float[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    floatData[b] = ((DataBufferFloat) db).getData(bankIndices[b]);
+                }
+                break;
+                
+            case DataBuffer.TYPE_DOUBLE:
+                doubleData = new double[numBands][];
+                for (int b = 0; b < numBands; b++) {
+                    doubleData[b] = ((DataBufferDouble) db).getData(bankIndices[b]);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Ensures that the tile containing a position is current and returns
+     * the index of the sample in the tile's data array (only meaningful
+     * when the sample model allows direct access).
+     */
+    private int readIndex(int x, int y, int band) {
+        if (!haveTile || x < tileMinX || x >= tileMaxX || y < tileMinY || y >= tileMaxY) {
+            setTile(x, y);
+        }
+        return bandBase[band] + y * scanlineStride + x * pixelStride;
+    }
+    
+    /**
+     * As for {@link #readIndex(int, int, int)} but first checks that 
+     * the image is writable.
+     */
+    private int writeIndex(int x, int y, int band) {
+        if (writableImage == null) {
+            throw new UnsupportedOperationException("Image is not writable");
+        }
+        return readIndex(x, y, band);
+    }
+    
+    /**
+     * Writes a sample value using the tile's {@code Raster} methods.
+     * Values for packed sample models are saturated to the sample range.
+     */
+    private void writeRasterSample(int x, int y, int band, double value) {
+        if (packedMax != null) {
+            double max = packedMax[band];
+            writableRaster.setSample(x, y, band, value > 0 ? (value < max ? (int) value : max) : 0);
+        } else {
+            writableRaster.setSample(x, y, band, value);
+        }
+    }
+    
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        if ((a % b != 0) && ((a < 0) != (b < 0))) {
+            q-- ;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,1229 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.tree.CommonTree;
+
+import org.jaitools.jiffle.JiffleException;
+import org.jaitools.jiffle.parser.ConstantLookup;
+import org.jaitools.jiffle.parser.FunctionInfo;
+import org.jaitools.jiffle.parser.FunctionLookup;
+import org.jaitools.jiffle.parser.JiffleParser;
+import org.jaitools.jiffle.parser.UndefinedFunctionException;
+
+
+/**
+ * A direct runtime which evaluates a compiled script by walking its final
+ * AST rather than by generating and compiling a runtime class. 
+ * <p>
+ * Creating an instance takes a few milliseconds, compared to the much 
+ * longer time needed to compile a runtime class, but pixels are evaluated 
+ * more slowly. This makes it the better choice when the processing area 
+ * is small, e.g. when previewing a script. Instances are normally obtained 
+ * with {@code Jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INTERPRETED)}.
+ * <p>
+ * The constructor resolves the AST once into a tree of evaluator nodes, 
+ * with variables bound to array slots and functions to methods, so that
+ * no name lookups are done per pixel. Run and row-invariant expressions
+ * are evaluated once per run and row as with generated runtime classes.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InterpretedRuntime extends AbstractDirectRuntime {
+    
+    /** Evaluates an expression with a scalar value. */
+    private abstract class Expr {
+        abstract double eval();
+    }
+    
+    /** Evaluates an expression with a list value. */
+    private abstract class ListExpr {
+        abstract List eval();
+    }
+    
+    /** 
+     * Executes a statement. Returns {@code false} if a break was 
+     * executed, otherwise {@code true}.
+     */
+    private abstract class Stmt {
+        abstract boolean exec();
+    }
+    
+    /** A pixel-scope variable slot. */
+    private static class Local {
+        final int slot;
+        final boolean isList;
+
+        Local(int slot, boolean isList) {
+            this.slot = slot;
+            this.isList = isList;
+        }
+    }
+    
+    private final CommonTree ast;
+    
+    private double _x;
+    private double _y;
+    
+    private double[] locals;
+    private List[] listLocals;
+    private int numLocals;
+    private int numListLocals;
+    
+    private final List<Map<String, Local>> scopes = new ArrayList<Map<String, Local>>();
+    private final Map<String, Integer> imageScopeIndices = new HashMap<String, Integer>();
+    
+    private final List<Expr> runInvariants = new ArrayList<Expr>();
+    private final List<Expr> rowInvariants = new ArrayList<Expr>();
+    private double[] runValues;
+    private double[] rowValues;
+    
+    private Expr[] defaultValues;
+    private Stmt body;
+    
+    private boolean outsideOptionSet;
+    private double outsideOptionValue;
+    private boolean imageScopeVarsWritten;
+    
+    
+    /**
+     * Creates a new runtime object for a compiled script.
+     * 
+     * @param ast the final AST produced by the Jiffle compiler
+     * 
+     * @throws JiffleException if the AST contains unsupported constructs
+     */
+    public InterpretedRuntime(CommonTree ast) throws JiffleException {
+        this.ast = ast;
+        
+        List<CommonTree> decls = new ArrayList<CommonTree>();
+        List<CommonTree> statements = new ArrayList<CommonTree>();
+        
+        if (ast.isNil()) {
+            for (int i = 0; i < ast.getChildCount(); i++) {
+                CommonTree node = child(ast, i);
+                switch (node.getType()) {
+                    case JiffleParser.JIFFLE_OPTION:
+                        readOption(node);
+                        break;
+                        
+                    case JiffleParser.DECL:
+                        if (child(node, 0).getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+                            decls.add(node);
+                        }
+                        break;
+                        
+                    default:
+                        statements.add(node);
+                }
+            }
+        } else {
+            statements.add(ast);
+        }
+        
+        pushScope();
+        
+        defaultValues = new Expr[decls.size()];
+        for (int i = 0; i < decls.size(); i++) {
+            CommonTree decl = decls.get(i);
+            String name = child(decl, 0).getText();
+            boolean hasDefault = decl.getChildCount() > 1;
+            
+            registerVar(name, hasDefault);
+            imageScopeIndices.put(name, i);
+            if (hasDefault) {
+                defaultValues[i] = expr(child(decl, 1));
+            }
+        }
+        
+        final Stmt[] stmts = new Stmt[statements.size()];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = stmt(statements.get(i));
+        }
+        body = block(stmts);
+        
+        locals = new double[numLocals];
+        listLocals = new List[numListLocals];
+        runValues = new double[runInvariants.size()];
+        rowValues = new double[rowInvariants.size()];
+        
+        // the base class constructor called this before the script was read
+        initOptionVars();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void evaluatePixel(double x, double y) {
+        _x = x;
+        _y = y;
+        body.exec();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Double getDefaultValue(int index) {
+        Expr e = defaultValues[index];
+        return e == null ? null : Double.valueOf(e.eval());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initOptionVars() {
+        if (outsideOptionSet) {
+            _outsideValueSet = true;
+            _outsideValue = outsideOptionValue;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initRunInvariants() {
+        for (int i = 0; i < runValues.length; i++) {
+            runValues[i] = runInvariants.get(i).eval();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initRowInvariants(double y) {
+        _y = y;
+        for (int i = 0; i < rowValues.length; i++) {
+            rowValues[i] = rowInvariants.get(i).eval();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean writesImageScopeVars() {
+        return imageScopeVarsWritten;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Workers are created from the same AST as this object.
+     */
+    @Override
+    protected AbstractDirectRuntime newWorkerInstance() throws Exception {
+        return new InterpretedRuntime(ast);
+    }
+    
+    private void readOption(CommonTree node) throws JiffleException {
+        String name = child(node, 0).getText();
+        CommonTree value = child(node, 1);
+        
+        // "outside" is presently the only option (see OptionLookup)
+        if (!"outside".equalsIgnoreCase(name)) {
+            throw unsupported(node);
+        }
+        
+        switch (value.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                outsideOptionValue = Double.parseDouble(value.getText());
+                break;
+                
+            case JiffleParser.CONSTANT:
+                outsideOptionValue = ConstantLookup.getValue(value.getText());
+                break;
+                
+            default:
+                throw unsupported(value);
+        }
+        outsideOptionSet = true;
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Statements
+    
+    private Stmt stmt(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.BLOCK: {
+                pushScope();
+                Stmt[] stmts = new Stmt[node.getChildCount()];
+                for (int i = 0; i < stmts.length; i++) {
+                    stmts[i] = stmt(child(node, i));
+                }
+                popScope();
+                return block(stmts);
+            }
+                
+            case JiffleParser.IMAGE_WRITE: {
+                final int slot = slotFor(child(node, 0).getText());
+                final Expr value = expr(child(node, 1));
+                return new Stmt() {
+                    boolean exec() {
+                        writeToImage(slot, _x, _y, 0, value.eval());
+                        return true;
+                    }
+                };
+            }
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                return assignment(node);
+                
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL: {
+                final boolean isWhile = node.getType() == JiffleParser.WHILE;
+                final Expr cond = expr(child(node, 0));
+                final Stmt loopBody = stmt(child(node, 1));
+                return new Stmt() {
+                    boolean exec() {
+                        while ((_FN.sign(cond.eval()) == 1) == isWhile) {
+                            if (!loopBody.exec()) {
+                                break;
+                            }
+                        }
+                        return true;
+                    }
+                };
+            }
+                
+            case JiffleParser.FOREACH:
+                return foreach(node);
+                
+            case JiffleParser.BREAKIF: {
+                final Expr cond = expr(child(node, 0));
+                return new Stmt() {
+                    boolean exec() {
+                        return _FN.sign(cond.eval()) != 1;
+                    }
+                };
+            }
+                
+            case JiffleParser.BREAK:
+                return new Stmt() {
+                    boolean exec() {
+                        return false;
+                    }
+                };
+                
+            case JiffleParser.IF: {
+                final Expr cond = expr(child(node, 0));
+                final Stmt ifTrue = stmt(child(node, 1));
+                final Stmt ifFalse = node.getChildCount() > 2 ? stmt(child(node, 2)) : null;
+                return new Stmt() {
+                    boolean exec() {
+                        double sign = _FN.sign(cond.eval());
+                        if (!Double.isNaN(sign) && sign != 0) {
+                            return ifTrue.exec();
+                        } else if (ifFalse != null) {
+                            return ifFalse.exec();
+                        }
+                        return true;
+                    }
+                };
+            }
+                
+            case JiffleParser.APPEND: {
+                final int slot = getLocal(child(node, 0), true).slot;
+                final Expr value = expr(child(node, 1));
+                return new Stmt() {
+                    boolean exec() {
+                        listLocals[slot].add(value.eval());
+                        return true;
+                    }
+                };
+            }
+                
+            default: {
+                if (isListExpr(node)) {
+                    final ListExpr e = listExpr(node);
+                    return new Stmt() {
+                        boolean exec() {
+                            e.eval();
+                            return true;
+                        }
+                    };
+                }
+                
+                final Expr e = expr(node);
+                return new Stmt() {
+                    boolean exec() {
+                        e.eval();
+                        return true;
+                    }
+                };
+            }
+        }
+    }
+    
+    private Stmt block(final Stmt[] stmts) {
+        return new Stmt() {
+            boolean exec() {
+                for (Stmt s : stmts) {
+                    if (!s.exec()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+    
+    private Stmt assignment(CommonTree node) throws JiffleException {
+        CommonTree target = child(node, 0);
+        final int op = node.getType();
+        String name = target.getText();
+        
+        switch (target.getType()) {
+            case JiffleParser.VAR_LIST: {
+                if (op != JiffleParser.EQ) {
+                    throw unsupported(node);
+                }
+                final ListExpr value = listExpr(child(node, 1));
+                Local local = findLocal(name);
+                if (local == null || !local.isList) {
+                    local = declareLocal(name, true);
+                }
+                final int slot = local.slot;
+                return new Stmt() {
+                    boolean exec() {
+                        listLocals[slot] = value.eval();
+                        return true;
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_IMAGE_SCOPE: {
+                imageScopeVarsWritten = true;
+                final int index = getImageScopeIndex(target);
+                final Expr value = expr(child(node, 1));
+                return new Stmt() {
+                    boolean exec() {
+                        _vals[index] = assign(op, _vals[index], value.eval());
+                        return true;
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_PIXEL_SCOPE: {
+                final Expr value = expr(child(node, 1));
+                Local local = findLocal(name);
+                if (local == null) {
+                    if (op != JiffleParser.EQ) {
+                        throw unsupported(node);
+                    }
+                    local = declareLocal(name, false);
+                } else if (local.isList) {
+                    throw unsupported(node);
+                }
+                final int slot = local.slot;
+                return new Stmt() {
+                    boolean exec() {
+                        locals[slot] = assign(op, locals[slot], value.eval());
+                        return true;
+                    }
+                };
+            }
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private static double assign(int op, double current, double value) {
+        switch (op) {
+            case JiffleParser.TIMESEQ: return current * value;
+            case JiffleParser.DIVEQ: return current / value;
+            case JiffleParser.MODEQ: return current % value;
+            case JiffleParser.PLUSEQ: return current + value;
+            case JiffleParser.MINUSEQ: return current - value;
+            default: return value;
+        }
+    }
+    
+    private Stmt foreach(CommonTree node) throws JiffleException {
+        pushScope();
+        
+        final String varName = child(node, 0).getText();
+        CommonTree set = child(node, 1);
+        Stmt result;
+        
+        switch (set.getType()) {
+            case JiffleParser.SEQUENCE: {
+                final Expr lo = expr(child(set, 0));
+                final Expr hi = expr(child(set, 1));
+                final int slot = declareLocal(varName, false).slot;
+                final Stmt loopBody = stmt(child(node, 2));
+                result = new Stmt() {
+                    boolean exec() {
+                        // the loop variable is an int in generated code
+                        int end = (int) hi.eval();
+                        for (int i = (int) lo.eval(); i <= end; i++) {
+                            locals[slot] = i;
+                            if (!loopBody.exec()) {
+                                break;
+                            }
+                            i = (int) locals[slot];
+                        }
+                        return true;
+                    }
+                };
+                break;
+            }
+                
+            case JiffleParser.DECLARED_LIST: {
+                CommonTree exprList = child(set, 0);
+                final Expr[] values = new Expr[exprList.getChildCount()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = expr(child(exprList, i));
+                }
+                final int slot = declareLocal(varName, false).slot;
+                final Stmt loopBody = stmt(child(node, 2));
+                result = new Stmt() {
+                    boolean exec() {
+                        double[] v = new double[values.length];
+                        for (int i = 0; i < v.length; i++) {
+                            v[i] = values[i].eval();
+                        }
+                        for (int i = 0; i < v.length; i++) {
+                            locals[slot] = v[i];
+                            if (!loopBody.exec()) {
+                                break;
+                            }
+                        }
+                        return true;
+                    }
+                };
+                break;
+            }
+                
+            case JiffleParser.VAR_LIST: {
+                final int listSlot = getLocal(set, true).slot;
+                final int slot = declareLocal(varName, false).slot;
+                final Stmt loopBody = stmt(child(node, 2));
+                result = new Stmt() {
+                    boolean exec() {
+                        Iterator iter = listLocals[listSlot].iterator();
+                        while (iter.hasNext()) {
+                            locals[slot] = ((Number) iter.next()).doubleValue();
+                            if (!loopBody.exec()) {
+                                break;
+                            }
+                        }
+                        return true;
+                    }
+                };
+                break;
+            }
+                
+            default:
+                throw unsupported(set);
+        }
+        
+        popScope();
+        return result;
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Expressions
+    
+    private Expr expr(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.FUNC_CALL:
+                return functionCall(node, child(node, 0).getText(), children(child(node, 1)));
+                
+            case JiffleParser.CON_CALL:
+                return con(children(child(node, 0)));
+                
+            case JiffleParser.IMAGE_POS:
+                return imagePos(node);
+                
+            case JiffleParser.VAR_SOURCE:
+                return imageRead(slotFor(node.getText()), null, null, null);
+                
+            case JiffleParser.POW: {
+                final Expr a = expr(child(node, 0));
+                final Expr b = expr(child(node, 1));
+                return new Expr() {
+                    double eval() {
+                        return Math.pow(a.eval(), b.eval());
+                    }
+                };
+            }
+                
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+                return logical(node);
+                
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+                return arithmetic(node);
+                
+            case JiffleParser.PREFIX:
+                return prefix(node);
+                
+            case JiffleParser.POSTFIX:
+                return increment(child(node, 1), child(node, 0).getType(), false);
+                
+            case JiffleParser.PAR:
+                return expr(child(node, 0));
+                
+            case JiffleParser.RUN_INVARIANT: {
+                final int index = runInvariants.size();
+                runInvariants.add(expr(child(node, 0)));
+                return new Expr() {
+                    double eval() {
+                        return runValues[index];
+                    }
+                };
+            }
+                
+            case JiffleParser.ROW_INVARIANT: {
+                final int index = rowInvariants.size();
+                rowInvariants.add(expr(child(node, 0)));
+                return new Expr() {
+                    double eval() {
+                        return rowValues[index];
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_IMAGE_SCOPE: {
+                final int index = getImageScopeIndex(node);
+                return new Expr() {
+                    double eval() {
+                        return _vals[index];
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+            case JiffleParser.VAR_LOOP: {
+                final int slot = getLocal(node, false).slot;
+                return new Expr() {
+                    double eval() {
+                        return locals[slot];
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_PROVIDED:
+                return proxy(node, node.getText());
+                
+            case JiffleParser.CONSTANT:
+                return constant(ConstantLookup.getValue(node.getText()));
+                
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                return constant(Double.parseDouble(node.getText()));
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private Expr constant(final double value) {
+        return new Expr() {
+            double eval() {
+                return value;
+            }
+        };
+    }
+    
+    private boolean isListExpr(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.DECLARED_LIST:
+            case JiffleParser.VAR_LIST:
+                return true;
+                
+            case JiffleParser.FUNC_CALL:
+                return "List".equals(getFunctionInfo(
+                        child(node, 0).getText(), children(child(node, 1))).getReturnType());
+                
+            case JiffleParser.PAR:
+                return isListExpr(child(node, 0));
+                
+            default:
+                return false;
+        }
+    }
+    
+    private ListExpr listExpr(CommonTree node) throws JiffleException {
+        switch (node.getType()) {
+            case JiffleParser.DECLARED_LIST: {
+                List<CommonTree> elements = children(child(node, 0));
+                final Expr[] values = new Expr[elements.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = expr(elements.get(i));
+                }
+                return new ListExpr() {
+                    List eval() {
+                        List list = new ArrayList(values.length);
+                        for (Expr e : values) {
+                            list.add(e.eval());
+                        }
+                        return list;
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_LIST: {
+                final int slot = getLocal(node, true).slot;
+                return new ListExpr() {
+                    List eval() {
+                        return listLocals[slot];
+                    }
+                };
+            }
+                
+            case JiffleParser.FUNC_CALL: {
+                final Invoker invoker = new Invoker(
+                        child(node, 0).getText(), children(child(node, 1)));
+                return new ListExpr() {
+                    List eval() {
+                        return (List) invoker.invoke();
+                    }
+                };
+            }
+                
+            case JiffleParser.PAR:
+                return listExpr(child(node, 0));
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private Expr arithmetic(CommonTree node) throws JiffleException {
+        if (node.getChildCount() != 2) {
+            throw unsupported(node);
+        }
+        
+        final Expr a = expr(child(node, 0));
+        final Expr b = expr(child(node, 1));
+        switch (node.getType()) {
+            case JiffleParser.TIMES:
+                return new Expr() {
+                    double eval() {
+                        return a.eval() * b.eval();
+                    }
+                };
+                
+            case JiffleParser.DIV:
+                return new Expr() {
+                    double eval() {
+                        return a.eval() / b.eval();
+                    }
+                };
+                
+            case JiffleParser.MOD:
+                return new Expr() {
+                    double eval() {
+                        return a.eval() % b.eval();
+                    }
+                };
+                
+            case JiffleParser.PLUS:
+                return new Expr() {
+                    double eval() {
+                        return a.eval() + b.eval();
+                    }
+                };
+                
+            default:
+                return new Expr() {
+                    double eval() {
+                        return a.eval() - b.eval();
+                    }
+                };
+        }
+    }
+    
+    private Expr logical(CommonTree node) throws JiffleException {
+        final int type = node.getType();
+        final Expr a = expr(child(node, 0));
+        final Expr b = expr(child(node, 1));
+        return new Expr() {
+            double eval() {
+                double x = a.eval();
+                double y = b.eval();
+                switch (type) {
+                    case JiffleParser.OR: return _FN.OR(x, y);
+                    case JiffleParser.XOR: return _FN.XOR(x, y);
+                    case JiffleParser.AND: return _FN.AND(x, y);
+                    case JiffleParser.LOGICALEQ: return _FN.EQ(x, y);
+                    case JiffleParser.NE: return _FN.NE(x, y);
+                    case JiffleParser.GT: return _FN.GT(x, y);
+                    case JiffleParser.GE: return _FN.GE(x, y);
+                    case JiffleParser.LT: return _FN.LT(x, y);
+                    default: return _FN.LE(x, y);
+                }
+            }
+        };
+    }
+    
+    private Expr prefix(CommonTree node) throws JiffleException {
+        int op = child(node, 0).getType();
+        CommonTree target = child(node, 1);
+        
+        switch (op) {
+            case JiffleParser.NOT: {
+                final Expr e = expr(target);
+                return new Expr() {
+                    double eval() {
+                        return _FN.NOT(e.eval());
+                    }
+                };
+            }
+                
+            case JiffleParser.PLUS:
+                return expr(target);
+                
+            case JiffleParser.MINUS: {
+                final Expr e = expr(target);
+                return new Expr() {
+                    double eval() {
+                        return -e.eval();
+                    }
+                };
+            }
+                
+            case JiffleParser.INCR:
+            case JiffleParser.DECR:
+                return increment(target, op, true);
+                
+            default:
+                throw unsupported(node);
+        }
+    }
+    
+    private Expr increment(CommonTree target, int op, final boolean isPrefix) 
+            throws JiffleException {
+        
+        final double delta;
+        switch (op) {
+            case JiffleParser.INCR: delta = 1; break;
+            case JiffleParser.DECR: delta = -1; break;
+            default: throw unsupported(target);
+        }
+        
+        switch (target.getType()) {
+            case JiffleParser.VAR_IMAGE_SCOPE: {
+                imageScopeVarsWritten = true;
+                final int index = getImageScopeIndex(target);
+                return new Expr() {
+                    double eval() {
+                        double old = _vals[index];
+                        _vals[index] = old + delta;
+                        return isPrefix ? old + delta : old;
+                    }
+                };
+            }
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+            case JiffleParser.VAR_LOOP: {
+                final int slot = getLocal(target, false).slot;
+                return new Expr() {
+                    double eval() {
+                        double old = locals[slot];
+                        locals[slot] = old + delta;
+                        return isPrefix ? old + delta : old;
+                    }
+                };
+            }
+                
+            default:
+                throw unsupported(target);
+        }
+    }
+    
+    private Expr con(List<CommonTree> args) throws JiffleException {
+        final Expr cond = expr(args.get(0));
+        
+        switch (args.size()) {
+            case 1:
+                return new Expr() {
+                    double eval() {
+                        double sign = _FN.sign(cond.eval());
+                        return Double.isNaN(sign) ? Double.NaN : (sign != 0 ? 1 : 0);
+                    }
+                };
+                
+            case 2: {
+                final Expr a = expr(args.get(1));
+                return new Expr() {
+                    double eval() {
+                        double sign = _FN.sign(cond.eval());
+                        return Double.isNaN(sign) ? Double.NaN : (sign != 0 ? a.eval() : 0);
+                    }
+                };
+            }
+                
+            case 3: {
+                final Expr a = expr(args.get(1));
+                final Expr b = expr(args.get(2));
+                return new Expr() {
+                    double eval() {
+                        double sign = _FN.sign(cond.eval());
+                        return Double.isNaN(sign) ? Double.NaN : (sign != 0 ? a.eval() : b.eval());
+                    }
+                };
+            }
+                
+            case 4: {
+                final Expr a = expr(args.get(1));
+                final Expr b = expr(args.get(2));
+                final Expr c = expr(args.get(3));
+                return new Expr() {
+                    double eval() {
+                        double sign = _FN.sign(cond.eval());
+                        if (Double.isNaN(sign)) {
+                            return Double.NaN;
+                        }
+                        return sign == 1 ? a.eval() : (sign == 0 ? b.eval() : c.eval());
+                    }
+                };
+            }
+                
+            default:
+                throw new JiffleException("Invalid number of arguments for con: " + args.size());
+        }
+    }
+    
+    private Expr imagePos(CommonTree node) throws JiffleException {
+        CommonTree band = null;
+        CommonTree pixel = null;
+        for (int i = 1; i < node.getChildCount(); i++) {
+            CommonTree spec = child(node, i);
+            if (spec.getType() == JiffleParser.BAND_REF) {
+                band = child(spec, 0);
+            } else if (spec.getType() == JiffleParser.PIXEL_REF) {
+                pixel = spec;
+            } else {
+                throw unsupported(spec);
+            }
+        }
+        
+        int slot = slotFor(child(node, 0).getText());
+        if (pixel == null) {
+            return imageRead(slot, null, null, band);
+        }
+        return imageRead(slot, child(pixel, 0), child(pixel, 1), band);
+    }
+    
+    private Expr imageRead(final int slot, CommonTree xPos, CommonTree yPos, CommonTree band) 
+            throws JiffleException {
+        
+        final Expr bandExpr = band == null ? null : expr(band);
+        if (xPos == null) {
+            return new Expr() {
+                double eval() {
+                    int b = bandExpr == null ? 0 : (int) bandExpr.eval();
+                    return readFromImage(slot, _x, _y, b);
+                }
+            };
+        }
+        
+        final boolean xRel = isRelative(xPos);
+        final boolean yRel = isRelative(yPos);
+        final Expr xExpr = expr(child(xPos, 0));
+        final Expr yExpr = expr(child(yPos, 0));
+        return new Expr() {
+            double eval() {
+                double x = xRel ? _x + xExpr.eval() : xExpr.eval();
+                double y = yRel ? _y + yExpr.eval() : yExpr.eval();
+                int b = bandExpr == null ? 0 : (int) bandExpr.eval();
+                return readFromImage(slot, x, y, b);
+            }
+        };
+    }
+    
+    private boolean isRelative(CommonTree pos) throws JiffleException {
+        switch (pos.getType()) {
+            case JiffleParser.REL_POS: return true;
+            case JiffleParser.ABS_POS: return false;
+            default: throw unsupported(pos);
+        }
+    }
+    
+    private Expr functionCall(CommonTree node, String name, List<CommonTree> args) 
+            throws JiffleException {
+        
+        FunctionInfo info = getFunctionInfo(name, args);
+        if (info.isProxy()) {
+            return proxy(node, info.getRuntimeName());
+        }
+        if (!"D".equals(info.getReturnType())) {
+            throw unsupported(node);
+        }
+        
+        final Invoker invoker = new Invoker(name, args);
+        return new Expr() {
+            double eval() {
+                return ((Number) invoker.invoke()).doubleValue();
+            }
+        };
+    }
+    
+    /**
+     * Handles proxy functions such as {@code x()} and {@code width()}. 
+     * The runtime expression is the one used in generated source: e.g.
+     * {@code (double)_x} or {@code getXRes()}.
+     */
+    private Expr proxy(CommonTree node, String runtimeExpr) throws JiffleException {
+        String s = runtimeExpr.trim();
+        if (s.startsWith("(double)")) {
+            s = s.substring("(double)".length()).trim();
+        }
+        
+        if ("_x".equals(s)) {
+            return new Expr() {
+                double eval() {
+                    return _x;
+                }
+            };
+            
+        } else if ("_y".equals(s)) {
+            return new Expr() {
+                double eval() {
+                    return _y;
+                }
+            };
+            
+        } else if (s.endsWith("()")) {
+            final Method method = findMethod(node, getClass(), s.substring(0, s.length() - 2));
+            return new Expr() {
+                double eval() {
+                    return ((Number) invoke(method, InterpretedRuntime.this)).doubleValue();
+                }
+            };
+        }
+        
+        throw unsupported(node);
+    }
+    
+    /**
+     * Calls a function defined in {@link FunctionLookup} by reflection.
+     */
+    private class Invoker {
+        private final Method method;
+        private final Object target;
+        private final Expr[] scalarArgs;
+        private final ListExpr[] listArgs;
+        private final Object[] values;
+        
+        Invoker(String name, List<CommonTree> args) throws JiffleException {
+            FunctionInfo info = getFunctionInfo(name, args);
+            
+            int n = args.size();
+            Class<?>[] paramTypes = new Class<?>[n];
+            scalarArgs = new Expr[n];
+            listArgs = new ListExpr[n];
+            values = new Object[n];
+            
+            for (int i = 0; i < n; i++) {
+                CommonTree arg = args.get(i);
+                if (isListExpr(arg)) {
+                    paramTypes[i] = List.class;
+                    listArgs[i] = listExpr(arg);
+                } else {
+                    paramTypes[i] = double.class;
+                    scalarArgs[i] = expr(arg);
+                }
+            }
+            
+            try {
+                switch (info.getProvider()) {
+                    case MATH:
+                        method = Math.class.getMethod(info.getRuntimeName(), paramTypes);
+                        target = null;
+                        break;
+                        
+                    case JIFFLE:
+                        method = JiffleFunctions.class.getMethod(info.getRuntimeName(), paramTypes);
+                        target = _FN;
+                        break;
+                        
+                    default:
+                        throw new JiffleException("Unsupported function provider for " + name);
+                }
+            } catch (NoSuchMethodException ex) {
+                throw new JiffleException("No runtime method for function " + name);
+            }
+        }
+        
+        Object invoke() {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = scalarArgs[i] != null ? 
+                        (Object) scalarArgs[i].eval() : listArgs[i].eval();
+            }
+            return InterpretedRuntime.invoke(method, target, values);
+        }
+    }
+    
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+            
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JiffleRuntimeException(cause.toString());
+            
+        } catch (IllegalAccessException ex) {
+            throw new JiffleRuntimeException(ex.toString());
+        }
+    }
+    
+    private FunctionInfo getFunctionInfo(String name, List<CommonTree> args) 
+            throws JiffleException {
+        
+        List<String> argTypes = new ArrayList<String>();
+        for (CommonTree arg : args) {
+            argTypes.add(isListExpr(arg) ? "List" : "D");
+        }
+        
+        try {
+            return FunctionLookup.getInfo(name, argTypes);
+        } catch (UndefinedFunctionException ex) {
+            throw new JiffleException(ex);
+        }
+    }
+    
+    
+    /////////////////////////////////////////////////////////////////////
+    // Variables and helpers
+    
+    private void pushScope() {
+        scopes.add(new HashMap<String, Local>());
+    }
+    
+    private void popScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+    
+    private Local declareLocal(String name, boolean isList) {
+        Local local = new Local(isList ? numListLocals++ : numLocals++, isList);
+        scopes.get(scopes.size() - 1).put(name, local);
+        return local;
+    }
+    
+    private Local findLocal(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+    
+    private Local getLocal(CommonTree node, boolean isList) throws JiffleException {
+        Local local = findLocal(node.getText());
+        if (local == null || local.isList != isList) {
+            throw unsupported(node);
+        }
+        return local;
+    }
+    
+    private int getImageScopeIndex(CommonTree node) throws JiffleException {
+        Integer index = imageScopeIndices.get(node.getText());
+        if (index == null) {
+            throw unsupported(node);
+        }
+        return index;
+    }
+    
+    /**
+     * Gets the slot for an image variable, registering the variable when 
+     * it is first referenced in the script.
+     */
+    private int slotFor(String varName) {
+        int slot = getImageSlot(varName);
+        return slot >= 0 ? slot : registerImageVar(varName);
+    }
+    
+    private static Method findMethod(CommonTree node, Class<?> clazz, String name) 
+            throws JiffleException {
+        
+        try {
+            return clazz.getMethod(name);
+        } catch (NoSuchMethodException ex) {
+            throw new JiffleException("No runtime method for " + node.getText());
+        }
+    }
+    
+    private static CommonTree child(CommonTree node, int index) {
+        return (CommonTree) node.getChild(index);
+    }
+    
+    private static List<CommonTree> children(CommonTree node) {
+        List<CommonTree> list = new ArrayList<CommonTree>();
+        for (int i = 0; i < node.getChildCount(); i++) {
+            list.add(child(node, i));
+        }
+        return list;
+    }
+    
+    private static JiffleException unsupported(CommonTree node) {
+        return new JiffleException("Interpreter does not support " + 
+                JiffleParser.tokenNames[node.getType()] + " (" + node.getText() + 
+                ") at line " + node.getLine());
+    }
+}
@@ -131,6 +131,23 @@ public interface JiffleDirectRuntime extends JiffleRuntime {
      */
     void evaluateAll(JiffleProgressListener pl);
     
+    /**
+     * Evaluates the script for all pixel locations within the world bounds
+     * using multiple threads. The processing area is divided into tiles 
+     * which are evaluated concurrently. Progress is reported through the
+     * listener as a single stream for all threads.
+     * <p>
+     * This is intended for scripts which do not assign values to image-scope
+     * variables during evaluation. Scripts which do are evaluated on a single
+     * thread. Any coordinate transforms used with images must be safe for
+     * use by concurrent threads.
+     * 
+     * @param pl an optional progress listener (may be {@code null}
+     * @param numThreads number of threads to use; if less than 1 the number
+     *        of available processors is used
+     */
+    void evaluateAll(JiffleProgressListener pl, int numThreads);
+    
     /**
      * Gets a value from a source image for a given world position and
      * image band.
@@ -144,6 +161,21 @@ public interface JiffleDirectRuntime extends JiffleRuntime {
      */
     double readFromImage(String srcImageName, double x, double y, int band);
     
+    /**
+     * Gets a value from a source image for a given world position and
+     * image band. This form of the method, which refers to the image by
+     * the index of its slot in the runtime object, is used by generated 
+     * runtime classes to avoid looking up images by name for each pixel.
+     * 
+     * @param slot index of the image slot
+     * @param x source X ordinate in world units
+     * @param y source Y ordinate in world units
+     * @param band source band
+     * 
+     * @return image value
+     */
+    double readFromImage(int slot, double x, double y, int band);
+    
     /**
      * Writes a value to a destination image for a given world position and
      * image band.
@@ -157,6 +189,21 @@ public interface JiffleDirectRuntime extends JiffleRuntime {
      */
     void writeToImage(String destImageName, double x, double y, int band, double value);
 
+    /**
+     * Writes a value to a destination image for a given world position and
+     * image band. This form of the method, which refers to the image by
+     * the index of its slot in the runtime object, is used by generated 
+     * runtime classes to avoid looking up images by name for each pixel.
+     * 
+     * @param slot index of the image slot
+     * @param x destination X ordinate in world units
+     * @param y destination Y ordinate in world units
+     * @param band destination band
+     * 
+     * @param value the value to write
+     */
+    void writeToImage(int slot, double x, double y, int band, double value);
+
     /**
      * Gets the images used by this object and returns them as a {@code Map}
      * with variable names as keys and images as values.
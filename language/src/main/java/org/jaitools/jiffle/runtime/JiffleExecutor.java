@@ -55,6 +55,10 @@ import org.jaitools.DaemonThreadFactory;
  * {@link org.jaitools.jiffle.runtime.JiffleProgressListener}. When the task is
  * finished its status and results can be retrieved via {@link JiffleEventListener}.
  * <p>
+ * Tasks can be submitted with a {@link TieredRuntime} (obtained using 
+ * {@code Jiffle.RuntimeModel.TIERED}) so that they start running without 
+ * waiting for the runtime class to be compiled.
+ * <p>
  * Example of use:
  * 
  * <pre><code>
@@ -149,6 +153,7 @@ import org.jaitools.DaemonThreadFactory;
     
     private boolean isPolling;
     private int numTasksRunning;
+    private RuntimeMetrics metrics;
     
     /* Used by constructors when setting up the task service. */
     private static enum ThreadPoolType {
@@ -295,6 +300,33 @@ import org.jaitools.DaemonThreadFactory;
         }
     }
     
+    /**
+     * Sets an object to receive metrics from runtime objects submitted 
+     * after this call. It is attached to each runtime object which extends
+     * {@link AbstractDirectRuntime} and does not already have a metrics
+     * object. Passing {@code null} stops metrics being attached.
+     * 
+     * @param metrics the metrics object or {@code null}
+     * 
+     * @see AbstractDirectRuntime#setMetrics(RuntimeMetrics)
+     */
+    public void setMetrics(RuntimeMetrics metrics) {
+        synchronized (_lock) {
+            this.metrics = metrics;
+        }
+    }
+    
+    /**
+     * Gets the object receiving metrics from submitted runtime objects.
+     * 
+     * @return the metrics object or {@code null} if not set
+     */
+    public RuntimeMetrics getMetrics() {
+        synchronized (_lock) {
+            return metrics;
+        }
+    }
+    
     /**
      * Submits an {@code JiffleDirectRuntime} object for execution. Depending 
      * on existing tasks and the number of threads available to the executor 
@@ -324,6 +356,13 @@ import org.jaitools.DaemonThreadFactory;
             }
 
             numTasksRunning++ ;
+            
+            if (metrics != null && runtime instanceof AbstractDirectRuntime) {
+                AbstractDirectRuntime adr = (AbstractDirectRuntime) runtime;
+                if (adr.getMetrics() == null) {
+                    adr.setMetrics(metrics);
+                }
+            }
 
             completionService.submit(new JiffleExecutorTask(
                     this,
@@ -405,6 +444,11 @@ import org.jaitools.DaemonThreadFactory;
             pollingService.shutdown();
             return;
         }
+        
+        // a previous shutdown request may already have completed
+        if (shutdownService.isShutdown()) {
+            return;
+        }
 
         shutdownService.scheduleAtFixedRate(new Runnable() {
             public void run() {
@@ -57,20 +57,21 @@ public class JiffleFunctions {
     }
 
     /**
-     * Return the sign of {@code x} as an integer. This method is used 
-     * by Jiffle to implement its various {@code if} functions.
-     * <p>
+     * Return the sign of {@code x}. This method is used by Jiffle to 
+     * implement its various {@code if} functions. The result is a 
+     * primitive value so that conditional expressions can be evaluated
+     * without boxing.
      * 
      * @param x test value
      * 
      * @return -1 if x is negative; 0 if x is 0; 1 if x is positive; 
-     *         or {@code null} if x is NaN
+     *         or {@code Double.NaN} if x is NaN
      */
-    public Integer sign(double x) {
+    public double sign(double x) {
         if (!Double.isNaN(x)) {
             return acompare(x, 0);
         }
-        return null;
+        return Double.NaN;
     }
     
     /**
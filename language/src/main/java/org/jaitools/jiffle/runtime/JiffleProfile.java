@@ -0,0 +1,206 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * A profile of script execution, with the number of times each top-level
+ * statement and loop body ran and the time spent in it. Profiles are 
+ * recorded by runtime classes created from a {@link org.jaitools.jiffle.Jiffle}
+ * object with profiling enabled, and are retrieved with 
+ * {@link AbstractJiffleRuntime#getProfile()}.
+ * <pre><code>
+ * Jiffle jiffle = new Jiffle();
+ * jiffle.setProfiling(true);
+ * jiffle.setScript(script);
+ * jiffle.setImageParams(imageParams);
+ * jiffle.compile();
+ * 
+ * AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+ * ...
+ * runtime.evaluateAll(null);
+ * System.out.println(runtime.getProfile().getReport());
+ * </code></pre>
+ * The time for a statement includes that of any loop bodies within it,
+ * and the timing calls themselves add some overhead to each entry.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleProfile {
+    
+    /**
+     * Profile data for one statement or loop body.
+     */
+    public static class Entry {
+        private final int line;
+        private final boolean loopBody;
+        private final long count;
+        private final long nanos;
+
+        /**
+         * Creates a new entry.
+         * 
+         * @param line script line number
+         * @param loopBody whether the entry is for a loop body
+         * @param count number of executions
+         * @param nanos total time in nanoseconds
+         */
+        public Entry(int line, boolean loopBody, long count, long nanos) {
+            this.line = line;
+            this.loopBody = loopBody;
+            this.count = count;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Gets the script line on which the statement starts.
+         * 
+         * @return line number (from 1) or 0 if not known
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * Tests whether this entry is for a loop body rather than a 
+         * top-level statement.
+         * 
+         * @return {@code true} for a loop body
+         */
+        public boolean isLoopBody() {
+            return loopBody;
+        }
+
+        /**
+         * Gets the number of times the statement was executed.
+         * 
+         * @return execution count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the total time spent executing the statement.
+         * 
+         * @return time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Gets the mean time per execution of the statement.
+         * 
+         * @return mean time in nanoseconds, or 0 if the statement 
+         *         was not executed
+         */
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) nanos / count;
+        }
+    }
+    
+    private final List<Entry> entries;
+
+    /**
+     * Creates a new profile.
+     * 
+     * @param entries profile entries
+     */
+    public JiffleProfile(List<Entry> entries) {
+        this.entries = new ArrayList<Entry>(entries);
+        Collections.sort(this.entries, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                if (e1.line != e2.line) {
+                    return e1.line < e2.line ? -1 : 1;
+                }
+                if (e1.loopBody != e2.loopBody) {
+                    return e1.loopBody ? 1 : -1;
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Gets the profile entries, ordered by script line with top-level
+     * statements before loop bodies on the same line.
+     * 
+     * @return an unmodifiable list of entries
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+    
+    /**
+     * Gets the total time spent in top-level statements.
+     * 
+     * @return time in nanoseconds
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (Entry e : entries) {
+            if (!e.loopBody) {
+                total += e.nanos;
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Gets a report of the profile as a table with one row for each 
+     * entry. The percentage column gives the share of the total time
+     * in top-level statements.
+     * 
+     * @return the report
+     */
+    public String getReport() {
+        long total = getTotalNanos();
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%6s  %-9s %12s %12s %12s %7s", 
+                "line", "kind", "count", "total ms", "mean ns", "%"));
+        
+        for (Entry e : entries) {
+            sb.append(String.format("%n%6d  %-9s %12d %12.3f %12.1f %7.1f", 
+                    e.line, e.loopBody ? "loop body" : "statement", e.count, 
+                    e.nanos / 1.0e6, e.getMeanNanos(), 
+                    total == 0 ? 0.0 : 100.0 * e.nanos / total));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+}
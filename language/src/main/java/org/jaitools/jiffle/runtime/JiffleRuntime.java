@@ -150,6 +150,20 @@ public interface JiffleRuntime {
      */
     boolean isWorldSet();
     
+    /**
+     * Prepares this object for evaluation. This initializes image-scope 
+     * variables, using their default values where no value has been set, 
+     * and for the direct runtime model also sets the default processing
+     * area if the world bounds have not been set. Work done here is 
+     * thus kept out of per-pixel evaluation.
+     * <p>
+     * It is not necessary to call this method explicitly: it is called by 
+     * the evaluation methods when required. However, clients evaluating 
+     * pixels from multiple threads should call it beforehand. It is safe 
+     * to call this method more than once.
+     */
+    void prepare();
+    
     /**
      * Returns the names of image scope variables that can be used with
      * the {@link #getVar(String)} and {@link #setVar(String, Double)}
@@ -182,6 +196,47 @@ public interface JiffleRuntime {
      * @throws JiffleRuntimeException if the variable name is not found
      */
     void setVar(String varName, Double value) throws JiffleRuntimeException;
+    
+    /**
+     * Gets a handle for a variable that was declared in the script's
+     * <i>init</i> block. The handle can be used with the {@link #getVar(int)}
+     * and {@link #setVar(int, double)} methods, which avoid looking up the 
+     * variable by name. This is useful when a variable is set many times, 
+     * e.g. when running a script repeatedly with a range of parameter values.
+     * Handles are only valid for the runtime object that issued them, or 
+     * other instances of the same runtime class.
+     * 
+     * @param varName variable name
+     * 
+     * @return the handle or -1 if the variable name is not found
+     */
+    int getVarHandle(String varName);
+    
+    /**
+     * Returns the value of a variable identified by a handle obtained from
+     * {@link #getVarHandle(String)}.
+     * 
+     * @param handle the variable handle
+     * 
+     * @return the value or {@code Double.NaN} if the variable has not been
+     *         set or initialized yet
+     * 
+     * @throws JiffleRuntimeException if the handle is invalid
+     */
+    double getVar(int handle) throws JiffleRuntimeException;
+    
+    /**
+     * Sets the value of a variable identified by a handle obtained from
+     * {@link #getVarHandle(String)}, overriding the default value in the 
+     * script if present. To restore the default value use 
+     * {@link #setVar(String, Double)} with a {@code null} value.
+     * 
+     * @param handle the variable handle
+     * @param value the new value
+     * 
+     * @throws JiffleRuntimeException if the handle is invalid
+     */
+    void setVar(int handle, double value) throws JiffleRuntimeException;
 
     /**
      * Supplies the runtime object with the names and roles if image variables
@@ -0,0 +1,231 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRenderedImage;
+
+/**
+ * An image accessor which counts sample reads and writes and estimates 
+ * the time spent in them, for {@link RuntimeMetrics}. To keep overhead low,
+ * only one access in {@code SAMPLE_INTERVAL} is timed and the total is
+ * scaled up accordingly. Used by {@link AbstractDirectRuntime} in place of
+ * a plain accessor when metrics are enabled.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+final class MeteredImageAccessor extends ImageAccessor {
+    
+    /** Number of accesses per timed access (a power of 2) */
+    static final int SAMPLE_INTERVAL = 64;
+    
+    private static final int SAMPLE_MASK = SAMPLE_INTERVAL - 1;
+    
+    private final boolean typed;
+    private long accesses;
+    private long sampledNanos;
+    
+    /**
+     * Creates a new accessor for reading from an image.
+     * 
+     * @param image the image
+     */
+    MeteredImageAccessor(RenderedImage image) {
+        super(image);
+        typed = isTyped(getDataType());
+    }
+    
+    /**
+     * Creates a new accessor for reading from and writing to an image.
+     * 
+     * @param image the image
+     */
+    MeteredImageAccessor(WritableRenderedImage image) {
+        super(image);
+        typed = isTyped(getDataType());
+    }
+    
+    /**
+     * Gets the number of sample reads or writes since the last call
+     * to {@link #reset()}.
+     * 
+     * @return number of accesses
+     */
+    long getAccessCount() {
+        return accesses;
+    }
+    
+    /**
+     * Gets the estimated time spent reading or writing samples since 
+     * the last call to {@link #reset()}.
+     * 
+     * @return estimated time in nanoseconds
+     */
+    long getEstimatedNanos() {
+        return sampledNanos * SAMPLE_INTERVAL;
+    }
+    
+    /**
+     * Resets the access count and time.
+     */
+    void reset() {
+        accesses = 0;
+        sampledNanos = 0;
+    }
+    
+    /*
+     * The generic getSample and setSample methods delegate to the typed
+     * methods for the standard data types, so they are only metered
+     * themselves for other types to avoid counting an access twice.
+     */
+    private static boolean isTyped(int dataType) {
+        return dataType >= DataBuffer.TYPE_BYTE && dataType <= DataBuffer.TYPE_DOUBLE;
+    }
+    
+    private long begin() {
+        return (++accesses & SAMPLE_MASK) == 0 ? System.nanoTime() : 0L;
+    }
+    
+    private void end(long startTime) {
+        if (startTime != 0L) {
+            sampledNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public double getSample(int x, int y, int band) {
+        if (typed) {
+            return super.getSample(x, y, band);
+        }
+        long t = begin();
+        double value = super.getSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getByteSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getByteSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getUShortSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getUShortSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getShortSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getShortSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getIntSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getIntSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getFloatSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getFloatSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public double getDoubleSample(int x, int y, int band) {
+        long t = begin();
+        double value = super.getDoubleSample(x, y, band);
+        end(t);
+        return value;
+    }
+
+    @Override
+    public void setSample(int x, int y, int band, double value) {
+        if (typed) {
+            super.setSample(x, y, band, value);
+            return;
+        }
+        long t = begin();
+        super.setSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setByteSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setByteSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setUShortSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setUShortSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setShortSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setShortSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setIntSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setIntSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setFloatSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setFloatSample(x, y, band, value);
+        end(t);
+    }
+
+    @Override
+    public void setDoubleSample(int x, int y, int band, double value) {
+        long t = begin();
+        super.setDoubleSample(x, y, band, value);
+        end(t);
+    }
+}
@@ -0,0 +1,309 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jaitools.jiffle.JiffleException;
+
+
+/**
+ * Collects runtime metrics: throughput, tile latency, image reads and 
+ * writes, and an estimate of the time spent in image I/O as opposed to 
+ * script evaluation. An instance is attached to a runtime object with
+ * {@link AbstractDirectRuntime#setMetrics(RuntimeMetrics)}, or to all
+ * runtime objects submitted to an executor with 
+ * {@link JiffleExecutor#setMetrics(RuntimeMetrics)}. It can be shared by 
+ * several runtime objects and threads.
+ * <p>
+ * Runtime objects keep their own counts during evaluation and add them
+ * to the metrics at the end of each tile, so collection does not slow 
+ * down pixel evaluation much. When no metrics object is attached there 
+ * is no collection overhead.
+ * <p>
+ * Metrics can be monitored with JMX tools after calling 
+ * {@link #registerMBean(String)}.
+ * <pre><code>
+ * RuntimeMetrics metrics = new RuntimeMetrics();
+ * metrics.registerMBean("slope");
+ * runtime.setMetrics(metrics);
+ * runtime.evaluateAll(null);
+ * System.out.println(metrics);
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeMetrics implements RuntimeMetricsMBean {
+    
+    /** Domain and type used for the JMX object name */
+    public static final String MBEAN_TYPE = "org.jaitools.jiffle:type=RuntimeMetrics";
+    
+    private static final int HISTOGRAM_BINS = 32;
+    
+    private static class ImageCounts {
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong outsideReads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+    }
+    
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong runPixels = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong tiles = new AtomicLong();
+    private final AtomicLong tileNanos = new AtomicLong();
+    private final AtomicLong evalNanos = new AtomicLong();
+    private final AtomicLong ioNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BINS);
+    private final ConcurrentMap<String, ImageCounts> images = 
+            new ConcurrentHashMap<String, ImageCounts>();
+    
+    private ObjectName objectName;
+    
+    
+    /**
+     * Registers this object with the platform MBean server.
+     * 
+     * @param name value of the {@code name} key in the object name
+     * @return the object name
+     * @throws JiffleException if registration fails, e.g. because the 
+     *         name is already in use
+     */
+    public synchronized ObjectName registerMBean(String name) throws JiffleException {
+        if (objectName != null) {
+            throw new JiffleException("Already registered as " + objectName);
+        }
+        
+        try {
+            ObjectName on = new ObjectName(MBEAN_TYPE + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+            return on;
+            
+        } catch (JMException ex) {
+            throw new JiffleException("Unable to register metrics MBean", ex);
+        }
+    }
+    
+    /**
+     * Unregisters this object from the platform MBean server. It is safe to
+     * call this method if the object is not registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ex) {
+                // nothing more to do
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records a completed run.
+     * 
+     * @param numPixels number of pixels evaluated
+     * @param elapsedNanos elapsed time of the run
+     */
+    void addRun(long numPixels, long elapsedNanos) {
+        runs.incrementAndGet();
+        runPixels.addAndGet(numPixels);
+        runNanos.addAndGet(elapsedNanos);
+    }
+    
+    /**
+     * Records an evaluated tile.
+     * 
+     * @param elapsedNanos time taken to evaluate the tile
+     */
+    void addTile(long elapsedNanos) {
+        tiles.incrementAndGet();
+        tileNanos.addAndGet(elapsedNanos);
+        evalNanos.addAndGet(elapsedNanos);
+        
+        long micros = elapsedNanos / 1000;
+        int bin = 0;
+        while (micros > 1 && bin < HISTOGRAM_BINS - 1) {
+            micros >>= 1;
+            bin++ ;
+        }
+        histogram.incrementAndGet(bin);
+    }
+    
+    /**
+     * Records evaluation time which was not divided into tiles, as in
+     * a single-threaded run. This counts towards the evaluation time but
+     * not the tile count or latency histogram.
+     * 
+     * @param elapsedNanos time taken
+     */
+    void addEvaluation(long elapsedNanos) {
+        evalNanos.addAndGet(elapsedNanos);
+    }
+    
+    /**
+     * Records accesses to an image.
+     * 
+     * @param imageName image variable name
+     * @param reads number of reads, including outside reads
+     * @param outsideReads number of reads outside the image bounds
+     * @param writes number of writes
+     * @param estimatedNanos estimated time spent reading and writing samples
+     */
+    void addImageAccess(String imageName, long reads, long outsideReads, 
+            long writes, long estimatedNanos) {
+        
+        ImageCounts counts = images.get(imageName);
+        if (counts == null) {
+            ImageCounts newCounts = new ImageCounts();
+            counts = images.putIfAbsent(imageName, newCounts);
+            if (counts == null) {
+                counts = newCounts;
+            }
+        }
+        
+        counts.reads.addAndGet(reads);
+        counts.outsideReads.addAndGet(outsideReads);
+        counts.writes.addAndGet(writes);
+        ioNanos.addAndGet(estimatedNanos);
+    }
+
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    public long getPixelCount() {
+        return runPixels.get();
+    }
+
+    public double getPixelsPerSecond() {
+        long nanos = runNanos.get();
+        return nanos > 0 ? runPixels.get() * 1.0e9 / nanos : 0;
+    }
+
+    public long getTileCount() {
+        return tiles.get();
+    }
+
+    public double getMeanTileMillis() {
+        long n = tiles.get();
+        return n > 0 ? tileNanos.get() / 1.0e6 / n : 0;
+    }
+
+    public long[] getTileLatencyHistogram() {
+        long[] counts = new long[HISTOGRAM_BINS];
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public double getEvaluationMillis() {
+        return evalNanos.get() / 1.0e6;
+    }
+
+    public double getImageIOMillis() {
+        return ioNanos.get() / 1.0e6;
+    }
+
+    public double getScriptMillis() {
+        return Math.max(0, evalNanos.get() - ioNanos.get()) / 1.0e6;
+    }
+
+    public double getReadsPerPixel() {
+        long n = runPixels.get();
+        if (n == 0) {
+            return 0;
+        }
+        
+        long reads = 0;
+        for (ImageCounts counts : images.values()) {
+            reads += counts.reads.get();
+        }
+        return (double) reads / n;
+    }
+
+    public String[] getImageNames() {
+        return images.keySet().toArray(new String[0]);
+    }
+
+    public long getReadCount(String imageName) {
+        ImageCounts counts = images.get(imageName);
+        return counts == null ? 0 : counts.reads.get();
+    }
+
+    public long getOutsideReadCount(String imageName) {
+        ImageCounts counts = images.get(imageName);
+        return counts == null ? 0 : counts.outsideReads.get();
+    }
+
+    public long getWriteCount(String imageName) {
+        ImageCounts counts = images.get(imageName);
+        return counts == null ? 0 : counts.writes.get();
+    }
+
+    public void reset() {
+        runs.set(0);
+        runPixels.set(0);
+        runNanos.set(0);
+        tiles.set(0);
+        tileNanos.set(0);
+        evalNanos.set(0);
+        ioNanos.set(0);
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            histogram.set(i, 0);
+        }
+        images.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("runs=%d pixels=%d pixels/sec=%.0f tiles=%d mean tile=%.3fms "
+                + "evaluation=%.3fms image I/O=%.3fms script=%.3fms reads/pixel=%.2f",
+                getRunCount(), getPixelCount(), getPixelsPerSecond(), getTileCount(),
+                getMeanTileMillis(), getEvaluationMillis(), getImageIOMillis(), 
+                getScriptMillis(), getReadsPerPixel()));
+        
+        for (String name : getImageNames()) {
+            sb.append(String.format("%n  %s: reads=%d outside=%d writes=%d", name,
+                    getReadCount(name), getOutsideReadCount(name), getWriteCount(name)));
+        }
+        return sb.toString();
+    }
+}
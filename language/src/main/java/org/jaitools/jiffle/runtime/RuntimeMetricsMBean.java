@@ -0,0 +1,150 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+/**
+ * Management interface for {@link RuntimeMetrics}.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public interface RuntimeMetricsMBean {
+    
+    /**
+     * Gets the number of completed runs (calls to {@code evaluateAll}).
+     * 
+     * @return number of runs
+     */
+    long getRunCount();
+    
+    /**
+     * Gets the number of pixels evaluated in completed runs.
+     * 
+     * @return number of pixels
+     */
+    long getPixelCount();
+    
+    /**
+     * Gets the throughput of completed runs, based on their elapsed time.
+     * 
+     * @return pixels per second or 0 if no runs have completed
+     */
+    double getPixelsPerSecond();
+    
+    /**
+     * Gets the number of tiles evaluated by multi-threaded runs. 
+     * Single-threaded runs are not divided into tiles and are not counted.
+     * 
+     * @return number of tiles
+     */
+    long getTileCount();
+    
+    /**
+     * Gets the mean time taken to evaluate a tile.
+     * 
+     * @return mean time in milliseconds or 0 if no tiles have been evaluated
+     */
+    double getMeanTileMillis();
+    
+    /**
+     * Gets the tile latency histogram. Element {@code i} holds the number 
+     * of tiles which took from 2<sup>i</sup> up to (but not including)
+     * 2<sup>i+1</sup> microseconds, except that element 0 also includes
+     * tiles which took less than 1 microsecond.
+     * 
+     * @return a copy of the histogram counts
+     */
+    long[] getTileLatencyHistogram();
+    
+    /**
+     * Gets the total time spent evaluating pixels, summed over threads.
+     * 
+     * @return time in milliseconds
+     */
+    double getEvaluationMillis();
+    
+    /**
+     * Gets the estimated part of the evaluation time spent reading and
+     * writing image samples.
+     * 
+     * @return time in milliseconds
+     */
+    double getImageIOMillis();
+    
+    /**
+     * Gets the estimated part of the evaluation time spent in the script
+     * itself, ie. evaluation time less image I/O time.
+     * 
+     * @return time in milliseconds
+     */
+    double getScriptMillis();
+    
+    /**
+     * Gets the mean number of source image reads per pixel, including 
+     * reads outside image bounds.
+     * 
+     * @return reads per pixel or 0 if no pixels have been evaluated
+     */
+    double getReadsPerPixel();
+    
+    /**
+     * Gets the names of images for which accesses have been recorded.
+     * 
+     * @return image variable names
+     */
+    String[] getImageNames();
+    
+    /**
+     * Gets the number of reads from a source image, including reads 
+     * outside its bounds.
+     * 
+     * @param imageName image variable name
+     * @return number of reads
+     */
+    long getReadCount(String imageName);
+    
+    /**
+     * Gets the number of reads from positions outside the bounds of a
+     * source image, which returned the outside value.
+     * 
+     * @param imageName image variable name
+     * @return number of outside reads
+     */
+    long getOutsideReadCount(String imageName);
+    
+    /**
+     * Gets the number of writes to a destination image.
+     * 
+     * @param imageName image variable name
+     * @return number of writes
+     */
+    long getWriteCount(String imageName);
+    
+    /**
+     * Clears all metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,177 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.antlr.runtime.tree.CommonTree;
+
+import org.jaitools.jiffle.JiffleException;
+
+
+/**
+ * A direct runtime which starts evaluating pixels straight away by 
+ * interpreting the script's AST while the runtime class is compiled on
+ * another thread. Once the compiled class is available, evaluation is 
+ * handed over to an instance of it at the next row boundary. The compiled
+ * instance shares this object's images, processing area, transforms and
+ * image-scope variables, so results are the same as for either runtime 
+ * used on its own.
+ * <p>
+ * This means that short tasks do not wait for the runtime class to be 
+ * compiled, while long tasks still run at the speed of compiled code for
+ * most of the processing area. It works well with {@link JiffleExecutor},
+ * to which a tiered runtime can be submitted in the same way as any other
+ * direct runtime. Instances are normally obtained with
+ * {@code Jiffle.getRuntimeInstance(Jiffle.RuntimeModel.TIERED)}.
+ * <p>
+ * When evaluating with multiple threads, each worker switches to its own
+ * compiled instance independently. If the runtime class cannot be 
+ * compiled, this object continues to interpret the script.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class TieredRuntime extends InterpretedRuntime {
+    
+    private static final Logger LOGGER = Logger.getLogger(TieredRuntime.class.getName());
+    
+    private final CommonTree ast;
+    private final Future<? extends JiffleRuntime> compiled;
+    
+    private AbstractDirectRuntime compiledRuntime;
+    private boolean compileFailed;
+    
+
+    /**
+     * Creates a new runtime object.
+     * 
+     * @param ast the final AST produced by the Jiffle compiler
+     * 
+     * @param compiled provides an instance of the compiled runtime class
+     *        for the same script once it is available
+     * 
+     * @throws JiffleException if the AST contains constructs not supported
+     *         by the interpreter
+     */
+    public TieredRuntime(CommonTree ast, Future<? extends JiffleRuntime> compiled) 
+            throws JiffleException {
+        super(ast);
+        this.ast = ast;
+        this.compiled = compiled;
+    }
+
+    /**
+     * Tests whether background compilation of the runtime class has 
+     * finished. Evaluation switches to the compiled class at the next row
+     * boundary after this, unless compilation failed.
+     * 
+     * @return {@code true} if compilation has finished
+     */
+    public boolean isCompiledRuntimeReady() {
+        return compiled.isDone();
+    }
+
+    /**
+     * Tests whether evaluation has been handed over to the compiled
+     * runtime class during the current (or most recent) run.
+     * 
+     * @return {@code true} if the compiled runtime is in use
+     */
+    public boolean isCompiledRuntimeActive() {
+        return compiledRuntime != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A new compiled instance is set up for each run so that changes to 
+     * images or the processing area between runs are picked up.
+     */
+    @Override
+    public void evaluateAll(JiffleProgressListener pl) {
+        compiledRuntime = null;
+        super.evaluateAll(pl);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns the compiled runtime once it is available, otherwise this 
+     * object.
+     */
+    @Override
+    protected AbstractDirectRuntime getRowRuntime() {
+        if (compiledRuntime == null && !compileFailed && compiled.isDone()) {
+            compiledRuntime = createCompiledRuntime();
+            compileFailed = compiledRuntime == null;
+        }
+        return compiledRuntime == null ? this : compiledRuntime;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Workers are created from the same AST and share the background 
+     * compilation with this object.
+     */
+    @Override
+    protected AbstractDirectRuntime newWorkerInstance() throws Exception {
+        return new TieredRuntime(ast, compiled);
+    }
+    
+    /**
+     * Creates an instance of the compiled runtime class with the state
+     * of this object.
+     * 
+     * @return the new instance or {@code null} if compilation failed
+     */
+    private AbstractDirectRuntime createCompiledRuntime() {
+        try {
+            AbstractDirectRuntime runtime = 
+                    (AbstractDirectRuntime) compiled.get().getClass().newInstance();
+            
+            // Image-scope variables are registered in declaration order by 
+            // both runtimes, so the values array can be shared
+            if (!Arrays.equals(getVarNames(), runtime.getVarNames())) {
+                throw new JiffleException("Variables differ from compiled runtime");
+            }
+            
+            copyTo(runtime);
+            runtime._vals = _vals;
+            return runtime;
+            
+        } catch (Exception ex) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Compiled runtime not available; interpreting script", ex);
+            }
+            return null;
+        }
+    }
+}
@@ -238,4 +238,16 @@ public class JiffleBasicTest {
         
         JiffleRuntime runtime = jiffle.getRuntimeInstance();
     }    
+    
+    @Test
+    public void scriptInRuntimeSourceDocs() throws Exception {
+        System.out.println("   runtime source with and without script in docs");
+        
+        String script = "dest = 42 + 1234;";
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        jiffle = new Jiffle(script, imageParams);
+        
+        assertTrue(jiffle.getRuntimeSource(true).contains(script));
+        assertFalse(jiffle.getRuntimeSource(false).contains(script));
+    }
 }
@@ -26,6 +26,8 @@
 package org.jaitools.jiffle;
 
 import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRenderedImage;
 import java.io.File;
@@ -173,4 +175,73 @@ public class JiffleBuilderTest extends RuntimeTestBase {
         assertNull(image);
     }
     
+    @Test
+    public void destImageWithType() throws Exception {
+        System.out.println("   builder creating dest image with requested type");
+        String script = "dest = x() * 100;" ;
+        
+        jb.script(script).dest("dest", 10, 10, Jiffle.ImageType.BYTE).run();
+        RenderedImage img = jb.getImage("dest");
+        assertEquals(DataBuffer.TYPE_BYTE, img.getSampleModel().getDataType());
+        
+        // values are saturated
+        RandomIter iter = RandomIterFactory.create(img, null);
+        for (int x = 0; x < 10; x++) {
+            assertEquals(Math.min(x * 100, 255), iter.getSample(x, 0, 0));
+        }
+    }
+    
+    @Test
+    public void destImageTypeFromScript() throws Exception {
+        System.out.println("   builder creating dest image with type declared in script");
+        String script = "images { mask = write bit; } mask = x() > 4;" ;
+        
+        jb.script(script).dest("mask", 10, 10).run();
+        RenderedImage img = jb.getImage("mask");
+        assertTrue(img.getSampleModel() instanceof MultiPixelPackedSampleModel);
+        assertEquals(1, img.getSampleModel().getSampleSize(0));
+        
+        RandomIter iter = RandomIterFactory.create(img, null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                assertEquals(x > 4 ? 1 : 0, iter.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    @Test(expected=JiffleException.class)
+    public void conflictingDestImageType() throws Exception {
+        System.out.println("   requested dest image type conflicts with script");
+        String script = "images { dest = write short; } dest = 42;" ;
+        
+        jb.script(script).dest("dest", 10, 10, Jiffle.ImageType.FLOAT).run();
+    }
+    
+    @Test
+    public void destImageTypeFromValueRange() throws Exception {
+        System.out.println("   builder creating dest image with type from value range");
+        String script = "dest = con(x() > 4, 10, 20);" ;
+        
+        jb.script(script).dest("dest", 10, 10).run();
+        RenderedImage img = jb.getImage("dest");
+        assertEquals(DataBuffer.TYPE_BYTE, img.getSampleModel().getDataType());
+        
+        RandomIter iter = RandomIterFactory.create(img, null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                assertEquals(x > 4 ? 10 : 20, iter.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    @Test
+    public void destImageTypeFromUnknownRange() throws Exception {
+        System.out.println("   builder creating double dest image for unknown value range");
+        String script = "dest = x() / 2;" ;
+        
+        jb.script(script).dest("dest", 10, 10).run();
+        RenderedImage img = jb.getImage("dest");
+        assertEquals(DataBuffer.TYPE_DOUBLE, img.getSampleModel().getDataType());
+    }
+    
 }
@@ -0,0 +1,155 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for compile listeners.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleCompileListenerTest {
+    
+    private static final String SCRIPT = "n = 2 * 3; dest = x() + n * y();";
+    
+    private final List<JiffleCompileEvent> events = CollectionFactory.list();
+    
+    private final JiffleCompileListener listener = new JiffleCompileListener() {
+        public void onCompilePhase(JiffleCompileEvent ev) {
+            events.add(ev);
+        }
+    };
+    
+    private File defaultStoreDir;
+    private Jiffle jiffle;
+    
+    @Before
+    public void setup() throws Exception {
+        defaultStoreDir = RuntimeClassStore.getDirectory();
+        RuntimeClassStore.setDirectory(null);
+        RuntimeClassCache.clear();
+        
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        
+        jiffle = new Jiffle();
+        jiffle.addCompileListener(listener);
+        jiffle.setScript(SCRIPT);
+        jiffle.setImageParams(imageParams);
+    }
+    
+    @After
+    public void cleanup() {
+        RuntimeClassStore.setDirectory(defaultStoreDir);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void compilePhases() throws Exception {
+        System.out.println("   compile phases reported in order");
+        jiffle.compile();
+        
+        JiffleCompileEvent.Phase[] expected = {
+            JiffleCompileEvent.Phase.PARSE,
+            JiffleCompileEvent.Phase.CHECK_OPTIONS,
+            JiffleCompileEvent.Phase.TAG_VARS,
+            JiffleCompileEvent.Phase.CHECK_ASSIGNMENTS,
+            JiffleCompileEvent.Phase.TRANSFORM_EXPRESSIONS,
+            JiffleCompileEvent.Phase.CHECK_FUNCTION_CALLS,
+            JiffleCompileEvent.Phase.OPTIMIZE_EXPRESSIONS,
+            JiffleCompileEvent.Phase.HOIST_INVARIANTS
+        };
+        
+        assertEquals(expected.length, events.size());
+        for (int i = 0; i < expected.length; i++) {
+            JiffleCompileEvent ev = events.get(i);
+            assertEquals(expected[i], ev.getPhase());
+            assertSame(jiffle, ev.getJiffle());
+            assertTrue(ev.getElapsedNanos() >= 0);
+            assertTrue(ev.getNodeCount() > 0);
+            assertEquals(-1, ev.getSourceLength());
+            assertEquals(-1, ev.getClassFileSize());
+        }
+    }
+    
+    @Test
+    public void sourceBackendPhases() throws Exception {
+        System.out.println("   source backend phases reported");
+        jiffle.compile();
+        events.clear();
+        
+        jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        assertEquals(2, events.size());
+        
+        JiffleCompileEvent ev = events.get(0);
+        assertEquals(JiffleCompileEvent.Phase.RUNTIME_SOURCE, ev.getPhase());
+        assertTrue(ev.getSourceLength() > 0);
+        
+        ev = events.get(1);
+        assertEquals(JiffleCompileEvent.Phase.JANINO_COMPILE, ev.getPhase());
+        assertTrue(ev.getClassFileSize() > 0);
+        
+        // class is now cached so no phases are run
+        events.clear();
+        jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        assertTrue(events.isEmpty());
+    }
+    
+    @Test
+    public void bytecodeBackendPhase() throws Exception {
+        System.out.println("   bytecode backend phase reported");
+        jiffle.compile();
+        jiffle.setCompilerBackend(Jiffle.CompilerBackend.BYTECODE);
+        events.clear();
+        
+        jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        assertEquals(1, events.size());
+        assertEquals(JiffleCompileEvent.Phase.RUNTIME_BYTECODE, events.get(0).getPhase());
+        assertTrue(events.get(0).getClassFileSize() > 0);
+    }
+    
+    @Test
+    public void removeListener() throws Exception {
+        System.out.println("   remove compile listener");
+        assertTrue(jiffle.removeCompileListener(listener));
+        assertFalse(jiffle.removeCompileListener(listener));
+        
+        jiffle.compile();
+        assertTrue(events.isEmpty());
+    }
+}
@@ -71,6 +71,10 @@ public abstract class MockDirectBaseClass
         throw new UnsupportedOperationException("Should not be called");
     }
 
+    public void evaluateAll(JiffleProgressListener ignored, int numThreads) {
+        throw new UnsupportedOperationException("Should not be called");
+    }
+
     public double readFromImage(String srcImageName, double x, double y, int band) {
         throw new UnsupportedOperationException("Should not be called");
     }
@@ -79,6 +83,24 @@ public abstract class MockDirectBaseClass
         throw new UnsupportedOperationException("Should not be called");
     }
 
+    public double readFromImage(int slot, double x, double y, int band) {
+        throw new UnsupportedOperationException("Should not be called");
+    }
+
+    public void writeToImage(int slot, double x, double y, int band, double value) {
+        throw new UnsupportedOperationException("Should not be called");
+    }
+    
+    protected int registerImageVar(String varName) {
+        return 0;
+    }
+
+    public void evaluate(double x, double y) {
+        evaluatePixel(x, y);
+    }
+
+    protected abstract void evaluatePixel(double x, double y);
+
     public Map<String, RenderedImage> getImages() {
         throw new UnsupportedOperationException("Should not be called");
     }
@@ -56,4 +56,10 @@ public abstract class MockIndirectBaseClass
         throw new UnsupportedOperationException("Should not be called");
     }
 
+    public double evaluate(double x, double y) {
+        return evaluatePixel(x, y);
+    }
+
+    protected abstract double evaluatePixel(double x, double y);
+
 }
@@ -48,6 +48,20 @@ public class NullRuntime implements JiffleRuntime {
 
     public void setVar(String varName, Double value) throws JiffleRuntimeException {}
 
+    public void prepare() {}
+
+    public int getVarHandle(String varName) {
+        return -1;
+    }
+
+    public double getVar(int handle) throws JiffleRuntimeException {
+        throw new JiffleRuntimeException("Invalid variable handle: " + handle);
+    }
+
+    public void setVar(int handle, double value) throws JiffleRuntimeException {
+        throw new JiffleRuntimeException("Invalid variable handle: " + handle);
+    }
+
     public void setWorldByResolution(Rectangle2D bounds, double xres, double yres) {}
 
     public void setWorldByNumPixels(Rectangle2D bounds, int nx, int ny) {}
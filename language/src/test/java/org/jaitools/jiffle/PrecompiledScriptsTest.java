@@ -0,0 +1,127 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.codehaus.janino.SimpleCompiler;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for precompiled scripts. The test index file lives in
+ * the test resources folder.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class PrecompiledScriptsTest {
+
+    private static final double TOL = 1.0e-8;
+
+    @Before
+    public void setup() {
+        PrecompiledScripts.refresh();
+    }
+
+    @Test
+    public void scriptIsListed() throws Exception {
+        System.out.println("   precompiled script is listed");
+
+        assertTrue(PrecompiledScripts.getScriptNames().contains("test/null"));
+        assertTrue(PrecompiledScripts.isAvailable("test/null"));
+        assertFalse(PrecompiledScripts.isAvailable("test/nothing"));
+    }
+
+    @Test
+    public void getInstance() throws Exception {
+        System.out.println("   get precompiled runtime instance");
+
+        JiffleRuntime runtime = PrecompiledScripts.getRuntimeInstance("test/null");
+        assertTrue(runtime instanceof NullRuntime);
+    }
+
+    @Test(expected=JiffleException.class)
+    public void unknownScript() throws Exception {
+        System.out.println("   unknown script name");
+        PrecompiledScripts.getRuntimeInstance("test/nothing");
+    }
+
+    @Test(expected=JiffleException.class)
+    public void wrongRuntimeType() throws Exception {
+        System.out.println("   precompiled runtime of wrong type");
+        PrecompiledScripts.getRuntimeInstance("test/null", JiffleDirectRuntime.class);
+    }
+
+    @Test
+    public void indexEntry() throws Exception {
+        System.out.println("   add index entry");
+
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.orderedMap();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+
+        Properties index = new Properties();
+        PrecompiledScripts.addIndexEntry(index, "foo", "org.example.FooRuntime", imageParams);
+
+        assertEquals("org.example.FooRuntime",
+                index.getProperty("foo" + PrecompiledScripts.CLASS_SUFFIX));
+        assertEquals("src:SOURCE,dest:DEST",
+                index.getProperty("foo" + PrecompiledScripts.IMAGES_SUFFIX));
+    }
+
+    @Test
+    public void namedRuntimeSource() throws Exception {
+        System.out.println("   runtime source with package and class name");
+
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle("dest = x() + 2 * y();", imageParams);
+
+        String source = jiffle.getRuntimeSource(
+                Jiffle.RuntimeModel.INDIRECT, "org.example.test", "FooRuntime", false);
+
+        assertTrue(source.contains("package org.example.test;"));
+        assertTrue(source.contains("class FooRuntime"));
+
+        SimpleCompiler compiler = new SimpleCompiler();
+        compiler.cook(source);
+        Class<?> clazz = compiler.getClassLoader().loadClass("org.example.test.FooRuntime");
+
+        JiffleIndirectRuntime runtime = (JiffleIndirectRuntime) clazz.newInstance();
+        runtime.setImageParams(imageParams);
+        assertEquals(3 + 2 * 4, runtime.evaluate(3, 4), TOL);
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for caching of compiled runtime classes.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassCacheTest {
+    
+    private int defaultMaxSize;
+    
+    @Before
+    public void setup() {
+        defaultMaxSize = RuntimeClassCache.getMaxSize();
+        RuntimeClassCache.clear();
+        RuntimeClassCache.resetStats();
+    }
+    
+    @After
+    public void cleanup() {
+        RuntimeClassCache.setMaxSize(defaultMaxSize);
+        RuntimeClassCache.clear();
+        RuntimeClassCache.resetStats();
+    }
+    
+    @Test
+    public void sameScriptUsesCachedClass() throws Exception {
+        System.out.println("   same script uses cached class");
+        
+        JiffleRuntime r1 = createRuntime("dest = 42;", "dest", Jiffle.RuntimeModel.DIRECT);
+        JiffleRuntime r2 = createRuntime(
+                "// a comment \n dest  =  42 ;\n", "dest", Jiffle.RuntimeModel.DIRECT);
+        
+        assertNotSame(r1, r2);
+        assertSame(r1.getClass(), r2.getClass());
+        assertEquals(1, RuntimeClassCache.getMissCount());
+        assertEquals(1, RuntimeClassCache.getHitCount());
+        assertEquals(1, RuntimeClassCache.size());
+    }
+    
+    @Test
+    public void differentParametersUseDifferentClasses() throws Exception {
+        System.out.println("   different parameters or model use different classes");
+        
+        JiffleRuntime r1 = createRuntime("dest = 42;", "dest", Jiffle.RuntimeModel.DIRECT);
+        JiffleRuntime r2 = createRuntime("out = 42;", "out", Jiffle.RuntimeModel.DIRECT);
+        JiffleRuntime r3 = createRuntime("dest = 42;", "dest", Jiffle.RuntimeModel.INDIRECT);
+        
+        assertNotSame(r1.getClass(), r2.getClass());
+        assertNotSame(r1.getClass(), r3.getClass());
+        assertEquals(3, RuntimeClassCache.getMissCount());
+        assertEquals(0, RuntimeClassCache.getHitCount());
+    }
+    
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        System.out.println("   least recently used class is evicted");
+        
+        RuntimeClassCache.setMaxSize(2);
+        
+        createRuntime("dest = 1;", "dest", Jiffle.RuntimeModel.DIRECT);
+        createRuntime("dest = 2;", "dest", Jiffle.RuntimeModel.DIRECT);
+        
+        // use the first class again so that the second is evicted next
+        createRuntime("dest = 1;", "dest", Jiffle.RuntimeModel.DIRECT);
+        createRuntime("dest = 3;", "dest", Jiffle.RuntimeModel.DIRECT);
+        
+        assertEquals(2, RuntimeClassCache.size());
+        assertEquals(1, RuntimeClassCache.getEvictionCount());
+        
+        createRuntime("dest = 1;", "dest", Jiffle.RuntimeModel.DIRECT);
+        assertEquals(2, RuntimeClassCache.getHitCount());
+        
+        createRuntime("dest = 2;", "dest", Jiffle.RuntimeModel.DIRECT);
+        assertEquals(4, RuntimeClassCache.getMissCount());
+    }
+    
+    @Test
+    public void reducingSizeEvicts() throws Exception {
+        System.out.println("   reducing max size evicts classes");
+        
+        createRuntime("dest = 1;", "dest", Jiffle.RuntimeModel.DIRECT);
+        createRuntime("dest = 2;", "dest", Jiffle.RuntimeModel.DIRECT);
+        
+        RuntimeClassCache.setMaxSize(1);
+        assertEquals(1, RuntimeClassCache.size());
+        assertEquals(1, RuntimeClassCache.getEvictionCount());
+    }
+    
+    @Test
+    public void zeroSizeDisablesCaching() throws Exception {
+        System.out.println("   zero max size disables caching");
+        
+        RuntimeClassCache.setMaxSize(0);
+        JiffleRuntime r1 = createRuntime("dest = 42;", "dest", Jiffle.RuntimeModel.DIRECT);
+        JiffleRuntime r2 = createRuntime("dest = 42;", "dest", Jiffle.RuntimeModel.DIRECT);
+        
+        assertNotSame(r1.getClass(), r2.getClass());
+        assertEquals(0, RuntimeClassCache.size());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void negativeSize() throws Exception {
+        System.out.println("   negative max size");
+        RuntimeClassCache.setMaxSize(-1);
+    }
+    
+    private JiffleRuntime createRuntime(String script, String destVar, 
+            Jiffle.RuntimeModel model) throws Exception {
+        
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put(destVar, Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeInstance(model);
+    }
+}
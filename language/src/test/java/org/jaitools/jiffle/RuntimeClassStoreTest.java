@@ -0,0 +1,205 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.AbstractDirectRuntime;
+import org.jaitools.jiffle.runtime.AbstractIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for persisting compiled runtime classes.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassStoreTest {
+    
+    private static final double TOL = 1.0e-8;
+    
+    private File defaultDir;
+    private File dir;
+    
+    @Before
+    public void setup() throws Exception {
+        defaultDir = RuntimeClassStore.getDirectory();
+        
+        dir = File.createTempFile("jiffle", "store");
+        dir.delete();
+        RuntimeClassStore.setDirectory(dir);
+        RuntimeClassStore.resetStats();
+        RuntimeClassCache.clear();
+    }
+    
+    @After
+    public void cleanup() {
+        RuntimeClassStore.clear();
+        RuntimeClassStore.setDirectory(defaultDir);
+        RuntimeClassStore.resetStats();
+        RuntimeClassCache.clear();
+        dir.delete();
+    }
+    
+    @Test
+    public void classIsStoredAndLoaded() throws Exception {
+        System.out.println("   runtime class is stored and loaded");
+        
+        JiffleIndirectRuntime r1 = createRuntime("dest = x() + 2 * y();");
+        assertEquals(1, RuntimeClassStore.getMissCount());
+        assertEquals(1, listStoreFiles().length);
+        
+        // a new JVM session would start with an empty memory cache
+        RuntimeClassCache.clear();
+        JiffleIndirectRuntime r2 = createRuntime("dest = x() + 2 * y();");
+        assertEquals(1, RuntimeClassStore.getHitCount());
+        
+        assertNotSame(r1.getClass(), r2.getClass());
+        assertEquals(r1.getClass().getName(), r2.getClass().getName());
+        assertEquals(5.0, r2.evaluate(1, 2), TOL);
+    }
+    
+    @Test
+    public void memoryCacheCheckedFirst() throws Exception {
+        System.out.println("   memory cache is checked before store");
+        
+        createRuntime("dest = 42;");
+        createRuntime("dest = 42;");
+        assertEquals(1, RuntimeClassStore.getMissCount());
+        assertEquals(0, RuntimeClassStore.getHitCount());
+    }
+    
+    @Test
+    public void corruptFileIsReplaced() throws Exception {
+        System.out.println("   corrupt store file is replaced");
+        
+        createRuntime("dest = 42;");
+        File[] files = listStoreFiles();
+        assertEquals(1, files.length);
+        
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        
+        RuntimeClassCache.clear();
+        JiffleIndirectRuntime runtime = createRuntime("dest = 42;");
+        assertEquals(42.0, runtime.evaluate(0, 0), TOL);
+        assertEquals(2, RuntimeClassStore.getMissCount());
+        
+        RuntimeClassCache.clear();
+        createRuntime("dest = 42;");
+        assertEquals(1, RuntimeClassStore.getHitCount());
+    }
+    
+    @Test
+    public void unloadableClassIsReplaced() throws Exception {
+        System.out.println("   stored class which fails to load is replaced");
+        
+        createRuntime("dest = 42;");
+        File[] files = listStoreFiles();
+        assertEquals(1, files.length);
+        
+        // keep the file format valid but replace the class file contents,
+        // as if the entry had been written by an incompatible build
+        List<String> names = CollectionFactory.list();
+        DataInputStream in = new DataInputStream(new FileInputStream(files[0]));
+        int version = in.readInt();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            names.add(in.readUTF());
+            in.skipBytes(in.readInt());
+        }
+        in.close();
+        
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(files[0]));
+        out.writeInt(version);
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+            out.writeInt(4);
+            out.write(new byte[] {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe});
+        }
+        out.close();
+        
+        RuntimeClassCache.clear();
+        JiffleIndirectRuntime runtime = createRuntime("dest = 42;");
+        assertEquals(42.0, runtime.evaluate(0, 0), TOL);
+        assertEquals(1, RuntimeClassStore.getHitCount());
+        
+        // the entry should have been replaced by the recompiled class
+        RuntimeClassCache.clear();
+        runtime = createRuntime("dest = 42;");
+        assertEquals(42.0, runtime.evaluate(0, 0), TOL);
+        assertEquals(2, RuntimeClassStore.getHitCount());
+        assertEquals(1, listStoreFiles().length);
+    }
+    
+    @Test
+    public void buildFingerprint() throws Exception {
+        System.out.println("   build fingerprint depends on base class");
+        
+        String fp = RuntimeClassStore.getBuildFingerprint(AbstractIndirectRuntime.class);
+        assertEquals(40, fp.length());
+        assertEquals(fp, RuntimeClassStore.getBuildFingerprint(AbstractIndirectRuntime.class));
+        assertFalse(fp.equals(RuntimeClassStore.getBuildFingerprint(AbstractDirectRuntime.class)));
+        assertFalse(fp.equals(RuntimeClassStore.getBuildFingerprint(MockIndirectBaseClass.class)));
+    }
+    
+    @Test
+    public void storeDisabled() throws Exception {
+        System.out.println("   store disabled");
+        
+        RuntimeClassStore.setDirectory(null);
+        createRuntime("dest = 42;");
+        assertEquals(0, listStoreFiles().length);
+        assertEquals(0, RuntimeClassStore.getMissCount());
+    }
+    
+    private JiffleIndirectRuntime createRuntime(String script) throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+    }
+    
+    private File[] listStoreFiles() {
+        File[] files = dir.listFiles();
+        return files == null ? new File[0] : files;
+    }
+}
@@ -52,6 +52,23 @@ public class FunctionLookupTest {
         }
     }
     
+    @Test
+    public void proxyNameFromRuntimeExpr() throws Exception {
+        System.out.println("   proxy function name from runtime expression");
+        String[] names = { "x", "y", "width", "xres", "ymax" };
+        
+        for (String name : names) {
+            String expr = FunctionLookup.getRuntimeExpr(name, null);
+            assertEquals(name, FunctionLookup.getProxyName(expr));
+        }
+    }
+    
+    @Test(expected=UndefinedFunctionException.class)
+    public void proxyNameForNonProxyExpr() throws Exception {
+        System.out.println("   proxy function name for non-proxy expression");
+        FunctionLookup.getProxyName(FunctionLookup.getRuntimeExpr("sqrt", Arrays.asList("D")));
+    }
+    
     @Test
     public void oneAndTwoArgFunctions() throws Exception {
         System.out.println("   alternate one or two arg functions");
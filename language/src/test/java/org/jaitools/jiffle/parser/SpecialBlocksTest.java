@@ -25,7 +25,15 @@
 
 package org.jaitools.jiffle.parser;
 
+import java.util.Map;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+
+import org.jaitools.jiffle.Jiffle;
+
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  * Tests parsing options, init and images blocks correctly.
@@ -100,4 +108,32 @@ public class SpecialBlocksTest extends ParserTestBase {
             getAST(script);
         }
     }
+    
+    @Test
+    public void imageTypesInImagesBlock() throws Exception {
+        System.out.println("   image types in images block");
+        String script = 
+                  "images { src = read ushort; mask = write bit; out = write int; } \n"
+                + "mask = src > 0; out = src;" ;
+        
+        JiffleParser parser = new JiffleParser(
+                new CommonTokenStream(new JiffleLexer(new ANTLRStringStream(script))));
+        parser.prog();
+        
+        Map<String, Jiffle.ImageType> types = parser.getImageTypes();
+        assertEquals(3, types.size());
+        assertEquals(Jiffle.ImageType.USHORT, types.get("src"));
+        assertEquals(Jiffle.ImageType.BIT, types.get("mask"));
+        assertEquals(Jiffle.ImageType.INT, types.get("out"));
+    }
+    
+    @Test(expected=JiffleParserException.class)
+    public void unknownImageType() throws Exception {
+        System.out.println("   unknown image type throws exception");
+        String script = 
+                  "images { dest = write long; } \n"
+                + "dest = 42;" ;
+                
+        getAST(script);
+    }
 }
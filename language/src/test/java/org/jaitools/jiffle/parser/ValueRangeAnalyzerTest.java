@@ -0,0 +1,231 @@
+/* 
+ *  Copyright (c) 2009-2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.parser;
+
+import java.awt.image.DataBuffer;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests inferring the range of values written to destination images.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ValueRangeAnalyzerTest {
+    
+    @Test
+    public void intLiteral() throws Exception {
+        System.out.println("   integer literal");
+        assertRange(42, 42, true, false, getRange("dest = 42;"));
+    }
+    
+    @Test
+    public void floatLiteral() throws Exception {
+        System.out.println("   float literal");
+        assertRange(0.5, 0.5, false, false, getRange("dest = 0.5;"));
+    }
+    
+    @Test
+    public void nullValue() throws Exception {
+        System.out.println("   null");
+        ValueRange r = getRange("dest = null;");
+        assertTrue(r.isEmpty());
+        assertTrue(r.isNaNPossible());
+    }
+    
+    @Test
+    public void reclassWithCon() throws Exception {
+        System.out.println("   reclassification with con");
+        String script = "dest = con(src < 10, 1, con(src < 20, 2, 3));" ;
+        assertRange(1, 3, true, true, getRange(script));
+        assertRange(1, 3, true, false, getRange(script, DataBuffer.TYPE_SHORT));
+        assertEquals(Jiffle.ImageType.BYTE, 
+                Jiffle.ImageType.forRange(getRange(script, DataBuffer.TYPE_SHORT)));
+        
+        // float source values can be NaN
+        assertEquals(Jiffle.ImageType.FLOAT, 
+                Jiffle.ImageType.forRange(getRange(script, DataBuffer.TYPE_FLOAT)));
+    }
+    
+    @Test
+    public void ifElseStatements() throws Exception {
+        System.out.println("   if-else statements");
+        String script = 
+                  "if (src > 0) { dest = 1000; } \n"
+                + "else { dest = -1; }" ;
+        
+        assertRange(-1, 1000, true, false, getRange(script, DataBuffer.TYPE_BYTE));
+    }
+    
+    @Test
+    public void comparison() throws Exception {
+        System.out.println("   comparison");
+        assertRange(0, 1, true, false, getRange("dest = src > 10;", DataBuffer.TYPE_INT));
+        assertRange(0, 1, true, true, getRange("dest = src > 10;", DataBuffer.TYPE_DOUBLE));
+    }
+    
+    @Test
+    public void sourceDataType() throws Exception {
+        System.out.println("   source data type");
+        assertRange(0, 255, true, false, getRange("dest = src;", DataBuffer.TYPE_BYTE));
+        assertRange(0, 510, true, false, getRange("dest = 2 * src;", DataBuffer.TYPE_BYTE));
+        assertRange(-255, 0, true, false, getRange("dest = -src;", DataBuffer.TYPE_BYTE));
+    }
+    
+    @Test
+    public void outsideOption() throws Exception {
+        System.out.println("   outside option");
+        String script = "options { outside = 1000; } dest = src[1, 0];" ;
+        assertRange(0, 1000, true, false, getRange(script, DataBuffer.TYPE_BYTE));
+        
+        script = "options { outside = null; } dest = src[1, 0];" ;
+        assertRange(0, 255, true, true, getRange(script, DataBuffer.TYPE_BYTE));
+    }
+    
+    @Test
+    public void division() throws Exception {
+        System.out.println("   division");
+        assertRange(0, 127.5, false, false, getRange("dest = src / 2;", DataBuffer.TYPE_BYTE));
+        assertUnknown(getRange("dest = 1 / src;", DataBuffer.TYPE_BYTE));
+    }
+    
+    @Test
+    public void roundingFunctions() throws Exception {
+        System.out.println("   rounding functions");
+        assertRange(0, 128, true, false, getRange("dest = round(src / 2);", DataBuffer.TYPE_BYTE));
+        assertRange(0, 127, true, false, getRange("dest = floor(src / 2);", DataBuffer.TYPE_BYTE));
+        
+        ValueRange r = getRange("dest = floor(src);");
+        assertTrue(r.isIntegral());
+        assertTrue(r.isNaNPossible());
+    }
+    
+    @Test
+    public void pixelScopeVariables() throws Exception {
+        System.out.println("   pixel scope variables");
+        String script = 
+                  "a = src; \n"
+                + "b = a + 1; \n"
+                + "dest = b;" ;
+        
+        assertRange(1, 256, true, false, getRange(script, DataBuffer.TYPE_BYTE));
+    }
+    
+    @Test
+    public void loops() throws Exception {
+        System.out.println("   loops");
+        String script = 
+                  "n = 0; \n"
+                + "foreach (i in 1:10) { n += i; } \n"
+                + "dest = n;" ;
+        assertUnknown(getRange(script));
+        
+        script = "n = 0; foreach (i in [1, 5, 7]) { n = max(n, i); } dest = n;" ;
+        assertRange(0, 7, true, false, getRange(script));
+    }
+    
+    @Test
+    public void coordinateComparison() throws Exception {
+        System.out.println("   comparison with coordinate function");
+        assertRange(0, 1, true, false, getRange("dest = x() > 4;"));
+    }
+    
+    @Test
+    public void imageScopeVariable() throws Exception {
+        System.out.println("   image scope variable");
+        assertUnknown(getRange("init { n = 0; } dest = n;"));
+    }
+    
+    @Test
+    public void coordinateFunction() throws Exception {
+        System.out.println("   coordinate function");
+        ValueRange r = getRange("dest = x();");
+        assertTrue(Double.isInfinite(r.getMin()));
+        assertTrue(Double.isInfinite(r.getMax()));
+        assertFalse(r.isIntegral());
+        assertEquals(Jiffle.ImageType.DOUBLE, Jiffle.ImageType.forRange(r));
+    }
+    
+    @Test
+    public void imageTypeForRange() throws Exception {
+        System.out.println("   image type for range");
+        
+        assertEquals(Jiffle.ImageType.BYTE, 
+                Jiffle.ImageType.forRange(new ValueRange(0, 255, true, false)));
+        assertEquals(Jiffle.ImageType.USHORT, 
+                Jiffle.ImageType.forRange(new ValueRange(0, 256, true, false)));
+        assertEquals(Jiffle.ImageType.SHORT, 
+                Jiffle.ImageType.forRange(new ValueRange(-1, 255, true, false)));
+        assertEquals(Jiffle.ImageType.INT, 
+                Jiffle.ImageType.forRange(new ValueRange(-1, 65535, true, false)));
+        assertEquals(Jiffle.ImageType.FLOAT, 
+                Jiffle.ImageType.forRange(new ValueRange(0, 255, true, true)));
+        assertEquals(Jiffle.ImageType.DOUBLE, 
+                Jiffle.ImageType.forRange(new ValueRange(0, 1, false, false)));
+        assertEquals(Jiffle.ImageType.DOUBLE, 
+                Jiffle.ImageType.forRange(ValueRange.UNKNOWN));
+    }
+    
+    private ValueRange getRange(String script) throws Exception {
+        return getRange(script, null);
+    }
+    
+    private ValueRange getRange(String script, Integer srcDataType) throws Exception {
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("src", Jiffle.ImageRole.SOURCE);
+        params.put("dest", Jiffle.ImageRole.DEST);
+        
+        Jiffle jiffle = new Jiffle(script, params);
+        if (srcDataType != null) {
+            Map<String, Integer> dataTypes = CollectionFactory.map();
+            dataTypes.put("src", srcDataType);
+            jiffle.setImageDataTypes(dataTypes);
+        }
+        
+        return jiffle.getDestinationRanges().get("dest");
+    }
+    
+    private void assertRange(double min, double max, boolean integral, boolean nan, 
+            ValueRange r) {
+        
+        assertEquals(min, r.getMin(), 0);
+        assertEquals(max, r.getMax(), 0);
+        assertEquals(integral, r.isIntegral());
+        assertEquals(nan, r.isNaNPossible());
+    }
+    
+    private void assertUnknown(ValueRange r) {
+        assertTrue(Double.isInfinite(r.getMin()));
+        assertTrue(Double.isInfinite(r.getMax()));
+        assertTrue(r.isNaNPossible());
+    }
+}
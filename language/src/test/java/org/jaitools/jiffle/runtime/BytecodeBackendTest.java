@@ -0,0 +1,262 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that runtime classes created by the bytecode backend give the
+ * same results as those created from Java source.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class BytecodeBackendTest extends RuntimeTestBase {
+    
+    private final List<String> fallbacks = CollectionFactory.list();
+    private Level defaultLevel;
+    
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getMessage().startsWith("Using source backend")) {
+                fallbacks.add(record.getMessage());
+            }
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+    
+    @Before
+    public void setup() {
+        defaultLevel = Jiffle.LOGGER.getLevel();
+        Jiffle.LOGGER.setLevel(Level.FINE);
+        Jiffle.LOGGER.addHandler(handler);
+        fallbacks.clear();
+    }
+    
+    @After
+    public void cleanup() {
+        Jiffle.LOGGER.removeHandler(handler);
+        Jiffle.LOGGER.setLevel(defaultLevel);
+    }
+    
+    @Test
+    public void defaultBackend() throws Exception {
+        System.out.println("   default compiler backend");
+        assertEquals(Jiffle.CompilerBackend.SOURCE, new Jiffle().getCompilerBackend());
+    }
+    
+    @Test
+    public void arithmetic() throws Exception {
+        System.out.println("   bytecode: arithmetic");
+        assertSameResults("dest = (src * 2 + 1) / 3 - src % 7;");
+        assertSameResults("dest = src ^ 2 + -src;");
+    }
+    
+    @Test
+    public void logicalOperators() throws Exception {
+        System.out.println("   bytecode: logical operators");
+        assertSameResults("dest = (src > 20 && src <= 60) || !(src != 5) ^| src == 90;");
+    }
+    
+    @Test
+    public void conCalls() throws Exception {
+        System.out.println("   bytecode: con calls");
+        assertSameResults("dest = con(src % 3);");
+        assertSameResults("dest = con(src > 50, src);");
+        assertSameResults("dest = con(src > 50, src, -src);");
+        assertSameResults("dest = con(src - 50, 1, 2, 3);");
+        assertSameResults("dest = con(x() > 0, src[-1, 0], NULL);");
+    }
+    
+    @Test
+    public void ifElse() throws Exception {
+        System.out.println("   bytecode: if-else");
+        assertSameResults("if (src > 20) { dest = 1; } else { dest = 2; }");
+        assertSameResults("n = 0; if (src < 50) n = src; dest = n;");
+    }
+    
+    @Test
+    public void loops() throws Exception {
+        System.out.println("   bytecode: loops");
+        assertSameResults("n = 0; while (n < src % 7) n++; dest = n;");
+        assertSameResults("n = 0; until (n > x()) n++; dest = n;");
+        assertSameResults("z = 0; foreach (i in -1:src % 5) z += i * src; dest = z;");
+        assertSameResults("z = 0; foreach (i in [x(), y(), 3]) { t = i * 2; z += t; } dest = z;");
+        assertSameResults("n = 0; i = 0; while (i < x()) { n += i; breakif(n >= 10); i++; } dest = n;");
+        assertSameResults("n = 0; foreach (i in 1:10) { n += i; if (n > src) break; } dest = n;");
+    }
+    
+    @Test
+    public void lists() throws Exception {
+        System.out.println("   bytecode: lists");
+        assertSameResults("v = [src, 2, 3]; v << 4; z = 0; foreach (i in v) z += i; dest = z;");
+        assertSameResults("v = []; foreach (dx in 0:2) v << src[$dx, $(y())]; dest = max(v) + sum(v);");
+        assertSameResults("v = concat([1, 2], src); dest = mean(v);");
+    }
+    
+    @Test
+    public void functions() throws Exception {
+        System.out.println("   bytecode: functions");
+        assertSameResults("dest = max(src, 50) + sqrt(src) + round(src / 3) + abs(x() - y());");
+        assertSameResults("dest = width() * height() + xres() + x() + y();");
+        assertSameResults("dest = isnull(con(src > 10, src, NULL)) + M_PI;");
+    }
+    
+    @Test
+    public void incrementAndDecrement() throws Exception {
+        System.out.println("   bytecode: increment and decrement");
+        assertSameResults("n = src; m = n++; dest = m + ++n - n--;");
+        assertSameResults("z = 0; foreach (i in 1:3) z += i++; dest = z;");
+    }
+    
+    @Test
+    public void imageScopeVars() throws Exception {
+        System.out.println("   bytecode: image-scope variables");
+        assertSameResults("init { n = 0; } n += src; m = n; dest = n++ + m;");
+        assertSameResults("init { n = width(); k = con(width() > 100, 2, 1); } dest = n * k;");
+    }
+    
+    @Test
+    public void bandsAndNeighbours() throws Exception {
+        System.out.println("   bytecode: image positions");
+        assertSameResults("dest = src[0] + src[$(x() % 3), $(y() % 2)];");
+        assertSameResults("dest = src[$1, $2] + src[0, 0];");
+    }
+    
+    @Test
+    public void outsideOption() throws Exception {
+        System.out.println("   bytecode: outside option");
+        assertSameResults("options { outside = 0; } dest = src[-1, -1] + src[1, 1];");
+        assertSameResults("options { outside = NULL; } dest = src[-1, 0];");
+    }
+    
+    @Test
+    public void invariants() throws Exception {
+        System.out.println("   bytecode: invariant expressions");
+        assertSameResults("dest = src + sqrt(width() * 2) + y() * height();");
+    }
+    
+    @Test
+    public void typedImages() throws Exception {
+        System.out.println("   bytecode: typed images");
+        Map<String, Integer> dataTypes = CollectionFactory.map();
+        dataTypes.put("src", DataBuffer.TYPE_DOUBLE);
+        dataTypes.put("dest", DataBuffer.TYPE_DOUBLE);
+        assertSameResults("dest = src * 2;", dataTypes);
+    }
+    
+    @Test
+    public void indirectRuntime() throws Exception {
+        System.out.println("   bytecode: indirect runtime");
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("dest", Jiffle.ImageRole.DEST);
+        
+        String script = "n = 0; foreach (i in 0:x()) n += con(i % 2, i, -i); dest = n * y();";
+        JiffleIndirectRuntime expected = (JiffleIndirectRuntime) createJiffle(
+                script, params, Jiffle.CompilerBackend.SOURCE).getRuntimeInstance(
+                Jiffle.RuntimeModel.INDIRECT);
+        JiffleIndirectRuntime actual = (JiffleIndirectRuntime) createJiffle(
+                script, params, Jiffle.CompilerBackend.BYTECODE).getRuntimeInstance(
+                Jiffle.RuntimeModel.INDIRECT);
+        
+        assertTrue(fallbacks.isEmpty());
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 5; x++) {
+                assertEquals(expected.evaluate(x, y), actual.evaluate(x, y), TOL);
+            }
+        }
+    }
+    
+    private void assertSameResults(String script) throws Exception {
+        assertSameResults(script, null);
+    }
+    
+    private void assertSameResults(String script, Map<String, Integer> dataTypes) 
+            throws Exception {
+        
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        RenderedImage srcImg = createSequenceImage();
+        RenderedImage expected = run(script, dataTypes, Jiffle.CompilerBackend.SOURCE, srcImg);
+        RenderedImage actual = run(script, dataTypes, Jiffle.CompilerBackend.BYTECODE, srcImg);
+        
+        assertTrue("Bytecode backend not used: " + fallbacks, fallbacks.isEmpty());
+        assertImage(expected, actual, new Evaluator() {
+            @Override
+            public double eval(double val) {
+                return val;
+            }
+        });
+    }
+    
+    private RenderedImage run(String script, Map<String, Integer> dataTypes,
+            Jiffle.CompilerBackend backend, RenderedImage srcImg) throws Exception {
+        
+        Jiffle jiffle = createJiffle(script, imageParams, backend);
+        jiffle.setImageDataTypes(dataTypes);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(new NullProgressListener());
+        return destImg;
+    }
+    
+    private Jiffle createJiffle(String script, Map<String, Jiffle.ImageRole> params,
+            Jiffle.CompilerBackend backend) throws Exception {
+        
+        Jiffle jiffle = new Jiffle(script, params);
+        jiffle.setCompilerBackend(backend);
+        return jiffle;
+    }
+}
@@ -123,4 +123,21 @@ public class ConStatementsTest extends RuntimeTestBase {
         assertImage(src1, dest, e);
     }
     
+    @Test
+    public void conWithConCondition() throws Exception {
+        String script = "dest = con(con(src > 10, src - 20, null), 1, 2, 3);";
+        System.out.println("   " + script);
+        
+        testScript(script, new Evaluator() {
+
+            public double eval(double val) {
+                if (val > 10) {
+                    double comp = val - 20;
+                    return comp > 0 ? 1 : (comp == 0 ? 2 : 3);
+                }
+                return Double.NaN;
+            }
+        });
+    }
+
 }
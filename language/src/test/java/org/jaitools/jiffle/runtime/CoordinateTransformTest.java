@@ -144,6 +144,64 @@ public class CoordinateTransformTest {
         assertPoint(0, 100, tr.worldToImage(100, 100, null));
     }
     
+    @Test
+    public void suppliedPointIsReused() throws Exception {
+        System.out.println("   supplied point receives transformed coordinates");
+        
+        Point p = new Point();
+        CoordinateTransform tr = CoordinateTransforms.translation(10, -10);
+        assertSame(p, tr.worldToImage(100, 100, p));
+        assertPoint(110, 90, p);
+        
+        tr = CoordinateTransforms.identity();
+        assertSame(p, tr.worldToImage(10.4, 10.6, p));
+        assertPoint(10, 11, p);
+    }
+    
+    @Test
+    public void isIdentity() throws Exception {
+        System.out.println("   testing for identity transforms");
+        
+        assertTrue(CoordinateTransforms.identity().isIdentity());
+        assertTrue(new AffineCoordinateTransform(null).isIdentity());
+        assertFalse(CoordinateTransforms.scale(0.1, 0.2).isIdentity());
+        assertFalse(CoordinateTransforms.translation(10, 0).isIdentity());
+    }
+    
+    @Test
+    public void identityStepper() throws Exception {
+        System.out.println("   stepping along a row with identity transform");
+        assertStepper(CoordinateTransforms.identity(), 0.5, 10.2, 0.7, 20);
+    }
+    
+    @Test
+    public void scaleStepper() throws Exception {
+        System.out.println("   stepping along a row with scaling transform");
+        assertStepper(CoordinateTransforms.scale(0.5, 0.5), 0, 10, 1, 20);
+    }
+    
+    @Test
+    public void rotationStepper() throws Exception {
+        System.out.println("   stepping along a row with rotation transform");
+        
+        AffineTransform affine = AffineTransform.getRotateInstance(Math.PI/6, 50, 50);
+        assertStepper(new AffineCoordinateTransform(affine), 0.1, 20.1, 1, 100);
+    }
+    
+    private void assertStepper(CoordinateTransform tr, double x0, double y, double dx, int n) {
+        CoordinateStepper stepper = tr.createStepper();
+        Point p = new Point();
+        
+        stepper.startRow(x0, y, dx, p);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                stepper.next(p);
+            }
+            Point expected = tr.worldToImage(x0 + i * dx, y, null);
+            assertEquals(expected, p);
+        }
+    }
+    
     private void assertPoint(int expectedX, int expectedY, Point pt) {
         assertEquals(expectedX, pt.x);
         assertEquals(expectedY, pt.y);
@@ -423,5 +423,19 @@ public class FunctionsTest extends RuntimeTestBase {
         
         testScript(script, e);
     }
+    
+    @Test
+    public void sign() throws Exception {
+        System.out.println("   sign(src - 10)");
+        String script = "dest = sign(src - 10);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return Math.signum(val - 10);
+            }
+        };
+        
+        testScript(script, e);
+    }
 
 }
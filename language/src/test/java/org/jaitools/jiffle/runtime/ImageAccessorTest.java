@@ -0,0 +1,240 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+
+import javax.media.jai.TiledImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ImageAccessor}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ImageAccessorTest {
+    
+    private static final int MIN_X = -3;
+    private static final int MIN_Y = 5;
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    private static final int TILE_SIZE = 8;
+    private static final int NUM_BANDS = 3;
+    
+    private static final int[] DATA_TYPES = {
+        DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_SHORT,
+        DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE
+    };
+    
+    @Test
+    public void readPixelInterleaved() throws Exception {
+        System.out.println("   read pixel-interleaved images");
+        for (int dataType : DATA_TYPES) {
+            TiledImage img = createImage(createInterleaved(dataType));
+            fill(img);
+            assertRead(img);
+        }
+    }
+    
+    @Test
+    public void readBanded() throws Exception {
+        System.out.println("   read banded images");
+        for (int dataType : DATA_TYPES) {
+            TiledImage img = createImage(createBanded(dataType));
+            fill(img);
+            assertRead(img);
+        }
+    }
+    
+    @Test
+    public void writePixelInterleaved() throws Exception {
+        System.out.println("   write pixel-interleaved images");
+        for (int dataType : DATA_TYPES) {
+            TiledImage img = createImage(createInterleaved(dataType));
+            write(img);
+            assertWritten(img);
+        }
+    }
+    
+    @Test
+    public void writeBanded() throws Exception {
+        System.out.println("   write banded images");
+        for (int dataType : DATA_TYPES) {
+            TiledImage img = createImage(createBanded(dataType));
+            write(img);
+            assertWritten(img);
+        }
+    }
+    
+    @Test
+    public void readAndWritePackedImage() throws Exception {
+        System.out.println("   read and write image with packed sample model");
+        SampleModel sm = new MultiPixelPackedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 1);
+        TiledImage img = createImage(sm);
+        
+        ImageAccessor acc = new ImageAccessor(img);
+        for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+            for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+                acc.setSample(x, y, 0, (x + y) % 2);
+            }
+        }
+        acc.done();
+        
+        acc = new ImageAccessor(img);
+        for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+            for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+                int expected = (x + y) % 2;
+                assertEquals(expected, img.getSample(x, y, 0));
+                assertEquals(expected, acc.getSample(x, y, 0), 0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void valuesAreSaturated() throws Exception {
+        System.out.println("   written values are saturated to image data type");
+        
+        assertSaturated(createInterleaved(DataBuffer.TYPE_BYTE), 0, 255);
+        assertSaturated(createInterleaved(DataBuffer.TYPE_USHORT), 0, 65535);
+        assertSaturated(createInterleaved(DataBuffer.TYPE_SHORT), Short.MIN_VALUE, Short.MAX_VALUE);
+        assertSaturated(createInterleaved(DataBuffer.TYPE_INT), Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertSaturated(new MultiPixelPackedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 1), 0, 1);
+        assertSaturated(new MultiPixelPackedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 4), 0, 15);
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void readOnlyAccessor() throws Exception {
+        System.out.println("   writing with read-only accessor");
+        TiledImage img = createImage(createInterleaved(DataBuffer.TYPE_BYTE));
+        RenderedImage readOnly = img;
+        ImageAccessor acc = new ImageAccessor(readOnly);
+        acc.setSample(MIN_X, MIN_Y, 0, 1);
+    }
+
+    private void assertSaturated(SampleModel sm, double min, double max) {
+        TiledImage img = createImage(sm);
+        
+        ImageAccessor acc = new ImageAccessor(img);
+        acc.setSample(MIN_X, MIN_Y, 0, max + 1000.5);
+        acc.setSample(MIN_X + 1, MIN_Y, 0, min - 1000.5);
+        acc.setSample(MIN_X + 2, MIN_Y, 0, Double.NaN);
+        acc.setSample(MIN_X + 3, MIN_Y, 0, 1.7);
+        acc.done();
+        
+        assertEquals(max, img.getSampleDouble(MIN_X, MIN_Y, 0), 0.0);
+        assertEquals(min, img.getSampleDouble(MIN_X + 1, MIN_Y, 0), 0.0);
+        assertEquals(0, img.getSampleDouble(MIN_X + 2, MIN_Y, 0), 0.0);
+        assertEquals(1, img.getSampleDouble(MIN_X + 3, MIN_Y, 0), 0.0);
+    }
+    
+    private SampleModel createInterleaved(int dataType) {
+        int[] offsets = new int[NUM_BANDS];
+        for (int b = 0; b < NUM_BANDS; b++) {
+            offsets[b] = NUM_BANDS - 1 - b;
+        }
+        return new PixelInterleavedSampleModel(dataType, TILE_SIZE, TILE_SIZE, 
+                NUM_BANDS, NUM_BANDS * TILE_SIZE, offsets);
+    }
+    
+    private SampleModel createBanded(int dataType) {
+        return new BandedSampleModel(dataType, TILE_SIZE, TILE_SIZE, NUM_BANDS);
+    }
+    
+    private TiledImage createImage(SampleModel sm) {
+        // tile grid offset so that tiles straddle the image bounds
+        return new TiledImage(MIN_X, MIN_Y, WIDTH, HEIGHT, 2, -1, sm, null);
+    }
+    
+    private double value(int x, int y, int band) {
+        return (x - MIN_X) + (y - MIN_Y) * WIDTH + band * 3;
+    }
+    
+    private void fill(TiledImage img) {
+        for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+            for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    img.setSample(x, y, b, value(x, y, b));
+                }
+            }
+        }
+    }
+    
+    private void write(TiledImage img) {
+        ImageAccessor acc = new ImageAccessor(img);
+        for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+            for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    acc.setSample(x, y, b, value(x, y, b));
+                }
+            }
+        }
+        acc.done();
+    }
+
+    private void assertRead(TiledImage img) {
+        ImageAccessor acc = new ImageAccessor(img);
+        int maxValue = maxValue(img);
+        
+        // read columns first to exercise tile changes
+        for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+            for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    assertEquals(value(x, y, b) % maxValue, acc.getSample(x, y, b), 0.0);
+                }
+            }
+        }
+    }
+    
+    private void assertWritten(TiledImage img) {
+        // written values are saturated
+        int maxValue = maxValue(img) - 1;
+        for (int y = MIN_Y; y < MIN_Y + HEIGHT; y++) {
+            for (int x = MIN_X; x < MIN_X + WIDTH; x++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    double expected = Math.min(value(x, y, b), maxValue);
+                    assertEquals(expected, img.getSampleDouble(x, y, b), 0.0);
+                }
+            }
+        }
+    }
+    
+    private int maxValue(TiledImage img) {
+        // byte images wrap test values
+        return img.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE ? 256 : Integer.MAX_VALUE;
+    }
+}
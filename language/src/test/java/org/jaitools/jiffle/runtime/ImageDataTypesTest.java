@@ -0,0 +1,190 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.util.Map;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleBuilder;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for runtime classes generated for specific image data types.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ImageDataTypesTest {
+    
+    private static final int WIDTH = 20;
+    private static final int TILE_SIZE = 8;
+    
+    @Test
+    public void typeSpecializedSource() throws Exception {
+        System.out.println("   runtime source with type-specialized image access");
+        
+        Jiffle jiffle = getJiffle("dest = src + 1;", DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT);
+        String source = jiffle.getRuntimeSource(false);
+        
+        assertTrue(source.contains("readByteFromImage("));
+        assertTrue(source.contains("writeUShortToImage("));
+        assertFalse(source.contains("readFromImage("));
+    }
+    
+    @Test
+    public void untypedSource() throws Exception {
+        System.out.println("   runtime source without image data types");
+        
+        Jiffle jiffle = getJiffle("dest = src + 1;", null, null);
+        String source = jiffle.getRuntimeSource(false);
+        
+        assertTrue(source.contains("readFromImage("));
+        assertTrue(source.contains("writeToImage("));
+    }
+    
+    @Test
+    public void byteToUShort() throws Exception {
+        System.out.println("   byte source to ushort destination");
+        assertResult(DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT);
+    }
+    
+    @Test
+    public void ushortToByte() throws Exception {
+        System.out.println("   ushort source to byte destination");
+        assertResult(DataBuffer.TYPE_USHORT, DataBuffer.TYPE_BYTE);
+    }
+    
+    @Test
+    public void shortToInt() throws Exception {
+        System.out.println("   short source to int destination");
+        assertResult(DataBuffer.TYPE_SHORT, DataBuffer.TYPE_INT);
+    }
+    
+    @Test
+    public void floatToDouble() throws Exception {
+        System.out.println("   float source to double destination");
+        assertResult(DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE);
+    }
+    
+    @Test
+    public void doubleToFloat() throws Exception {
+        System.out.println("   double source to float destination");
+        assertResult(DataBuffer.TYPE_DOUBLE, DataBuffer.TYPE_FLOAT);
+    }
+    
+    @Test(expected=JiffleRuntimeException.class)
+    public void wrongSourceType() throws Exception {
+        System.out.println("   source image with wrong data type");
+        
+        Jiffle jiffle = getJiffle("dest = src + 1;", DataBuffer.TYPE_BYTE, DataBuffer.TYPE_BYTE);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        runtime.setSourceImage("src", createImage(DataBuffer.TYPE_INT));
+    }
+    
+    @Test
+    public void builderUsesImageTypes() throws Exception {
+        System.out.println("   JiffleBuilder generates type-specialized runtime");
+        
+        TiledImage srcImg = createImage(DataBuffer.TYPE_BYTE);
+        fill(srcImg);
+        TiledImage destImg = createImage(DataBuffer.TYPE_SHORT);
+        
+        JiffleBuilder builder = new JiffleBuilder();
+        builder.script("dest = src - 10;").source("src", srcImg).dest("dest", destImg);
+        
+        String source = builder.getRuntimeSource();
+        assertTrue(source.contains("readByteFromImage("));
+        assertTrue(source.contains("writeShortToImage("));
+        
+        builder.run();
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(srcImg.getSample(x, y, 0) - 10, destImg.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    private void assertResult(int srcType, int destType) throws Exception {
+        TiledImage srcImg = createImage(srcType);
+        fill(srcImg);
+        TiledImage destImg = createImage(destType);
+        
+        Jiffle jiffle = getJiffle("dest = src + 1;", srcType, destType);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null);
+        
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double expected = srcImg.getSampleDouble(x, y, 0) + 1;
+                assertEquals(expected, destImg.getSampleDouble(x, y, 0), 0.0);
+            }
+        }
+    }
+    
+    private Jiffle getJiffle(String script, Integer srcType, Integer destType) throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        
+        Map<String, Integer> dataTypes = CollectionFactory.map();
+        if (srcType != null) {
+            dataTypes.put("src", srcType);
+        }
+        if (destType != null) {
+            dataTypes.put("dest", destType);
+        }
+        jiffle.setImageDataTypes(dataTypes);
+        
+        return jiffle;
+    }
+    
+    private TiledImage createImage(int dataType) {
+        SampleModel sm = new PixelInterleavedSampleModel(
+                dataType, TILE_SIZE, TILE_SIZE, 1, TILE_SIZE, new int[]{0});
+        return new TiledImage(0, 0, WIDTH, WIDTH, 0, 0, sm, null);
+    }
+    
+    private void fill(TiledImage img) {
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // values within the range of all data types
+                img.setSample(x, y, 0, (x + y * WIDTH) % 200 + 10);
+            }
+        }
+    }
+}
@@ -25,6 +25,10 @@
 
 package org.jaitools.jiffle.runtime;
 
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -125,4 +129,65 @@ public class ImageScopeVarsTest extends RuntimeTestBase {
 
         testScript(script, e);
     }
+
+    @Test
+    public void setValueWithHandle() throws Exception {
+        System.out.println("   setting value with variable handle");
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+
+        Jiffle jiffle = new Jiffle("init { a = 1; b = 2; } dest = src * a + b;", imageParams);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+
+        int handle = runtime.getVarHandle("a");
+        assertTrue(handle >= 0);
+        assertEquals(-1, runtime.getVarHandle("foo"));
+
+        for (int k = 2; k <= 4; k++) {
+            final double a = k;
+            runtime.setVar(handle, a);
+            assertEquals(a, runtime.getVar(handle), TOL);
+            assertEquals(a, runtime.getVar("a"), TOL);
+
+            testRuntime(createSequenceImage(), runtime, new Evaluator() {
+
+                public double eval(double val) {
+                    return val * a + 2;
+                }
+            });
+        }
+    }
+
+    @Test(expected=JiffleRuntimeException.class)
+    public void invalidHandle() throws Exception {
+        System.out.println("   invalid variable handle");
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+
+        Jiffle jiffle = new Jiffle("init { a = 1; } dest = a;", imageParams);
+        jiffle.getRuntimeInstance().setVar(1, 42);
+    }
+
+    @Test
+    public void prepareInitializesVars() throws Exception {
+        System.out.println("   prepare initializes variables");
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+
+        Jiffle jiffle = new Jiffle("init { n = width(); } dest = n;", imageParams);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        runtime.setDestinationImage("dest", 
+                ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0d));
+
+        assertNull(runtime.getVar("n"));
+        assertFalse(runtime.isWorldSet());
+        
+        runtime.prepare();
+        assertTrue(runtime.isWorldSet());
+        assertEquals(IMG_WIDTH, runtime.getVar("n"), TOL);
+    }
 }
@@ -0,0 +1,203 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleBuilder;
+import org.jaitools.jiffle.JiffleException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that the interpreted runtime gives the same results as 
+ * compiled runtime classes.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InterpretedRuntimeTest extends RuntimeTestBase {
+    
+    @Test
+    public void arithmetic() throws Exception {
+        System.out.println("   interpreter: arithmetic");
+        assertSameResults("dest = (src * 2 + 1) / 3 - src % 7;");
+        assertSameResults("dest = src ^ 2 + -src;");
+    }
+    
+    @Test
+    public void logicalOperators() throws Exception {
+        System.out.println("   interpreter: logical operators");
+        assertSameResults("dest = (src > 20 && src <= 60) || !(src != 5) ^| src == 90;");
+    }
+    
+    @Test
+    public void conCalls() throws Exception {
+        System.out.println("   interpreter: con calls");
+        assertSameResults("dest = con(src % 3);");
+        assertSameResults("dest = con(src > 50, src);");
+        assertSameResults("dest = con(src > 50, src, -src);");
+        assertSameResults("dest = con(src - 50, 1, 2, 3);");
+        assertSameResults("dest = con(x() > 0, src[-1, 0], NULL);");
+    }
+    
+    @Test
+    public void ifElse() throws Exception {
+        System.out.println("   interpreter: if-else");
+        assertSameResults("if (src > 20) { dest = 1; } else { dest = 2; }");
+        assertSameResults("n = 0; if (src < 50) n = src; dest = n;");
+    }
+    
+    @Test
+    public void loops() throws Exception {
+        System.out.println("   interpreter: loops");
+        assertSameResults("n = 0; while (n < src % 7) n++; dest = n;");
+        assertSameResults("n = 0; until (n > x()) n++; dest = n;");
+        assertSameResults("z = 0; foreach (i in -1:src % 5) z += i * src; dest = z;");
+        assertSameResults("z = 0; foreach (i in [x(), y(), 3]) { t = i * 2; z += t; } dest = z;");
+        assertSameResults("n = 0; i = 0; while (i < x()) { n += i; breakif(n >= 10); i++; } dest = n;");
+        assertSameResults("n = 0; foreach (i in 1:10) { n += i; if (n > src) break; } dest = n;");
+        assertSameResults("z = 0; foreach (i in 1:5) z += i++; dest = z;");
+    }
+    
+    @Test
+    public void lists() throws Exception {
+        System.out.println("   interpreter: lists");
+        assertSameResults("v = [src, 2, 3]; v << 4; z = 0; foreach (i in v) z += i; dest = z;");
+        assertSameResults("v = []; foreach (dx in 0:2) v << src[$dx, $(y())]; dest = max(v) + sum(v);");
+        assertSameResults("v = concat([1, 2], src); dest = mean(v);");
+    }
+    
+    @Test
+    public void functions() throws Exception {
+        System.out.println("   interpreter: functions");
+        assertSameResults("dest = max(src, 50) + sqrt(src) + round(src / 3) + abs(x() - y());");
+        assertSameResults("dest = width() * height() + xres() + x() + y();");
+        assertSameResults("dest = isnull(con(src > 10, src, NULL)) + M_PI;");
+    }
+    
+    @Test
+    public void imageScopeVars() throws Exception {
+        System.out.println("   interpreter: image-scope variables");
+        assertSameResults("init { n = 0; } n += src; m = n; dest = n++ + m;");
+        assertSameResults("init { n = width(); k = con(width() > 100, 2, 1); } dest = n * k;");
+    }
+    
+    @Test
+    public void imagePositions() throws Exception {
+        System.out.println("   interpreter: image positions");
+        assertSameResults("dest = src[0] + src[$(x() % 3), $(y() % 2)];");
+        assertSameResults("options { outside = 0; } dest = src[-1, -1] + src[1, 1];");
+    }
+    
+    @Test
+    public void invariants() throws Exception {
+        System.out.println("   interpreter: invariant expressions");
+        assertSameResults("dest = src + sqrt(width() * 2) + y() * height();");
+    }
+    
+    @Test
+    public void multiThreaded() throws Exception {
+        System.out.println("   interpreter: multi-threaded evaluation");
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        Jiffle jiffle = new Jiffle("dest = src * 2;", imageParams);
+        JiffleDirectRuntime runtime = (JiffleDirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INTERPRETED);
+        
+        RenderedImage srcImg = createSequenceImage();
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null, 4);
+        
+        assertImage(srcImg, destImg, new Evaluator() {
+            @Override
+            public double eval(double val) {
+                return val * 2;
+            }
+        });
+    }
+    
+    @Test
+    public void builderUsesInterpreterForSmallArea() throws Exception {
+        System.out.println("   builder uses interpreter for small areas");
+        JiffleBuilder builder = new JiffleBuilder();
+        builder.script("dest = x() + y();").dest("dest", IMG_WIDTH, IMG_WIDTH);
+        assertTrue(builder.getRuntime() instanceof InterpretedRuntime);
+        
+        builder.dest("dest", 1000, 1000);
+        assertFalse(builder.getRuntime() instanceof InterpretedRuntime);
+    }
+    
+    @Test(expected=JiffleException.class)
+    public void noRuntimeSource() throws Exception {
+        System.out.println("   no runtime source for interpreted model");
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle("dest = 42;", imageParams);
+        jiffle.getRuntimeSource(Jiffle.RuntimeModel.INTERPRETED, false);
+    }
+    
+    private void assertSameResults(String script) throws Exception {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        RenderedImage srcImg = createSequenceImage();
+        RenderedImage expected = run(script, Jiffle.RuntimeModel.DIRECT, srcImg);
+        RenderedImage actual = run(script, Jiffle.RuntimeModel.INTERPRETED, srcImg);
+        
+        assertImage(expected, actual, new Evaluator() {
+            @Override
+            public double eval(double val) {
+                return val;
+            }
+        });
+    }
+    
+    private RenderedImage run(String script, Jiffle.RuntimeModel model, 
+            RenderedImage srcImg) throws Exception {
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        JiffleDirectRuntime runtime = (JiffleDirectRuntime) jiffle.getRuntimeInstance(model);
+        
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(new NullProgressListener());
+        return destImg;
+    }
+}
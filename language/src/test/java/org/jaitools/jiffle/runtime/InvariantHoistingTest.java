@@ -0,0 +1,171 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for expressions which are evaluated once per run or once
+ * per row rather than for each pixel.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InvariantHoistingTest extends RuntimeTestBase {
+
+    @Test
+    public void runInvariantExpression() throws Exception {
+        System.out.println("   run-invariant expression");
+
+        String script = "init { a = 2; } dest = src * sqrt(a * width());" ;
+        assertTrue(getSource(script).contains("_run0 = "));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val * Math.sqrt(2 * IMG_WIDTH);
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void rowInvariantExpression() throws Exception {
+        System.out.println("   row-invariant expression");
+
+        String script = "init { a = 2; } dest = src + y() * a;" ;
+        String source = getSource(script);
+        assertTrue(source.contains("_row0 = "));
+        assertFalse(source.contains("_run0"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double yy = y;
+                move();
+                return val + yy * 2;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void assignedVarIsNotHoisted() throws Exception {
+        System.out.println("   expression with assigned image-scope var is not hoisted");
+
+        String script = "init { n = 0; } n += 1; dest = n * 2;" ;
+        assertFalse(getSource(script).contains("_run0"));
+
+        Evaluator e = new Evaluator() {
+            double n = 0;
+
+            public double eval(double val) {
+                n += 1;
+                return n * 2;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void volatileFunctionIsNotHoisted() throws Exception {
+        System.out.println("   volatile function call is not hoisted");
+
+        String source = getSource("dest = src + rand(10);");
+        assertFalse(source.contains("_run0"));
+        
+        source = getSource("dest = src + rand(width() * 2);");
+        assertTrue(source.contains("_FN.rand(_run0)"));
+    }
+
+    @Test
+    public void setVarBetweenRuns() throws Exception {
+        System.out.println("   changing var value between runs");
+
+        String script = "init { a = 1; } dest = src + sqrt(a);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + 1;
+            }
+        };
+        
+        testScript(script, e);
+        
+        runtimeInstance.setVar("a", 4.0);
+        e = new Evaluator() {
+            public double eval(double val) {
+                return val + 2;
+            }
+        };
+        
+        testRuntime(createSequenceImage(), runtimeInstance, e);
+    }
+
+    @Test
+    public void rowInvariantWithPixelEvaluation() throws Exception {
+        System.out.println("   row-invariant expression with single pixel evaluation");
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+
+        Jiffle jiffle = new Jiffle("dest = x() + sqrt(y());", imageParams);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0d);
+        runtime.setDestinationImage("dest", destImg);
+
+        // visit pixels column by column so that the row changes each time
+        for (int x = 0; x < IMG_WIDTH; x++) {
+            for (int y = 0; y < IMG_WIDTH; y++) {
+                runtime.evaluate(x, y);
+            }
+        }
+        
+        for (int y = 0; y < IMG_WIDTH; y++) {
+            for (int x = 0; x < IMG_WIDTH; x++) {
+                assertEquals(x + Math.sqrt(y), destImg.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    private String getSource(String script) throws Exception {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeSource(false);
+    }
+}
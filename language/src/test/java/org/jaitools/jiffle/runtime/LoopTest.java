@@ -360,4 +360,24 @@ public class LoopTest extends RuntimeTestBase {
         
         testScript(script, e);
     }
+    
+    @Test
+    public void whileLoopWithNullCondition() throws Exception {
+        System.out.println("   while loop with null condition");
+        String script = 
+                  "n = 0; \n"
+                + "while (con(n < x(), 1, null)) n++; \n"
+                + "dest = n;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                int xx = x;
+                move();
+                return xx;
+            }
+        };
+        
+        testScript(script, e);
+    }
+
 }
@@ -41,7 +41,7 @@ public class MockJiffleRuntime extends AbstractDirectRuntime {
 
     /**
      * Creates a new mock object. Its thread will sleep for {@code pixelTime}
-     * milliseconds each time its {@link #evaluate(int, int)} method is 
+     * milliseconds each time its {@link #evaluatePixel(double, double)} method is 
      * called.
      * 
      * @param imageSize image size (number of pixels)
@@ -86,7 +86,8 @@ public class MockJiffleRuntime extends AbstractDirectRuntime {
     /**
      * Pretends to process a pixel (very slowly).
      */
-    public void evaluate(double x, double y) {
+    @Override
+    protected void evaluatePixel(double x, double y) {
         try {
             Thread.sleep(pixelTime);
 
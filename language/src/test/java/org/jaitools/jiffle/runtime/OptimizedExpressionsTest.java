@@ -0,0 +1,258 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for constant folding, common subexpression elimination and
+ * dead assignment removal in compiled scripts.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class OptimizedExpressionsTest extends RuntimeTestBase {
+
+    @Test
+    public void foldConstants() throws Exception {
+        System.out.println("   folding constant arithmetic");
+
+        String script = "dest = src + (2 * 3 - 1) / 2 ^ 2 + -M_PI;" ;
+        String source = getSource(script);
+        assertTrue(source.contains("+ 1.25 + " + (-Math.PI)));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + 1.25 - Math.PI;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void divideByZeroNotFolded() throws Exception {
+        System.out.println("   non-finite results are not folded");
+
+        String script = "dest = con(src > 0, 1 / 0, 0);" ;
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val > 0 ? Double.POSITIVE_INFINITY : 0;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void repeatedPixelReads() throws Exception {
+        System.out.println("   repeated pixel reads are merged");
+
+        String script = "dest = src[0,0] + src[0,0] * 2 + sqrt(src[0,0]);" ;
+        assertEquals(1, countOccurrences(getSource(script), "readFromImage"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + val * 2 + Math.sqrt(val);
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void repeatedSubexpressions() throws Exception {
+        System.out.println("   repeated subexpressions are merged");
+
+        String script = "dest = (src + 1) * (src + 1) - log(src + 1);" ;
+        String source = getSource(script);
+        assertEquals(1, countOccurrences(source, "readFromImage"));
+        assertEquals(1, countOccurrences(source, "+ 1.0"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return (val + 1) * (val + 1) - Math.log(val + 1);
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void conditionalReadNotMerged() throws Exception {
+        System.out.println("   reads in con cases are only merged with unconditional reads");
+
+        String script = "dest = con(x() > 0, src[-1,0], 0) + con(x() > 1, src[-1,0], 0);" ;
+        assertEquals(2, countOccurrences(getSource(script), "readFromImage"));
+
+        Evaluator e = new Evaluator() {
+            double prev = 0;
+            
+            public double eval(double val) {
+                double z = (x > 0 ? prev : 0) + (x > 1 ? prev : 0);
+                prev = val;
+                move();
+                return z;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void volatileCallsNotMerged() throws Exception {
+        System.out.println("   volatile function calls are not merged");
+
+        String source = getSource("dest = rand(src) + rand(src);");
+        assertEquals(2, countOccurrences(source, "_FN.rand("));
+        assertEquals(1, countOccurrences(source, "readFromImage"));
+    }
+
+    @Test
+    public void sideEffectsPreventMerging() throws Exception {
+        System.out.println("   statements with side-effects are left alone");
+
+        String script = "init { n = 0; } dest = sqrt(n) + n++ + sqrt(n);" ;
+        assertEquals(2, countOccurrences(getSource(script), "Math.sqrt"));
+
+        Evaluator e = new Evaluator() {
+            double n = 0;
+            
+            public double eval(double val) {
+                double z = Math.sqrt(n) + n;
+                n++ ;
+                return z + Math.sqrt(n);
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void deadAssignmentsRemoved() throws Exception {
+        System.out.println("   assignments to unused variables are removed");
+
+        String script = "a = src * 2; b = a + 1; c = src; dest = c;" ;
+        String source = getSource(script);
+        assertFalse(source.contains("double a"));
+        assertFalse(source.contains("double b"));
+        assertTrue(source.contains("double c"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void deadAssignmentsInLoopRemoved() throws Exception {
+        System.out.println("   unused assignments in a loop body are removed");
+
+        String script = "n = 0; while (n < 3) { e = n; n += 1; f = e; } dest = src + n;" ;
+        String source = getSource(script);
+        assertFalse(source.contains("double e"));
+        assertFalse(source.contains("double f"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + 3;
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void longChainOfDeadAssignments() throws Exception {
+        System.out.println("   long chain of unused assignments with merged subexpressions");
+
+        StringBuilder sb = new StringBuilder("d0 = src;");
+        for (int i = 1; i < 200; i++) {
+            sb.append(" d").append(i).append(" = d").append(i - 1).append(" + 1;");
+            sb.append(" t").append(i).append(" = (src + ").append(i).append(") * (src + ")
+                    .append(i).append(");");
+        }
+        sb.append(" dest = t199 - t1;");
+        String script = sb.toString();
+        
+        String source = getSource(script);
+        assertFalse(source.contains("double d"));
+        assertTrue(source.contains("double t199"));
+        assertFalse(source.contains("double t198"));
+
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return (val + 199) * (val + 199) - (val + 1) * (val + 1);
+            }
+        };
+
+        testScript(script, e);
+    }
+
+    @Test
+    public void assignmentWithSideEffectKept() throws Exception {
+        System.out.println("   unused assignment with side-effect is kept");
+
+        String script = "init { n = 0; } a = n++; dest = n;" ;
+
+        Evaluator e = new Evaluator() {
+            double n = 0;
+            
+            public double eval(double val) {
+                return ++n;
+            }
+        };
+
+        testScript(script, e);
+    }
+    
+    private String getSource(String script) throws Exception {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeSource(false);
+    }
+    
+    private int countOccurrences(String s, String target) {
+        int n = 0;
+        int pos = s.indexOf(target);
+        while (pos >= 0) {
+            n++ ;
+            pos = s.indexOf(target, pos + target.length());
+        }
+        return n;
+    }
+}
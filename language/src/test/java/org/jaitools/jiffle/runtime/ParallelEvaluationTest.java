@@ -0,0 +1,307 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+import javax.media.jai.iterator.RectIter;
+import javax.media.jai.iterator.RectIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for multi-threaded evaluation with direct runtime objects.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ParallelEvaluationTest {
+    
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 16;
+    private static final int NUM_THREADS = 4;
+    
+    private static final double TOL = 1.0e-8;
+    
+    
+    @Test
+    public void matchesSingleThreadResult() throws Exception {
+        System.out.println("   multi-threaded evaluation matches single thread result");
+        
+        String script = "dest = src > 1000 ? src * x() : src + y();" ;
+        RenderedImage srcImg = createSequenceImage(0, 0);
+        
+        TiledImage serialImg = createDestImage(0, 0, 0, 0);
+        JiffleDirectRuntime runtime = getRuntime(script);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", serialImg);
+        runtime.evaluateAll(null);
+        
+        TiledImage parallelImg = createDestImage(0, 0, 0, 0);
+        runtime = getRuntime(script);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", parallelImg);
+        runtime.evaluateAll(null, NUM_THREADS);
+        
+        assertImagesEqual(serialImg, parallelImg);
+    }
+    
+    @Test
+    public void offsetTileGrid() throws Exception {
+        System.out.println("   multi-threaded evaluation with offset tile grid");
+        
+        String script = "dest = src + 1;" ;
+        RenderedImage srcImg = createSequenceImage(-5, 3);
+        TiledImage destImg = createDestImage(-5, 3, 7, -2);
+        
+        JiffleDirectRuntime runtime = getRuntime(script);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null, NUM_THREADS);
+        
+        RectIter srcIter = RectIterFactory.create(srcImg, null);
+        RectIter destIter = RectIterFactory.create(destImg, null);
+        do {
+            do {
+                assertEquals(srcIter.getSampleDouble() + 1, destIter.getSampleDouble(), TOL);
+                destIter.nextPixelDone();
+            } while (!srcIter.nextPixelDone());
+            
+            srcIter.startPixels();
+            destIter.startPixels();
+            destIter.nextLineDone();
+        } while (!srcIter.nextLineDone());
+    }
+    
+    @Test
+    public void progressListener() throws Exception {
+        System.out.println("   progress listener called with aggregated pixel count");
+        
+        final long[] lastCount = {0};
+        final boolean[] started = {false};
+        final boolean[] finished = {false};
+        
+        JiffleProgressListener listener = new AbstractProgressListener() {
+            public void start() {
+                started[0] = true;
+            }
+
+            public void update(long done) {
+                assertTrue(done >= lastCount[0]);
+                lastCount[0] = done;
+            }
+
+            public void finish() {
+                finished[0] = true;
+            }
+        };
+        
+        JiffleDirectRuntime runtime = getRuntime("dest = src;");
+        runtime.setSourceImage("src", createSequenceImage(0, 0));
+        runtime.setDestinationImage("dest", createDestImage(0, 0, 0, 0));
+        runtime.evaluateAll(listener, NUM_THREADS);
+        
+        assertTrue(started[0]);
+        assertTrue(finished[0]);
+        assertTrue(lastCount[0] <= (long) WIDTH * HEIGHT);
+    }
+    
+    @Test
+    public void singleThreadProgressByRow() throws Exception {
+        System.out.println("   single-threaded progress is reported per row");
+        
+        final long[] numUpdates = {0};
+        final long[] lastCount = {0};
+        
+        // default update interval is one pixel
+        JiffleProgressListener listener = new AbstractProgressListener() {
+            public void start() {}
+
+            public void update(long done) {
+                assertEquals(lastCount[0] + WIDTH, done);
+                lastCount[0] = done;
+                numUpdates[0]++ ;
+            }
+
+            public void finish() {}
+        };
+        
+        JiffleDirectRuntime runtime = getRuntime("dest = src;");
+        runtime.setSourceImage("src", createSequenceImage(0, 0));
+        runtime.setDestinationImage("dest", createDestImage(0, 0, 0, 0));
+        runtime.evaluateAll(listener);
+        
+        assertEquals(HEIGHT, numUpdates[0]);
+        assertEquals((long) WIDTH * HEIGHT, lastCount[0]);
+    }
+    
+    @Test
+    public void imageScopeVarWrittenPerPixel() throws Exception {
+        System.out.println("   script writing image-scope var evaluated on one thread");
+        
+        String script = "init { n = 0; } n += 1; dest = n;" ;
+        JiffleDirectRuntime runtime = getRuntime(script);
+        runtime.setSourceImage("src", createSequenceImage(0, 0));
+        runtime.setDestinationImage("dest", createDestImage(0, 0, 0, 0));
+        runtime.evaluateAll(null, NUM_THREADS);
+        
+        assertEquals(WIDTH * HEIGHT, runtime.getVar("n").intValue());
+    }
+    
+    @Test
+    public void imageScopeVarValueCopied() throws Exception {
+        System.out.println("   image-scope var values available to all threads");
+        
+        String script = "init { k = 0; } dest = src + k;" ;
+        JiffleDirectRuntime runtime = getRuntime(script);
+        runtime.setVar("k", 42.0);
+        
+        RenderedImage srcImg = createSequenceImage(0, 0);
+        TiledImage destImg = createDestImage(0, 0, 0, 0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null, NUM_THREADS);
+        
+        assertEquals(srcImg.getData().getSampleDouble(WIDTH - 1, HEIGHT - 1, 0) + 42,
+                destImg.getSampleDouble(WIDTH - 1, HEIGHT - 1, 0), TOL);
+    }
+    
+    @Test
+    public void packedDestWithWorldCoords() throws Exception {
+        System.out.println("   multi-threaded evaluation with bit destination and world coords");
+        
+        // each image pixel is covered by two processing area pixels, and 
+        // image X is offset by 3 so that byte boundaries in the packed
+        // image do not fall on evaluation tile boundaries unless these
+        // are aligned with the image's tile grid
+        final int w = 600;
+        final int h = 300;
+        final int offset = 3;
+        final double res = 0.5;
+        
+        SampleModel sm = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 1);
+        TiledImage destImg = new TiledImage(offset, 0, w, h, 0, 0, sm, null);
+        
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle(
+                "dest = (round(x()) + round(y())) % 2;", imageParams);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        
+        Rectangle2D worldBounds = new Rectangle2D.Double(0, 0, w, h);
+        runtime.setWorldByResolution(worldBounds, res, res);
+        runtime.setDestinationImage("dest", destImg, 
+                CoordinateTransforms.getTransform(worldBounds, new Rectangle(offset, 0, w, h)));
+        
+        // lost writes depend on thread timing, so also check directly that
+        // no evaluation tile spans more than one image tile
+        List<Rectangle> tiles = ((AbstractDirectRuntime) runtime).getEvaluationTiles();
+        assertTrue(tiles.size() > 1);
+        for (Rectangle t : tiles) {
+            int x0 = offset + (int) Math.round(t.x * res);
+            int x1 = offset + (int) Math.round((t.x + t.width - 1) * res);
+            int y0 = (int) Math.round(t.y * res);
+            int y1 = (int) Math.round((t.y + t.height - 1) * res);
+            assertEquals(destImg.XToTileX(x0), destImg.XToTileX(x1));
+            assertEquals(destImg.YToTileY(y0), destImg.YToTileY(y1));
+        }
+        
+        runtime.evaluateAll(null, NUM_THREADS);
+        for (int y = 0; y < h; y++) {
+            for (int x = offset; x < offset + w; x++) {
+                assertEquals((x - offset + y) % 2, destImg.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    @Test(expected=JiffleRuntimeException.class)
+    public void exceptionInWorkerThread() throws Exception {
+        System.out.println("   exception in worker thread passed to caller");
+        
+        JiffleDirectRuntime runtime = getRuntime("dest = src[$-1, 0];");
+        runtime.setSourceImage("src", createSequenceImage(0, 0));
+        runtime.setDestinationImage("dest", createDestImage(0, 0, 0, 0));
+        runtime.evaluateAll(null, NUM_THREADS);
+    }
+    
+    private JiffleDirectRuntime getRuntime(String script) throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeInstance();
+    }
+    
+    private RenderedImage createSequenceImage(int minX, int minY) {
+        TiledImage img = ImageUtils.createConstantImage(minX, minY, WIDTH, HEIGHT, 0.0);
+        int k = 0;
+        for (int y = minY; y < minY + HEIGHT; y++) {
+            for (int x = minX; x < minX + WIDTH; x++) {
+                img.setSample(x, y, 0, k++);
+            }
+        }
+        return img;
+    }
+    
+    private TiledImage createDestImage(int minX, int minY, int tileGridX, int tileGridY) {
+        SampleModel sm = RasterFactory.createBandedSampleModel(
+                DataBuffer.TYPE_DOUBLE, TILE_SIZE, TILE_SIZE, 1);
+        
+        return new TiledImage(minX, minY, WIDTH, HEIGHT, tileGridX, tileGridY, sm, null);
+    }
+    
+    private void assertImagesEqual(RenderedImage expected, RenderedImage actual) {
+        RectIter expIter = RectIterFactory.create(expected, null);
+        RectIter actIter = RectIterFactory.create(actual, null);
+        do {
+            do {
+                assertEquals(expIter.getSampleDouble(), actIter.getSampleDouble(), TOL);
+                actIter.nextPixelDone();
+            } while (!expIter.nextPixelDone());
+            
+            expIter.startPixels();
+            actIter.startPixels();
+            actIter.nextLineDone();
+        } while (!expIter.nextLineDone());
+    }
+}
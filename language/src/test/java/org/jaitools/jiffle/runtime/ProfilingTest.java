@@ -0,0 +1,215 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+import java.util.List;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for runtime classes instrumented for profiling.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ProfilingTest extends RuntimeTestBase {
+    
+    private static final String SCRIPT = 
+              "n = 0;\n"
+            + "foreach (i in 1:3) {\n"
+            + "    n += i;\n"
+            + "}\n"
+            + "dest = src + n;";
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+    }
+    
+    @Test
+    public void notProfiledByDefault() throws Exception {
+        System.out.println("   profiling: off by default");
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        assertFalse(jiffle.isProfiling());
+        assertFalse(jiffle.getRuntimeSource(false).contains("endProbe"));
+        
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+        assertNull(runtime.getProfile());
+    }
+    
+    @Test
+    public void statementsAndLoopBodies() throws Exception {
+        System.out.println("   profiling: statements and loop bodies");
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, Jiffle.CompilerBackend.SOURCE);
+        RenderedImage srcImg = createSequenceImage();
+        testRuntime(srcImg, runtime, new Evaluator() {
+            public double eval(double val) {
+                return val + 6;
+            }
+        });
+        
+        List<JiffleProfile.Entry> entries = runtime.getProfile().getEntries();
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), 1, false, NUM_PIXELS);
+        assertEntry(entries.get(1), 2, false, NUM_PIXELS);
+        assertEntry(entries.get(2), 3, true, 3 * NUM_PIXELS);
+        assertEntry(entries.get(3), 5, false, NUM_PIXELS);
+        
+        assertTrue(runtime.getProfile().getReport().contains("loop body"));
+        
+        runtime.resetProfile();
+        for (JiffleProfile.Entry e : runtime.getProfile().getEntries()) {
+            assertEquals(0, e.getCount());
+            assertEquals(0, e.getNanos());
+        }
+    }
+    
+    @Test
+    public void breakFromLoopBody() throws Exception {
+        System.out.println("   profiling: break from loop body");
+        String script = "i = 0; while (i < 10) { i++; breakif(i >= 2); } dest = i;";
+        AbstractDirectRuntime runtime = createRuntime(script, Jiffle.CompilerBackend.SOURCE);
+        testRuntime(createSequenceImage(), runtime, new Evaluator() {
+            public double eval(double val) {
+                return 2;
+            }
+        });
+        
+        List<JiffleProfile.Entry> entries = runtime.getProfile().getEntries();
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(3), 1, true, 2 * NUM_PIXELS);
+    }
+    
+    @Test
+    public void multiThreaded() throws Exception {
+        System.out.println("   profiling: multi-threaded run");
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, Jiffle.CompilerBackend.SOURCE);
+        runtime.setSourceImage("src", createSequenceImage());
+        runtime.setDestinationImage("dest", ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0));
+        runtime.evaluateAll(null, 4);
+        
+        List<JiffleProfile.Entry> entries = runtime.getProfile().getEntries();
+        assertEntry(entries.get(0), 1, false, NUM_PIXELS);
+        assertEntry(entries.get(2), 3, true, 3 * NUM_PIXELS);
+    }
+    
+    @Test
+    public void layoutChangesLines() throws Exception {
+        System.out.println("   profiling: scripts differing only in layout");
+        AbstractDirectRuntime r1 = createRuntime("n = 1; dest = n;", Jiffle.CompilerBackend.SOURCE);
+        AbstractDirectRuntime r2 = createRuntime("n = 1;\n\ndest = n;", Jiffle.CompilerBackend.SOURCE);
+        
+        assertNotSame(r1.getClass(), r2.getClass());
+        assertEquals(1, r1.getProfile().getEntries().get(1).getLine());
+        assertEquals(3, r2.getProfile().getEntries().get(1).getLine());
+    }
+    
+    @Test
+    public void bytecodeBackendUsesSource() throws Exception {
+        System.out.println("   profiling: bytecode backend falls back to source");
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, Jiffle.CompilerBackend.BYTECODE);
+        assertNotNull(runtime.getProfile());
+    }
+    
+    @Test
+    public void indirectRuntime() throws Exception {
+        System.out.println("   profiling: indirect runtime");
+        imageParams.remove("src");
+        Jiffle jiffle = new Jiffle();
+        jiffle.setProfiling(true);
+        jiffle.setScript("a = x();\ndest = a + y();");
+        jiffle.setImageParams(imageParams);
+        jiffle.compile();
+        
+        AbstractIndirectRuntime runtime = (AbstractIndirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        assertEquals(7.0, runtime.evaluate(3, 4), TOL);
+        
+        List<JiffleProfile.Entry> entries = runtime.getProfile().getEntries();
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(0), 1, false, 1);
+        assertEntry(entries.get(1), 2, false, 1);
+    }
+    
+    @Test
+    public void indirectRuntimeConditionalWrite() throws Exception {
+        System.out.println("   profiling: indirect runtime with conditional write");
+        imageParams.remove("src");
+        Jiffle jiffle = new Jiffle();
+        jiffle.setProfiling(true);
+        jiffle.setScript("if (x() > 2) dest = 1;\nelse dest = 2;");
+        jiffle.setImageParams(imageParams);
+        jiffle.compile();
+        
+        AbstractIndirectRuntime runtime = (AbstractIndirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        assertEquals(1.0, runtime.evaluate(3, 0), TOL);
+        assertEquals(2.0, runtime.evaluate(1, 0), TOL);
+        
+        List<JiffleProfile.Entry> entries = runtime.getProfile().getEntries();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), 1, false, 2);
+        
+        // the probe must also be ended when the write returns early
+        jiffle.setScript("if (x() > 2) dest = 1;\ndest = 2;");
+        jiffle.compile();
+        runtime = (AbstractIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        assertEquals(1.0, runtime.evaluate(3, 0), TOL);
+        assertEquals(2.0, runtime.evaluate(1, 0), TOL);
+        
+        entries = runtime.getProfile().getEntries();
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(0), 1, false, 2);
+        assertEntry(entries.get(1), 2, false, 1);
+    }
+    
+    private AbstractDirectRuntime createRuntime(String script, 
+            Jiffle.CompilerBackend backend) throws Exception {
+        Jiffle jiffle = new Jiffle();
+        jiffle.setProfiling(true);
+        jiffle.setCompilerBackend(backend);
+        jiffle.setScript(script);
+        jiffle.setImageParams(imageParams);
+        jiffle.compile();
+        return (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+    }
+    
+    private void assertEntry(JiffleProfile.Entry e, int line, boolean loopBody, long count) {
+        assertEquals(line, e.getLine());
+        assertEquals(loopBody, e.isLoopBody());
+        assertEquals(count, e.getCount());
+    }
+}
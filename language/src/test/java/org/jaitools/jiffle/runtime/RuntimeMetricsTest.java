@@ -0,0 +1,178 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for runtime metrics.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeMetricsTest extends RuntimeTestBase {
+    
+    private RuntimeMetrics metrics;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        metrics = new RuntimeMetrics();
+    }
+    
+    @Test
+    public void singleThreaded() throws Exception {
+        System.out.println("   metrics: single-threaded run");
+        AbstractDirectRuntime runtime = createRuntime("options { outside = 0; } dest = src + src[-1, 0];");
+        runtime.setMetrics(metrics);
+        runtime.evaluateAll(null);
+        
+        assertEquals(1, metrics.getRunCount());
+        assertEquals(NUM_PIXELS, metrics.getPixelCount());
+        // a single-threaded run is not divided into tiles
+        assertEquals(0, metrics.getTileCount());
+        assertEquals(0, sum(metrics.getTileLatencyHistogram()));
+        assertTrue(metrics.getEvaluationMillis() > 0);
+        
+        assertEquals(2 * NUM_PIXELS, metrics.getReadCount("src"));
+        assertEquals(IMG_WIDTH, metrics.getOutsideReadCount("src"));
+        assertEquals(NUM_PIXELS, metrics.getWriteCount("dest"));
+        assertEquals(2.0, metrics.getReadsPerPixel(), TOL);
+        assertTrue(metrics.getPixelsPerSecond() > 0);
+        assertTrue(metrics.getEvaluationMillis() >= metrics.getScriptMillis());
+    }
+    
+    @Test
+    public void multiThreaded() throws Exception {
+        System.out.println("   metrics: multi-threaded run");
+        AbstractDirectRuntime runtime = createRuntime("dest = src * 2;");
+        runtime.setMetrics(metrics);
+        runtime.evaluateAll(null, 4);
+        
+        assertEquals(1, metrics.getRunCount());
+        assertEquals(NUM_PIXELS, metrics.getPixelCount());
+        assertTrue(metrics.getTileCount() >= 1);
+        assertEquals(metrics.getTileCount(), sum(metrics.getTileLatencyHistogram()));
+        assertEquals(NUM_PIXELS, metrics.getReadCount("src"));
+        assertEquals(NUM_PIXELS, metrics.getWriteCount("dest"));
+    }
+    
+    @Test
+    public void disableMetrics() throws Exception {
+        System.out.println("   metrics: disable");
+        AbstractDirectRuntime runtime = createRuntime("dest = src * 2;");
+        runtime.setMetrics(metrics);
+        runtime.evaluateAll(null);
+        
+        runtime.setMetrics(null);
+        assertNull(runtime.getMetrics());
+        runtime.evaluateAll(null);
+        
+        assertEquals(1, metrics.getRunCount());
+        assertEquals(NUM_PIXELS, metrics.getReadCount("src"));
+        
+        metrics.reset();
+        assertEquals(0, metrics.getRunCount());
+        assertEquals(0, metrics.getImageNames().length);
+    }
+    
+    @Test
+    public void executorAttachesMetrics() throws Exception {
+        System.out.println("   metrics: attached by executor");
+        JiffleExecutor executor = new JiffleExecutor();
+        executor.setMetrics(metrics);
+        
+        WaitingListener listener = new WaitingListener();
+        executor.addEventListener(listener);
+        listener.setNumTasks(1);
+        
+        AbstractDirectRuntime runtime = createRuntime("dest = src * 2;");
+        executor.submit(runtime, null);
+        try {
+            assertTrue(listener.await(2, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownAndWait(1, TimeUnit.SECONDS);
+        }
+        
+        assertSame(metrics, runtime.getMetrics());
+        assertEquals(1, metrics.getRunCount());
+        assertEquals(NUM_PIXELS, metrics.getPixelCount());
+    }
+    
+    @Test
+    public void registerMBean() throws Exception {
+        System.out.println("   metrics: MBean registration");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.registerMBean("test");
+        try {
+            assertTrue(server.isRegistered(name));
+            
+            AbstractDirectRuntime runtime = createRuntime("dest = src * 2;");
+            runtime.setMetrics(metrics);
+            runtime.evaluateAll(null);
+            assertEquals(Long.valueOf(NUM_PIXELS), server.getAttribute(name, "PixelCount"));
+            
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+    
+    private AbstractDirectRuntime createRuntime(String script) throws Exception {
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", createSequenceImage());
+        runtime.setDestinationImage("dest", destImg);
+        return runtime;
+    }
+    
+    private long sum(long[] values) {
+        long n = 0;
+        for (long v : values) {
+            n += v;
+        }
+        return n;
+    }
+}
@@ -109,6 +109,54 @@ public class SpecifyingImageVarsTest extends RuntimeTestBase {
         jiffle.compile();
     }
     
+    @Test
+    public void readByNameAndSlot() throws Exception {
+        System.out.println("   reading image values by var name and slot index");
+        
+        String script = "images { inimage = read; outimage = write; } outimage = inimage;" ;
+        
+        Jiffle jiffle = new Jiffle();
+        jiffle.setScript(script);
+        jiffle.compile();
+        
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+        runtime.setSourceImage("inimage", createSequenceImage());
+        
+        int slot = runtime.getImageSlot("inimage");
+        assertTrue(slot >= 0);
+        assertEquals(runtime.readFromImage("inimage", 3, 4, 0), 
+                runtime.readFromImage(slot, 3, 4, 0), TOL);
+        assertEquals(43.0, runtime.readFromImage(slot, 3, 4, 0), TOL);
+    }
+    
+    @Test
+    public void replaceSourceImage() throws Exception {
+        System.out.println("   replacing source image between evaluations");
+        
+        String script = "images { inimage = read; outimage = write; } outimage = inimage;" ;
+        
+        Jiffle jiffle = new Jiffle();
+        jiffle.setScript(script);
+        jiffle.compile();
+        
+        runtimeInstance = (JiffleDirectRuntime) jiffle.getRuntimeInstance();
+        WritableRenderedImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0d);
+        runtimeInstance.setDestinationImage("outimage", destImg);
+        
+        runtimeInstance.setSourceImage("inimage", createSequenceImage());
+        runtimeInstance.evaluateAll(null);
+        
+        RenderedImage srcImg = createRowValueImage();
+        runtimeInstance.setSourceImage("inimage", srcImg);
+        runtimeInstance.evaluateAll(null);
+        
+        assertImage(srcImg, destImg, new Evaluator() {
+            public double eval(double val) {
+                return val;
+            }
+        });
+    }
+    
     private void assertScriptResult(String script, 
             Evaluator e, String srcVarName, String destVarName) throws Exception {
         
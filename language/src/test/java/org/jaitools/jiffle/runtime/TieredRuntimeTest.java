@@ -0,0 +1,222 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleCompileEvent;
+import org.jaitools.jiffle.JiffleCompileListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that the tiered runtime switches to the compiled runtime class
+ * and gives the same results as a compiled runtime used on its own.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class TieredRuntimeTest extends RuntimeTestBase {
+    
+    private static final long COMPILE_TIMEOUT = 30000;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+    }
+    
+    @Test
+    public void switchAtRowBoundary() throws Exception {
+        System.out.println("   tiered: switch to compiled runtime during a run");
+        assertSameResults("dest = src * 2 + x() - y();");
+    }
+    
+    @Test
+    public void imageScopeVarsCarriedOver() throws Exception {
+        System.out.println("   tiered: image-scope variables carried over");
+        TieredRuntime runtime = assertSameResults("init { n = 0; } n += src; dest = n;");
+        
+        double total = 0;
+        for (int i = 0; i < IMG_WIDTH * IMG_WIDTH; i++) {
+            total += i;
+        }
+        assertEquals(total, runtime.getVar("n"), TOL);
+    }
+    
+    @Test
+    public void multiThreaded() throws Exception {
+        System.out.println("   tiered: multi-threaded evaluation");
+        Jiffle jiffle = new Jiffle("dest = src * 2;", imageParams);
+        TieredRuntime runtime = (TieredRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.TIERED);
+        
+        RenderedImage srcImg = createSequenceImage();
+        for (int i = 0; i < 2; i++) {
+            TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+            runtime.setSourceImage("src", srcImg);
+            runtime.setDestinationImage("dest", destImg);
+            runtime.evaluateAll(null, 4);
+
+            assertImage(srcImg, destImg, new Evaluator() {
+                @Override
+                public double eval(double val) {
+                    return val * 2;
+                }
+            });
+            
+            waitForCompiler(runtime);
+        }
+    }
+    
+    @Test
+    public void recompileDuringRun() throws Exception {
+        System.out.println("   tiered: Jiffle recompiled while runtime is running");
+        
+        // a script not seen by other tests so that the runtime class is 
+        // not already cached
+        final double k = System.nanoTime() % 1000;
+        
+        // hold up the background compilation until the Jiffle has been recompiled
+        final CountDownLatch recompiled = new CountDownLatch(1);
+        Jiffle jiffle = new Jiffle();
+        jiffle.addCompileListener(new JiffleCompileListener() {
+            public void onCompilePhase(JiffleCompileEvent ev) {
+                if (ev.getPhase() == JiffleCompileEvent.Phase.RUNTIME_SOURCE) {
+                    try {
+                        recompiled.await(COMPILE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        jiffle.setScript("dest = src * 2 + " + k + ";");
+        jiffle.setImageParams(imageParams);
+        jiffle.compile();
+        
+        final TieredRuntime tiered = (TieredRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.TIERED);
+        
+        jiffle.setScript("dest = src * 100;");
+        jiffle.compile();
+        recompiled.countDown();
+        
+        RenderedImage srcImg = createSequenceImage();
+        RenderedImage destImg = run(tiered, srcImg, new CompileWaitListener(tiered));
+        assertTrue(tiered.isCompiledRuntimeActive());
+        
+        assertImage(srcImg, destImg, new Evaluator() {
+            @Override
+            public double eval(double val) {
+                return val * 2 + k;
+            }
+        });
+    }
+    
+    private TieredRuntime assertSameResults(String script) throws Exception {
+        RenderedImage srcImg = createSequenceImage();
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        JiffleDirectRuntime direct = (JiffleDirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.DIRECT);
+        RenderedImage expected = run(direct, srcImg, new NullProgressListener());
+        
+        jiffle = new Jiffle(script, imageParams);
+        final TieredRuntime tiered = (TieredRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.TIERED);
+        
+        // hold up evaluation after the first row until the compiled 
+        // class is available
+        RenderedImage actual = run(tiered, srcImg, new CompileWaitListener(tiered));
+        assertTrue(tiered.isCompiledRuntimeActive());
+        
+        assertImage(expected, actual, new Evaluator() {
+            @Override
+            public double eval(double val) {
+                return val;
+            }
+        });
+        
+        return tiered;
+    }
+    
+    private RenderedImage run(JiffleDirectRuntime runtime, RenderedImage srcImg,
+            JiffleProgressListener listener) throws Exception {
+        
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(listener);
+        return destImg;
+    }
+    
+    /**
+     * Holds up evaluation at the end of the first row until the compiled 
+     * runtime class is available.
+     */
+    private class CompileWaitListener extends AbstractProgressListener {
+        private final TieredRuntime runtime;
+        
+        CompileWaitListener(TieredRuntime runtime) {
+            this.runtime = runtime;
+            setUpdateInterval((long) IMG_WIDTH);
+        }
+        
+        public void start() {}
+        
+        public void update(long done) {
+            waitForCompiler(runtime);
+        }
+        
+        public void finish() {}
+    }
+    
+    private void waitForCompiler(TieredRuntime runtime) {
+        long start = System.currentTimeMillis();
+        while (!runtime.isCompiledRuntimeReady()) {
+            if (System.currentTimeMillis() - start > COMPILE_TIMEOUT) {
+                fail("Timed out waiting for runtime class to compile");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                fail("Interrupted");
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.jaitools.jiffle.Jiffle;
 import org.jaitools.jiffle.JiffleException;
 
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  * Unit tests for scripts using world coordinate systems.
@@ -122,6 +123,28 @@ public class WorldCoordsTest extends RuntimeTestBase {
         assertImage(srcImg, destImg, e);
     }
     
+    @Test
+    public void fractionalResolution() throws Exception {
+        System.out.println("   fractional pixel dimensions give exact number of pixels");
+        
+        final int width = 1000;
+        String script = "images {dest=write;} init { n = 0; } n += 1; dest = x();" ;
+        JiffleDirectRuntime runtime = getRuntime(script);
+        
+        Rectangle2D worldBounds = new Rectangle(0, 0, 1, 1);
+        runtime.setWorldByResolution(worldBounds, 1.0 / width, 1.0 / 2);
+        
+        CoordinateTransform tr = CoordinateTransforms.getTransform(worldBounds, 
+                new Rectangle(0, 0, width, 2));
+        WritableRenderedImage destImg = ImageUtils.createConstantImage(width, 2, 0d);
+        runtime.setDestinationImage("dest", destImg, tr);
+        runtime.evaluateAll(null);
+        
+        assertEquals(2 * width, runtime.getVar("n").intValue());
+        assertEquals((double) (width - 1) / width, 
+                destImg.getData().getSampleDouble(width - 1, 1, 0), TOL);
+    }
+    
     @Test
     public void worldDistancesInScript() throws Exception {
         System.out.println("   using world position and pixel dimensions in script");
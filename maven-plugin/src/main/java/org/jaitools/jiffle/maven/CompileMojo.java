@@ -0,0 +1,330 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.maven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleException;
+import org.jaitools.jiffle.PrecompiledScripts;
+
+/**
+ * Compiles Jiffle scripts ({@code .jfl} files) into Java source for runtime 
+ * classes, which are then compiled and packaged with the rest of the project.
+ * An index file is also generated so that runtime objects can be created 
+ * at run time with {@link PrecompiledScripts}, without the Jiffle compiler
+ * or Janino.
+ * <p>
+ * Each script must declare its images in an {@code images} block. A script
+ * in {@code veg/ndvi.jfl}, relative to the source directory, gets the name
+ * {@code veg/ndvi} and the class {@code <packageName>.veg.NdviRuntime}.
+ * Characters which are not valid in Java identifiers are replaced in 
+ * package names (e.g. directory {@code my-scripts} becomes package 
+ * {@code my_scripts}) and dropped from class names. The build fails if
+ * two scripts map to the same class.
+ * <p>
+ * Example configuration:
+ * <pre>
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;org.jaitools&lt;/groupId&gt;
+ *   &lt;artifactId&gt;jiffle-maven-plugin&lt;/artifactId&gt;
+ *   &lt;executions&gt;
+ *     &lt;execution&gt;
+ *       &lt;goals&gt;&lt;goal&gt;compile&lt;/goal&gt;&lt;/goals&gt;
+ *       &lt;configuration&gt;
+ *         &lt;packageName&gt;org.example.jiffle&lt;/packageName&gt;
+ *       &lt;/configuration&gt;
+ *     &lt;/execution&gt;
+ *   &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ * 
+ * @goal compile
+ * @phase generate-sources
+ * @threadSafe
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CompileMojo extends AbstractMojo {
+    
+    private static final String SCRIPT_EXTENSION = ".jfl";
+    
+    private static final Set<String> KEYWORDS = CollectionFactory.set();
+    static {
+        KEYWORDS.addAll(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch",
+            "char", "class", "const", "continue", "default", "do", "double",
+            "else", "enum", "extends", "false", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int",
+            "interface", "long", "native", "new", "null", "package", "private",
+            "protected", "public", "return", "short", "static", "strictfp",
+            "super", "switch", "synchronized", "this", "throw", "throws",
+            "transient", "true", "try", "void", "volatile", "while"));
+    }
+    
+    /**
+     * Directory containing Jiffle scripts.
+     * 
+     * @parameter default-value="${basedir}/src/main/jiffle"
+     */
+    private File sourceDirectory;
+    
+    /**
+     * Directory for generated Java source.
+     * 
+     * @parameter default-value="${project.build.directory}/generated-sources/jiffle"
+     */
+    private File outputDirectory;
+    
+    /**
+     * Directory for the generated script index.
+     * 
+     * @parameter default-value="${project.build.directory}/generated-resources/jiffle"
+     */
+    private File resourceOutputDirectory;
+    
+    /**
+     * Base package for runtime classes.
+     * 
+     * @parameter
+     * @required
+     */
+    private String packageName;
+    
+    /**
+     * Runtime model: {@code DIRECT} (classes extend {@code AbstractDirectRuntime})
+     * or {@code INDIRECT} (classes extend {@code AbstractIndirectRuntime}).
+     * 
+     * @parameter default-value="DIRECT"
+     */
+    private String runtimeModel;
+    
+    /**
+     * The current project.
+     * 
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * Compiles the scripts.
+     * 
+     * @throws MojoExecutionException on errors writing files
+     * @throws MojoFailureException if a script cannot be compiled
+     */
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        Jiffle.RuntimeModel model;
+        try {
+            model = Jiffle.RuntimeModel.valueOf(runtimeModel.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new MojoExecutionException("Invalid runtime model: " + runtimeModel);
+        }
+        
+        List<File> scripts = CollectionFactory.list();
+        if (sourceDirectory.isDirectory()) {
+            findScripts(sourceDirectory, scripts);
+        }
+        if (scripts.isEmpty()) {
+            getLog().info("No Jiffle scripts found in " + sourceDirectory);
+            return;
+        }
+        
+        Properties index = new Properties();
+        Map<String, File> classes = CollectionFactory.map();
+        for (File script : scripts) {
+            compileScript(script, model, index, classes);
+        }
+        writeIndex(index);
+        
+        project.addCompileSourceRoot(outputDirectory.getAbsolutePath());
+        
+        Resource resource = new Resource();
+        resource.setDirectory(resourceOutputDirectory.getAbsolutePath());
+        project.addResource(resource);
+        
+        getLog().info("Compiled " + scripts.size() + " Jiffle script(s)");
+    }
+    
+    private void compileScript(File script, Jiffle.RuntimeModel model, Properties index,
+            Map<String, File> classes) throws MojoExecutionException, MojoFailureException {
+        
+        String relPath = sourceDirectory.toURI().relativize(script.toURI()).getPath();
+        String scriptName = relPath.substring(0, relPath.length() - SCRIPT_EXTENSION.length());
+        
+        int lastSlash = scriptName.lastIndexOf('/');
+        StringBuilder sb = new StringBuilder(packageName);
+        if (lastSlash > 0) {
+            for (String dir : scriptName.substring(0, lastSlash).split("/")) {
+                sb.append('.').append(toPackageSegment(dir));
+            }
+        }
+        String pkg = sb.toString();
+        String className = toClassName(scriptName.substring(lastSlash + 1));
+        
+        String qualifiedName = pkg + "." + className;
+        File other = classes.get(qualifiedName);
+        if (other != null) {
+            throw new MojoFailureException("Scripts " + other + " and " + script + 
+                    " both map to class " + qualifiedName + "; please rename one of them");
+        }
+        classes.put(qualifiedName, script);
+        
+        Jiffle jiffle = new Jiffle();
+        String source;
+        try {
+            jiffle.setScript(script);
+            
+            // image parameters are read from the script's images block
+            jiffle.compile();
+            source = jiffle.getRuntimeSource(model, pkg, className, true);
+            
+        } catch (JiffleException ex) {
+            throw new MojoFailureException("Unable to compile " + script + ": " + ex.getMessage());
+        }
+        
+        File outFile = new File(outputDirectory, 
+                pkg.replace('.', File.separatorChar) + File.separator + className + ".java");
+        writeFile(outFile, source);
+        
+        PrecompiledScripts.addIndexEntry(index, scriptName, qualifiedName, 
+                jiffle.getImageParams());
+    }
+    
+    private void findScripts(File dir, List<File> scripts) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    findScripts(f, scripts);
+                } else if (f.getName().endsWith(SCRIPT_EXTENSION)) {
+                    scripts.add(f);
+                }
+            }
+        }
+    }
+    
+    /*
+     * Converts a directory name to a package name segment by replacing
+     * characters which are not valid in Java identifiers, e.g. "my-scripts"
+     * to "my_scripts", "2011" to "_2011" and "int" to "int_".
+     */
+    static String toPackageSegment(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+            sb.insert(0, '_');
+        }
+        if (KEYWORDS.contains(sb.toString())) {
+            sb.append('_');
+        }
+        return sb.toString();
+    }
+    
+    /*
+     * Converts a script file name to a class name, e.g. "flow-accum" 
+     * to "FlowAccumRuntime". Characters which are valid in Java 
+     * identifiers, such as underscores, are kept, so "flow_accum" 
+     * becomes "Flow_accumRuntime".
+     */
+    static String toClassName(String name) {
+        StringBuilder sb = new StringBuilder();
+        boolean upper = true;
+        for (char c : name.toCharArray()) {
+            if (Character.isJavaIdentifierPart(c) && !Character.isIdentifierIgnorable(c)) {
+                sb.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            } else {
+                upper = true;
+            }
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+            sb.insert(0, "Script");
+        }
+        return sb.append("Runtime").toString();
+    }
+    
+    private void writeIndex(Properties index) throws MojoExecutionException {
+        File file = new File(resourceOutputDirectory, 
+                PrecompiledScripts.INDEX_FILE.replace('/', File.separatorChar));
+        file.getParentFile().mkdirs();
+        
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            index.store(out, "Precompiled Jiffle scripts");
+        } catch (IOException ex) {
+            throw new MojoExecutionException("Unable to write " + file, ex);
+        } finally {
+            close(out);
+        }
+    }
+    
+    private void writeFile(File file, String content) throws MojoExecutionException {
+        file.getParentFile().mkdirs();
+        
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(content);
+        } catch (IOException ex) {
+            throw new MojoExecutionException("Unable to write " + file, ex);
+        } finally {
+            close(writer);
+        }
+    }
+    
+    private void close(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
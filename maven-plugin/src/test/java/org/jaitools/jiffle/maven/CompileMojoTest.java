@@ -0,0 +1,196 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+package org.jaitools.jiffle.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+
+import org.jaitools.jiffle.PrecompiledScripts;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for the compile goal.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CompileMojoTest {
+    
+    private static final String SCRIPT = 
+            "images { src = read; dest = write; } dest = src * 2;" ;
+    
+    private File baseDir;
+    private File sourceDir;
+    private File outputDir;
+    private File resourceDir;
+    
+    @Before
+    public void setup() throws Exception {
+        baseDir = File.createTempFile("jiffle", "mojo");
+        baseDir.delete();
+        baseDir.mkdirs();
+        
+        sourceDir = new File(baseDir, "jiffle");
+        outputDir = new File(baseDir, "java");
+        resourceDir = new File(baseDir, "resources");
+    }
+    
+    @After
+    public void cleanup() {
+        delete(baseDir);
+    }
+    
+    @Test
+    public void packageSegments() throws Exception {
+        System.out.println("   directory names to package name segments");
+        
+        assertEquals("veg", CompileMojo.toPackageSegment("veg"));
+        assertEquals("my_scripts", CompileMojo.toPackageSegment("my-scripts"));
+        assertEquals("_2011", CompileMojo.toPackageSegment("2011"));
+        assertEquals("int_", CompileMojo.toPackageSegment("int"));
+        assertEquals("a_b_c", CompileMojo.toPackageSegment("a b.c"));
+    }
+    
+    @Test
+    public void classNames() throws Exception {
+        System.out.println("   script names to class names");
+        
+        assertEquals("NdviRuntime", CompileMojo.toClassName("ndvi"));
+        assertEquals("FlowAccumRuntime", CompileMojo.toClassName("flow-accum"));
+        assertEquals("A_bRuntime", CompileMojo.toClassName("a_b"));
+        assertEquals("ABRuntime", CompileMojo.toClassName("a-b"));
+        assertEquals("Script2dRuntime", CompileMojo.toClassName("2d"));
+        assertEquals("ScriptRuntime", CompileMojo.toClassName("--"));
+    }
+    
+    @Test
+    public void compileScripts() throws Exception {
+        System.out.println("   compile scripts and write index");
+        
+        writeScript("veg/ndvi.jfl");
+        writeScript("my-scripts/2011/flow-accum.jfl");
+        writeScript("a_b.jfl");
+        writeScript("a-b.jfl");
+        createMojo().execute();
+        
+        File javaFile = new File(outputDir, "org/example/my_scripts/_2011/FlowAccumRuntime.java");
+        assertTrue(javaFile.exists());
+        assertTrue(new File(outputDir, "org/example/veg/NdviRuntime.java").exists());
+        assertTrue(new File(outputDir, "org/example/A_bRuntime.java").exists());
+        assertTrue(new File(outputDir, "org/example/ABRuntime.java").exists());
+        
+        String source = readFile(javaFile);
+        assertTrue(source.contains("package org.example.my_scripts._2011;"));
+        assertTrue(source.contains("dest = src * 2;"));
+        
+        Properties index = new Properties();
+        InputStream in = new FileInputStream(new File(resourceDir, PrecompiledScripts.INDEX_FILE));
+        index.load(in);
+        in.close();
+        
+        assertEquals(8, index.size());
+        assertEquals("org.example.veg.NdviRuntime", 
+                index.getProperty("veg/ndvi" + PrecompiledScripts.CLASS_SUFFIX));
+        assertEquals("org.example.my_scripts._2011.FlowAccumRuntime", 
+                index.getProperty("my-scripts/2011/flow-accum" + PrecompiledScripts.CLASS_SUFFIX));
+        assertEquals("org.example.A_bRuntime", 
+                index.getProperty("a_b" + PrecompiledScripts.CLASS_SUFFIX));
+        assertEquals("org.example.ABRuntime", 
+                index.getProperty("a-b" + PrecompiledScripts.CLASS_SUFFIX));
+        
+        String images = index.getProperty("veg/ndvi" + PrecompiledScripts.IMAGES_SUFFIX);
+        assertTrue(images.contains("src:SOURCE"));
+        assertTrue(images.contains("dest:DEST"));
+    }
+    
+    @Test(expected=MojoFailureException.class)
+    public void duplicateClassNames() throws Exception {
+        System.out.println("   scripts which map to the same class");
+        
+        writeScript("veg/a-b.jfl");
+        writeScript("veg/a b.jfl");
+        createMojo().execute();
+    }
+    
+    private CompileMojo createMojo() throws Exception {
+        CompileMojo mojo = new CompileMojo();
+        setField(mojo, "sourceDirectory", sourceDir);
+        setField(mojo, "outputDirectory", outputDir);
+        setField(mojo, "resourceOutputDirectory", resourceDir);
+        setField(mojo, "packageName", "org.example");
+        setField(mojo, "runtimeModel", "DIRECT");
+        setField(mojo, "project", new MavenProject());
+        return mojo;
+    }
+    
+    private void setField(Object obj, String name, Object value) throws Exception {
+        Field field = obj.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(obj, value);
+    }
+    
+    private void writeScript(String path) throws Exception {
+        File file = new File(sourceDir, path);
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file);
+        writer.write(SCRIPT);
+        writer.close();
+    }
+    
+    private String readFile(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        byte[] bytes = new byte[(int) file.length()];
+        int n = 0;
+        while (n < bytes.length) {
+            n += in.read(bytes, n, bytes.length - n);
+        }
+        in.close();
+        return new String(bytes, "UTF-8");
+    }
+    
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}